@@ -5,7 +5,6 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.BroadcastReceiver;
-import android.content.SharedPreferences;
 import android.os.Build;
 import android.util.Log;
 
@@ -34,7 +33,6 @@ public class ActivityRecognition {
     private static DistractionEventEmitter distractionEmitter;
 
     private static final String TAG = "ActivityRecognition";
-    private static final String PREFS_NAME = "CapacitorStorage";
 
     private static boolean touchDetect = false;
 
@@ -43,16 +41,10 @@ public class ActivityRecognition {
         this.activityClient = com.google.android.gms.location.ActivityRecognition.getClient(context);
     }
 
-    // --- state Persistence ---
-    private void saveState(String key, boolean value) {
-        SharedPreferences prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
-        prefs.edit().putBoolean(key, value).apply();
-    }
-
     // --- GPS Management ---
     public void startGPSUpdates() {
         Log.d(TAG, "🚗 switch to GPS Tracking Service");
-        saveState("driving_state", true);
+        TrackingStateStore.get(context).setDriving(true);
 
         Intent intent = new Intent(context, TrackingService.class);
         intent.setAction(TrackingService.ACTION_UPDATE_NOTIF);
@@ -67,7 +59,7 @@ public class ActivityRecognition {
 
     public void stopGPSUpdates() {
         Log.d(TAG, "🔋 Stop activity automotive return to activityonly");
-        saveState("driving_state", false);
+        TrackingStateStore.get(context).setDriving(false);
         
         Intent intent = new Intent(context, TrackingService.class);
         intent.setAction(TrackingService.ACTION_UPDATE_NOTIF);
@@ -83,10 +75,9 @@ public class ActivityRecognition {
     // --- Activity Management ---
     public void startTracking() {
         Log.d(TAG, "📡 Start Activity Recognition");
-        saveState("tracking_active", true);
+        TrackingStateStore.get(context).update(b -> b.trackingActive(true).driving(false));
 
         Intent intent = new Intent(context, TrackingService.class);
-        saveState("driving_state", false); 
         
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             context.startForegroundService(intent);
@@ -177,8 +168,7 @@ public class ActivityRecognition {
 
     public void stopTracking() {
         Log.d(TAG, "🛑 Stop Global Activity Tracking");
-        saveState("tracking_active", false);
-        saveState("driving_state", false); 
+        TrackingStateStore.get(context).update(b -> b.trackingActive(false).driving(false));
 
         if (screenReceiver != null) {
             try {
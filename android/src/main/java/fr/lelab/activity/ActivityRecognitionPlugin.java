@@ -3,11 +3,11 @@ package fr.lelab.activity;
 import java.io.File;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
 import android.net.Uri;
 import android.content.Intent;
 import androidx.core.content.FileProvider;
 import android.Manifest;
-import android.content.SharedPreferences;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.os.Build;
@@ -58,12 +58,17 @@ public class ActivityRecognitionPlugin extends Plugin {
     private ActivityRecognition implementation;
     private static ActivityRecognitionPlugin instance;
     private boolean debugMode = false;
+    private static final AtomicBoolean replaying = new AtomicBoolean(false);
     private boolean isDriving = false;
 
     private static final String TAG = "ActivityRecognitionPlugin";
 
     public static final Object fileLock = new Object();
 
+    // getSavedLocations page size (records per bridge message)
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+    private static final int MAX_PAGE_SIZE = 5000;
+
     // --- HELPER : protected saving area for reboot (Direct Boot) ---
     private Context getSafeContext() {
         return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) 
@@ -77,10 +82,10 @@ public class ActivityRecognitionPlugin extends Plugin {
         instance = this;
         implementation = new ActivityRecognition(getContext());
 
-        // Use getSafeContext() accessible even if phone not unlocked
-        SharedPreferences prefs = getSafeContext().getSharedPreferences("CapacitorStorage", Context.MODE_PRIVATE);
-        boolean wasTracking = prefs.getBoolean("tracking_active", false);
-        boolean wasDriving = prefs.getBoolean("driving_state", false);
+        // state kept in device protected storage, accessible even if phone not unlocked
+        TrackingStateStore.State state = TrackingStateStore.current(getSafeContext());
+        boolean wasTracking = state.trackingActive;
+        boolean wasDriving = state.driving;
 
         boolean hasPerms = ActivityCompat.checkSelfPermission(getContext(), 
                        Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
@@ -127,6 +132,12 @@ public class ActivityRecognitionPlugin extends Plugin {
         }
     }
 
+    public static void onTripStatsEvent(JSObject data) {
+        if (instance != null) {
+            instance.notifyListeners("tripStats", data);
+        }
+    }
+
     public static void onActivityEvent(JSObject data) {
         if (instance != null) {
             String activityType = data.getString("activity");
@@ -198,8 +209,8 @@ public class ActivityRecognitionPlugin extends Plugin {
     public void startTracking(PluginCall call) {
         Log.d(TAG, "🚗 Start Tracking");
 
-        SharedPreferences trackPrefs = getContext().getSharedPreferences("CapacitorStorage", Context.MODE_PRIVATE);
-        boolean wasTracking = trackPrefs.getBoolean("tracking_active", false);
+        TrackingStateStore stateStore = TrackingStateStore.get(getSafeContext());
+        boolean wasTracking = stateStore.getState().trackingActive;
 
         this.debugMode = call.getBoolean("debug", false);
         this.isDriving = false;
@@ -218,26 +229,56 @@ public class ActivityRecognitionPlugin extends Plugin {
 
         Log.d(TAG, "🔍 Debug Config - URL: " + (url != null ? url : "MISSING") + " | Token: " + (token != null ? token : "MISSING"));
 
-        // Persistent saving for server url/token 
-        if (url != null && token != null) {
-            SharedPreferences prefs = getContext().getSharedPreferences("TripPrefs", Context.MODE_PRIVATE);
-            prefs.edit()
-                .putString("server_url", url)
-                .putString("jwt_token", token)
-                .apply();
-            Log.d("SmartPilot", "🌐 Server config saved for background sync");
+        // Persistent saving for server url/token, active state and weather info (one update)
+        String serverUrl = url;
+        String serverToken = token;
+        stateStore.update(b -> b
+            .serverUrl(serverUrl)
+            .serverToken(serverToken)
+            .trackingActive(true)
+            .weatherApiKey(weatherKey)
+            .weatherBaseUrl(weatherUrl));
+        Log.d("SmartPilot", "🌐 Server config saved for background sync");
+
+        // upload body encoding ('identity' | 'gzip') and gzip level (1-9)
+        String compression = call.getString("uploadCompression");
+        Integer compressionLevel = call.getInt("uploadCompressionLevel");
+        if (compression != null || compressionLevel != null) {
+            stateStore.update(b -> {
+                TrackingStateStore.State current = stateStore.getState();
+                if (compression != null && !compression.equals(current.uploadCompression)) {
+                    // new choice: try gzip again on a server that refused it
+                    b.uploadCompression(compression).gzipRefusedUrl(null);
+                }
+                if (compressionLevel != null) b.uploadCompressionLevel(compressionLevel);
+                return b;
+            });
+        }
+
+        // trajectory simplification before upload, meters (0: off)
+        Double simplifyTolerance = call.getDouble("simplifyToleranceMeters");
+        if (simplifyTolerance != null) {
+            float tolerance = (float) Math.max(0, simplifyTolerance);
+            stateStore.update(b -> b.simplifyToleranceMeters(tolerance));
         }
 
-        // Save Active state
-        getSafeContext().getSharedPreferences("CapacitorStorage", Context.MODE_PRIVATE)
-            .edit().putBoolean("tracking_active", true).apply();
+        // upload body format ('rows' | 'columnar' | 'cbor')
+        String codec = call.getString("uploadCodec");
+        if (codec != null) {
+            stateStore.update(b -> {
+                if (!codec.equals(stateStore.getState().uploadCodec)) {
+                    // new choice: try it again on a server that refused the previous one
+                    b.uploadCodec(codec).codecRefusedUrl(null);
+                }
+                return b;
+            });
+        }
 
-        // Save weather info
-        SharedPreferences prefs = getContext().getSharedPreferences("tracking_prefs", Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.putString("weather_api_key", weatherKey);
-        editor.putString("weather_base_url", weatherUrl);
-        editor.apply();
+        // track writer durability ('flush' | 'fdatasync' | 'fsyncOnTripClose')
+        String durability = call.getString("storageDurability");
+        if (durability != null) {
+            JsonStorageHelper.setStorageDurability(getContext(), durability);
+        }
 
         if (wasTracking)
         {
@@ -260,17 +301,12 @@ public class ActivityRecognitionPlugin extends Plugin {
         Log.d(TAG, "🚗 Stop Tracking");
 
         isDriving = false;
-        // Update inactive state
-        getSafeContext().getSharedPreferences("CapacitorStorage", Context.MODE_PRIVATE)
-            .edit().putBoolean("tracking_active", false)
-            .putBoolean("driving_state", false).apply();
-
-        // weather filtering reinitialisation
-        SharedPreferences prefs = getContext().getSharedPreferences("tracking_prefs", Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = prefs.edit();
-        editor.remove("last_weather_lat");
-        editor.remove("last_weather_lon");
-        editor.apply();
+        // Update inactive state and weather filtering reinitialisation
+        TrackingStateStore.get(getSafeContext()).update(b -> b
+            .trackingActive(false)
+            .driving(false)
+            .lastWeatherLat(0f)
+            .lastWeatherLon(0f));
 
         JsonStorageHelper.cancelWeatherUpdates(getContext());
 
@@ -282,11 +318,27 @@ public class ActivityRecognitionPlugin extends Plugin {
     public void getSavedLocations(PluginCall call) {
         Log.d(TAG, "🚗 getSavedLocations");
 
-        // read in protected area (Direct Boot Aware)
-        JSArray locations = JsonStorageHelper.loadLocationsAsJSArray(getSafeContext());
-        JSObject ret = new JSObject();
-        ret.put("locations", locations);
-        call.resolve(ret);
+        Long from = call.getLong("from");
+        Long to = call.getLong("to");
+        String type = call.getString("type");
+        int limit = call.getInt("limit", DEFAULT_PAGE_SIZE);
+        String cursor = call.getString("cursor");
+
+        if (limit <= 0 || limit > MAX_PAGE_SIZE) {
+            call.reject("limit must be between 1 and " + MAX_PAGE_SIZE);
+            return;
+        }
+
+        // read in protected area (Direct Boot Aware), one page at a time
+        try {
+            JSObject ret = JsonStorageHelper.loadLocationsPage(getSafeContext(),
+                from != null ? from : Long.MIN_VALUE,
+                to != null ? to : Long.MAX_VALUE,
+                type, limit, cursor);
+            call.resolve(ret);
+        } catch (IllegalArgumentException e) {
+            call.reject("Invalid cursor");
+        }
     }
 
     @PluginMethod
@@ -308,22 +360,16 @@ public class ActivityRecognitionPlugin extends Plugin {
                 ? getContext().createDeviceProtectedStorageContext() 
                 : getContext();
 
-            File sourceFile = new File(safeContext.getFilesDir(), "stored_locations.json");
-            
-            if (!sourceFile.exists()) {
+            if (!JsonStorageHelper.hasSavedLocations(safeContext)) {
                 call.reject("File not Found!");
                 return;
             }
 
             // create sharing zone accessible outside plugin
             File tempFile = new File(getContext().getCacheDir(), "stored_locations.json");
-        
-            // copy file
-            java.nio.file.Files.copy(
-                sourceFile.toPath(), 
-                tempFile.toPath(), 
-                java.nio.file.StandardCopyOption.REPLACE_EXISTING
-            );
+
+            // JSONL view of the binary store
+            JsonStorageHelper.exportLocationsAsJsonl(safeContext, tempFile);
 
             // share from cache
             Uri contentUri = FileProvider.getUriForFile(
@@ -347,6 +393,56 @@ public class ActivityRecognitionPlugin extends Plugin {
         }
     }
 
+    @PluginMethod
+    public void getCurrentTripStats(PluginCall call) {
+        call.resolve(JsonStorageHelper.getCurrentTripStats(getSafeContext()));
+    }
+
+    /**
+     * Debug: replay seeded synthetic drives through the storage path (DriveReplay) on a store of
+     * its own in the cache dir, deleted afterwards: the track store, trips, uploads and tracking
+     * state of the app are not touched
+     */
+    @PluginMethod
+    public void replayDrives(PluginCall call) {
+        if (!debugMode) {
+            call.reject("replayDrives is only available in debug mode");
+            return;
+        }
+        if (!replaying.compareAndSet(false, true)) {
+            call.reject("A replay is already running");
+            return;
+        }
+        long seed = call.getLong("seed", 1L);
+        int days = call.getInt("days", 7);
+        double speed = call.getDouble("speed", 1000.0);
+        File dir = new File(getContext().getCacheDir(), "drive_replay");
+
+        new Thread(() -> {
+            ReplayStoreTarget target = null;
+            try {
+                Log.d(TAG, "🎬 Replay of " + days + " days (seed " + seed + ", x" + speed + ")");
+                target = new ReplayStoreTarget(dir, (message, e) -> Log.e(TAG, "⚠️ Replay store: " + message, e));
+                DriveReplay.Stats stats = new DriveReplay(new DriveGenerator(seed, days), target, speed).run();
+
+                JSObject ret = JSObject.fromJSONObject(stats.toJSON());
+                ret.put("store", JSObject.fromJSONObject(target.getStats()));
+                call.resolve(ret);
+            } catch (Exception e) {
+                Log.e(TAG, "❌ Replay failed", e);
+                call.reject("replay error: " + e.getMessage());
+            } finally {
+                if (target != null) target.close();
+                replaying.set(false);
+            }
+        }, "drive-replay").start();
+    }
+
+    @PluginMethod
+    public void getStorageStats(PluginCall call) {
+        call.resolve(JsonStorageHelper.getStorageStats(getSafeContext()));
+    }
+
     @PluginMethod
     public void purgeLocationsBefore(PluginCall call) {
         Long timestampLimit = call.getLong("timestamp");
@@ -381,10 +477,10 @@ public class ActivityRecognitionPlugin extends Plugin {
 
             Context context = getContext();
             
-            // Get infos from prefs
-            SharedPreferences prefs = context.getSharedPreferences("TripPrefs", Context.MODE_PRIVATE);
-            String url = prefs.getString("server_url", null);
-            String token = prefs.getString("jwt_token", null);
+            // Get infos from tracking state
+            TrackingStateStore.State state = TrackingStateStore.current(context);
+            String url = state.serverUrl;
+            String token = state.serverToken;
 
             if (url == null || url.trim().isEmpty() || token == null || token.trim().isEmpty()) {
                 call.reject("Missing Configuration (URL ou Token)");
@@ -393,10 +489,14 @@ public class ActivityRecognitionPlugin extends Plugin {
 
             try {
                 // On lance le traitement synchrone
-                JsonStorageHelper.processAndUploadAutomotiveTrips(context, url, token);
-                
+                boolean complete = JsonStorageHelper.processAndUploadAutomotiveTrips(context, url, token);
+                if (!complete) {
+                    // trips left in the outbox: retried by the worker with backoff
+                    TripUploadWorker.enqueueSealedTripUpload(context);
+                }
+
                 JSObject ret = new JSObject();
-                ret.put("status", "success");
+                ret.put("status", complete ? "success" : "pending");
                 call.resolve(ret);
             } catch (Exception e) {
                 Log.e("ActivityPlugin", "Error forceUpload: " + e.getMessage());
@@ -422,15 +522,8 @@ public class ActivityRecognitionPlugin extends Plugin {
 
 
     private void triggerUpload() {
-        androidx.work.Constraints constraints = new androidx.work.Constraints.Builder()
-                .setRequiredNetworkType(androidx.work.NetworkType.CONNECTED)
-                .build();
-
-        androidx.work.OneTimeWorkRequest uploadRequest = new androidx.work.OneTimeWorkRequest.Builder(TripUploadWorker.class)
-                .setConstraints(constraints)
-                .build();
-
-        androidx.work.WorkManager.getInstance(getContext()).enqueue(uploadRequest);
+        // now, without waiting for the backoff delay of a failed sync
+        TripUploadWorker.enqueueUpload(getContext(), androidx.work.ExistingWorkPolicy.REPLACE);
         Log.d("SmartPilot", "📡 Upload worker enqueued");
     }
 
@@ -477,13 +570,13 @@ public class ActivityRecognitionPlugin extends Plugin {
 
         @PluginMethod
             public void testSettings(PluginCall call) {
-                // 1. get settings from TripPrefs
-                SharedPreferences prefs = getContext().getSharedPreferences("TripPrefs", Context.MODE_PRIVATE);
-                String savedUrl = prefs.getString("server_url", "");
-                String savedToken = prefs.getString("jwt_token", "");
+                // 1. get settings from tracking state
+                TrackingStateStore.State state = TrackingStateStore.current(getContext());
+                String savedUrl = state.serverUrl != null ? state.serverUrl : "";
+                String savedToken = state.serverToken != null ? state.serverToken : "";
 
                 if (savedUrl.isEmpty()) {
-                    call.reject("URL not set ins TripPrefs");
+                    call.reject("URL not set in tracking state");
                     return;
                 }
 
@@ -17,15 +17,11 @@ import com.google.android.gms.location.ActivityTransitionEvent;
 import com.google.android.gms.location.ActivityTransitionResult;
 import com.google.android.gms.location.DetectedActivity;
 
-import androidx.work.Constraints;
-import androidx.work.NetworkType;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
+import androidx.work.ExistingWorkPolicy;
 
 public class ActivityTransitionReceiver extends BroadcastReceiver {
     private static final String TAG = "ActivityReceiver";
     public static final String ACTION_STOP_GPS_GRACE = "fr.lelab.activity.ACTION_STOP_GPS_GRACE";
-    private static final long STOP_DELAY = 180000; // 3 minutes
 
     @Override
     public void onReceive(Context context, Intent intent) {
@@ -78,6 +74,9 @@ public class ActivityTransitionReceiver extends BroadcastReceiver {
             ? context.createDeviceProtectedStorageContext() : context;
         updateDrivingState(safeContext, false);
 
+        // trip is over: commit queued points (and fsync if configured) before upload
+        JsonStorageHelper.onTripClosed(safeContext);
+
         triggerUploadWorker(context);
 
         // 2. send ACTION_UPDATE_NOTIF not stopService
@@ -142,17 +141,16 @@ public class ActivityTransitionReceiver extends BroadcastReceiver {
         }
     }
 
-    // --- update state for REBOOT ---
+    // --- update state for REBOOT (persisted write-behind in device protected storage) ---
     private void updateDrivingState(Context safeContext, boolean isDriving) {
-        safeContext.getSharedPreferences("CapacitorStorage", Context.MODE_PRIVATE)
-            .edit().putBoolean("driving_state", isDriving).apply();
+        TrackingStateStore.get(safeContext).setDriving(isDriving);
     }
 
     private void scheduleGraceAlarm(Context context) {
         cancelGraceAlarm(context);
 
         long now = System.currentTimeMillis();
-        long triggerAt = now + STOP_DELAY;
+        long triggerAt = now + TrackingPolicy.STOP_DELAY_MS;
 
         Intent intent = new Intent(context, ActivityTransitionReceiver.class);
         intent.setAction(ACTION_STOP_GPS_GRACE);
@@ -166,7 +164,7 @@ public class ActivityTransitionReceiver extends BroadcastReceiver {
         if (am != null) {
             // 30 secondes window to let OS without much constraint
             am.setWindow(AlarmManager.RTC_WAKEUP, triggerAt, 30000, pi);
-            Log.d(TAG, "⏰ Alarme programmée à " + (STOP_DELAY / 1000) + "s (Fenêtre 30s)");
+            Log.d(TAG, "⏰ Alarme programmée à " + (TrackingPolicy.STOP_DELAY_MS / 1000) + "s (Fenêtre 30s)");
         }
     }
 
@@ -226,24 +224,8 @@ public class ActivityTransitionReceiver extends BroadcastReceiver {
 
 
     private void triggerUploadWorker(Context context) {
-        try {
-            // On définit la contrainte : avoir une connexion internet
-            Constraints constraints = new Constraints.Builder()
-                    .setRequiredNetworkType(NetworkType.CONNECTED)
-                    .build();
-
-            // Création de la requête pour le Worker déjà créé
-            OneTimeWorkRequest uploadRequest = new OneTimeWorkRequest.Builder(TripUploadWorker.class)
-                    .setConstraints(constraints)
-                    .addTag("TRIP_UPLOAD_TASK")
-                    .build();
-
-            // Envoi dans la file d'attente du système
-            WorkManager.getInstance(context).enqueue(uploadRequest);
-            Log.d(TAG, "📡 WorkManager : Trip ended sending scheduled.");
-        } catch (Exception e) {
-            Log.e(TAG, "❌ Error during trip sending schedule : " + e.getMessage());
-        }
+        // unique work shared with the sealed trip trigger: a single sync queued
+        TripUploadWorker.enqueueUpload(context, ExistingWorkPolicy.KEEP);
     }
 
 
@@ -3,7 +3,6 @@ package fr.lelab.activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Build;
 import android.util.Log;
 
@@ -22,9 +21,9 @@ public class BootReceiver extends BroadcastReceiver {
                 ? context.createDeviceProtectedStorageContext() 
                 : context;
 
-            SharedPreferences prefs = safeContext.getSharedPreferences("CapacitorStorage", Context.MODE_PRIVATE);
-            boolean wasTrackingActive = prefs.getBoolean("tracking_active", false);
-            boolean wasDriving = prefs.getBoolean("driving_state", false);
+            TrackingStateStore.State state = TrackingStateStore.current(safeContext);
+            boolean wasTrackingActive = state.trackingActive;
+            boolean wasDriving = state.driving;
 
             if (wasTrackingActive) {
                 Log.d("Activity Plugin", "✅ Activity detection engine re-activated...");
@@ -0,0 +1,204 @@
+package fr.lelab.activity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The columnar layout in CBOR (RFC 8949), integers only for the points:
+ *
+ *   { "format": "columnar-e7", "count": n,
+ *     "latE7": [..], "lngE7": [..],   degrees * 1e7, first value then deltas
+ *     "speedCm": [..],                 cm/s, first value then deltas
+ *     "ts": [..],                      ms, first value then deltas
+ *     "weather": [[start, type, temp] | [start, null], ..],
+ *     "phoneUnlock": [[start, bool], ..], "appUsed": [[start, bool], ..],
+ *     "distractionDetect": [[start, bool | null], ..] }
+ *
+ * 1e-7 degree is ~1 cm, below the precision of the store. Small deltas fit in one to three
+ * bytes where the JSON number takes ten to twenty. Context columns are indefinite length
+ * arrays of runs, as in ColumnarJsonPayloadCodec.
+ */
+public class CborPayloadCodec implements TripPayloadCodec {
+
+    private static final int MAJOR_UNSIGNED = 0;
+    private static final int MAJOR_NEGATIVE = 1;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+
+    private static final int FALSE = 0xF4;
+    private static final int TRUE = 0xF5;
+    private static final int NULL = 0xF6;
+    private static final int FLOAT64 = 0xFB;
+    private static final int INDEFINITE_ARRAY = 0x9F;
+    private static final int BREAK = 0xFF;
+
+    private static final byte[] KEY_FORMAT = text("format");
+    private static final byte[] FORMAT = text("columnar-e7");
+    private static final byte[] KEY_COUNT = text("count");
+    private static final byte[] KEY_LAT = text("latE7");
+    private static final byte[] KEY_LNG = text("lngE7");
+    private static final byte[] KEY_SPEED = text("speedCm");
+    private static final byte[] KEY_TS = text("ts");
+    private static final byte[] KEY_WEATHER = text("weather");
+    private static final byte[] KEY_UNLOCK = text("phoneUnlock");
+    private static final byte[] KEY_APP_USED = text("appUsed");
+    private static final byte[] KEY_DISTRACTION = text("distractionDetect");
+
+    private final byte[] scratch = new byte[9];
+
+    @Override
+    public String name() {
+        return CBOR;
+    }
+
+    @Override
+    public String contentType() {
+        return "application/cbor";
+    }
+
+    @Override
+    public long writeTo(TripBuffer trip, OutputStream target) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(target);
+        int n = trip.size();
+
+        head(out, MAJOR_MAP, 10);
+        out.write(KEY_FORMAT);
+        out.write(FORMAT);
+        out.write(KEY_COUNT);
+        integer(out, n);
+
+        out.write(KEY_LAT);
+        head(out, MAJOR_ARRAY, n);
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            long v = Math.round(trip.lat(i) * 1e7);
+            integer(out, v - previous);
+            previous = v;
+        }
+        out.write(KEY_LNG);
+        head(out, MAJOR_ARRAY, n);
+        previous = 0;
+        for (int i = 0; i < n; i++) {
+            long v = Math.round(trip.lng(i) * 1e7);
+            integer(out, v - previous);
+            previous = v;
+        }
+        out.write(KEY_SPEED);
+        head(out, MAJOR_ARRAY, n);
+        previous = 0;
+        for (int i = 0; i < n; i++) {
+            double speed = trip.speed(i);
+            long v = Double.isNaN(speed) ? 0 : Math.round(speed * 100);
+            integer(out, v - previous);
+            previous = v;
+        }
+        out.write(KEY_TS);
+        head(out, MAJOR_ARRAY, n);
+        previous = 0;
+        for (int i = 0; i < n; i++) {
+            long v = trip.timestamp(i);
+            integer(out, v - previous);
+            previous = v;
+        }
+
+        out.write(KEY_WEATHER);
+        out.write(INDEFINITE_ARRAY);
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && ColumnarJsonPayloadCodec.sameWeather(trip, i - 1, i)) continue;
+            String type = trip.weatherType(i);
+            if (type == null) {
+                head(out, MAJOR_ARRAY, 2);
+                integer(out, i);
+                out.write(NULL);
+            } else {
+                head(out, MAJOR_ARRAY, 3);
+                integer(out, i);
+                byte[] utf8 = type.getBytes(StandardCharsets.UTF_8);
+                head(out, MAJOR_TEXT, utf8.length);
+                out.write(utf8);
+                float64(out, trip.weatherTemp(i));
+            }
+        }
+        out.write(BREAK);
+
+        out.write(KEY_UNLOCK);
+        writeRuns(out, trip, ColumnarJsonPayloadCodec.UNLOCK);
+        out.write(KEY_APP_USED);
+        writeRuns(out, trip, ColumnarJsonPayloadCodec.APP_USED);
+        out.write(KEY_DISTRACTION);
+        writeRuns(out, trip, ColumnarJsonPayloadCodec.DISTRACTION);
+        return out.getCount();
+    }
+
+    private void writeRuns(OutputStream out, TripBuffer trip, int column) throws IOException {
+        out.write(INDEFINITE_ARRAY);
+        int previous = 0;
+        for (int i = 0; i < trip.size(); i++) {
+            int value = ColumnarJsonPayloadCodec.contextValue(trip, i, column);
+            if (i > 0 && value == previous) continue;
+            head(out, MAJOR_ARRAY, 2);
+            integer(out, i);
+            out.write(value < 0 ? NULL : (value == 1 ? TRUE : FALSE));
+            previous = value;
+        }
+        out.write(BREAK);
+    }
+
+    private void integer(OutputStream out, long v) throws IOException {
+        if (v >= 0) {
+            head(out, MAJOR_UNSIGNED, v);
+        } else {
+            head(out, MAJOR_NEGATIVE, -1 - v);
+        }
+    }
+
+    /**
+     * Initial byte and argument, in the shortest form
+     */
+    private void head(OutputStream out, int major, long v) throws IOException {
+        int type = major << 5;
+        if (v < 24) {
+            out.write(type | (int) v);
+        } else if (v < 0x100) {
+            scratch[0] = (byte) (type | 24);
+            scratch[1] = (byte) v;
+            out.write(scratch, 0, 2);
+        } else if (v < 0x10000) {
+            scratch[0] = (byte) (type | 25);
+            putBigEndian(v, 2);
+            out.write(scratch, 0, 3);
+        } else if (v < 0x100000000L) {
+            scratch[0] = (byte) (type | 26);
+            putBigEndian(v, 4);
+            out.write(scratch, 0, 5);
+        } else {
+            scratch[0] = (byte) (type | 27);
+            putBigEndian(v, 8);
+            out.write(scratch, 0, 9);
+        }
+    }
+
+    private void float64(OutputStream out, double v) throws IOException {
+        scratch[0] = (byte) FLOAT64;
+        putBigEndian(Double.doubleToLongBits(v), 8);
+        out.write(scratch, 0, 9);
+    }
+
+    private void putBigEndian(long v, int bytes) {
+        for (int i = bytes; i >= 1; i--) {
+            scratch[i] = (byte) v;
+            v >>>= 8;
+        }
+    }
+
+    private static byte[] text(String s) {
+        byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+        // keys are short ascii strings
+        byte[] encoded = new byte[utf8.length + 1];
+        encoded[0] = (byte) ((MAJOR_TEXT << 5) | utf8.length);
+        System.arraycopy(utf8, 0, encoded, 1, utf8.length);
+        return encoded;
+    }
+}
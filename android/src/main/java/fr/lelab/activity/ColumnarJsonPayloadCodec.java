@@ -0,0 +1,150 @@
+package fr.lelab.activity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Columnar JSON upload body: one array per field instead of one object per point.
+ *
+ *   { "format": "columnar", "count": n,
+ *     "lat": [..], "lng": [..], "speed": [..],
+ *     "ts": [t0, t1 - t0, t2 - t1, ..],
+ *     "weather": [[start, type, temp] | [start, null], ..],
+ *     "phoneUnlock": [[start, bool], ..],
+ *     "appUsed": [[start, bool], ..],
+ *     "distractionDetect": [[start, bool | null], ..] }
+ *
+ * Context columns are runs: [index of the first point, value], a new run when the value changes.
+ * Values are the ones of the rows format: appUsed and distractionDetect only while unlocked,
+ * no distraction value is null.
+ */
+public class ColumnarJsonPayloadCodec implements TripPayloadCodec {
+
+    private final TrackJsonEncoder encoder = new TrackJsonEncoder();
+
+    @Override
+    public String name() {
+        return COLUMNAR;
+    }
+
+    @Override
+    public String contentType() {
+        return "application/json; charset=utf-8";
+    }
+
+    @Override
+    public long writeTo(TripBuffer trip, OutputStream target) throws IOException {
+        CountingOutputStream out = new CountingOutputStream(target);
+        int n = trip.size();
+
+        ascii(out, "{\"format\":\"columnar\",\"count\":");
+        write(out, encoder.encodeLong(n));
+
+        ascii(out, ",\"lat\":[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) out.write(',');
+            write(out, encoder.encodeDouble(trip.lat(i)));
+        }
+        ascii(out, "],\"lng\":[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) out.write(',');
+            write(out, encoder.encodeDouble(trip.lng(i)));
+        }
+        ascii(out, "],\"speed\":[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0) out.write(',');
+            double speed = trip.speed(i);
+            write(out, encoder.encodeDouble(Double.isNaN(speed) ? 0.0 : speed));
+        }
+        ascii(out, "],\"ts\":[");
+        long previous = 0;
+        for (int i = 0; i < n; i++) {
+            if (i > 0) out.write(',');
+            long ts = trip.timestamp(i);
+            write(out, encoder.encodeLong(ts - previous));
+            previous = ts;
+        }
+
+        ascii(out, "],\"weather\":[");
+        boolean first = true;
+        for (int i = 0; i < n; i++) {
+            if (i > 0 && sameWeather(trip, i - 1, i)) continue;
+            if (!first) out.write(',');
+            first = false;
+            out.write('[');
+            write(out, encoder.encodeLong(i));
+            out.write(',');
+            String type = trip.weatherType(i);
+            if (type == null) {
+                ascii(out, "null");
+            } else {
+                write(out, encoder.encodeString(type));
+                out.write(',');
+                write(out, encoder.encodeDouble(trip.weatherTemp(i)));
+            }
+            out.write(']');
+        }
+
+        ascii(out, "],\"phoneUnlock\":[");
+        writeRuns(out, trip, UNLOCK);
+        ascii(out, "],\"appUsed\":[");
+        writeRuns(out, trip, APP_USED);
+        ascii(out, "],\"distractionDetect\":[");
+        writeRuns(out, trip, DISTRACTION);
+        ascii(out, "]}");
+        return out.getCount();
+    }
+
+    // --- context columns, shared with CborPayloadCodec ---
+
+    static final int UNLOCK = 0;
+    static final int APP_USED = 1;
+    static final int DISTRACTION = 2;
+
+    /**
+     * Value of a context column at point i: 1 true, 0 false, -1 null
+     */
+    static int contextValue(TripBuffer trip, int i, int column) {
+        boolean unlocked = trip.phoneUnlock(i);
+        switch (column) {
+            case UNLOCK:
+                return unlocked ? 1 : 0;
+            case APP_USED:
+                return (unlocked && trip.appName(i) != null) ? 1 : 0;
+            default:
+                if (!unlocked || !trip.hasDistraction(i)) return -1;
+                return trip.distraction(i) ? 1 : 0;
+        }
+    }
+
+    static boolean sameWeather(TripBuffer trip, int a, int b) {
+        String typeA = trip.weatherType(a);
+        String typeB = trip.weatherType(b);
+        if (typeA == null || typeB == null) return typeA == typeB;
+        return typeA.equals(typeB) && trip.weatherTemp(a) == trip.weatherTemp(b);
+    }
+
+    private void writeRuns(OutputStream out, TripBuffer trip, int column) throws IOException {
+        int previous = 0;
+        for (int i = 0; i < trip.size(); i++) {
+            int value = contextValue(trip, i, column);
+            if (i > 0 && value == previous) continue;
+            if (i > 0) out.write(',');
+            out.write('[');
+            write(out, encoder.encodeLong(i));
+            out.write(',');
+            ascii(out, value < 0 ? "null" : (value == 1 ? "true" : "false"));
+            out.write(']');
+            previous = value;
+        }
+    }
+
+    private static void write(OutputStream out, ByteBuffer value) throws IOException {
+        out.write(value.array(), 0, value.limit());
+    }
+
+    private static void ascii(OutputStream out, String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) out.write(s.charAt(i));
+    }
+}
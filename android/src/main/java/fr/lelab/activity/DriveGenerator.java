@@ -0,0 +1,341 @@
+package fr.lelab.activity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Synthetic days of driving, the same for the same seed: what the phone would deliver to the
+ * plugin, in time order (activity transitions, GPS fixes, weather refreshes, phone unlocks).
+ *
+ * Weekdays: home to work in the morning, sometimes a lunch errand, work to home in the evening
+ * with sometimes a shop on the way. Weekends: up to 3 round trips to a place 5 to 40 km away.
+ *
+ * A drive: walking, automotive ENTER, 1 Hz fixes (town near both ends with traffic lights, road
+ * in between), weather at the start and every 10 min, unlock sessions, automotive EXIT shortly
+ * after arrival, then walking fixes for 3 min (GPS still on during the grace timer).
+ * Some drives also have a long red light reported as automotive EXIT / stationary ENTER and
+ * back (stop-and-go), a tunnel without fixes, and inaccurate fixes (accuracy over 20 m).
+ *
+ * Days are built one at a time: memory does not grow with the number of days.
+ */
+public class DriveGenerator implements Iterator<DriveGenerator.Event> {
+
+    /** Monday 5 January 2026, 00:00 UTC */
+    public static final long DEFAULT_START = 1_767_571_200_000L;
+
+    private static final double METERS_PER_DEGREE = 111_195;
+    private static final String[] WEATHERS = { "Clear", "Clouds", "Rain", "Drizzle", "Mist" };
+    private static final String[] APPS = { "Waze", "Google Maps", "Spotify", "WhatsApp", "Messages" };
+
+    public enum Kind { TRANSITION, LOCATION, WEATHER, PHONE }
+
+    public static class Event implements Comparable<Event> {
+        public final Kind kind;
+        public final long timestamp;
+        // TRANSITION: automotive, walking, stationary / ENTER, EXIT
+        public String activity;
+        public String transition;
+        // LOCATION
+        public double lat;
+        public double lng;
+        public float speed;
+        public float accuracy;
+        // WEATHER
+        public String weatherType;
+        public double weatherTemp;
+        // PHONE
+        public boolean unlocked;
+        public String appName;
+        public boolean distraction;
+        // order of creation, for events at the same time
+        private final long order;
+
+        Event(Kind kind, long timestamp, long order) {
+            this.kind = kind;
+            this.timestamp = timestamp;
+            this.order = order;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (timestamp != other.timestamp) return Long.compare(timestamp, other.timestamp);
+            return Long.compare(order, other.order);
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+                case TRANSITION: return timestamp + " " + activity + " " + transition;
+                case LOCATION: return timestamp + " fix " + lat + "," + lng + " " + speed + " m/s ±" + accuracy + " m";
+                case WEATHER: return timestamp + " weather " + weatherType + " " + weatherTemp;
+                default: return timestamp + " phone " + (unlocked ? "unlocked " + appName : "locked");
+            }
+        }
+    }
+
+    private final Random rnd;
+    private final long start;
+    private final int days;
+
+    private final double homeLat, homeLng;
+    private final double workLat, workLng;
+    // current place of the car, weather of the day
+    private double lat, lng;
+    private String weather;
+    private double temp;
+
+    private int day = 0;
+    private long order = 0;
+    private final List<Event> pending = new ArrayList<>();
+    private int next = 0;
+
+    public DriveGenerator(long seed, int days) {
+        this(seed, DEFAULT_START, days);
+    }
+
+    /**
+     * @param start midnight of the first day (a Monday for the weekday pattern)
+     */
+    public DriveGenerator(long seed, long start, int days) {
+        this.rnd = new Random(seed);
+        this.start = start;
+        this.days = days;
+
+        homeLat = 48.80 + rnd.nextDouble() * 0.12;
+        homeLng = 2.25 + rnd.nextDouble() * 0.20;
+        double[] work = offset(homeLat, homeLng, 8_000 + rnd.nextDouble() * 12_000, rnd.nextDouble() * 2 * Math.PI);
+        workLat = work[0];
+        workLng = work[1];
+        lat = homeLat;
+        lng = homeLng;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (next == pending.size()) {
+            if (day >= days) return false;
+            pending.clear();
+            next = 0;
+            generateDay(day++);
+        }
+        return true;
+    }
+
+    @Override
+    public Event next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        return pending.get(next++);
+    }
+
+    // --- days ---
+
+    private void generateDay(int index) {
+        long midnight = start + index * 86_400_000L;
+        weather = WEATHERS[rnd.nextInt(WEATHERS.length)];
+        temp = Math.round((2 + rnd.nextDouble() * 25) * 10) / 10.0;
+
+        boolean weekend = index % 7 >= 5;
+        if (!weekend) {
+            long t = midnight + minutes(450 + rnd.nextInt(60));
+            t = drive(t, workLat, workLng);
+
+            if (rnd.nextInt(100) < 35) {
+                t = Math.max(t, midnight + minutes(720 + rnd.nextInt(60)));
+                double[] errand = offset(workLat, workLng, 2_000 + rnd.nextDouble() * 4_000, rnd.nextDouble() * 2 * Math.PI);
+                t = drive(t, errand[0], errand[1]);
+                t = drive(t + minutes(20 + rnd.nextInt(40)), workLat, workLng);
+            }
+
+            t = Math.max(t, midnight + minutes(1020 + rnd.nextInt(120)));
+            if (rnd.nextInt(100) < 30) {
+                double[] shop = offset((workLat + homeLat) / 2, (workLng + homeLng) / 2, rnd.nextDouble() * 2_000, rnd.nextDouble() * 2 * Math.PI);
+                t = drive(t, shop[0], shop[1]);
+                t += minutes(15 + rnd.nextInt(25));
+            }
+            drive(t, homeLat, homeLng);
+        } else {
+            long t = midnight + minutes(570 + rnd.nextInt(120));
+            int trips = rnd.nextInt(4);
+            for (int i = 0; i < trips; i++) {
+                double[] place = offset(homeLat, homeLng, 5_000 + rnd.nextDouble() * 35_000, rnd.nextDouble() * 2 * Math.PI);
+                t = drive(t, place[0], place[1]);
+                t = drive(t + minutes(60 + rnd.nextInt(180)), homeLat, homeLng);
+                t += minutes(30 + rnd.nextInt(90));
+            }
+        }
+        Collections.sort(pending);
+    }
+
+    /**
+     * One drive from the current place, leaving at t
+     * @return time the phone is left alone (end of the walk after the drive)
+     */
+    private long drive(long t, double toLat, double toLng) {
+        transition(t - 90_000, "walking", "ENTER");
+        transition(t, "walking", "EXIT");
+        transition(t, "automotive", "ENTER");
+        weather(t);
+
+        double fromLat = lat, fromLng = lng;
+        double total = distance(fromLat, fromLng, toLat, toLng);
+        double speed = 0;
+        double headingNoise = 0;
+        double toNextLight = 300 + rnd.nextDouble() * 500;
+        int redLight = 0;
+        boolean stopAndGo = rnd.nextInt(100) < 20;
+        boolean stoppedForGo = false;
+        long tunnelAt = rnd.nextInt(100) < 30 ? t + (long) (total / 25 * 500) : Long.MAX_VALUE;
+        long tunnelEnd = tunnelAt + 20_000 + rnd.nextInt(70_000);
+        long nextWeather = t + 600_000;
+        long nextUnlock = t + exponential(720_000);
+        long lockAt = Long.MAX_VALUE;
+
+        // at most 2 h: long trips end there
+        for (long end = t + 7_200_000; t < end; ) {
+            t += 1000;
+            double left = distance(lat, lng, toLat, toLng);
+            if (left < 25) break;
+
+            boolean town = left < 1_500 || distance(fromLat, fromLng, lat, lng) < 1_500;
+            double target;
+            if (redLight > 0) {
+                target = 0;
+                redLight--;
+            } else {
+                target = town ? 8 + rnd.nextDouble() * 6 : 22 + rnd.nextDouble() * 11;
+                target = Math.min(target, left / 4);
+            }
+            speed += Math.max(-3, Math.min(2, target - speed));
+            if (speed < 0.3) speed = 0;
+
+            headingNoise = headingNoise * 0.95 + rnd.nextGaussian() * (town ? 0.05 : 0.01);
+            double heading = bearing(lat, lng, toLat, toLng) + headingNoise;
+            double[] moved = offset(lat, lng, speed, heading);
+            lat = moved[0];
+            lng = moved[1];
+
+            if (town && redLight == 0) {
+                toNextLight -= speed;
+                if (toNextLight <= 0) {
+                    toNextLight = 300 + rnd.nextDouble() * 500;
+                    if (rnd.nextBoolean()) redLight = 10 + rnd.nextInt(50);
+                    if (stopAndGo && redLight >= 40) {
+                        // long red light taken for the end of the drive by the phone
+                        transition(t + 20_000, "automotive", "EXIT");
+                        transition(t + 20_000, "stationary", "ENTER");
+                        stopAndGo = false;
+                        stoppedForGo = true;
+                    }
+                }
+            }
+            if (stoppedForGo && redLight == 0 && speed > 0) {
+                transition(t, "stationary", "EXIT");
+                transition(t, "automotive", "ENTER");
+                stoppedForGo = false;
+            }
+
+            if (t >= nextWeather) {
+                nextWeather += 600_000;
+                if (rnd.nextInt(4) == 0) weather = WEATHERS[rnd.nextInt(WEATHERS.length)];
+                temp = Math.round((temp + rnd.nextGaussian() * 0.5) * 10) / 10.0;
+                weather(t);
+            }
+            if (t >= nextUnlock) {
+                phone(t, true, APPS[rnd.nextInt(APPS.length)], speed > 0);
+                lockAt = t + 10_000 + rnd.nextInt(80_000);
+                nextUnlock = lockAt + exponential(720_000);
+            } else if (t >= lockAt) {
+                phone(t, false, null, false);
+                lockAt = Long.MAX_VALUE;
+            }
+
+            if (t < tunnelAt || t >= tunnelEnd) fix(t, speed);
+        }
+        if (lockAt != Long.MAX_VALUE) phone(t, false, null, false);
+
+        // parked: EXIT seen a little later, walk away with the GPS still on
+        long exitAt = t + 10_000 + rnd.nextInt(30_000);
+        transition(exitAt, "automotive", "EXIT");
+        transition(exitAt, "walking", "ENTER");
+        double carLat = lat, carLng = lng;
+        double walkHeading = rnd.nextDouble() * 2 * Math.PI;
+        for (long w = t + 1000; w <= exitAt + 180_000; w += 1000) {
+            double walkSpeed = w < exitAt - 5_000 ? 0 : 1.4;
+            double[] moved = offset(lat, lng, walkSpeed, walkHeading);
+            lat = moved[0];
+            lng = moved[1];
+            fix(w, walkSpeed);
+        }
+        transition(exitAt + 240_000, "walking", "EXIT");
+        transition(exitAt + 240_000, "stationary", "ENTER");
+        lat = carLat;
+        lng = carLng;
+        return exitAt + 240_000;
+    }
+
+    // --- events ---
+
+    private void transition(long t, String activity, String transition) {
+        Event e = new Event(Kind.TRANSITION, t, order++);
+        e.activity = activity;
+        e.transition = transition;
+        pending.add(e);
+    }
+
+    private void fix(long t, double speed) {
+        Event e = new Event(Kind.LOCATION, t, order++);
+        float accuracy = (float) (3 + Math.abs(rnd.nextGaussian()) * 4);
+        if (rnd.nextInt(50) == 0) accuracy = 25 + rnd.nextFloat() * 55;
+        double[] noisy = offset(lat, lng, Math.abs(rnd.nextGaussian()) * accuracy / 2, rnd.nextDouble() * 2 * Math.PI);
+        e.lat = noisy[0];
+        e.lng = noisy[1];
+        e.speed = (float) Math.max(0, speed + rnd.nextGaussian() * 0.3 * (speed > 0 ? 1 : 0));
+        e.accuracy = accuracy;
+        pending.add(e);
+    }
+
+    private void weather(long t) {
+        Event e = new Event(Kind.WEATHER, t, order++);
+        e.weatherType = weather;
+        e.weatherTemp = temp;
+        pending.add(e);
+    }
+
+    private void phone(long t, boolean unlocked, String app, boolean distraction) {
+        Event e = new Event(Kind.PHONE, t, order++);
+        e.unlocked = unlocked;
+        e.appName = app;
+        e.distraction = distraction;
+        pending.add(e);
+    }
+
+    // --- geometry (flat, a few tens of km around home) ---
+
+    private static double[] offset(double lat, double lng, double meters, double heading) {
+        double dLat = meters * Math.cos(heading) / METERS_PER_DEGREE;
+        double dLng = meters * Math.sin(heading) / (METERS_PER_DEGREE * Math.cos(Math.toRadians(lat)));
+        return new double[] { lat + dLat, lng + dLng };
+    }
+
+    private static double distance(double lat1, double lng1, double lat2, double lng2) {
+        return GeoUtils.distance(lat1, lng1, lat2, lng2);
+    }
+
+    private static double bearing(double lat1, double lng1, double lat2, double lng2) {
+        double y = (lat2 - lat1);
+        double x = (lng2 - lng1) * Math.cos(Math.toRadians(lat1));
+        return Math.atan2(x, y);
+    }
+
+    private long exponential(long mean) {
+        return (long) (-Math.log(1 - rnd.nextDouble()) * mean);
+    }
+
+    private static long minutes(int m) {
+        return m * 60_000L;
+    }
+}
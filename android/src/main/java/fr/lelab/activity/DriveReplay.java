@@ -0,0 +1,210 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Plays a stream of DriveGenerator events into a Target under a VirtualClock given to the target
+ * at start: its time follows the events and the timers of the target (grace timer) fire at their
+ * replayed time, before the first event after them.
+ *
+ * speed is the ratio of replayed time to wall time (1000 = up to 1000x real time), 0 to go as
+ * fast as the target allows. Gaps between events longer than MAX_IDLE_MS (nights, parked car)
+ * are not waited for.
+ *
+ * Measured: throughput, time spent in the target per event (percentiles over a sample), lag
+ * behind the schedule when paced, and the highest heap use seen.
+ */
+public class DriveReplay {
+
+    public static final long MAX_IDLE_MS = 10 * 60 * 1000;
+    private static final int LATENCY_SAMPLES = 10_000;
+    private static final int HEAP_SAMPLE_EVENTS = 1000;
+
+    public interface Target {
+        /**
+         * Before the first event: clock of the replay, for the timestamps and timers of the target
+         */
+        void onStart(VirtualClock clock);
+
+        void onTransition(DriveGenerator.Event event);
+
+        void onLocation(DriveGenerator.Event event);
+
+        void onWeather(DriveGenerator.Event event);
+
+        void onPhone(DriveGenerator.Event event);
+
+        /**
+         * End of the replay, after the last timers: wait for the queued work
+         */
+        void finish();
+    }
+
+    public static class Stats {
+        public long events;
+        public long transitions;
+        public long fixes;
+        public long weathers;
+        public long phones;
+        public long timersFired;
+        public long virtualMs;
+        public long wallMs;
+        public double latencyP50Us;
+        public double latencyP99Us;
+        public long latencyMaxUs;
+        public long maxLagMs;
+        public long maxHeapUsedBytes;
+        public boolean interrupted;
+
+        public double getEventsPerSecond() {
+            return wallMs > 0 ? events * 1000.0 / wallMs : 0;
+        }
+
+        public double getSpeedup() {
+            return wallMs > 0 ? (double) virtualMs / wallMs : 0;
+        }
+
+        public JSONObject toJSON() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("events", events);
+            json.put("transitions", transitions);
+            json.put("fixes", fixes);
+            json.put("weathers", weathers);
+            json.put("phones", phones);
+            json.put("timersFired", timersFired);
+            json.put("virtualMs", virtualMs);
+            json.put("wallMs", wallMs);
+            json.put("eventsPerSecond", Math.round(getEventsPerSecond()));
+            json.put("speedup", Math.round(getSpeedup() * 10) / 10.0);
+            json.put("latencyP50Us", Math.round(latencyP50Us * 100) / 100.0);
+            json.put("latencyP99Us", Math.round(latencyP99Us * 100) / 100.0);
+            json.put("latencyMaxUs", latencyMaxUs);
+            json.put("maxLagMs", maxLagMs);
+            json.put("maxHeapUsedBytes", maxHeapUsedBytes);
+            json.put("interrupted", interrupted);
+            return json;
+        }
+    }
+
+    private final Iterator<DriveGenerator.Event> events;
+    private final Target target;
+    private final double speed;
+
+    public DriveReplay(Iterator<DriveGenerator.Event> events, Target target, double speed) {
+        this.events = events;
+        this.target = target;
+        this.speed = speed;
+    }
+
+    /**
+     * Replay every event on the calling thread (stops early if it is interrupted)
+     */
+    public Stats run() {
+        Stats stats = new Stats();
+        if (!events.hasNext()) return stats;
+
+        DriveGenerator.Event first = events.next();
+        VirtualClock clock = new VirtualClock(first.timestamp);
+        target.onStart(clock);
+
+        // latency sample (reservoir), so a long replay keeps a fixed memory
+        long[] latencies = new long[LATENCY_SAMPLES];
+        int sampled = 0;
+        Random reservoir = new Random(0);
+        Runtime runtime = Runtime.getRuntime();
+
+        long wallStart = System.nanoTime();
+        long virtualStart = first.timestamp;
+        // replayed time not waited for (idle gaps)
+        long skipped = 0;
+        long previous = first.timestamp;
+
+        try {
+            for (DriveGenerator.Event event = first; event != null; event = events.hasNext() ? events.next() : null) {
+                if (speed > 0) {
+                    long gap = event.timestamp - previous;
+                    if (gap > MAX_IDLE_MS) skipped += gap - MAX_IDLE_MS;
+                    long due = wallStart + (long) ((event.timestamp - virtualStart - skipped) / speed * 1_000_000);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+                    } else {
+                        stats.maxLagMs = Math.max(stats.maxLagMs, -wait / 1_000_000);
+                    }
+                }
+                previous = event.timestamp;
+
+                stats.timersFired += clock.advanceTo(event.timestamp);
+
+                long start = System.nanoTime();
+                deliver(event, stats);
+                long latency = System.nanoTime() - start;
+
+                if (sampled < LATENCY_SAMPLES) {
+                    latencies[sampled] = latency;
+                } else {
+                    int slot = reservoir.nextInt(sampled + 1);
+                    if (slot < LATENCY_SAMPLES) latencies[slot] = latency;
+                }
+                sampled++;
+                stats.latencyMaxUs = Math.max(stats.latencyMaxUs, latency / 1000);
+
+                if (++stats.events % HEAP_SAMPLE_EVENTS == 0) {
+                    stats.maxHeapUsedBytes = Math.max(stats.maxHeapUsedBytes, runtime.totalMemory() - runtime.freeMemory());
+                }
+                if (Thread.currentThread().isInterrupted()) {
+                    stats.interrupted = true;
+                    break;
+                }
+            }
+
+            // timers still pending (grace timer of the last drive)
+            while (!stats.interrupted && clock.hasTimers()) {
+                stats.timersFired += clock.advanceTo(clock.nextTimerAt());
+            }
+            target.finish();
+        } catch (InterruptedException e) {
+            stats.interrupted = true;
+            Thread.currentThread().interrupt();
+        }
+
+        stats.virtualMs = clock.time() - virtualStart;
+        stats.wallMs = (System.nanoTime() - wallStart) / 1_000_000;
+        stats.maxHeapUsedBytes = Math.max(stats.maxHeapUsedBytes, runtime.totalMemory() - runtime.freeMemory());
+
+        int n = Math.min(sampled, LATENCY_SAMPLES);
+        if (n > 0) {
+            long[] sorted = Arrays.copyOf(latencies, n);
+            Arrays.sort(sorted);
+            stats.latencyP50Us = sorted[n / 2] / 1000.0;
+            stats.latencyP99Us = sorted[Math.min(n - 1, (int) (n * 0.99))] / 1000.0;
+        }
+        return stats;
+    }
+
+    private void deliver(DriveGenerator.Event event, Stats stats) {
+        switch (event.kind) {
+            case TRANSITION:
+                stats.transitions++;
+                target.onTransition(event);
+                break;
+            case LOCATION:
+                stats.fixes++;
+                target.onLocation(event);
+                break;
+            case WEATHER:
+                stats.weathers++;
+                target.onWeather(event);
+                break;
+            case PHONE:
+                stats.phones++;
+                target.onPhone(event);
+                break;
+        }
+    }
+}
@@ -2,7 +2,6 @@ package fr.lelab.activity;
 
 import android.app.AlarmManager;
 import android.app.PendingIntent;
-import android.content.SharedPreferences;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Build;
@@ -11,41 +10,37 @@ import android.util.Log;
 import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.Scanner;
 
 public class JsonStorageHelper {
 
     private static boolean saveOnlyAutomotive = true;
 
-    private static final String FILE_NAME = "stored_locations.json";
+    // binary segmented track store (see TrackSegmentStore), older files are migrated on first start
+    private static final String LEGACY_FILE_NAME = "stored_locations.json";
+    private static final String LEGACY_TRK_FILE_NAME = "stored_locations.trk";
+    private static final int LEGACY_TRK_HEADER_SIZE = 8;
     private static final String TAG = "JsonStorageHelper";
 
-    private static final String PREF_NAME = "ActivityPluginPrefs";
-    private static final String KEY_DRIVING = "driving_state";
-
-
-    public static boolean syncInProgress = false;
+    public static volatile boolean syncInProgress = false;
 
     private static JSObject lastWeather = null;
     
@@ -55,23 +50,248 @@ public class JsonStorageHelper {
 
     private static DistractionEventEmitter activeEmitter = null;
 
+    private static final TrackAppendWriter.Durability DEFAULT_DURABILITY = TrackAppendWriter.Durability.FSYNC_ON_TRIP_CLOSE;
+
+    private static TrackAppendWriter writer = null;
+    // last context values written as context records (see TrackContext)
+    private static final TrackContext writtenContext = new TrackContext();
+    private static LiveTripSegmenter liveSegmenter = null;
+    private static UploadOutbox outbox = null;
+    // trips sent at the same time by a sync (keep-alive connections to the server)
+    private static final int UPLOAD_PARALLELISM = 3;
+    private static ParallelUploader uploader = null;
+
+    /**
+     * Single long-lived append writer for the track store (started on first use)
+     */
+    public static synchronized TrackAppendWriter getWriter(Context context) {
+        if (writer == null) {
+            String option = TrackingStateStore.current(context).storageDurability;
+
+            TrackSegmentStore store = new TrackSegmentStore(
+                new File(getSafeFilesDir(context), TrackSegmentStore.DIR_NAME),
+                (message, e) -> Log.e(TAG, "⚠️ Track store: " + message, e)
+            );
+            writer = new TrackAppendWriter(
+                store,
+                TrackAppendWriter.Durability.fromOption(option, DEFAULT_DURABILITY),
+                (message, e) -> Log.e(TAG, "❌ Track writer: " + message, e)
+            );
+            File dir = getSafeFilesDir(context);
+            liveSegmenter = new LiveTripSegmenter(
+                store,
+                new SealedTripStore(new File(dir, SealedTripStore.DIR_NAME)),
+                new File(dir, LiveTripSegmenter.CHECKPOINT_FILE),
+                (message, e) -> Log.e(TAG, "⚠️ Live segmenter: " + message, e)
+            );
+            outbox = new UploadOutbox(new File(dir, UploadOutbox.DIR_NAME));
+            // upload each trip as soon as it is sealed
+            Context appContext = context.getApplicationContext() != null ? context.getApplicationContext() : context;
+            liveSegmenter.setSealListener(trip -> TripUploadWorker.enqueueSealedTripUpload(appContext));
+            // live stats of the open trip to JS (tripStats event, every 10 s at most)
+            liveSegmenter.setStatsListener(trip -> ActivityRecognitionPlugin.onTripStatsEvent(tripStatsToJSObject(trip)));
+            writer.setCommitListener(liveSegmenter);
+            writer.start();
+
+            if (new File(dir, LEGACY_FILE_NAME).exists() || new File(dir, LEGACY_TRK_FILE_NAME).exists()) {
+                // first task of the writer: queued points are appended after the migrated ones
+                writer.submit(() -> migrateLegacyFiles(context, store));
+            }
+            // then catch up with what was committed after the last segmenter checkpoint
+            writer.submit(liveSegmenter::recover);
+        }
+        return writer;
+    }
+
+    /**
+     * Convert the old single file stores (JSONL, then the first binary file) into sealed segments
+     */
+    private static void migrateLegacyFiles(Context context, TrackSegmentStore store) {
+        File dir = getSafeFilesDir(context);
+        File legacy = new File(dir, LEGACY_FILE_NAME);
+        File legacyTrk = new File(dir, LEGACY_TRK_FILE_NAME);
+        List<TrackRecord> records = new ArrayList<>();
+
+        try {
+            if (legacy.exists()) {
+                try (BufferedReader br = new BufferedReader(new FileReader(legacy))) {
+                    String line;
+                    while ((line = br.readLine()) != null) {
+                        if (line.trim().isEmpty()) continue;
+                        try {
+                            TrackRecord record = recordFromJSON(new JSONObject(line));
+                            if (record != null) records.add(record);
+                        } catch (JSONException e) {
+                            // corrupted line not kept
+                        }
+                    }
+                }
+            }
+
+            if (legacyTrk.exists() && legacyTrk.length() > LEGACY_TRK_HEADER_SIZE) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(legacyTrk))) {
+                    byte[] header = new byte[LEGACY_TRK_HEADER_SIZE];
+                    if (in.read(header) == LEGACY_TRK_HEADER_SIZE && header[0] == 'S' && header[1] == 'P'
+                            && header[2] == 'T' && header[3] == 'K') {
+                        TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(in, LEGACY_TRK_HEADER_SIZE);
+                        TrackRecord record;
+                        try {
+                            while ((record = decoder.next()) != null) records.add(record);
+                        } catch (IOException e) {
+                            Log.e(TAG, "⚠️ Corrupted record, rest of " + LEGACY_TRK_FILE_NAME + " ignored", e);
+                        }
+                    }
+                }
+            }
+
+            writeSealedSegments(store, records);
+        } catch (IOException e) {
+            Log.e(TAG, "❌ Migration of legacy track files failed, kept for next start", e);
+            return;
+        }
+
+        legacy.delete();
+        legacyTrk.delete();
+        Log.d(TAG, "📦 " + records.size() + " legacy entries migrated to segment store");
+    }
+
+    /**
+     * Bulk write records into sealed segments, rolled like the live ones (time span / size)
+     */
+    private static void writeSealedSegments(TrackSegmentStore store, List<TrackRecord> records) throws IOException {
+        TrackSegmentStore.SegmentWriter out = null;
+        try {
+            for (TrackRecord record : records) {
+                if (out != null && store.shouldRoll(out.getSegment(), out.getBytes(), record.timestamp)) {
+                    out.close();
+                    out = null;
+                }
+                if (out == null) out = store.newSealedSegment();
+                out.write(record);
+            }
+        } finally {
+            if (out != null) out.close();
+        }
+    }
+
+    /**
+     * Durability policy of the track writer ('flush' | 'fdatasync' | 'fsyncOnTripClose')
+     */
+    public static void setStorageDurability(Context context, String option) {
+        TrackAppendWriter.Durability durability = TrackAppendWriter.Durability.fromOption(option, DEFAULT_DURABILITY);
+        TrackingStateStore.get(context).update(b -> b.storageDurability(durability.toOption()));
+        getWriter(context).setDurability(durability);
+        Log.d(TAG, "💾 Storage durability: " + durability.toOption());
+    }
+
+    /**
+     * Commit everything still queued, then apply trip close durability.
+     * Queued on the writer thread, the receiver does not wait for it: the sync lists the sealed
+     * trips on the writer thread, after this close.
+     */
+    public static void onTripClosed(Context context) {
+        writtenContext.reset();
+        getWriter(context).closeTrip();
+        Log.d(TAG, "💾 Trip close queued on the track writer");
+    }
+
     /**
-     * get/update driving state in persistent storage
+     * Wait until all queued records are in the file (before reading / sharing it)
+     */
+    public static void flushPendingWrites(Context context) {
+        getWriter(context).flush();
+    }
+
+    /**
+     * Segments listed and opened on the writer thread, after the queued records are committed.
+     * The plugin and sync threads read through it while the writer appends, purges or rewrites
+     * segments. To be closed after the read.
+     */
+    private static TrackSegmentStore.Snapshot snapshotStore(Context context) {
+        TrackAppendWriter w = getWriter(context);
+        TrackSegmentStore.Snapshot[] snapshot = { null };
+        w.runExclusive(() -> snapshot[0] = w.getStore().snapshot());
+        return snapshot[0];
+    }
+
+    /**
+     * Stats of the open trip, accumulated at ingest (as of the last committed group)
+     */
+    public static JSObject getCurrentTripStats(Context context) {
+        getWriter(context);
+        return tripStatsToJSObject(liveSegmenter.getCurrentTrip());
+    }
+
+    /**
+     * Distances in meters, durations in ms, speeds in m/s. { active: false } without open trip.
+     */
+    private static JSObject tripStatsToJSObject(TripSummary trip) {
+        JSObject stats = new JSObject();
+        stats.put("active", trip != null);
+        if (trip == null) return stats;
+
+        stats.put("tripId", trip.tripId);
+        stats.put("startTimestamp", trip.startTimestamp);
+        stats.put("lastTimestamp", trip.endTimestamp);
+        stats.put("pointCount", trip.pointCount);
+        stats.put("distance", trip.distance);
+        stats.put("duration", trip.getDuration());
+        stats.put("movingTime", trip.movingTime);
+        stats.put("averageSpeed", trip.getAverageSpeed());
+        stats.put("averageMovingSpeed", trip.getAverageMovingSpeed());
+        stats.put("maxSpeed", trip.maxSpeed);
+        stats.put("stopCount", trip.stopCount);
+        stats.put("distractionTime", trip.distractionTime);
+        // automotive EXIT waiting for a re-ENTER (stop-and-go)
+        stats.put("exitPending", trip.exitTimestamp > 0);
+        return stats;
+    }
+
+    public static JSObject getStorageStats(Context context) {
+        TrackAppendWriter w = getWriter(context);
+        JSObject stats = new JSObject();
+        stats.put("durability", w.getDurability().toOption());
+        stats.put("queueDepth", w.getQueueDepth());
+        stats.put("queueCapacity", w.getQueueCapacity());
+        stats.put("committedGroups", w.getCommittedGroups());
+        stats.put("committedRecords", w.getCommittedRecords());
+        stats.put("committedBytes", w.getCommittedBytes());
+        stats.put("droppedRecords", w.getDroppedRecords());
+        stats.put("failedRecords", w.getFailedRecords());
+        stats.put("lastCommitLatencyMs", w.getLastCommitLatencyMs());
+        stats.put("avgCommitLatencyMs", w.getAvgCommitLatencyMs());
+        stats.put("maxCommitLatencyMs", w.getMaxCommitLatencyMs());
+
+        // segment listing is done on the writer thread, ordered with the pending appends
+        int[] segments = { 0 };
+        long[] bytes = { 0 };
+        w.runExclusive(() -> {
+            for (TrackSegmentStore.Segment s : w.getStore().segments()) {
+                segments[0]++;
+                bytes[0] += s.file.length();
+            }
+        });
+        stats.put("segmentCount", segments[0]);
+        stats.put("storeBytes", bytes[0]);
+        stats.put("ingest", LocationIngestPipeline.get().getStats());
+        JSObject upload = UploadMetrics.get().getStats();
+        long[] pending = outbox.usage();
+        upload.put("outboxTrips", pending[0]);
+        upload.put("outboxBytes", pending[1]);
+        upload.put("outboxRejected", outbox.rejectedCount());
+        stats.put("upload", upload);
+        return stats;
+    }
+
+    /**
+     * get/update driving state: in memory snapshot, persisted write-behind (TrackingStateStore)
      */
     public static boolean getDrivingState(Context context) {
-        Context safeContext = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) 
-            ? context.createDeviceProtectedStorageContext() : context;
-        SharedPreferences prefs = safeContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
-        return prefs.getBoolean(KEY_DRIVING, false);
+        return TrackingStateStore.current(context).recordingTrip;
     }
 
     public static void setDrivingState(Context context, boolean isDriving) {
-        Context safeContext = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) 
-            ? context.createDeviceProtectedStorageContext() : context;
-        safeContext.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE)
-                .edit()
-                .putBoolean(KEY_DRIVING, isDriving)
-                .commit(); // commit() immediate writing
+        TrackingStateStore.get(context).setRecordingTrip(isDriving);
     }
 
 
@@ -93,18 +313,20 @@ public class JsonStorageHelper {
 
     /**
      * Save location APPEND mode
+     * @return true if the point was queued for the track, false if ignored (NaN, not driving)
+     * or dropped (writer queue full)
      */
-    public static void saveLocation(Context context, double lat, double lng, float speed, long timestamp, JSObject weather, JSObject appUsed, Boolean isDistraction) {
+    public static boolean saveLocation(Context context, double lat, double lng, float speed, long timestamp, JSObject weather, JSObject appUsed, Boolean isDistraction) {
 
 
         if (Double.isNaN(lat) || Double.isNaN(lng)) {
             Log.e(TAG, "❌ GPS point ignored :  NaN ");
-            return;
+            return false;
         }
 
         if (saveOnlyAutomotive) {
             if (!getDrivingState(context)) {
-                return;
+                return false;
             }
         }
 
@@ -112,41 +334,27 @@ public class JsonStorageHelper {
             speed = 0;
 
 
-       synchronized (ActivityRecognitionPlugin.fileLock) {
-           File file = new File(getSafeFilesDir(context), FILE_NAME);
-            
-            JSObject location = new JSObject();
-            location.put("type", "location"); 
-            location.put("lat", lat);
-            location.put("lng", lng);
-            location.put("speed", speed);
-            location.put("timestamp", timestamp);
-
-            if (weather != null) {
-                location.put("weather", weather);
-            }
-
-            if (appUsed != null) {
-                location.put("appUsed", appUsed);
-            }
+        TrackRecord location = TrackRecord.location(lat, lng, speed, timestamp);
 
-            if (!getLockStatus()){
-                location.put("phoneUnlock", true);
-            }
-
-            if (isDistraction != null){
-                location.put("distractionDetect", isDistraction);
-            }
+        if (weather != null) {
+            location.weatherType = weather.optString("type", "unknown");
+            location.weatherTemp = weather.optDouble("temp", -999.0);
+        }
 
+        if (appUsed != null) {
+            location.appName = getAppName(appUsed);
+        }
 
-            String entry = location.toString() + "\n";
+        location.phoneUnlock = !getLockStatus();
+        location.distraction = isDistraction;
 
-            try (FileOutputStream fos = new FileOutputStream(file, true)) {
-                fos.write(entry.getBytes());
-            } catch (IOException e) {
-                Log.e(TAG, "❌ Error during Append position writing", e);
-            }
+        // context is only written when it changes, joined back onto the points at upload
+        // queued: the writer thread encodes and appends it with the next group
+        if (!writtenContext.append(getWriter(context), location)) {
+            Log.w(TAG, "⚠️ Track writer queue full, GPS point dropped");
+            return false;
         }
+        return true;
     }
 
 
@@ -167,6 +375,8 @@ public class JsonStorageHelper {
         if ("automotive".equalsIgnoreCase(activityName)) {
             if ("ENTER".equalsIgnoreCase(transitionName)) {
                 setDrivingState(context, true);
+                // full context written again with the first point of the trip
+                writtenContext.reset();
                 Log.d(TAG, "🚗 Driving Mode: ON (Persistent)");
             } else if ("EXIT".equalsIgnoreCase(transitionName)) {
                 Log.d(TAG, "🛑 Driving Mode: OFF (Persistent), but keep location until end of grace timer");
@@ -174,44 +384,39 @@ public class JsonStorageHelper {
         }
 
 
-        synchronized (ActivityRecognitionPlugin.fileLock) {
-            File file = new File(getSafeFilesDir(context), FILE_NAME);
-            
-            JSObject activity = new JSObject();
-            activity.put("type", "activity");
-            activity.put("activity", activityName);
-            activity.put("transition", transitionName);
-            activity.put("date", getFormattedDate());
-            activity.put("timestamp", System.currentTimeMillis());
-            
-            String entry = activity.toString() + "\n";
-
-            try (FileOutputStream fos = new FileOutputStream(file, true)) {
-                fos.write(entry.getBytes());
-                Log.d(TAG, "🏃 Activity registered : " + activityName);
-            } catch (IOException e) {
-                Log.e(TAG, "❌ Error during Append activity writing", e);
-            }
+        TrackRecord activity = TrackRecord.activity(activityName, transitionName, System.currentTimeMillis());
+
+        if (getWriter(context).append(activity)) {
+            Log.d(TAG, "🏃 Activity registered : " + activityName);
+        } else {
+            Log.e(TAG, "❌ Track writer queue full, activity dropped : " + activityName);
         }
     }
 
+    /**
+     * JSON view of the binary store, built on demand (getSavedLocations / sync)
+     */
     public static JSArray loadLocationsAsJSArray(Context context) {
-        File file = new File(getSafeFilesDir(context), FILE_NAME);
         JSArray locations = new JSArray();
 
-        if (!file.exists()) return locations;
+        try (TrackSegmentStore.Snapshot snapshot = snapshotStore(context)) {
+            snapshot.forEachRecord(record -> locations.put(recordToJSObject(record)));
+        } catch (IOException e) {
+            Log.e(TAG, "Erreor reading file", e);
+        }
 
-        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (!line.trim().isEmpty()) {
-                    try {
-                        locations.put(new JSObject(line));
-                    } catch (JSONException e) {
-                        Log.e(TAG, "malformed JSON line ignored", e);
-                    }
-                }
-            }
+        return locations;
+    }
+
+    /**
+     * JSON view of the records with from <= timestamp <= to, only the index blocks
+     * overlapping the range are decoded
+     */
+    public static JSArray loadLocationsBetween(Context context, long from, long to) {
+        JSArray locations = new JSArray();
+
+        try (TrackSegmentStore.Snapshot snapshot = snapshotStore(context)) {
+            snapshot.forEachRecord(from, to, record -> locations.put(recordToJSObject(record)));
         } catch (IOException e) {
             Log.e(TAG, "Erreor reading file", e);
         }
@@ -219,18 +424,183 @@ public class JsonStorageHelper {
         return locations;
     }
 
-    public static void clearLocations(Context context) {
-        File file = new File(getSafeFilesDir(context), FILE_NAME);
-        if (file.exists()) {
-            boolean deleted = file.delete();
-            Log.d(TAG, "🗑️ File deleted : " + deleted);
+    /**
+     * One page of the JSON view: { locations, nextCursor } (nextCursor absent on the last page).
+     * @param type "location" | "activity" | null for both
+     * @param cursor nextCursor of the previous page, null for the first one
+     * @throws IllegalArgumentException on an invalid cursor
+     */
+    public static JSObject loadLocationsPage(Context context, long from, long to, String type, int limit, String cursor) {
+        TrackSegmentStore.Cursor start = (cursor != null) ? TrackSegmentStore.Cursor.decode(cursor) : null;
+        TrackSegmentStore.RecordFilter filter = null;
+        if ("location".equals(type)) filter = TrackRecord::isLocation;
+        else if ("activity".equals(type)) filter = TrackRecord::isActivity;
+        else if ("context".equals(type)) filter = TrackRecord::isContext;
+
+        JSArray locations = new JSArray();
+        TrackSegmentStore.Cursor next = null;
+        try (TrackSegmentStore.Snapshot snapshot = snapshotStore(context)) {
+            next = snapshot.readPage(from, to, filter, start, limit, record -> locations.put(recordToJSObject(record)));
+        } catch (IOException e) {
+            Log.e(TAG, "Erreor reading file", e);
+        }
+
+        JSObject page = new JSObject();
+        page.put("locations", locations);
+        if (next != null) page.put("nextCursor", next.encode());
+        return page;
+    }
+
+    /**
+     * Write the JSONL view of the store (same line format as the old stored_locations.json)
+     */
+    public static void exportLocationsAsJsonl(Context context, File target) throws IOException {
+        // same lines as recordToJSObject(record).toString(), without a JSObject per record
+        TrackJsonEncoder encoder = new TrackJsonEncoder();
+        try (TrackSegmentStore.Snapshot snapshot = snapshotStore(context);
+             OutputStream os = new BufferedOutputStream(new FileOutputStream(target))) {
+            snapshot.forEachRecord(record -> encoder.writeLine(record, os));
+        }
+    }
+
+    /**
+     * Same object as the line stored in the old JSONL file
+     */
+    public static JSObject recordToJSObject(TrackRecord record) {
+        JSObject obj = new JSObject();
+        if (record.isLocation()) {
+            obj.put("type", "location");
+            obj.put("lat", record.lat);
+            obj.put("lng", record.lng);
+            obj.put("speed", record.speed);
+            obj.put("timestamp", record.timestamp);
+
+            if (record.weatherType != null) {
+                JSObject weather = new JSObject();
+                weather.put("type", record.weatherType);
+                weather.put("temp", record.weatherTemp);
+                obj.put("weather", weather);
+            }
+
+            if (record.appName != null) {
+                JSObject navData = new JSObject();
+                navData.put("name", record.appName);
+                navData.put("accuracy", 1);
+                JSObject appUsed = new JSObject();
+                appUsed.put("usedApp", navData);
+                obj.put("appUsed", appUsed);
+            }
+
+            if (record.phoneUnlock) {
+                obj.put("phoneUnlock", true);
+            }
+
+            if (record.distraction != null) {
+                obj.put("distractionDetect", record.distraction.booleanValue());
+            }
+        } else if (record.isContext()) {
+            obj.put("type", "context");
+            obj.put("timestamp", record.timestamp);
+            switch (record.contextKind) {
+                case TrackRecord.CONTEXT_WEATHER:
+                    obj.put("context", "weather");
+                    if (record.weatherType != null) {
+                        JSObject weather = new JSObject();
+                        weather.put("type", record.weatherType);
+                        weather.put("temp", record.weatherTemp);
+                        obj.put("weather", weather);
+                    }
+                    break;
+                case TrackRecord.CONTEXT_APP:
+                    obj.put("context", "appUsed");
+                    if (record.appName != null) obj.put("appName", record.appName);
+                    break;
+                case TrackRecord.CONTEXT_LOCK:
+                    obj.put("context", "phoneUnlock");
+                    obj.put("phoneUnlock", record.phoneUnlock);
+                    break;
+                default:
+                    obj.put("context", "distractionDetect");
+                    if (record.distraction != null) obj.put("distractionDetect", record.distraction.booleanValue());
+                    break;
+            }
+        } else {
+            obj.put("type", "activity");
+            obj.put("activity", record.activity);
+            obj.put("transition", record.transition);
+            obj.put("date", getFormattedDate(record.timestamp));
+            obj.put("timestamp", record.timestamp);
+        }
+        return obj;
+    }
+
+    /**
+     * Parse a line of the old JSONL file, null if not a known entry
+     */
+    private static TrackRecord recordFromJSON(JSONObject obj) {
+        String type = obj.optString("type");
+        long timestamp = obj.optLong("timestamp", 0);
+
+        if ("location".equals(type)) {
+            double lat = obj.optDouble("lat");
+            double lng = obj.optDouble("lng");
+            if (Double.isNaN(lat) || Double.isNaN(lng)) return null;
+
+            TrackRecord record = TrackRecord.location(lat, lng, sanitizeDouble(obj.optDouble("speed"), 0), timestamp);
+            JSONObject weather = obj.optJSONObject("weather");
+            if (weather != null) {
+                record.weatherType = weather.optString("type", "unknown");
+                record.weatherTemp = weather.optDouble("temp", -999.0);
+            }
+            JSONObject appUsed = obj.optJSONObject("appUsed");
+            if (appUsed != null) {
+                record.appName = getAppName(appUsed);
+            }
+            record.phoneUnlock = obj.optBoolean("phoneUnlock", false);
+            if (obj.has("distractionDetect")) {
+                record.distraction = obj.optBoolean("distractionDetect");
+            }
+            return record;
         }
+
+        if ("activity".equals(type)) {
+            return TrackRecord.activity(obj.optString("activity"), obj.optString("transition"), timestamp);
+        }
+        return null;
+    }
+
+    /**
+     * foreground app is stored as { usedApp: { name, accuracy } }
+     */
+    private static String getAppName(JSONObject appUsed) {
+        JSONObject usedApp = appUsed.optJSONObject("usedApp");
+        return (usedApp != null) ? usedApp.optString("name", "") : appUsed.optString("name", "");
+    }
+
+    public static boolean hasSavedLocations(Context context) {
+        TrackAppendWriter w = getWriter(context);
+        boolean[] found = { false };
+        w.runExclusive(() -> found[0] = !w.getStore().isEmpty());
+        return found[0];
+    }
+
+    public static void clearLocations(Context context) {
+        TrackAppendWriter w = getWriter(context);
+        writtenContext.reset();
+        w.runExclusive(() -> {
+            int deleted = w.getStore().clear();
+            liveSegmenter.reset();
+            outbox.clear();
+            Log.d(TAG, "🗑️ Segments deleted : " + deleted);
+        });
     }
 
     private static final SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss", Locale.FRANCE);
 
-    private static String getFormattedDate() {
-        return sdf.format(new Date());
+    private static String getFormattedDate(long timestamp) {
+        synchronized (sdf) {
+            return sdf.format(new Date(timestamp));
+        }
     }
 
     public static JSObject locationToJSObject(android.location.Location location) {
@@ -244,51 +614,17 @@ public class JsonStorageHelper {
 
     /**
      * Secure Purge of old data
+     * (runs on the writer thread, ordered with the pending appends)
      */
     public static void purgeLocationsBefore(Context context, long timestampLimit) 
     {
-        File file = new File(getSafeFilesDir(context), FILE_NAME);
-        if (!file.exists()) return;
-
-        File tempFile = new File(getSafeFilesDir(context), "temp_purge.json");
-        boolean hasDataLeft = false;
-
-        try (BufferedReader br = new BufferedReader(new FileReader(file));
-             FileOutputStream fos = new FileOutputStream(tempFile)) {
-            
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                
-                try {
-                    JSObject obj = new JSObject(line);
-                    long pointTimestamp = obj.getLong("timestamp");
-
-                    if (pointTimestamp >= timestampLimit) {
-                        fos.write((line + "\n").getBytes());
-                        hasDataLeft = true;
-                    }
-                } catch (Exception e) {
-                    // Ignorer les lignes corrompues
-                }
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "❌ Error during purge", e);
-        }
+        getWriter(context).runExclusive(() -> purgeLocationsBeforeExclusive(context, timestampLimit));
+    }
 
-        // Remplace file
-        if (tempFile.exists()) {
-            if (hasDataLeft) {
-                if (file.delete()) {
-                    tempFile.renameTo(file);
-                }
-            } else {
-                // nothing remain suppress all
-                file.delete();
-                tempFile.delete();
-            }
-            Log.d(TAG, "🧹 Purge ended.");
-        }
+    private static void purgeLocationsBeforeExclusive(Context context, long timestampLimit) 
+    {
+        TrackSegmentStore.PurgeResult result = getWriter(context).getStore().removeRecords(Long.MIN_VALUE, timestampLimit - 1);
+        Log.d(TAG, "🧹 Purge ended: " + result);
     }
 
 
@@ -296,326 +632,268 @@ public class JsonStorageHelper {
      * Secure partial purge
      */
     public static void purgeLocationsBetween(Context context, long from, long to) {
-        File safeDir = getSafeFilesDir(context); 
-        File file = new File(safeDir, FILE_NAME);
-        if (!file.exists()) return;
-
-        File tempFile = new File(safeDir, "temp_purge_between.json");
-        boolean hasDataLeft = false;
-
-        try (BufferedReader br = new BufferedReader(new FileReader(file));
-             FileOutputStream fos = new FileOutputStream(tempFile)) {
-            
-            String line;
-            while ((line = br.readLine()) != null) {
-                if (line.trim().isEmpty()) continue;
-                
-                try {
-                    JSObject obj = new JSObject(line);
-                    long pointTimestamp = obj.getLong("timestamp");
-
-                    // keep line not between from and to
-                    if (pointTimestamp < from || pointTimestamp > to) {
-                        fos.write((line + "\n").getBytes());
-                        hasDataLeft = true;
-                    }
-                } catch (Exception e) {
-                    // securitycorrupted line not kept
-                }
-            }
-        } catch (IOException e) {
-            Log.e(TAG, "❌ Error during purge Between", e);
-        }
+        getWriter(context).runExclusive(() -> purgeLocationsBetweenExclusive(context, from, to));
+    }
 
-        // Remplacement du fichier original
-        if (file.delete()) {
-            if (hasDataLeft) {
-                tempFile.renameTo(file);
-            } else {
-                tempFile.delete();
-            }
-            Log.d(TAG, "🧹 Purge between " + from + " and " + to + " ended.");
-        }
+    private static void purgeLocationsBetweenExclusive(Context context, long from, long to) {
+        // keep records not between from and to
+        TrackSegmentStore.PurgeResult result = getWriter(context).getStore().removeRecords(from, to);
+        Log.d(TAG, "🧹 Purge between " + from + " and " + to + " ended: " + result);
     }
 
 
     /**
-     * Analyse le fichier, segmente les trajets terminés (EXIT) et les envoie.
+     * Location points of a sealed trip, read from the store by its time range, with the
+     * context records between them joined onto the points
+     */
+    private static TripBuffer loadTripPoints(TrackSegmentStore.Snapshot store, TripSummary trip) throws IOException {
+        TripBuffer points = new TripBuffer(trip.pointCount + 16);
+        store.forEachRecord(trip.startTimestamp, trip.endTimestamp, record -> {
+            if (record.isContext()
+                    || (record.isLocation() && !Double.isNaN(record.lat) && !Double.isNaN(record.lng) && record.timestamp > 0)) {
+                points.add(record);
+            }
+        });
+        points.join();
+        return points;
+    }
+
+    /**
+     * Envoie les trajets terminés, scellés à l'écriture par le LiveTripSegmenter.
+     *
+     * fileLock is only held to mark the sync as started; nothing is rescanned: each sealed trip
+     * reads its own time range, uploads run without any lock and the acknowledged ranges are
+     * removed together at the end: one compaction pass on the track writer thread.
+     *
+     * Streaming: only the start times of the sealed trips are listed, and a single trip
+     * (summary, points, payload) is in memory at a time, so the heap does not grow with the
+     * backlog of a device offline for weeks. Trips sealed during the sync are sent by the same sync.
+     *
+     * Outbox: each significant sealed trip is first encoded into the UploadOutbox, then the outbox
+     * is sent oldest first, UPLOAD_PARALLELISM trips in flight on keep-alive connections (ParallelUploader,
+     * TripHttpSender). Answers are handled in trip order. Points stay in the store until their trip is acknowledged.
+     *
+     * @return false when a trip could not be sent for a transient reason (network, 5xx, 429),
+     *         or when another sync is already running (nothing sent by this call):
+     *         the worker asks WorkManager for a retry with backoff
      */
  
-    public static void processAndUploadAutomotiveTrips(Context context, String serverUrl, String token) {
+    public static boolean processAndUploadAutomotiveTrips(Context context, String serverUrl, String token) {
         synchronized (ActivityRecognitionPlugin.fileLock) {
-            if (syncInProgress) return;
+            if (syncInProgress) {
+                // the running sync may have listed the trips before the last one was sealed
+                Log.d(TAG, "⏳ Sync already in progress, nothing sent by this call");
+                return false;
+            }
             syncInProgress = true;
+        }
 
-            try {
-                JSArray allEntries = loadLocationsAsJSArray(context);
-                if (allEntries.length() == 0) {
-                    syncInProgress = false;
-                    return;
-                }
-
-                // 1. Tri des données par timestamp
-                List<JSONObject> entryList = new ArrayList<>();
-                for (int i = 0; i < allEntries.length(); i++) {
-                    entryList.add(allEntries.getJSONObject(i));
-                }
-                Collections.sort(entryList, (a, b) -> Long.compare(a.optLong("timestamp"), b.optLong("timestamp")));
-
-                // Réassignation pour le traitement
-                allEntries = new JSArray();
-                for (JSONObject obj : entryList) {
-                    allEntries.put(obj);
-                }
-
-                // Configuration
-                long FIVE_MINUTES_MS = 5 * 60 * 1000;
-                long MIN_DURATION_MS = 30 * 1000;
-
-                List<JSArray> finishedTrips = new ArrayList<>();
-                JSArray currentMeasures = new JSArray();
-                boolean isTrackingAutomotive = false;
-
-                for (int i = 0; i < allEntries.length(); i++) {
-                    JSONObject current = allEntries.getJSONObject(i);
-                    String type = current.optString("type");
-                    String activity = current.optString("activity");
-                    String transition = current.optString("transition");
-                    long timestamp = current.optLong("timestamp");
-                    double speed = Double.isNaN(current.optDouble("speed")) ? 0.0 : current.optDouble("speed");
-
-                    // 1. Manage activity state
-                    if ("activity".equals(type) && "automotive".equals(activity)) {
-
-                        // ENTER : start tracking automotive
-                        if ("ENTER".equals(transition) && !isTrackingAutomotive) {
-                            isTrackingAutomotive = true;
-                            currentMeasures = new JSArray(); // Reset array pour nouveau trajet
-                        }
-
-                        // EXIT : "Bad Stop verification"
-                        if ("EXIT".equals(transition) && isTrackingAutomotive) {
-                            boolean hasReEntered = false;
-
-                            for (int j = i + 1; j < allEntries.length(); j++) {
-                                JSONObject next = allEntries.getJSONObject(j);
-                                long nextTs = next.optLong("timestamp");
-
-                                // Si on dépasse le délai de 5 min, on arrête de chercher
-                                if ((nextTs - timestamp) > FIVE_MINUTES_MS) break;
-
-                                if ("activity".equals(next.optString("type")) &&
-                                    "automotive".equals(next.optString("activity")) &&
-                                    "ENTER".equals(next.optString("transition"))) {
-                                    hasReEntered = true;
-                                    break;
-                                }
-                            }
+        // ranges of the uploaded / ignored trips, removed at the end in one compaction
+        TrackSegmentStore.RemovalSet removals = new TrackSegmentStore.RemovalSet();
+        // sealed trips handled (in the outbox, ignored or already purged), removed after the purges
+        List<TripSummary> handled = new ArrayList<>();
+        // outbox entries acknowledged, removed after the purges
+        List<UploadOutbox.Entry> sent = new ArrayList<>();
+        boolean complete = true;
 
-                            if (!hasReEntered) {
-                                // --- End trip validated ---
-                                if (currentMeasures.length() > 0) {
-                                    long firstTs = currentMeasures.getJSONObject(0).optLong("timestamp");
-                                    long lastTs = currentMeasures.getJSONObject(currentMeasures.length() - 1).optLong("timestamp");
-                                    long duration = lastTs - firstTs;
-
-                                    if (duration >= MIN_DURATION_MS) {
-                                        // clone to add to already finished trips
-                                        finishedTrips.add(currentMeasures);
-                                    }
-                                }
-                                // Reset complet
-                                isTrackingAutomotive = false;
-                                currentMeasures = new JSArray();
-                            }
-                        }
+        try {
+            // 0. trips sealed by the live segmenter (in progress trip not included)
+            getWriter(context);
+            SealedTripStore sealedTrips = liveSegmenter.getSealedTrips();
+            // nothing older waiting: the first trip also drops what precedes it
+            boolean outboxWasEmpty = outbox.isEmpty();
+
+            int tripNumber = 1;
+            // start of the last trip taken: a trip is taken once, even if failed
+            long lastStart = Long.MIN_VALUE;
+            // start of the last outbox entry sent (entries are acknowledged after the purges)
+            long lastSent = Long.MIN_VALUE;
+            TripPayloadCodec codec = TripPayloadCodec.forName(TrackingStateStore.current(context).payloadCodecName());
+
+            for (boolean first = true; ; first = false) {
+                // taken on the writer thread: a trip close queued by the receiver is done before the
+                // sealed trips are listed, and the points are read as committed then
+                try (TrackSegmentStore.Snapshot store = snapshotStore(context)) {
+                    long[] starts = sealedTrips.startTimes();
+                    int next = 0;
+                    while (next < starts.length && starts[next] <= lastStart) next++;
+                    if (!first && next == starts.length) {
+                        // no trip sealed while sending
+                        break;
                     }
 
-                    // 2. Add location point if in automotive mode 
-                    if ("location".equals(type) && isTrackingAutomotive) {
-
-                        double lat = current.optDouble("lat");
-                        double lng = current.optDouble("lng");
-                        timestamp = current.optLong("timestamp", 0);
-
-                        if (!Double.isNaN(lat) && !Double.isNaN(lng) && timestamp > 0)
-                        {
-
-                            JSONObject measure = new JSONObject();
-                            measure.put("lat", current.optDouble("lat"));
-                            measure.put("lng", current.optDouble("lng"));
-                            measure.put("speed", speed);
-                            measure.put("timestamp", timestamp);
-                            measure.put("type", "location");
-
-                            // check if meteo exist and add
-                            if (current.has("weather") && !current.isNull("weather")) {
-                                JSONObject weatherData = current.optJSONObject("weather");
-                                if (weatherData != null) {
-                                    JSONObject weatherPoint = new JSONObject();
-                                    weatherPoint.put("type", weatherData.optString("type"));
-                                    weatherPoint.put("temp", weatherData.optDouble("temp"));
-                                    
-                                    measure.put("weather", weatherPoint);
-                                }
-                            }
-
-                            // check if unlock exist and add
-                            if (current.has("phoneUnlock")) {
-                                measure.put("phoneUnlock", current.optBoolean("phoneUnlock"));
+                    // 1. sealed trips -> outbox
+                    for (; next < starts.length; next++) {
+                        lastStart = starts[next];
+                        TripSummary trip = sealedTrips.load(lastStart);
+                        if (trip == null) continue;
+
+                        try {
+                            if (outbox.contains(trip.startTimestamp)) {
+                                // crash after the outbox write: keep its body and trip id
+                                handled.add(trip);
+                                continue;
                             }
 
-                            if (current.has("appUsed") && !current.isNull("appUsed")) {
-                                JSONObject appUsedData = current.optJSONObject("appUsed");
-                                if (appUsedData != null) {
-                                    JSONObject appUsedPoint = new JSONObject();
-                                    appUsedPoint.put("type", appUsedData.optString("name"));
-                                    appUsedPoint.put("accuracy", 1);
-                                    
-                                    measure.put("appUsed", appUsedPoint);
-                                }
+                            // 1. gets timestamps for purge (first and last points of the trip)
+                            long tripStart = trip.startTimestamp;
+                            long tripEnd = trip.endTimestamp;
+                            long removeFrom = (tripNumber == 1 && outboxWasEmpty) ? Long.MIN_VALUE : tripStart - 1;
+                            long removeTo = (tripNumber == 1 && outboxWasEmpty) ? tripEnd : tripEnd + 1;
+
+                            // do not process trip less than 500m or less than 1 min, from the summary
+                            // accumulated at ingest: the points of an ignored trip are not read
+                            if (!isTripSignificant(trip)) {
+                                // trjat not significant : purge witout upload
+                                Log.i(TAG, "⚠️ Trip ignored (too short)");
+                                removals.add(removeFrom, removeTo);
+                                handled.add(trip);
+                                tripNumber++;
+                                continue;
                             }
 
-                            if (current.has("distractionDetect")) {
-                                measure.put("distractionDetect", current.optBoolean("distractionDetect"));
+                            TripBuffer tripPoints = loadTripPoints(store, trip);
+                            if (tripPoints.isEmpty()) {
+                                // points purged meanwhile (JS call)
+                                handled.add(trip);
+                                continue;
                             }
-                            
-                            currentMeasures.put(measure);
-                        }
-                    }
-                }
-
-                // 'finishedTrips' contain all trips ready to upload
-
-                int tripNumber = 1;
-
-                for (JSArray tripMeasures : finishedTrips) {
-                    try {
-                        if (tripMeasures.length() == 0) continue;
 
-                        // 1. gets timestamps for purge
-                        JSONObject firstPoint = tripMeasures.getJSONObject(0);
-                        JSONObject lastPoint = tripMeasures.getJSONObject(tripMeasures.length() - 1);
-                        
-                        long tripStart = firstPoint.getLong("timestamp");
-                        long tripEnd = lastPoint.getLong("timestamp");
+                            simplifyTrip(context, tripPoints);
+                            UploadOutbox.Entry entry = outbox.add(trip, tripPoints, codec, removeFrom, removeTo);
+                            Log.d(TAG, "📦 Trip " + tripNumber + " in outbox (" + entry.codec + ", "
+                                + entry.body.length() + " bytes)");
+                            handled.add(trip);
 
-                        // do not process trip less than 1km or less than 1 min
-
-                        if (isTripSignificant(tripMeasures)) {
-
-                            // 2. Try to upload
-                            boolean success = uploadSingleTrip(serverUrl, token, tripMeasures);
-
-                            if (success) {
-                                Log.d(TAG, "✅ Trip sent Success" + tripNumber);
-
-                                if (tripNumber == 1) {
-                                    JsonStorageHelper.purgeLocationsBefore(context, tripEnd + 1);
-                                } else {
-                                    JsonStorageHelper.purgeLocationsBetween(context, tripStart - 1, tripEnd + 1);
-                                }
-                            } else {
-                                Log.e(TAG, "❌ fail to upload trip starting at : " + tripStart + ". Remains in file.");
-                            }
-                        } else {
-                            // trjat not significant : purge witout upload
-                            Log.i(TAG, "⚠️ Trip ignored (too short)");
-                            if (tripNumber == 1) {
-                                JsonStorageHelper.purgeLocationsBefore(context, tripEnd + 1);
-                            } else {
-                                JsonStorageHelper.purgeLocationsBetween(context, tripStart - 1, tripEnd + 1);
-                            }
+                        } catch (Exception e) {
+                            Log.e(TAG, "💥 Error during trip processing " + tripNumber + ": " + e.getMessage());
                         }
 
-
-                    } catch (Exception e) {
-                        Log.e(TAG, "💥 Error during trip processing " + tripNumber + ": " + e.getMessage());
+                        tripNumber++;
                     }
-                    
-                    tripNumber++;
                 }
 
-            } catch (Exception e) {
-                Log.e(TAG, "❌ Error during processing : ", e);
-            } finally {
-                syncInProgress = false;
-            }
-        }
-    }
-
-    private static JSArray trimPedestrianStart(JSArray trip, double speedThreshold) throws JSONException {
-        int firstMotorizedIndex = -1;
-
-        // get first real automotive point
-        for (int i = 0; i < trip.length(); i++) {
-            JSONObject step = trip.getJSONObject(i);
-            String activity = step.optString("activity", "");
-            double speed = step.optDouble("speed", 0.0);
-            String type = step.optString("type", "");
-
-            boolean isAutomotive = "automotive".equals(activity);
-            boolean isFast = "location".equals(type) && speed > speedThreshold;
+                // 2. outbox, oldest first, a few trips in flight (acks handled here in order)
+                boolean[] transientFailure = { false };
+                long[] acked = { lastSent };
+                getUploader().run(outbox.entriesAfter(lastSent),
+                    entry -> uploadOutboxEntry(context, serverUrl, token, entry),
+                    (entry, code) -> {
+                        acked[0] = Math.max(acked[0], entry.trip.startTimestamp);
+                        if (code >= 200 && code <= 299) {
+                            Log.d(TAG, "✅ Trip sent Success " + entry.tripId);
+                            removals.add(entry.removeFrom, entry.removeTo);
+                            sent.add(entry);
+                            return true;
+                        }
 
-            if (isAutomotive || isFast) {
-                firstMotorizedIndex = i;
-                break;
+                        entry.attempts++;
+                        entry.lastStatus = code;
+                        entry.lastAttemptAt = System.currentTimeMillis();
+                        try {
+                            outbox.update(entry);
+                        } catch (IOException e) {
+                            Log.e(TAG, "⚠️ Outbox entry not updated: " + e.getMessage());
+                        }
+                        if (isTransientFailure(code) || isAuthFailure(code)) {
+                            Log.e(TAG, "❌ fail to upload trip " + entry.tripId + " (" + code + ", attempt "
+                                + entry.attempts + "). Remains in outbox.");
+                            // the next ones would fail the same way: retry later
+                            transientFailure[0] = true;
+                            return false;
+                        }
+                        if (entry.attempts >= UploadOutbox.MAX_ATTEMPTS && outbox.reject(entry)) {
+                            // refused by the server each time: out of the outbox, its points purged
+                            Log.e(TAG, "🚫 Trip " + entry.tripId + " refused " + entry.attempts + " times (" + code
+                                + "), moved to " + entry.body.getName());
+                            UploadMetrics.get().onRejected();
+                            removals.add(entry.removeFrom, entry.removeTo);
+                            return true;
+                        }
+                        Log.e(TAG, "❌ fail to upload trip " + entry.tripId + " (" + code + ", attempt " + entry.attempts
+                            + "/" + UploadOutbox.MAX_ATTEMPTS + "). Remains in outbox.");
+                        return true;
+                    });
+                lastSent = acked[0];
+                if (transientFailure[0]) complete = false;
+                if (!complete) break;
             }
-        }
 
-        if (firstMotorizedIndex != -1) {
-            JSArray cleaned = new JSArray();
-            // start from motorized point (goback n_rec if start context needed)
-            int n_rec = 0; // set n to zero
-            int startIndex = Math.max(0, firstMotorizedIndex - n_rec);
-            for (int i = startIndex; i < trip.length(); i++) {
-                cleaned.put(trip.get(i));
+        } catch (Exception e) {
+            Log.e(TAG, "❌ Error during processing : ", e);
+            complete = false;
+        } finally {
+            // 3. short step on the writer thread: drop what was sent
+            if (!removals.isEmpty() || !handled.isEmpty() || !sent.isEmpty()) {
+                applyRemovals(context, removals, handled, sent);
             }
-            return cleaned;
+            syncInProgress = false;
         }
-        return new JSArray(); // if no automotive --> empty
+        return complete;
     }
 
-    private static double calculateDistance(double lat1, double lon1, double lat2, double lon2) {
-        double R = 6371e3; // Rayon de la Terre en mètres
-        double phi1 = Math.toRadians(lat1);
-        double phi2 = Math.toRadians(lat2);
-        double dPhi = Math.toRadians(lat2 - lat1);
-        double dLambda = Math.toRadians(lon2 - lon1);
-
-        double a = Math.sin(dPhi / 2) * Math.sin(dPhi / 2) +
-                   Math.cos(phi1) * Math.cos(phi2) *
-                   Math.sin(dLambda / 2) * Math.sin(dLambda / 2);
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-
-        return R * c;
+    /**
+     * Douglas-Peucker pass on the points of a significant trip before its encoding
+     * (startTracking simplifyToleranceMeters, off when 0). Context changes and distraction points are kept.
+     */
+    private static void simplifyTrip(Context context, TripBuffer points) {
+        float tolerance = TrackingStateStore.current(context).simplifyToleranceMeters;
+        if (tolerance <= 0) return;
+        TrajectorySimplifier.Result result = new TrajectorySimplifier(tolerance).simplify(points);
+        Log.d(TAG, "📉 Trip simplified (" + tolerance + " m): " + result);
+        UploadMetrics.get().onSimplified(result);
     }
 
+    private static synchronized ParallelUploader getUploader() {
+        if (uploader == null) uploader = new ParallelUploader(UPLOAD_PARALLELISM);
+        return uploader;
+    }
 
-    private static boolean isTripSignificant(JSArray trip) throws JSONException {
-        if (trip.length() < 5) return false;
+    /**
+     * No answer, timeout, rate limit or server error: worth a retry with backoff.
+     * Other errors (4xx) are kept in the outbox and tried again at the next sync,
+     * up to UploadOutbox.MAX_ATTEMPTS.
+     */
+    private static boolean isTransientFailure(int code) {
+        return code < 0 || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT || code == 429 || code >= 500;
+    }
 
-        double totalDistance = 0;
-        JSONObject lastLoc = null;
+    /**
+     * Token refused: not the trip's fault, the sync stops and the trips are not rejected
+     */
+    private static boolean isAuthFailure(int code) {
+        return code == HttpURLConnection.HTTP_UNAUTHORIZED || code == HttpURLConnection.HTTP_FORBIDDEN;
+    }
 
-        for (int i = 0; i < trip.length(); i++) {
-            JSONObject step = trip.getJSONObject(i);
-            if ("location".equals(step.optString("type"))) {
-                if (lastLoc != null) {
-                    totalDistance += calculateDistance(
-                        lastLoc.optDouble("lat"), lastLoc.optDouble("lng"),
-                        step.optDouble("lat"), step.optDouble("lng")
-                    );
-                }
-                lastLoc = step;
+    /**
+     * Single compaction for the whole sync: each segment touched by the sent trips is deleted
+     * or rewritten once (temp file + rename), whatever the number of trips
+     */
+    private static void applyRemovals(Context context, TrackSegmentStore.RemovalSet removals, List<TripSummary> handled,
+                                      List<UploadOutbox.Entry> sent) {
+        TrackAppendWriter w = getWriter(context);
+        w.runExclusive(() -> {
+            if (!removals.isEmpty()) {
+                TrackSegmentStore.PurgeResult result = w.getStore().removeRecords(removals);
+                Log.d(TAG, "🧹 Compaction of " + removals.size() + " ranges ended: " + result
+                    + " (" + result.bytesReclaimed + " bytes reclaimed)");
             }
-        }
+            for (TripSummary trip : handled) {
+                liveSegmenter.getSealedTrips().remove(trip);
+            }
+            // after the purge: a crash before sends the body again, with the same Idempotency-Key
+            for (UploadOutbox.Entry entry : sent) {
+                outbox.remove(entry);
+            }
+        });
+    }
 
-        long startTime = trip.getJSONObject(0).optLong("timestamp", 0);
-        long endTime = trip.getJSONObject(trip.length() - 1).optLong("timestamp", 0);
-        long durationSeconds = (endTime - startTime) / 1000;
+    private static boolean isTripSignificant(TripSummary trip) {
+        if (trip.pointCount < 5) return false;
 
-        double averageSpeedMS = durationSeconds > 0 ? (totalDistance / durationSeconds) : 0;
+        double totalDistance = trip.distance;
+        long durationSeconds = trip.getDuration() / 1000;
+        double averageSpeedMS = trip.getAverageSpeed();
 
         Log.d(TAG, "📊 Analyse trajet: " + (int)totalDistance + "m, " + durationSeconds + "s, Moy: " + String.format("%.2f", averageSpeedMS) + "m/s");
 
@@ -628,183 +906,61 @@ public class JsonStorageHelper {
     }
 
     /**
-     * Suppress point if not detected automotive 
+     *  HTTP POST of an outbox entry: its body file is streamed as is, with the trip id as
+     *  Idempotency-Key. Identity with a fixed length, gzip in chunks when opted in (uploadCompression).
+     *  A 415 to a gzip body is retried right away in identity, and identity is kept for that server.
+     *  The body format is the uploadCodec option (rows by default); a 415 to another format is
+     *  encoded again in rows from the points (still in the store) and retried, rows kept for that server.
+     *
+     *  @return HTTP status, -1 if the request failed
      */
-    private static JSArray trimPedestrianEnd(JSArray trip, double speedThreshold) throws JSONException {
-        int lastMotorizedIndex = -1;
-
-        // On remonte depuis la fin
-        for (int i = trip.length() - 1; i >= 0; i--) {
-            JSONObject step = trip.getJSONObject(i);
-            String activity = step.optString("activity", "");
-            double speed = step.optDouble("speed", 0.0);
-            String type = step.optString("type", "");
-
-            if ("automotive".equals(activity) || ("location".equals(type) && speed > speedThreshold)) {
-                lastMotorizedIndex = i;
-                break;
-            }
-        }
-
-        if (lastMotorizedIndex != -1) {
-            JSArray cleaned = new JSArray();
-            int endIndex = Math.min(trip.length(), lastMotorizedIndex + 2);
-            for (int i = 0; i < endIndex; i++) {
-                cleaned.put(trip.get(i));
-            }
-            return cleaned;
+    private static int uploadOutboxEntry(Context context, String urlStr, String token, UploadOutbox.Entry entry) {
+        TrackingStateStore.State state = TrackingStateStore.current(context);
+        boolean gzip = state.gzipUpload();
+        Log.i(TAG, "ℹ️ url: " + urlStr);
+        TripHttpSender.Response response = TripHttpSender.postWithIdentityFallback(
+            urlStr, token, entry, gzip, state.uploadCompressionLevel, JsonStorageHelper::onUploadRequest);
+        int code = response.code;
+
+        if (response.gzipRefused) {
+            Log.w(TAG, "⚠️ gzip body refused (415), identity from now on for this server");
+            UploadMetrics.get().onGzipRefused();
+            TrackingStateStore.get(context).update(b -> b.gzipRefusedUrl(urlStr));
+            gzip = false;
         }
-        return trip;
-    }
-
-    /**
-     *  HTTP POST for a trip
-     */
-   private static boolean uploadSingleTrip(String urlStr, String token, JSArray tripData) {
-        try {
-            // 1. Construction de la structure { "measures": [...] } avec JSONObject natif
-            JSONObject payload = new JSONObject();
-            JSONArray measuresArray = new JSONArray();
-
-            for (int i = 0; i < tripData.length(); i++) {
-                // Lecture depuis le JSArray de Capacitor
-                JSObject entry = JSObject.fromJSONObject(tripData.getJSONObject(i));
-                
-                if ("location".equalsIgnoreCase(entry.optString("type"))) {
-                    JSONObject point = new JSONObject();
-                    point.put("lat", entry.optDouble("lat"));
-                    point.put("lng", entry.optDouble("lng"));
-                    point.put("speed", entry.optDouble("speed"));
-                    point.put("timestamp", entry.optLong("timestamp"));
-
-                    // check if meteo exist and add
-                    if (entry.has("weather") && !entry.isNull("weather")) {
-                        JSONObject weatherData = entry.optJSONObject("weather");
-                        if (weatherData != null) {
-                            JSONObject weatherPoint = new JSONObject();
-                            weatherPoint.put("type", weatherData.optString("type"));
-                            weatherPoint.put("temp", weatherData.optDouble("temp"));
-                            
-                            point.put("weather", weatherPoint);
-                        }
-                    }
-
-                    // check if unlock exist and add
-                    boolean isPhoneUnlocked = false;
-                    if (entry.has("phoneUnlock")) {
-                        isPhoneUnlocked = entry.optBoolean("phoneUnlock");
-                        point.put("phoneUnlock", isPhoneUnlocked);
-                    }
-
-                    // get app info if exists
-                    JSONObject appUsed = null;
-
-                    if (entry.has("appUsed") && !entry.isNull("appUsed")) {
-                        appUsed = entry.optJSONObject("appUsed");
-                    }
-
-                    // send app only if phone unlocked
-                    if (isPhoneUnlocked) {
-                        if (appUsed != null) {
-                            JSONObject appUsedPoint = new JSONObject();
-                            appUsedPoint.put("type", appUsed.optString("name"));
-                            appUsedPoint.put("accuracy", appUsed.optDouble("accuracy"));
-                            
-                            point.put("appUsed", appUsedPoint);
-                        }
-
-                        boolean isDistraction = false;
-                            if (entry.has("distractionDetect")) {
-                                isDistraction = entry.optBoolean("distractionDetect");
-                                point.put("distractionDetect", isDistraction);
-                            }
-                    } else {
-                        Log.d(TAG, "📱 phone locked : injection of usedApp ignored.");
-                    }
-
-                    Log.d(TAG, "📍 Point ajouté à measuresArray : " + point.toString());
-
-                    measuresArray.put(point);
-                }
-            }
-
-            if (measuresArray.length() == 0) {
-                Log.d(TAG, "ℹ️ No GPS measures found in trip segment, skipping upload.");
-                return true; 
-            }
-
-            payload.put("measures", measuresArray);
-            String jsonOutput = payload.toString();
-
-            // Log de débogage avec limite de taille
-            if (jsonOutput.length() > 500) {
-                String preview = jsonOutput.substring(0, 250) + " ... [TRUNCATED] ... " + jsonOutput.substring(jsonOutput.length() - 100);
-                Log.i(TAG, "📤 JSON Payload (Large - " + jsonOutput.length() + " chars): " + preview);
-            } else {
-                Log.i(TAG, "📤 JSON Payload: " + jsonOutput);
-            }
-
-            // 2. Configuration de la connexion
-            URL url = new URL(urlStr);
-            Log.i(TAG, "ℹ️ url: " + urlStr);
-            
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            // Ajout explicite du charset dans le header
-            conn.setRequestProperty("Content-Type", "application/json; charset=utf-8");
-            conn.setRequestProperty("Authorization", "Bearer " + token);
-            conn.setRequestProperty("Accept", "application/json");
-            conn.setDoOutput(true);
-            conn.setConnectTimeout(15000);
-            conn.setReadTimeout(15000);
-
-            // 3. Envoi du JSON
-            try (OutputStream os = conn.getOutputStream()) {
-                byte[] input = jsonOutput.getBytes("utf-8");
-                os.write(input, 0, input.length);
-                os.flush(); // On force l'envoi
-            }
-
-            // 4. Analyse de la réponse
-            int code = conn.getResponseCode();
-            Log.d(TAG, "📡 Upload Response Code: " + code);
-
-            if (code >= 400) {
-                InputStream es = conn.getErrorStream();
-                if (es != null) {
-                    try (Scanner s = new Scanner(es).useDelimiter("\\A")) {
-                        String errorResponseBody = s.hasNext() ? s.next() : "";
-                        Log.e(TAG, "❌ Server Error Message: " + errorResponseBody);
-                    }
-                }
+        if (!TripPayloadCodec.ROWS.equals(entry.codec) && code == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            Log.w(TAG, "⚠️ " + entry.codec + " body refused (415), rows from now on for this server");
+            UploadMetrics.get().onCodecRefused();
+            TrackingStateStore.get(context).update(b -> b.codecRefusedUrl(urlStr));
+            try (TrackSegmentStore.Snapshot store = snapshotStore(context)) {
+                TripBuffer points = loadTripPoints(store, entry.trip);
+                if (points.isEmpty()) return code;
+                simplifyTrip(context, points);
+                outbox.encode(entry, points, new RowJsonPayloadCodec());
+            } catch (IOException e) {
+                Log.e(TAG, "❌ Trip not encoded in rows: " + e.getMessage());
+                return code;
             }
-            
-            return (code >= 200 && code <= 299);
-            
-        } catch (Exception e) {
-            Log.e(TAG, "❌ Upload failed", e);
-            return false;
+            code = TripHttpSender.postWithIdentityFallback(
+                urlStr, token, entry, gzip, state.uploadCompressionLevel, JsonStorageHelper::onUploadRequest).code;
         }
+        return code;
     }
 
     /**
-     * rewrite file keeping remaining data
+     * Log and metrics of each upload request
      */
-    private static void rewriteFileWithRemainingData(Context context, JSArray dataToKeep) {
-        File file = new File(getSafeFilesDir(context), FILE_NAME);
-        // Utilisation du mode écrasement (false)
-        try (FileOutputStream fos = new FileOutputStream(file, false);
-             BufferedOutputStream bos = new BufferedOutputStream(fos)) {
-            
-            for (int i = 0; i < dataToKeep.length(); i++) {
-                String line = dataToKeep.getJSONObject(i).toString() + "\n";
-                bos.write(line.getBytes(StandardCharsets.UTF_8));
-            }
-            bos.flush();
-            Log.d(TAG, "💾 File updated: " + dataToKeep.length() + " entries kept.");
-        } catch (Exception e) {
-            Log.e(TAG, "❌ Critical rewrite error: " + e.getMessage());
+    private static void onUploadRequest(UploadOutbox.Entry entry, boolean gzip, TripHttpSender.Response response) {
+        String encoding = gzip ? "gzip" : "identity";
+        if (response.failure != null) {
+            Log.e(TAG, "❌ Upload failed", response.failure);
+        } else {
+            Log.i(TAG, "📤 JSON Payload: " + entry.measures + " measures, " + response.payloadBytes + " bytes, "
+                + response.wireBytes + " sent (" + entry.codec + ", " + encoding + ")");
+            Log.d(TAG, "📡 Upload Response Code: " + response.code);
+            if (response.errorBody != null) Log.e(TAG, "❌ Server Error Message: " + response.errorBody);
         }
+        UploadMetrics.get().onRequest(entry.codec, encoding, response.payloadBytes, response.wireBytes, response.code);
     }
 
     //
@@ -0,0 +1,16 @@
+package fr.lelab.activity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * gzip stream with a deflate level, 1 (fastest) to 9 (smallest)
+ */
+public class LevelGzipOutputStream extends GZIPOutputStream {
+
+    public LevelGzipOutputStream(OutputStream out, int level) throws IOException {
+        super(out, 8192);
+        def.setLevel(Math.max(1, Math.min(9, level)));
+    }
+}
@@ -0,0 +1,372 @@
+package fr.lelab.activity;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * Runs the TripSegmenter at ingest time, on the track writer thread, on every committed group.
+ * Ended trips are sealed in the SealedTripStore, ready for upload without rescanning the history.
+ *
+ * The segmenter state and the store position it reached are checkpointed (trip_segmenter.json)
+ * on every trip state change and at most every CHECKPOINT_INTERVAL_MS, so after a process death
+ * only the records appended after the checkpoint are replayed (recover()).
+ *
+ * A copy of the open trip summary is kept after each group for getCurrentTrip() (any thread),
+ * and given to the stats listener on trip state changes and at most every STATS_INTERVAL_MS.
+ *
+ * Records are committed in arrival order, not in time order: locations carry the fix time and
+ * come in batches after the activity records stamped at receipt. They are held back and given to
+ * the segmenter by timestamp once a record REORDER_WINDOW_MS newer has been committed (all of them
+ * when the trip is closed), so the EXIT deadline and the trip bounds compare times of the same
+ * sequence, and the sealed summary counts the points the upload reads in [start, end].
+ * Held records are saved in the checkpoint. A location older than what the segmenter already
+ * received is left out of the summary (counted in getLateRecords()); other late records are
+ * still given to it. The open trip stats lag behind by the window.
+ */
+public class LiveTripSegmenter implements TrackAppendWriter.CommitListener {
+
+    public static final String CHECKPOINT_FILE = "trip_segmenter.json";
+    private static final int CHECKPOINT_VERSION = 1;
+    private static final long CHECKPOINT_INTERVAL_MS = 60 * 1000;
+    private static final long STATS_INTERVAL_MS = 10 * 1000;
+    public static final long REORDER_WINDOW_MS = 30 * 1000;
+
+    public interface StatsListener {
+        /**
+         * @param trip copy of the open trip, null when no trip is open anymore
+         */
+        void onTripStats(TripSummary trip);
+    }
+
+    private final TrackSegmentStore store;
+    private final SealedTripStore sealedTrips;
+    private final File checkpointFile;
+    private final TrackSegmentStore.ErrorListener errorListener;
+    private final TripSegmenter segmenter = new TripSegmenter(this::seal);
+    private volatile TripSegmenter.TripListener sealListener = null;
+    private volatile StatsListener statsListener = null;
+    private volatile TripSummary currentTrip = null;
+    // time of the checkpoint / stats intervals and of sealedAt (replay clock in DriveReplay)
+    private LongSupplier clock = System::currentTimeMillis;
+    private long lastStatsAt = 0;
+
+    // store position of the last record given to the segmenter
+    private long segmentId = 0;
+    private int segmentUid = 0;
+    private long offset = 0;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    private long lastCheckpointAt = 0;
+    private boolean dirty = false;
+
+    // committed records not given to the segmenter yet, by timestamp (arrival order on ties)
+    private final List<TrackRecord> pending = new ArrayList<>();
+    private long newestTimestamp = Long.MIN_VALUE;
+    // timestamp of the last record given to the segmenter
+    private long acceptedUntil = Long.MIN_VALUE;
+    private long lateRecords = 0;
+
+    public LiveTripSegmenter(TrackSegmentStore store, SealedTripStore sealedTrips, File checkpointFile,
+                             TrackSegmentStore.ErrorListener errorListener) {
+        this.store = store;
+        this.sealedTrips = sealedTrips;
+        this.checkpointFile = checkpointFile;
+        this.errorListener = errorListener;
+    }
+
+    public SealedTripStore getSealedTrips() {
+        return sealedTrips;
+    }
+
+    /**
+     * Called on the writer thread after each trip is sealed (upload scheduling)
+     */
+    public void setSealListener(TripSegmenter.TripListener listener) {
+        this.sealListener = listener;
+    }
+
+    /**
+     * Called on the writer thread with the open trip stats (low rate)
+     */
+    public void setStatsListener(StatsListener listener) {
+        this.statsListener = listener;
+    }
+
+    /**
+     * Clock of the checkpoint and stats intervals (set before start, e.g. VirtualClock of a replay)
+     */
+    public void setClock(LongSupplier clock) {
+        this.clock = clock;
+    }
+
+    public boolean isTracking() {
+        return segmenter.isTracking();
+    }
+
+    /**
+     * Open trip as of the last committed group, null if none
+     */
+    public TripSummary getCurrentTrip() {
+        return currentTrip;
+    }
+
+    /**
+     * Locations committed after the reorder window that are not in their trip summary
+     */
+    public long getLateRecords() {
+        return lateRecords;
+    }
+
+    /**
+     * Restore the checkpoint and replay what was committed after it.
+     * Without checkpoint (first start) the whole store is replayed once.
+     * Must run on the writer thread before the first commit.
+     */
+    public void recover() {
+        boolean restored = false;
+        if (checkpointFile.exists()) {
+            try {
+                JSONObject checkpoint = new JSONObject(SealedTripStore.readFile(checkpointFile));
+                if (checkpoint.optInt("version") == CHECKPOINT_VERSION) {
+                    segmenter.restoreState(checkpoint.getJSONObject("state"));
+                    segmentId = checkpoint.optLong("segmentId", 0);
+                    segmentUid = checkpoint.optInt("segmentUid", 0);
+                    offset = checkpoint.optLong("offset", 0);
+                    lastTimestamp = checkpoint.optLong("lastTimestamp", Long.MIN_VALUE);
+                    restorePending(checkpoint);
+                    restored = true;
+                }
+            } catch (IOException | JSONException e) {
+                report("checkpoint not readable, history replayed", e);
+            }
+        }
+
+        int[] replayed = { 0 };
+        try {
+            TrackSegmentStore.RecordVisitor replay = record -> {
+                offer(record);
+                lastTimestamp = Math.max(lastTimestamp, record.timestamp);
+                replayed[0]++;
+            };
+            if (restored) {
+                store.forEachRecordAfter(segmentId, segmentUid, offset, lastTimestamp, replay);
+            } else {
+                segmenter.reset();
+                clearPending();
+                store.forEachRecord(replay);
+            }
+        } catch (IOException e) {
+            report("replay failed", e);
+        }
+
+        if (!restored || replayed[0] > 0) {
+            // exact offset unknown here: next replay of the last segment goes by timestamp
+            List<TrackSegmentStore.Segment> segments = store.segments();
+            segmentId = segments.isEmpty() ? 0 : segments.get(segments.size() - 1).id;
+            segmentUid = 0;
+            offset = 0;
+            checkpoint();
+        }
+        updateStats(true);
+    }
+
+    @Override
+    public void onCommitted(List<TrackRecord> records, TrackSegmentStore.Segment segment, long endOffset) {
+        boolean changed = false;
+        for (TrackRecord record : records) {
+            changed |= offer(record);
+            lastTimestamp = Math.max(lastTimestamp, record.timestamp);
+        }
+        segmentId = segment.id;
+        segmentUid = segment.uid;
+        offset = endOffset;
+        dirty = true;
+
+        if (changed || clock.getAsLong() - lastCheckpointAt >= CHECKPOINT_INTERVAL_MS) {
+            checkpoint();
+        }
+        updateStats(changed);
+    }
+
+    @Override
+    public void onTripClosed() {
+        // driving stopped for good: nothing older can come, and a pending EXIT cannot be cancelled anymore
+        boolean changed = release(Long.MAX_VALUE);
+        boolean ended = segmenter.finish() || changed;
+        if (ended || dirty) {
+            checkpoint();
+        }
+        updateStats(ended);
+    }
+
+    /**
+     * Forget the current trip and every sealed trip (store cleared)
+     */
+    public void reset() {
+        segmenter.reset();
+        clearPending();
+        sealedTrips.clear();
+        segmentId = 0;
+        segmentUid = 0;
+        offset = 0;
+        lastTimestamp = Long.MIN_VALUE;
+        checkpoint();
+        updateStats(true);
+    }
+
+    /**
+     * Hold a committed record, and give the segmenter those out of the reorder window
+     * @return true if the trip state changed
+     */
+    private boolean offer(TrackRecord record) {
+        if (record.timestamp < acceptedUntil) {
+            // came after the window: the trip summary has gone past it
+            if (record.isLocation()) {
+                lateRecords++;
+                return false;
+            }
+            return segmenter.accept(record);
+        }
+
+        // after the records with the same timestamp (context records come before their point)
+        int i = pending.size();
+        while (i > 0 && pending.get(i - 1).timestamp > record.timestamp) i--;
+        pending.add(i, record);
+        newestTimestamp = Math.max(newestTimestamp, record.timestamp);
+        return release(newestTimestamp - REORDER_WINDOW_MS);
+    }
+
+    /**
+     * Give the segmenter the held records with timestamp <= upTo, in order
+     */
+    private boolean release(long upTo) {
+        boolean changed = false;
+        int n = 0;
+        while (n < pending.size() && pending.get(n).timestamp <= upTo) {
+            TrackRecord record = pending.get(n++);
+            changed |= segmenter.accept(record);
+            acceptedUntil = record.timestamp;
+        }
+        pending.subList(0, n).clear();
+        return changed;
+    }
+
+    private void clearPending() {
+        pending.clear();
+        newestTimestamp = Long.MIN_VALUE;
+        acceptedUntil = Long.MIN_VALUE;
+    }
+
+    private void updateStats(boolean changed) {
+        TripSummary trip = segmenter.currentTrip();
+        boolean wasOpen = currentTrip != null;
+        currentTrip = trip;
+
+        StatsListener listener = statsListener;
+        if (listener == null || (trip == null && !wasOpen)) return;
+        long now = clock.getAsLong();
+        if (changed || now - lastStatsAt >= STATS_INTERVAL_MS) {
+            lastStatsAt = now;
+            listener.onTripStats(trip);
+        }
+    }
+
+    private void seal(TripSummary trip) {
+        trip.sealedAt = clock.getAsLong();
+        try {
+            sealedTrips.save(trip);
+        } catch (IOException e) {
+            report("trip " + trip.tripId + " not sealed", e);
+            return;
+        }
+        TripSegmenter.TripListener listener = sealListener;
+        if (listener != null) listener.onTrip(trip);
+    }
+
+    private void checkpoint() {
+        try {
+            JSONObject checkpoint = new JSONObject();
+            checkpoint.put("version", CHECKPOINT_VERSION);
+            checkpoint.put("state", segmenter.saveState());
+            checkpoint.put("segmentId", segmentId);
+            checkpoint.put("segmentUid", segmentUid);
+            checkpoint.put("offset", offset);
+            checkpoint.put("lastTimestamp", lastTimestamp);
+            checkpoint.put("acceptedUntil", acceptedUntil);
+            JSONArray held = new JSONArray();
+            for (TrackRecord record : pending) held.put(recordToJSON(record));
+            checkpoint.put("pending", held);
+            SealedTripStore.writeAtomically(checkpointFile, checkpoint.toString());
+            lastCheckpointAt = clock.getAsLong();
+            dirty = false;
+        } catch (IOException | JSONException e) {
+            report("checkpoint failed", e);
+        }
+    }
+
+    private void restorePending(JSONObject checkpoint) throws JSONException {
+        clearPending();
+        acceptedUntil = checkpoint.optLong("acceptedUntil", Long.MIN_VALUE);
+        JSONArray held = checkpoint.optJSONArray("pending");
+        if (held == null) return;
+        for (int i = 0; i < held.length(); i++) {
+            TrackRecord record = recordFromJSON(held.getJSONObject(i));
+            pending.add(record);
+            newestTimestamp = Math.max(newestTimestamp, record.timestamp);
+        }
+    }
+
+    // held record in the checkpoint (a few dozen at most)
+    private static JSONObject recordToJSON(TrackRecord r) throws JSONException {
+        JSONObject obj = new JSONObject();
+        obj.put("type", r.type);
+        obj.put("timestamp", r.timestamp);
+        if (r.isLocation()) {
+            obj.put("lat", r.lat);
+            obj.put("lng", r.lng);
+            obj.put("speed", r.speed);
+        } else if (r.isActivity()) {
+            obj.put("activity", r.activity);
+            obj.put("transition", r.transition);
+        } else {
+            obj.put("contextKind", r.contextKind);
+        }
+        if (r.weatherType != null) {
+            obj.put("weatherType", r.weatherType);
+            obj.put("weatherTemp", r.weatherTemp);
+        }
+        if (r.appName != null) obj.put("appName", r.appName);
+        if (r.phoneUnlock) obj.put("phoneUnlock", true);
+        if (r.distraction != null) obj.put("distraction", r.distraction.booleanValue());
+        return obj;
+    }
+
+    private static TrackRecord recordFromJSON(JSONObject obj) throws JSONException {
+        TrackRecord r = new TrackRecord();
+        r.type = (byte) obj.getInt("type");
+        r.timestamp = obj.getLong("timestamp");
+        r.lat = obj.optDouble("lat", 0);
+        r.lng = obj.optDouble("lng", 0);
+        r.speed = obj.optDouble("speed", 0);
+        r.activity = obj.optString("activity", null);
+        r.transition = obj.optString("transition", null);
+        r.contextKind = (byte) obj.optInt("contextKind", 0);
+        r.weatherType = obj.optString("weatherType", null);
+        r.weatherTemp = obj.optDouble("weatherTemp", 0);
+        r.appName = obj.optString("appName", null);
+        r.phoneUnlock = obj.optBoolean("phoneUnlock", false);
+        if (obj.has("distraction")) r.distraction = obj.getBoolean("distraction");
+        return r;
+    }
+
+    private void report(String message, Exception e) {
+        if (errorListener != null) errorListener.onError("trip segmenter: " + message, e);
+    }
+}
@@ -0,0 +1,187 @@
+package fr.lelab.activity;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+import com.getcapacitor.JSObject;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Moves the work of LocationReceiver off the main thread.
+ *
+ * onReceive only captures the fixes and the current context (weather, app, distraction) into a
+ * Batch and offers it to a bounded queue; a single consumer thread saves the points, notifies the
+ * plugin and finishes the broadcast (goAsync). When the queue is full the batch is dropped and
+ * counted instead of blocking the main thread.
+ */
+public class LocationIngestPipeline {
+
+    private static final String TAG = "LocationIngest";
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 64;
+
+    /**
+     * Fixes of one delivery, with the context at reception time
+     */
+    public static class Batch {
+        final Context context;
+        final List<Location> locations;
+        final JSObject weather;
+        final JSObject appUsed;
+        final boolean distraction;
+        final BroadcastReceiver.PendingResult pendingResult;
+        final long receivedAt = System.nanoTime();
+
+        public Batch(Context context, List<Location> locations, JSObject weather, JSObject appUsed,
+                     boolean distraction, BroadcastReceiver.PendingResult pendingResult) {
+            this.context = context;
+            this.locations = locations;
+            this.weather = weather;
+            this.appUsed = appUsed;
+            this.distraction = distraction;
+            this.pendingResult = pendingResult;
+        }
+    }
+
+    private static LocationIngestPipeline instance = null;
+
+    private final BlockingQueue<Batch> queue;
+    private final int capacity;
+    private Thread consumer;
+
+    // stats
+    private final AtomicLong receivedBatches = new AtomicLong();
+    private final AtomicLong receivedFixes = new AtomicLong();
+    private final AtomicLong droppedBatches = new AtomicLong();
+    private final AtomicLong droppedFixes = new AtomicLong();
+    private final AtomicLong inaccurateFixes = new AtomicLong();
+    private final AtomicLong savedFixes = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private volatile long lastLatencyMs = 0;
+    private volatile long maxLatencyMs = 0;
+
+    public static synchronized LocationIngestPipeline get() {
+        if (instance == null) {
+            instance = new LocationIngestPipeline(DEFAULT_QUEUE_CAPACITY);
+        }
+        return instance;
+    }
+
+    LocationIngestPipeline(int capacity) {
+        this.capacity = capacity;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+    }
+
+    /**
+     * Never blocks: false if the queue is full (batch dropped, its broadcast finished right away)
+     */
+    public boolean offer(Batch batch) {
+        start();
+        receivedBatches.incrementAndGet();
+        receivedFixes.addAndGet(batch.locations.size());
+
+        if (!queue.offer(batch)) {
+            droppedBatches.incrementAndGet();
+            droppedFixes.addAndGet(batch.locations.size());
+            finish(batch);
+            Log.w(TAG, "⚠️ Ingest queue full, " + batch.locations.size() + " GPS points dropped");
+            return false;
+        }
+
+        int depth = queue.size();
+        int max;
+        while (depth > (max = maxQueueDepth.get()) && !maxQueueDepth.compareAndSet(max, depth)) {
+            // retry
+        }
+        return true;
+    }
+
+    private synchronized void start() {
+        if (consumer != null) return;
+        consumer = new Thread(this::run, "location-ingest");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    private void run() {
+        while (true) {
+            Batch batch;
+            try {
+                batch = queue.take();
+            } catch (InterruptedException e) {
+                // never interrupted on purpose: keep consuming
+                continue;
+            }
+            try {
+                process(batch);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "❌ GPS batch processing failed", e);
+            } finally {
+                finish(batch);
+            }
+        }
+    }
+
+    private void process(Batch batch) {
+        int saved = 0;
+        for (Location location : batch.locations) {
+            if (location.getAccuracy() > TrackingPolicy.MAX_ACCURACY_METERS) {
+                inaccurateFixes.incrementAndGet();
+                continue;
+            }
+
+            // if weather === null, saveLocation or appUsed manage properly
+            boolean appended = JsonStorageHelper.saveLocation(
+                batch.context,
+                location.getLatitude(),
+                location.getLongitude(),
+                location.getSpeed(),
+                location.getTime(),
+                batch.weather,
+                batch.appUsed,
+                batch.distraction
+            );
+
+            // Notify plugin (UI Interface)
+            JSObject data = JsonStorageHelper.locationToJSObject(location);
+            ActivityRecognitionPlugin.onLocationEvent(data);
+            if (appended) saved++;
+        }
+        savedFixes.addAndGet(saved);
+
+        long latency = (System.nanoTime() - batch.receivedAt) / 1_000_000;
+        lastLatencyMs = latency;
+        if (latency > maxLatencyMs) maxLatencyMs = latency;
+
+        Log.d("Position", "📍 " + saved + "/" + batch.locations.size() + " GPS points saved"
+            + (batch.weather != null ? " (with weather)" : ""));
+    }
+
+    private static void finish(Batch batch) {
+        if (batch.pendingResult != null) batch.pendingResult.finish();
+    }
+
+    // --- stats ---
+
+    public JSObject getStats() {
+        JSObject stats = new JSObject();
+        stats.put("queueDepth", queue.size());
+        stats.put("queueCapacity", capacity);
+        stats.put("maxQueueDepth", maxQueueDepth.get());
+        stats.put("receivedBatches", receivedBatches.get());
+        stats.put("receivedFixes", receivedFixes.get());
+        stats.put("savedFixes", savedFixes.get());
+        stats.put("inaccurateFixes", inaccurateFixes.get());
+        stats.put("droppedBatches", droppedBatches.get());
+        stats.put("droppedFixes", droppedFixes.get());
+        stats.put("lastLatencyMs", lastLatencyMs);
+        stats.put("maxLatencyMs", maxLatencyMs);
+        return stats;
+    }
+}
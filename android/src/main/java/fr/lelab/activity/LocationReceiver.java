@@ -3,9 +3,7 @@ package fr.lelab.activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.location.Location;
 import android.os.Build;
-import android.util.Log;
 import com.getcapacitor.JSObject;
 import com.google.android.gms.location.LocationResult;
 
@@ -18,8 +16,8 @@ public class LocationReceiver extends BroadcastReceiver {
         if (locationResult == null) return;
 
         // --- Protected Access (Direct Boot) ---
-        Context safeContext = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) 
-            ? context.createDeviceProtectedStorageContext() 
+        Context safeContext = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            ? context.createDeviceProtectedStorageContext()
             : context;
 
         // retrieve last weather object
@@ -30,32 +28,14 @@ public class LocationReceiver extends BroadcastReceiver {
 
         boolean isDistractionActive = DistractionEventEmitter.getCurrentlyDistracted();
 
-        for (Location location : locationResult.getLocations()) {
-
-            // keep only point with accuracy less than 20m
-            if (location.getAccuracy() > 20) {
-                continue; 
-            }
-
-            
-            // call saveLocation once. 
-            // if currentWeather === null, saveLocation or appForegroundData manage properly
-            JsonStorageHelper.saveLocation(
-                safeContext, 
-                location.getLatitude(), 
-                location.getLongitude(), 
-                location.getSpeed(),
-                location.getTime(),
-                currentWeather,
-                appForegroundData,
-                isDistractionActive
-            );
-
-            // 2. Notify plugin (UI Interface)
-            JSObject data = JsonStorageHelper.locationToJSObject(location);
-            ActivityRecognitionPlugin.onLocationEvent(data);
-            
-            Log.d("Position", "📍 GPS Point saved : " + location.getLatitude() + "," + location.getLongitude() + (currentWeather != null ? " (with weather)" : ""));
-        }
+        // saving and UI notification run on the ingest thread, broadcast finished there
+        LocationIngestPipeline.get().offer(new LocationIngestPipeline.Batch(
+            safeContext,
+            locationResult.getLocations(),
+            currentWeather,
+            appForegroundData,
+            isDistractionActive,
+            goAsync()
+        ));
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,86 @@
+package fr.lelab.activity;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Small fixed pool sending trips with a bounded number of requests in flight.
+ *
+ * Items are taken from the iterator on the calling thread and results are handed back on it in
+ * the iterator order, whatever the completion order: the caller records acknowledgements and
+ * purge ranges as with a single sender, and nothing after a stop is acknowledged.
+ * The pool threads time out when idle.
+ */
+public class ParallelUploader {
+
+    public interface Upload<T> {
+        /**
+         * @return HTTP status, -1 on failure (pool thread)
+         */
+        int send(T item) throws Exception;
+    }
+
+    public interface Ack<T> {
+        /**
+         * Result of an item, in iterator order (calling thread)
+         *
+         * @return false to stop taking items (requests in flight still complete, their results are
+         *         not handed back: those items are sent again by a later run)
+         */
+        boolean onResult(T item, int status);
+    }
+
+    private final int parallelism;
+    private final ThreadPoolExecutor pool;
+
+    public ParallelUploader(int parallelism) {
+        this.parallelism = Math.max(1, parallelism);
+        AtomicInteger threadCount = new AtomicInteger();
+        pool = new ThreadPoolExecutor(this.parallelism, this.parallelism, 30, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), r -> {
+                Thread t = new Thread(r, "trip-upload-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Send every item (or until ack returns false), at most parallelism at a time
+     */
+    public <T> void run(Iterator<T> items, Upload<T> upload, Ack<T> ack) throws InterruptedException {
+        ArrayDeque<T> pendingItems = new ArrayDeque<>();
+        ArrayDeque<Future<Integer>> inFlight = new ArrayDeque<>();
+        boolean taking = true;
+
+        while (true) {
+            while (taking && inFlight.size() < parallelism && items.hasNext()) {
+                T item = items.next();
+                pendingItems.add(item);
+                inFlight.add(pool.submit(() -> upload.send(item)));
+            }
+            if (inFlight.isEmpty()) return;
+
+            // oldest first: results in order
+            T item = pendingItems.poll();
+            int status;
+            try {
+                status = inFlight.poll().get();
+            } catch (ExecutionException e) {
+                status = -1;
+            }
+            if (!taking) continue;
+            if (!ack.onResult(item, status)) taking = false;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+
+/**
+ * Drive replay target: what ActivityTransitionReceiver.handleTransition and the location ingest
+ * path do to the storage (JsonStorageHelper.saveActivity / saveLocation / onTripClosed, grace timer
+ * and accuracy filter of TrackingPolicy), with the same TrackContext, TrackAppendWriter and LiveTripSegmenter, on a store of its
+ * own in dir, deleted by close().
+ *
+ * Nothing is shared with the plugin: no upload is scheduled, the tracking state is not touched,
+ * and the receivers keep their wall clock. Used by replayDrives on the device and gradle replay.
+ */
+public class ReplayStoreTarget implements DriveReplay.Target {
+
+    private static final String GRACE_TIMER = "grace";
+
+    private final File dir;
+    private final TrackAppendWriter writer;
+    private final LiveTripSegmenter segmenter;
+    private final TrackContext writtenContext = new TrackContext();
+    private VirtualClock clock;
+
+    // TrackingStateStore flags: driving (GPS on) and recordingTrip (points saved)
+    private boolean driving = false;
+    private boolean recordingTrip = false;
+    private long inaccurateFixes = 0;
+    private long fixesWithGpsOff = 0;
+    private long droppedRecords = 0;
+
+    private String weatherType = null;
+    private double weatherTemp = -999.0;
+    private String appName = null;
+    private boolean unlocked = false;
+    private boolean distraction = false;
+
+    public ReplayStoreTarget(File dir, TrackSegmentStore.ErrorListener errorListener) {
+        this.dir = dir;
+        TrackSegmentStore store = new TrackSegmentStore(new File(dir, TrackSegmentStore.DIR_NAME), errorListener);
+        store.getDir().mkdirs();
+        writer = new TrackAppendWriter(store, TrackAppendWriter.Durability.FSYNC_ON_TRIP_CLOSE,
+            errorListener != null ? errorListener::onError : null);
+        segmenter = new LiveTripSegmenter(store,
+            new SealedTripStore(new File(dir, SealedTripStore.DIR_NAME)),
+            new File(dir, LiveTripSegmenter.CHECKPOINT_FILE),
+            errorListener);
+        writer.setCommitListener(segmenter);
+    }
+
+    @Override
+    public void onStart(VirtualClock clock) {
+        this.clock = clock;
+        segmenter.setClock(clock::time);
+        writer.start();
+        writer.submit(segmenter::recover);
+    }
+
+    @Override
+    public void onTransition(DriveGenerator.Event event) {
+        boolean automotive = "automotive".equals(event.activity);
+        boolean enter = "ENTER".equals(event.transition);
+
+        // saveActivity (saveOnlyAutomotive)
+        if (automotive) {
+            if (enter) {
+                recordingTrip = true;
+                writtenContext.reset();
+            }
+            if (!writer.append(TrackRecord.activity(event.activity, event.transition, clock.time()))) droppedRecords++;
+        }
+
+        // GPS management: EXIT, or another activity, starts the grace timer
+        if (automotive && enter) {
+            driving = true;
+            clock.cancel(GRACE_TIMER);
+        } else if ((automotive || enter) && driving) {
+            clock.schedule(GRACE_TIMER, clock.time() + TrackingPolicy.STOP_DELAY_MS, this::switchToIdleMode);
+        }
+    }
+
+    private void switchToIdleMode() {
+        driving = false;
+        writtenContext.reset();
+        writer.closeTrip();
+        recordingTrip = false;
+    }
+
+    @Override
+    public void onLocation(DriveGenerator.Event event) {
+        if (!driving && !recordingTrip) {
+            fixesWithGpsOff++;
+            return;
+        }
+        if (event.accuracy > TrackingPolicy.MAX_ACCURACY_METERS) {
+            inaccurateFixes++;
+            return;
+        }
+        if (!recordingTrip) return;
+
+        TrackRecord location = TrackRecord.location(event.lat, event.lng, event.speed, event.timestamp);
+        location.weatherType = weatherType;
+        location.weatherTemp = weatherTemp;
+        location.appName = appName;
+        location.phoneUnlock = unlocked;
+        location.distraction = distraction;
+        if (!writtenContext.append(writer, location)) droppedRecords++;
+    }
+
+    @Override
+    public void onWeather(DriveGenerator.Event event) {
+        weatherType = event.weatherType;
+        weatherTemp = event.weatherTemp;
+    }
+
+    @Override
+    public void onPhone(DriveGenerator.Event event) {
+        unlocked = event.unlocked;
+        appName = event.appName;
+        distraction = event.distraction;
+    }
+
+    @Override
+    public void finish() {
+        writer.closeTrip();
+        // stats are read once the last trip is sealed
+        writer.flush();
+    }
+
+    /**
+     * End the writer thread and delete the replay store (after reading the stats)
+     */
+    public void close() {
+        writer.stop();
+        delete(dir);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+    public SealedTripStore getSealedTrips() {
+        return segmenter.getSealedTrips();
+    }
+
+    public JSONObject getStats() throws JSONException {
+        SealedTripStore sealed = segmenter.getSealedTrips();
+        long[] starts = sealed.startTimes();
+        double distance = 0;
+        for (long start : starts) {
+            TripSummary trip = sealed.load(start);
+            if (trip != null) distance += trip.distance;
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("committedRecords", writer.getCommittedRecords());
+        stats.put("committedBytes", writer.getCommittedBytes());
+        stats.put("committedGroups", writer.getCommittedGroups());
+        stats.put("droppedRecords", droppedRecords);
+        stats.put("maxCommitLatencyMs", writer.getMaxCommitLatencyMs());
+        stats.put("inaccurateFixes", inaccurateFixes);
+        stats.put("fixesWithGpsOff", fixesWithGpsOff);
+        stats.put("lateRecords", segmenter.getLateRecords());
+        stats.put("sealedTrips", starts.length);
+        stats.put("distanceKm", Math.round(distance / 100) / 10.0);
+        return stats;
+    }
+}
@@ -0,0 +1,45 @@
+package fr.lelab.activity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Upload body of a trip, { "measures": [ ... ] }, written measure by measure from the TripBuffer:
+ * no JSONObject, String or byte[] of the whole payload, whatever the trip length.
+ * Default codec: the format the server has always received.
+ */
+public class RowJsonPayloadCodec implements TripPayloadCodec {
+
+    private static final byte[] HEAD = "{\"measures\":[".getBytes();
+    private static final byte[] TAIL = "]}".getBytes();
+
+    private final TrackJsonEncoder encoder = new TrackJsonEncoder();
+
+    @Override
+    public String name() {
+        return ROWS;
+    }
+
+    @Override
+    public String contentType() {
+        return "application/json; charset=utf-8";
+    }
+
+    @Override
+    public long writeTo(TripBuffer trip, OutputStream out) throws IOException {
+        long written = HEAD.length + TAIL.length;
+        out.write(HEAD);
+        for (int i = 0; i < trip.size(); i++) {
+            if (i > 0) {
+                out.write(',');
+                written++;
+            }
+            ByteBuffer measure = encoder.encodeMeasure(trip, i);
+            out.write(measure.array(), 0, measure.limit());
+            written += measure.limit();
+        }
+        out.write(TAIL);
+        return written;
+    }
+}
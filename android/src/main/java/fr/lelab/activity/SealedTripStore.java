@@ -0,0 +1,123 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Trips ended by the live segmenter, waiting for upload (sealed_trips/trip-<start>.json).
+ * A sealed trip only holds its summary; its points are read from the track store by time range.
+ * Files are named by start time, so a trip sealed again after a checkpoint replay overwrites itself.
+ */
+public class SealedTripStore {
+
+    public static final String DIR_NAME = "sealed_trips";
+
+    private static final String PREFIX = "trip-";
+    private static final String SUFFIX = ".json";
+
+    private final File dir;
+
+    public SealedTripStore(File dir) {
+        this.dir = dir;
+    }
+
+    public void save(TripSummary trip) throws IOException {
+        try {
+            writeAtomically(fileFor(trip), trip.toJSON().toString());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Start timestamps of the sealed trips, oldest first, read from the file names only:
+     * a sync loads the summaries one at a time with load()
+     */
+    public long[] startTimes() {
+        File[] files = dir.listFiles();
+        if (files == null) return new long[0];
+
+        long[] starts = new long[files.length];
+        int count = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) continue;
+            try {
+                long start = Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+                starts[count++] = start;
+            } catch (NumberFormatException e) {
+                // not a trip file
+            }
+        }
+        starts = Arrays.copyOf(starts, count);
+        Arrays.sort(starts);
+        return starts;
+    }
+
+    /**
+     * Summary of the trip sealed with this start, null if removed meanwhile or unreadable
+     */
+    public TripSummary load(long startTimestamp) {
+        File f = new File(dir, PREFIX + startTimestamp + SUFFIX);
+        if (!f.exists()) return null;
+        try {
+            return TripSummary.fromJSON(new JSONObject(readFile(f)));
+        } catch (IOException | JSONException e) {
+            return null;
+        }
+    }
+
+    public boolean remove(TripSummary trip) {
+        return fileFor(trip).delete();
+    }
+
+    public int clear() {
+        int deleted = 0;
+        File[] files = dir.listFiles();
+        if (files == null) return 0;
+        for (File f : files) {
+            if (f.getName().startsWith(PREFIX) && f.delete()) deleted++;
+        }
+        return deleted;
+    }
+
+    private File fileFor(TripSummary trip) {
+        return new File(dir, PREFIX + trip.startTimestamp + SUFFIX);
+    }
+
+    static void writeAtomically(File file, String content) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.exists() && !parent.mkdirs()) throw new IOException("Cannot create " + parent);
+
+        File temp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            fos.write(content.getBytes(StandardCharsets.UTF_8));
+            fos.getFD().sync();
+        }
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("Cannot rename " + temp.getName());
+        }
+    }
+
+    static String readFile(File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] bytes = new byte[(int) file.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) break;
+                read += n;
+            }
+            return new String(bytes, 0, read, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,526 @@
+package fr.lelab.activity;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-lived append writer for the track store.
+ *
+ * Receivers only enqueue records; a dedicated thread encodes them (TrackRecordCodec),
+ * keeps the active segment open and commits them in groups (by size, by age, or on trip end).
+ * The active segment is sealed on trip close or when it gets too long / too big
+ * (see TrackSegmentStore), and a new one is started with the next group.
+ * Maintenance operations (purge, clear...) are queued on the same thread so they
+ * are ordered with the appends and never race with an open channel.
+ */
+public class TrackAppendWriter {
+
+    /**
+     * What is done after a group has been written to the channel
+     */
+    public enum Durability {
+        FLUSH,                  // page cache only, the OS decides when to hit the flash
+        FDATASYNC_PER_GROUP,    // force(false) after every group
+        FSYNC_ON_TRIP_CLOSE;    // force(true) of each segment when it is sealed (trip close, roll)
+
+        public static Durability fromOption(String value, Durability defaultValue) {
+            if (value == null) return defaultValue;
+            switch (value) {
+                case "flush": return FLUSH;
+                case "fdatasync": return FDATASYNC_PER_GROUP;
+                case "fsyncOnTripClose": return FSYNC_ON_TRIP_CLOSE;
+                default: return defaultValue;
+            }
+        }
+
+        public String toOption() {
+            switch (this) {
+                case FLUSH: return "flush";
+                case FDATASYNC_PER_GROUP: return "fdatasync";
+                default: return "fsyncOnTripClose";
+            }
+        }
+    }
+
+    public interface ErrorListener {
+        void onWriteError(String message, Exception e);
+    }
+
+    /**
+     * Called on the writer thread, in commit order (e.g. live trip segmentation), once the group
+     * is as durable as the Durability mode makes it
+     */
+    public interface CommitListener {
+        /**
+         * @param records records of the group, in append order
+         * @param segment segment they were written to
+         * @param endOffset segment offset right after the group (next group starts there)
+         */
+        void onCommitted(List<TrackRecord> records, TrackSegmentStore.Segment segment, long endOffset);
+
+        /**
+         * Trip closed by the app (end of the grace period)
+         */
+        void onTripClosed();
+    }
+
+    public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+    public static final int DEFAULT_GROUP_RECORDS = 32;
+    public static final int DEFAULT_GROUP_BYTES = 16 * 1024;
+    public static final long DEFAULT_GROUP_AGE_MS = 10000;
+
+    // max time a producer waits for a free slot before the record is dropped
+    private static final long OFFER_TIMEOUT_MS = 50;
+
+    private final TrackSegmentStore store;
+    private final BlockingQueue<Object> queue;
+    private final int groupRecords;
+    private final int groupBytes;
+    private final long groupAgeMs;
+    private final ErrorListener errorListener;
+
+    private volatile Durability durability;
+    private volatile CommitListener commitListener;
+
+    private Thread thread;
+    private FileChannel channel;
+    private TrackSegmentStore.Segment active;
+    private TrackSegmentIndex activeIndex;
+    private long activeLength = 0;
+    private ByteBuffer group;
+    private final TrackRecordCodec.Encoder encoder = new TrackRecordCodec.Encoder();
+    private final List<TrackRecord> groupRecordList = new ArrayList<>();
+    private int groupCount = 0;
+    private long groupStartedAt = 0;
+    private long groupMinTimestamp;
+    private long groupMaxTimestamp;
+
+    // --- stats (written by the writer thread only) ---
+    private volatile long committedGroups = 0;
+    private volatile long committedRecords = 0;
+    private volatile long committedBytes = 0;
+    private volatile long failedRecords = 0;
+    private volatile long lastCommitNanos = 0;
+    private volatile long maxCommitNanos = 0;
+    private volatile long totalCommitNanos = 0;
+
+    // written by the producers
+    private final AtomicLong droppedRecords = new AtomicLong();
+
+    public TrackAppendWriter(TrackSegmentStore store, Durability durability, ErrorListener errorListener) {
+        this(store, durability, errorListener, DEFAULT_QUEUE_CAPACITY, DEFAULT_GROUP_RECORDS, DEFAULT_GROUP_BYTES, DEFAULT_GROUP_AGE_MS);
+    }
+
+    public TrackAppendWriter(TrackSegmentStore store, Durability durability, ErrorListener errorListener,
+                             int queueCapacity, int groupRecords, int groupBytes, long groupAgeMs) {
+        this.store = store;
+        this.durability = durability;
+        this.errorListener = errorListener;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.groupRecords = groupRecords;
+        this.groupBytes = groupBytes;
+        this.groupAgeMs = groupAgeMs;
+        this.group = ByteBuffer.allocate(groupBytes * 2);
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+        thread = new Thread(this::runLoop, "SmartPilot-TrackWriter");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public TrackSegmentStore getStore() {
+        return store;
+    }
+
+    public void setDurability(Durability durability) {
+        this.durability = durability;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public void setCommitListener(CommitListener listener) {
+        this.commitListener = listener;
+    }
+
+    /**
+     * Queue one record. Never blocks the caller more than OFFER_TIMEOUT_MS.
+     * @return false if the queue was full and the record dropped
+     */
+    public boolean append(TrackRecord record) {
+        try {
+            if (queue.offer(record, OFFER_TIMEOUT_MS, TimeUnit.MILLISECONDS)) return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        droppedRecords.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Wait until every record queued before this call is written to the file
+     */
+    public void flush() {
+        runExclusive(() -> { });
+    }
+
+    /**
+     * Commit pending records and seal the active segment (one segment per trip at most),
+     * with an fsync if the trip close durability is configured.
+     * Queued without waiting (called from the receivers' main thread): a caller that needs the
+     * trip sealed waits on the returned future, or queues its own runExclusive after it.
+     */
+    public Future<Void> closeTrip() {
+        return submit(() -> {
+            sealActive(durability == Durability.FSYNC_ON_TRIP_CLOSE);
+            CommitListener listener = commitListener;
+            if (listener != null) {
+                try {
+                    listener.onTripClosed();
+                } catch (RuntimeException e) {
+                    if (errorListener != null) errorListener.onWriteError("trip close listener failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Commit what is queued and end the writer thread (writers not shared with the plugin,
+     * e.g. the store of a drive replay)
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+        }
+        // already stopped: a flush would wait for a thread that is gone
+        if (t == null) return;
+        flush();
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (thread == t) thread = null;
+        }
+    }
+
+    /**
+     * Queue a task on the writer thread without waiting for it (e.g. migration at startup).
+     * Like runExclusive, it runs after the records queued before it are committed.
+     */
+    public Future<Void> submit(Runnable task) {
+        start();
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        try {
+            queue.put(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(false);
+        }
+        return future;
+    }
+
+    /**
+     * Run a task on the writer thread, after every record queued before it has been committed.
+     * The file channel is closed before the task so it may freely rewrite, rename or delete the file.
+     * @throws IllegalStateException if the caller is interrupted while waiting for the task
+     */
+    public void runExclusive(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            commitGroup();
+            closeChannel();
+            task.run();
+            return;
+        }
+
+        start();
+        FutureTask<Void> future = new FutureTask<>(task, null);
+        try {
+            queue.put(future);
+            future.get();
+        } catch (InterruptedException e) {
+            // the task may not have run (or still runs later): the caller must not go on as if it had
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for the track writer", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private void runLoop() {
+        while (true) {
+            Object next;
+            try {
+                if (groupCount == 0) {
+                    next = queue.take();
+                } else {
+                    long wait = groupAgeMs - (System.currentTimeMillis() - groupStartedAt);
+                    next = (wait > 0) ? queue.poll(wait, TimeUnit.MILLISECONDS) : null;
+                }
+            } catch (InterruptedException e) {
+                try {
+                    commitGroup();
+                } catch (RuntimeException failure) {
+                    dropGroup(failure);
+                }
+                closeChannel();
+                return;
+            }
+
+            // a failure must not end the thread: runExclusive callers would wait forever
+            try {
+                if (next == null) {
+                    // oldest pending record reached max age
+                    commitGroup();
+                } else if (next instanceof TrackRecord) {
+                    addToGroup((TrackRecord) next);
+                    if (groupCount >= groupRecords || group.position() >= groupBytes) {
+                        commitGroup();
+                    }
+                } else if (next instanceof FutureTask) {
+                    commitGroup();
+                    closeChannel();
+                    ((FutureTask<?>) next).run();
+                }
+            } catch (RuntimeException e) {
+                dropGroup(e);
+                // the group before the task was dropped, the task itself still runs
+                if (next instanceof FutureTask) ((FutureTask<?>) next).run();
+            }
+        }
+    }
+
+    /**
+     * Unexpected failure (bug) while handling an item: the pending group is dropped and
+     * the active segment is taken again from the file with the next group
+     */
+    private void dropGroup(RuntimeException e) {
+        failedRecords += groupCount;
+        group.clear();
+        groupRecordList.clear();
+        groupCount = 0;
+        closeChannel();
+        active = null;
+        activeIndex = null;
+        if (errorListener != null) errorListener.onWriteError("writer failure, pending group dropped", e);
+    }
+
+    private void addToGroup(TrackRecord record) {
+        int maxSize = TrackRecordCodec.maxEncodedSize(record);
+        if (group.remaining() < maxSize) {
+            if (groupCount > 0) commitGroup();
+            if (group.capacity() < maxSize) {
+                group = ByteBuffer.allocate(maxSize);
+            }
+        }
+        if (groupCount == 0) {
+            // every group starts with an absolute record
+            encoder.reset();
+            groupStartedAt = System.currentTimeMillis();
+            groupMinTimestamp = record.timestamp;
+            groupMaxTimestamp = record.timestamp;
+        }
+        groupMinTimestamp = Math.min(groupMinTimestamp, record.timestamp);
+        groupMaxTimestamp = Math.max(groupMaxTimestamp, record.timestamp);
+        encoder.encode(record, group);
+        groupRecordList.add(record);
+        groupCount++;
+    }
+
+    private void commitGroup() {
+        if (groupCount == 0) return;
+
+        long start = System.nanoTime();
+        int count = groupCount;
+        int bytes = group.position();
+        group.flip();
+        try {
+            FileChannel ch = openChannel();
+            if (store.shouldRoll(active, activeLength, groupMinTimestamp)
+                    || store.shouldRoll(active, activeLength, groupMaxTimestamp)) {
+                // closeTrip only forces the last segment: one rolled in the middle of the trip is forced now
+                sealActive(durability == Durability.FSYNC_ON_TRIP_CLOSE);
+                ch = openChannel();
+            }
+
+            long groupOffset = activeLength;
+            while (group.hasRemaining()) {
+                ch.write(group);
+            }
+            active.include(groupMinTimestamp);
+            active.include(groupMaxTimestamp);
+            active.recordCount += count;
+            TrackSegmentStore.writeHeader(ch, active);
+            activeLength = ch.position();
+            updateIndex(groupOffset, activeLength, count);
+            if (durability == Durability.FDATASYNC_PER_GROUP) {
+                ch.force(false);
+            }
+            // after the force: the checkpoint of the listener never runs ahead of the data on disk
+            notifyCommitted();
+            committedGroups++;
+            committedRecords += count;
+            committedBytes += bytes;
+        } catch (IOException e) {
+            failedRecords += count;
+            closeChannel();
+            if (errorListener != null) errorListener.onWriteError("group commit failed (" + count + " records lost)", e);
+        } catch (RuntimeException e) {
+            // reported by the writer loop
+            failedRecords += count;
+            throw e;
+        } finally {
+            group.clear();
+            groupRecordList.clear();
+            groupCount = 0;
+        }
+
+        long elapsed = System.nanoTime() - start;
+        lastCommitNanos = elapsed;
+        totalCommitNanos += elapsed;
+        if (elapsed > maxCommitNanos) maxCommitNanos = elapsed;
+    }
+
+    private void notifyCommitted() {
+        CommitListener listener = commitListener;
+        if (listener == null) return;
+        try {
+            listener.onCommitted(groupRecordList, active, activeLength);
+        } catch (RuntimeException e) {
+            if (errorListener != null) errorListener.onWriteError("commit listener failed", e);
+        }
+    }
+
+    /**
+     * Sparse index of the active segment, it is rebuilt from the segment if an update fails
+     */
+    private void updateIndex(long start, long end, int count) {
+        try {
+            activeIndex.addGroup(start, end, groupMinTimestamp, groupMaxTimestamp, count);
+        } catch (IOException e) {
+            TrackSegmentIndex.fileFor(active).delete();
+            if (errorListener != null) errorListener.onWriteError("index update failed", e);
+        }
+    }
+
+    /**
+     * Mark the active segment as sealed, the next group starts a new one
+     */
+    private void sealActive(boolean sync) {
+        try {
+            FileChannel ch = openChannel();
+            if (active.isEmpty()) return;
+            active.sealed = true;
+            TrackSegmentStore.writeHeader(ch, active);
+            if (sync) ch.force(true);
+            activeIndex.seal();
+        } catch (IOException e) {
+            if (errorListener != null) errorListener.onWriteError("segment seal failed", e);
+        } finally {
+            closeChannel();
+            if (active != null && active.sealed) {
+                active = null;
+                activeIndex = null;
+            }
+        }
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel != null && channel.isOpen()) return channel;
+
+        // a maintenance task may have rewritten or deleted the active segment since it was closed
+        if (active != null && (!active.file.exists() || active.file.length() != activeLength)) {
+            active = null;
+            activeIndex = null;
+        }
+
+        if (active == null) {
+            List<TrackSegmentStore.Segment> segments = store.segments();
+            TrackSegmentStore.Segment last = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+            if (last != null && !last.sealed) {
+                activeLength = store.recover(last);
+                active = last;
+            } else {
+                active = store.createSegment();
+                activeLength = TrackSegmentStore.HEADER_SIZE;
+            }
+            activeIndex = TrackSegmentIndex.openLive(active);
+        }
+
+        channel = new RandomAccessFile(active.file, "rw").getChannel();
+        channel.position(activeLength);
+        return channel;
+    }
+
+    private void closeChannel() {
+        if (channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // nothing to do, channel is dropped anyway
+        }
+        channel = null;
+    }
+
+    // --- stats ---
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public int getQueueCapacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public long getCommittedGroups() {
+        return committedGroups;
+    }
+
+    public long getCommittedRecords() {
+        return committedRecords;
+    }
+
+    public long getCommittedBytes() {
+        return committedBytes;
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public long getFailedRecords() {
+        return failedRecords;
+    }
+
+    public double getLastCommitLatencyMs() {
+        return lastCommitNanos / 1e6;
+    }
+
+    public double getMaxCommitLatencyMs() {
+        return maxCommitNanos / 1e6;
+    }
+
+    public double getAvgCommitLatencyMs() {
+        long groups = committedGroups;
+        return groups > 0 ? (totalCommitNanos / 1e6) / groups : 0;
+    }
+}
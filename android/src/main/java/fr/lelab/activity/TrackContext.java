@@ -0,0 +1,134 @@
+package fr.lelab.activity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Context of the GPS points: weather, foreground app, lock state and distraction.
+ *
+ * It is stored as context records (TrackRecord.TYPE_CONTEXT) written only when a value changes,
+ * instead of being copied into every location record. changesTo() gives the records to write
+ * before a point; apply() / applyTo() join them back onto the points when a payload is built.
+ */
+public class TrackContext {
+
+    private static final int WEATHER = 1;
+    private static final int APP = 1 << 1;
+    private static final int LOCK = 1 << 2;
+    private static final int DISTRACTION = 1 << 3;
+
+    private String weatherType;
+    private double weatherTemp;
+    private String appName;
+    private boolean phoneUnlock;
+    private Boolean distraction;
+
+    // values set (written or read) since the last reset
+    private int known = 0;
+
+    /**
+     * Forget the values: the next changesTo() writes the full context (trip start,
+     * so the context of a trip is always inside its time range)
+     */
+    public synchronized void reset() {
+        known = 0;
+    }
+
+    /**
+     * Context records for the values of point that differ from the last written ones.
+     * The records take the point timestamp and must be appended before it.
+     */
+    public synchronized List<TrackRecord> changesTo(TrackRecord point) {
+        List<TrackRecord> changes = new ArrayList<>(0);
+
+        if ((known & WEATHER) == 0 || !same(weatherType, point.weatherType)
+                || (point.weatherType != null && weatherTemp != point.weatherTemp)) {
+            TrackRecord r = TrackRecord.context(TrackRecord.CONTEXT_WEATHER, point.timestamp);
+            r.weatherType = point.weatherType;
+            r.weatherTemp = point.weatherTemp;
+            changes.add(r);
+        }
+        if ((known & APP) == 0 || !same(appName, point.appName)) {
+            TrackRecord r = TrackRecord.context(TrackRecord.CONTEXT_APP, point.timestamp);
+            r.appName = point.appName;
+            changes.add(r);
+        }
+        if ((known & LOCK) == 0 || phoneUnlock != point.phoneUnlock) {
+            TrackRecord r = TrackRecord.context(TrackRecord.CONTEXT_LOCK, point.timestamp);
+            r.phoneUnlock = point.phoneUnlock;
+            changes.add(r);
+        }
+        if ((known & DISTRACTION) == 0 || !same(distraction, point.distraction)) {
+            TrackRecord r = TrackRecord.context(TrackRecord.CONTEXT_DISTRACTION, point.timestamp);
+            r.distraction = point.distraction;
+            changes.add(r);
+        }
+
+        for (TrackRecord r : changes) apply(r);
+        return changes;
+    }
+
+    /**
+     * Queue a location with its context: the changed context records, then the point without
+     * its context fields (saveLocation path)
+     * @return false if the writer queue is full (point dropped, full context written next time)
+     */
+    public boolean append(TrackAppendWriter writer, TrackRecord location) {
+        for (TrackRecord change : changesTo(location)) {
+            if (!writer.append(change)) {
+                reset();
+                return false;
+            }
+        }
+        location.weatherType = null;
+        location.appName = null;
+        location.phoneUnlock = false;
+        location.distraction = null;
+        return writer.append(location);
+    }
+
+    /**
+     * Update the context with a context record
+     */
+    public synchronized void apply(TrackRecord record) {
+        switch (record.contextKind) {
+            case TrackRecord.CONTEXT_WEATHER:
+                weatherType = record.weatherType;
+                weatherTemp = record.weatherTemp;
+                known |= WEATHER;
+                break;
+            case TrackRecord.CONTEXT_APP:
+                appName = record.appName;
+                known |= APP;
+                break;
+            case TrackRecord.CONTEXT_LOCK:
+                phoneUnlock = record.phoneUnlock;
+                known |= LOCK;
+                break;
+            case TrackRecord.CONTEXT_DISTRACTION:
+                distraction = record.distraction;
+                known |= DISTRACTION;
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Set the known values on a location record (fields left as stored for the unknown ones,
+     * e.g. old records that embed their context)
+     */
+    public synchronized void applyTo(TrackRecord point) {
+        if ((known & WEATHER) != 0) {
+            point.weatherType = weatherType;
+            point.weatherTemp = weatherTemp;
+        }
+        if ((known & APP) != 0) point.appName = appName;
+        if ((known & LOCK) != 0) point.phoneUnlock = phoneUnlock;
+        if ((known & DISTRACTION) != 0) point.distraction = distraction;
+    }
+
+    private static boolean same(Object a, Object b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+}
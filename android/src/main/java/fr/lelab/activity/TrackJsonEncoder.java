@@ -0,0 +1,464 @@
+package fr.lelab.activity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Writes track records as JSON lines straight into a reusable ByteBuffer.
+ *
+ * The output is byte for byte the line of JsonStorageHelper.recordToJSObject(record).toString()
+ * + "\n" in UTF-8 (Android org.json: same key order, whole doubles printed as longs, '/' escaped),
+ * without the JSObject, the intermediate Strings and the byte[] of every record.
+ *
+ * Doubles with at most 7 decimals (lat/lng are stored as 1e-7 degrees, speed as cm/s, most
+ * temperatures) are printed by integer arithmetic; they are the shortest decimal that reads back
+ * as the same double, as Double.toString() prints. Other values fall back to Double.toString().
+ * Not thread safe: one encoder per writing thread.
+ */
+public final class TrackJsonEncoder {
+
+    private static final long DAY_MS = 24 * 60 * 60 * 1000L;
+    private static final int MAX_FAST_DECIMALS = 7;
+    private static final double[] POW10 = { 1, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7 };
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private static final byte[] TYPE_LOCATION = ascii("{\"type\":\"location\"");
+    private static final byte[] LAT = ascii(",\"lat\":");
+    private static final byte[] LNG = ascii(",\"lng\":");
+    private static final byte[] SPEED = ascii(",\"speed\":");
+    private static final byte[] TIMESTAMP = ascii(",\"timestamp\":");
+    private static final byte[] WEATHER = ascii(",\"weather\":{\"type\":");
+    private static final byte[] TEMP = ascii(",\"temp\":");
+    private static final byte[] APP_USED = ascii(",\"appUsed\":{\"usedApp\":{\"name\":");
+    private static final byte[] APP_USED_END = ascii(",\"accuracy\":1}}");
+    private static final byte[] PHONE_UNLOCK_TRUE = ascii(",\"phoneUnlock\":true");
+    private static final byte[] PHONE_UNLOCK = ascii(",\"phoneUnlock\":");
+    private static final byte[] DISTRACTION = ascii(",\"distractionDetect\":");
+    private static final byte[] TYPE_ACTIVITY = ascii("{\"type\":\"activity\"");
+    private static final byte[] ACTIVITY = ascii(",\"activity\":");
+    private static final byte[] TRANSITION = ascii(",\"transition\":");
+    private static final byte[] DATE = ascii(",\"date\":\"");
+    private static final byte[] TYPE_CONTEXT = ascii("{\"type\":\"context\",\"timestamp\":");
+    private static final byte[] CONTEXT_WEATHER = ascii(",\"context\":\"weather\"");
+    private static final byte[] CONTEXT_APP = ascii(",\"context\":\"appUsed\"");
+    private static final byte[] APP_NAME = ascii(",\"appName\":");
+    private static final byte[] CONTEXT_LOCK = ascii(",\"context\":\"phoneUnlock\"");
+    private static final byte[] CONTEXT_DISTRACTION = ascii(",\"context\":\"distractionDetect\"");
+    private static final byte[] MEASURE_LAT = ascii("{\"lat\":");
+    // the measures always sent an empty app type (see JsonStorageHelper.uploadSingleTrip)
+    private static final byte[] MEASURE_APP_USED = ascii(",\"appUsed\":{\"type\":\"\",\"accuracy\":1}");
+    private static final byte[] TRUE = ascii("true");
+    private static final byte[] FALSE = ascii("false");
+
+    private ByteBuffer buffer = ByteBuffer.allocate(512);
+
+    // "dd-MM-yyyy " of the last local day formatted (activity dates)
+    private final TimeZone timeZone;
+    private final Calendar calendar;
+    private final byte[] dayPrefix = new byte[11];
+    private long cachedDay = Long.MIN_VALUE;
+
+    public TrackJsonEncoder() {
+        this(TimeZone.getDefault());
+    }
+
+    public TrackJsonEncoder(TimeZone timeZone) {
+        this.timeZone = timeZone;
+        this.calendar = Calendar.getInstance(timeZone);
+    }
+
+    /**
+     * Encode one record as a JSON line ending with '\n'.
+     * @return the internal buffer, flipped (position 0, limit = line length), valid until the next call
+     */
+    public ByteBuffer encodeLine(TrackRecord r) {
+        buffer.clear();
+        ensureCapacity(maxLineSize(r));
+
+        if (r.isLocation()) {
+            writeLocation(r);
+        } else if (r.isContext()) {
+            writeContext(r);
+        } else {
+            writeActivity(r);
+        }
+        buffer.put((byte) '}');
+        buffer.put((byte) '\n');
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode the upload measure of point i of a trip, the object JsonStorageHelper used to build
+     * with a JSONObject (no separator, no newline).
+     * @return the internal buffer, flipped, valid until the next call
+     */
+    public ByteBuffer encodeMeasure(TripBuffer trip, int i) {
+        buffer.clear();
+        String weatherType = trip.weatherType(i);
+        ensureCapacity(512 + 6 * length(weatherType));
+
+        buffer.put(MEASURE_LAT);
+        writeDouble(trip.lat(i));
+        buffer.put(LNG);
+        writeDouble(trip.lng(i));
+        buffer.put(SPEED);
+        double speed = trip.speed(i);
+        writeDouble(Double.isNaN(speed) ? 0.0 : speed);
+        buffer.put(TIMESTAMP);
+        writeLong(trip.timestamp(i));
+
+        if (weatherType != null) {
+            buffer.put(WEATHER);
+            writeString(weatherType);
+            buffer.put(TEMP);
+            writeDouble(trip.weatherTemp(i));
+            buffer.put((byte) '}');
+        }
+        // app and distraction only sent while the phone is unlocked
+        if (trip.phoneUnlock(i)) {
+            buffer.put(PHONE_UNLOCK_TRUE);
+            if (trip.appName(i) != null) {
+                buffer.put(MEASURE_APP_USED);
+            }
+            if (trip.hasDistraction(i)) {
+                buffer.put(DISTRACTION);
+                buffer.put(trip.distraction(i) ? TRUE : FALSE);
+            }
+        }
+        buffer.put((byte) '}');
+        buffer.flip();
+        return buffer;
+    }
+
+    // --- single values (columnar payloads) ---
+
+    ByteBuffer encodeDouble(double v) {
+        buffer.clear();
+        writeDouble(v);
+        buffer.flip();
+        return buffer;
+    }
+
+    ByteBuffer encodeLong(long v) {
+        buffer.clear();
+        writeLong(v);
+        buffer.flip();
+        return buffer;
+    }
+
+    ByteBuffer encodeString(String v) {
+        buffer.clear();
+        ensureCapacity(8 + 6 * v.length());
+        writeString(v);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode one record and write the line to out
+     */
+    public void writeLine(TrackRecord r, OutputStream out) throws IOException {
+        ByteBuffer line = encodeLine(r);
+        out.write(line.array(), 0, line.limit());
+    }
+
+    private void writeLocation(TrackRecord r) {
+        buffer.put(TYPE_LOCATION);
+        // NaN / infinite values are dropped by JSObject.put
+        if (isFinite(r.lat)) {
+            buffer.put(LAT);
+            writeDouble(r.lat);
+        }
+        if (isFinite(r.lng)) {
+            buffer.put(LNG);
+            writeDouble(r.lng);
+        }
+        if (isFinite(r.speed)) {
+            buffer.put(SPEED);
+            writeDouble(r.speed);
+        }
+        buffer.put(TIMESTAMP);
+        writeLong(r.timestamp);
+
+        if (r.weatherType != null) {
+            buffer.put(WEATHER);
+            writeString(r.weatherType);
+            if (isFinite(r.weatherTemp)) {
+                buffer.put(TEMP);
+                writeDouble(r.weatherTemp);
+            }
+            buffer.put((byte) '}');
+        }
+        if (r.appName != null) {
+            buffer.put(APP_USED);
+            writeString(r.appName);
+            buffer.put(APP_USED_END);
+        }
+        if (r.phoneUnlock) {
+            buffer.put(PHONE_UNLOCK_TRUE);
+        }
+        if (r.distraction != null) {
+            buffer.put(DISTRACTION);
+            buffer.put(r.distraction ? TRUE : FALSE);
+        }
+    }
+
+    private void writeContext(TrackRecord r) {
+        buffer.put(TYPE_CONTEXT);
+        writeLong(r.timestamp);
+        switch (r.contextKind) {
+            case TrackRecord.CONTEXT_WEATHER:
+                buffer.put(CONTEXT_WEATHER);
+                if (r.weatherType != null) {
+                    buffer.put(WEATHER);
+                    writeString(r.weatherType);
+                    if (isFinite(r.weatherTemp)) {
+                        buffer.put(TEMP);
+                        writeDouble(r.weatherTemp);
+                    }
+                    buffer.put((byte) '}');
+                }
+                break;
+            case TrackRecord.CONTEXT_APP:
+                buffer.put(CONTEXT_APP);
+                if (r.appName != null) {
+                    buffer.put(APP_NAME);
+                    writeString(r.appName);
+                }
+                break;
+            case TrackRecord.CONTEXT_LOCK:
+                buffer.put(CONTEXT_LOCK);
+                buffer.put(PHONE_UNLOCK);
+                buffer.put(r.phoneUnlock ? TRUE : FALSE);
+                break;
+            default:
+                buffer.put(CONTEXT_DISTRACTION);
+                if (r.distraction != null) {
+                    buffer.put(DISTRACTION);
+                    buffer.put(r.distraction ? TRUE : FALSE);
+                }
+                break;
+        }
+    }
+
+    private void writeActivity(TrackRecord r) {
+        buffer.put(TYPE_ACTIVITY);
+        // a null value removes the key from a JSONObject
+        if (r.activity != null) {
+            buffer.put(ACTIVITY);
+            writeString(r.activity);
+        }
+        if (r.transition != null) {
+            buffer.put(TRANSITION);
+            writeString(r.transition);
+        }
+        buffer.put(DATE);
+        writeDate(r.timestamp);
+        buffer.put((byte) '"');
+        buffer.put(TIMESTAMP);
+        writeLong(r.timestamp);
+    }
+
+    // --- numbers ---
+
+    /**
+     * Same text as Android org.json for a double value
+     */
+    private void writeDouble(double v) {
+        long asLong = (long) v;
+        if (v == (double) asLong) {
+            if (asLong == 0 && Double.doubleToRawLongBits(v) != 0) {
+                // org.json prints negative zero as "-0"
+                buffer.put((byte) '-');
+            }
+            writeLong(asLong);
+            return;
+        }
+
+        double abs = Math.abs(v);
+        if (abs >= 1e-3 && abs < 1e7) {
+            // below 1e7 two 7-decimal values never read back as the same double, so the
+            // shortest decimal is this one without its trailing zeros (E7 lat/lng, cm/s speed)
+            long scaled = Math.round(v * POW10[MAX_FAST_DECIMALS]);
+            if (scaled / POW10[MAX_FAST_DECIMALS] == v) {
+                int decimals = MAX_FAST_DECIMALS;
+                while (scaled % 10 == 0) {
+                    scaled /= 10;
+                    decimals--;
+                }
+                writeFixed(scaled, decimals);
+                return;
+            }
+        }
+
+        String text = Double.toString(v);
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    private void writeFixed(long scaled, int decimals) {
+        if (scaled < 0) {
+            buffer.put((byte) '-');
+            scaled = -scaled;
+        }
+        long unit = (long) POW10[decimals];
+        writeLong(scaled / unit);
+        buffer.put((byte) '.');
+        long fraction = scaled % unit;
+        // leading zeros of the fraction
+        for (long p = unit / 10; p > fraction && p > 1; p /= 10) {
+            buffer.put((byte) '0');
+        }
+        writeLong(fraction);
+    }
+
+    private void writeLong(long v) {
+        if (v == Long.MIN_VALUE) {
+            String text = Long.toString(v);
+            for (int i = 0; i < text.length(); i++) buffer.put((byte) text.charAt(i));
+            return;
+        }
+        if (v < 0) {
+            buffer.put((byte) '-');
+            v = -v;
+        }
+        int start = buffer.position();
+        do {
+            buffer.put((byte) ('0' + (v % 10)));
+            v /= 10;
+        } while (v != 0);
+        // digits were written backwards
+        int end = buffer.position() - 1;
+        byte[] array = buffer.array();
+        for (int i = start, j = end; i < j; i++, j--) {
+            byte tmp = array[i];
+            array[i] = array[j];
+            array[j] = tmp;
+        }
+    }
+
+    private void writeTwoDigits(int v) {
+        buffer.put((byte) ('0' + v / 10));
+        buffer.put((byte) ('0' + v % 10));
+    }
+
+    /**
+     * "dd-MM-yyyy HH:mm:ss" in the encoder time zone, the day part formatted once per day
+     */
+    private void writeDate(long timestamp) {
+        long local = timestamp + timeZone.getOffset(timestamp);
+        long day = Math.floorDiv(local, DAY_MS);
+        if (day != cachedDay) {
+            calendar.setTimeInMillis(timestamp);
+            int d = calendar.get(Calendar.DAY_OF_MONTH);
+            int m = calendar.get(Calendar.MONTH) + 1;
+            int y = calendar.get(Calendar.YEAR);
+            dayPrefix[0] = (byte) ('0' + d / 10);
+            dayPrefix[1] = (byte) ('0' + d % 10);
+            dayPrefix[2] = '-';
+            dayPrefix[3] = (byte) ('0' + m / 10);
+            dayPrefix[4] = (byte) ('0' + m % 10);
+            dayPrefix[5] = '-';
+            dayPrefix[6] = (byte) ('0' + (y / 1000) % 10);
+            dayPrefix[7] = (byte) ('0' + (y / 100) % 10);
+            dayPrefix[8] = (byte) ('0' + (y / 10) % 10);
+            dayPrefix[9] = (byte) ('0' + y % 10);
+            dayPrefix[10] = ' ';
+            cachedDay = day;
+        }
+        buffer.put(dayPrefix);
+
+        int secondOfDay = (int) (Math.floorMod(local, DAY_MS) / 1000);
+        writeTwoDigits(secondOfDay / 3600);
+        buffer.put((byte) ':');
+        writeTwoDigits((secondOfDay / 60) % 60);
+        buffer.put((byte) ':');
+        writeTwoDigits(secondOfDay % 60);
+    }
+
+    private static boolean isFinite(double v) {
+        return !Double.isNaN(v) && !Double.isInfinite(v);
+    }
+
+    // --- strings ---
+
+    /**
+     * Quoted and escaped like Android org.json (JSONStringer), encoded in UTF-8
+     */
+    private void writeString(String value) {
+        buffer.put((byte) '"');
+        for (int i = 0, n = value.length(); i < n; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                case '/':
+                    buffer.put((byte) '\\');
+                    buffer.put((byte) c);
+                    break;
+                case '\t': buffer.put((byte) '\\'); buffer.put((byte) 't'); break;
+                case '\b': buffer.put((byte) '\\'); buffer.put((byte) 'b'); break;
+                case '\n': buffer.put((byte) '\\'); buffer.put((byte) 'n'); break;
+                case '\r': buffer.put((byte) '\\'); buffer.put((byte) 'r'); break;
+                case '\f': buffer.put((byte) '\\'); buffer.put((byte) 'f'); break;
+                default:
+                    if (c <= 0x1F) {
+                        buffer.put((byte) '\\');
+                        buffer.put((byte) 'u');
+                        buffer.put((byte) '0');
+                        buffer.put((byte) '0');
+                        buffer.put(HEX[c >> 4]);
+                        buffer.put(HEX[c & 0xF]);
+                    } else if (c < 0x80) {
+                        buffer.put((byte) c);
+                    } else if (c < 0x800) {
+                        buffer.put((byte) (0xC0 | (c >> 6)));
+                        buffer.put((byte) (0x80 | (c & 0x3F)));
+                    } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(value.charAt(i + 1))) {
+                        int cp = Character.toCodePoint(c, value.charAt(++i));
+                        buffer.put((byte) (0xF0 | (cp >> 18)));
+                        buffer.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+                        buffer.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+                        buffer.put((byte) (0x80 | (cp & 0x3F)));
+                    } else if (Character.isSurrogate(c)) {
+                        // unpaired surrogate: String.getBytes(UTF_8) writes '?'
+                        buffer.put((byte) '?');
+                    } else {
+                        buffer.put((byte) (0xE0 | (c >> 12)));
+                        buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                        buffer.put((byte) (0x80 | (c & 0x3F)));
+                    }
+                    break;
+            }
+        }
+        buffer.put((byte) '"');
+    }
+
+    // --- buffer ---
+
+    private static int maxLineSize(TrackRecord r) {
+        // fixed keys and numbers, plus 6 bytes per char of the strings (\\u00XX)
+        return 512 + 6 * (length(r.weatherType) + length(r.appName) + length(r.activity) + length(r.transition));
+    }
+
+    private static int length(String s) {
+        return s == null ? 0 : s.length();
+    }
+
+    private void ensureCapacity(int size) {
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        byte[] bytes = new byte[s.length()];
+        for (int i = 0; i < bytes.length; i++) bytes[i] = (byte) s.charAt(i);
+        return bytes;
+    }
+}
@@ -0,0 +1,77 @@
+package fr.lelab.activity;
+
+/**
+ * One entry of the track store (GPS fix, activity transition or context change).
+ * Plain Java so it can be encoded/decoded without Android classes.
+ */
+public class TrackRecord {
+
+    public static final byte TYPE_LOCATION = 1;
+    public static final byte TYPE_ACTIVITY = 2;
+    public static final byte TYPE_CONTEXT = 3;
+
+    // kind of a context record, the value is in the matching location field
+    public static final byte CONTEXT_WEATHER = 1;        // weatherType / weatherTemp (weatherType null: none)
+    public static final byte CONTEXT_APP = 2;            // appName (null: none)
+    public static final byte CONTEXT_LOCK = 3;           // phoneUnlock
+    public static final byte CONTEXT_DISTRACTION = 4;    // distraction
+
+    public byte type;
+    public long timestamp;
+
+    // --- location (context fields: only in records written before context records) ---
+    public double lat;
+    public double lng;
+    public double speed;
+    public String weatherType;       // null if no weather attached
+    public double weatherTemp;
+    public String appName;           // null if no foreground app attached
+    public boolean phoneUnlock;
+    public Boolean distraction;      // null if not measured
+
+    // --- activity ---
+    public String activity;
+    public String transition;
+
+    // --- context ---
+    public byte contextKind;
+
+    public static TrackRecord location(double lat, double lng, double speed, long timestamp) {
+        TrackRecord r = new TrackRecord();
+        r.type = TYPE_LOCATION;
+        r.lat = lat;
+        r.lng = lng;
+        r.speed = speed;
+        r.timestamp = timestamp;
+        return r;
+    }
+
+    public static TrackRecord activity(String activity, String transition, long timestamp) {
+        TrackRecord r = new TrackRecord();
+        r.type = TYPE_ACTIVITY;
+        r.activity = activity;
+        r.transition = transition;
+        r.timestamp = timestamp;
+        return r;
+    }
+
+    public static TrackRecord context(byte kind, long timestamp) {
+        TrackRecord r = new TrackRecord();
+        r.type = TYPE_CONTEXT;
+        r.contextKind = kind;
+        r.timestamp = timestamp;
+        return r;
+    }
+
+    public boolean isLocation() {
+        return type == TYPE_LOCATION;
+    }
+
+    public boolean isActivity() {
+        return type == TYPE_ACTIVITY;
+    }
+
+    public boolean isContext() {
+        return type == TYPE_CONTEXT;
+    }
+}
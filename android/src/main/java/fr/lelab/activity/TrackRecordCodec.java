@@ -0,0 +1,368 @@
+package fr.lelab.activity;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary record format of the track store.
+ *
+ * Record = 1 byte tag (record type, high bit set when the record is absolute)
+ *          + timestamp (zigzag varint, delta from previous record unless absolute)
+ *          + type specific payload:
+ *   location : lat/lng as int32 * 1e7, speed in cm/s (zigzag varint, delta from previous
+ *              location of the group), flags byte, then optional weather
+ *              (code + temp as float64) and app name
+ *   activity : activity code, transition code (0xFF = custom, followed by the string)
+ *   context  : kind byte, then weather (present byte, code, temp as float64),
+ *              app (present byte, name), lock (unlocked byte) or distraction (0 none, 1 no, 2 yes)
+ *
+ * The temperature is kept as received (it is uploaded as is). Stores written before kept it as
+ * temp * 10 in an int16 (no LOC_TEMP_DOUBLE flag / weather present byte 1): still decoded.
+ *
+ * The encoder is reset at the start of every committed group, so a segment can be
+ * decoded from any absolute record (no state is needed from older groups).
+ * File layout (header, segments) is handled by TrackSegmentStore.
+ */
+public final class TrackRecordCodec {
+
+    private static final int FLAG_ABSOLUTE = 0x80;
+    private static final int TYPE_MASK = 0x7F;
+
+    private static final int LOC_WEATHER = 1;
+    private static final int LOC_APP = 1 << 1;
+    private static final int LOC_PHONE_UNLOCK = 1 << 2;
+    private static final int LOC_HAS_DISTRACTION = 1 << 3;
+    private static final int LOC_DISTRACTION = 1 << 4;
+    private static final int LOC_TEMP_DOUBLE = 1 << 5;
+
+    // weather present byte of a context record
+    private static final int WEATHER_TEMP_DECI = 1;
+    private static final int WEATHER_TEMP_DOUBLE = 2;
+
+    private static final int CUSTOM = 0xFF;
+
+    private static final String[] WEATHER_TYPES = { "unknown", "sunny", "cloudy", "rainy", "snowy", "stormy", "foggy" };
+    private static final String[] ACTIVITIES = { "automotive", "walking", "running", "cycling", "stationary" };
+    private static final String[] TRANSITIONS = { "ENTER", "EXIT" };
+
+    private TrackRecordCodec() { }
+
+    /**
+     * Upper bound of the encoded size, used to reserve room in the group buffer
+     */
+    public static int maxEncodedSize(TrackRecord r) {
+        int size = 1 + 10 + 4 + 4 + 5 + 1 + 1 + 8;
+        size += maxStringSize(r.weatherType) + maxStringSize(r.appName);
+        size += maxStringSize(r.activity) + maxStringSize(r.transition);
+        return size;
+    }
+
+    private static int maxStringSize(String s) {
+        return s == null ? 0 : 5 + s.length() * 3;
+    }
+
+    public static class Encoder {
+        private boolean synced = false;
+        private long prevTimestamp;
+        private int prevSpeed;
+
+        /**
+         * Next record is written absolute (start of a group or of a file)
+         */
+        public void reset() {
+            synced = false;
+        }
+
+        public void encode(TrackRecord r, ByteBuffer out) {
+            boolean absolute = !synced;
+            if (absolute) prevSpeed = 0;
+            out.put((byte) ((r.type & TYPE_MASK) | (absolute ? FLAG_ABSOLUTE : 0)));
+            writeZigZag(out, absolute ? r.timestamp : r.timestamp - prevTimestamp);
+            prevTimestamp = r.timestamp;
+
+            if (r.type == TrackRecord.TYPE_LOCATION) {
+                out.putInt(toE7(r.lat));
+                out.putInt(toE7(r.lng));
+
+                int speed = (int) Math.round(r.speed * 100);
+                writeZigZag(out, speed - prevSpeed);
+                prevSpeed = speed;
+
+                int flags = 0;
+                if (r.weatherType != null) flags |= LOC_WEATHER | LOC_TEMP_DOUBLE;
+                if (r.appName != null) flags |= LOC_APP;
+                if (r.phoneUnlock) flags |= LOC_PHONE_UNLOCK;
+                if (r.distraction != null) {
+                    flags |= LOC_HAS_DISTRACTION;
+                    if (r.distraction) flags |= LOC_DISTRACTION;
+                }
+                out.put((byte) flags);
+
+                if (r.weatherType != null) {
+                    writeCode(out, WEATHER_TYPES, r.weatherType);
+                    out.putDouble(r.weatherTemp);
+                }
+                if (r.appName != null) {
+                    writeString(out, r.appName);
+                }
+            } else if (r.type == TrackRecord.TYPE_ACTIVITY) {
+                writeCode(out, ACTIVITIES, r.activity);
+                writeCode(out, TRANSITIONS, r.transition);
+            } else if (r.type == TrackRecord.TYPE_CONTEXT) {
+                out.put(r.contextKind);
+                switch (r.contextKind) {
+                    case TrackRecord.CONTEXT_WEATHER:
+                        out.put((byte) (r.weatherType != null ? WEATHER_TEMP_DOUBLE : 0));
+                        if (r.weatherType != null) {
+                            writeCode(out, WEATHER_TYPES, r.weatherType);
+                            out.putDouble(r.weatherTemp);
+                        }
+                        break;
+                    case TrackRecord.CONTEXT_APP:
+                        out.put((byte) (r.appName != null ? 1 : 0));
+                        if (r.appName != null) writeString(out, r.appName);
+                        break;
+                    case TrackRecord.CONTEXT_LOCK:
+                        out.put((byte) (r.phoneUnlock ? 1 : 0));
+                        break;
+                    default:
+                        out.put((byte) (r.distraction == null ? 0 : (r.distraction ? 2 : 1)));
+                        break;
+                }
+            }
+            synced = true;
+        }
+    }
+
+    public static class Decoder {
+        private final CountingInputStream in;
+        private boolean synced = false;
+        private long prevTimestamp;
+        private int prevSpeed;
+        private long recordEnd;
+        private boolean lastAbsolute;
+
+        /**
+         * @param in stream positioned on an absolute record (first record after a segment header)
+         * @param offset file offset of the stream position, used by position()
+         */
+        public Decoder(InputStream in, long offset) {
+            this.in = new CountingInputStream(in, offset);
+            this.recordEnd = offset;
+        }
+
+        /**
+         * File offset right after the last complete record returned by next()
+         */
+        public long position() {
+            return recordEnd;
+        }
+
+        /**
+         * True if the last record returned by next() was absolute (a group starts on it)
+         */
+        public boolean wasAbsolute() {
+            return lastAbsolute;
+        }
+
+        /**
+         * @return next record, or null at end of file (a truncated last record is ignored)
+         * @throws IOException on unknown record type or read error
+         */
+        public TrackRecord next() throws IOException {
+            int tag = in.read();
+            if (tag < 0) return null;
+
+            try {
+                boolean absolute = (tag & FLAG_ABSOLUTE) != 0;
+                if (!absolute && !synced) throw new IOException("Delta record without absolute record before");
+                if (absolute) prevSpeed = 0;
+
+                TrackRecord r = new TrackRecord();
+                r.type = (byte) (tag & TYPE_MASK);
+                long ts = readZigZag(in);
+                r.timestamp = absolute ? ts : prevTimestamp + ts;
+                prevTimestamp = r.timestamp;
+
+                if (r.type == TrackRecord.TYPE_LOCATION) {
+                    r.lat = readInt(in) / 1e7;
+                    r.lng = readInt(in) / 1e7;
+
+                    int speed = prevSpeed + (int) readZigZag(in);
+                    prevSpeed = speed;
+                    r.speed = speed / 100.0;
+
+                    int flags = readByte(in);
+                    if ((flags & LOC_WEATHER) != 0) {
+                        r.weatherType = readCode(in, WEATHER_TYPES);
+                        r.weatherTemp = (flags & LOC_TEMP_DOUBLE) != 0 ? readDouble(in) : readDeci(in);
+                    }
+                    if ((flags & LOC_APP) != 0) {
+                        r.appName = readString(in);
+                    }
+                    r.phoneUnlock = (flags & LOC_PHONE_UNLOCK) != 0;
+                    if ((flags & LOC_HAS_DISTRACTION) != 0) {
+                        r.distraction = (flags & LOC_DISTRACTION) != 0;
+                    }
+                } else if (r.type == TrackRecord.TYPE_ACTIVITY) {
+                    r.activity = readCode(in, ACTIVITIES);
+                    r.transition = readCode(in, TRANSITIONS);
+                } else if (r.type == TrackRecord.TYPE_CONTEXT) {
+                    r.contextKind = (byte) readByte(in);
+                    switch (r.contextKind) {
+                        case TrackRecord.CONTEXT_WEATHER:
+                            int weather = readByte(in);
+                            if (weather != 0) {
+                                r.weatherType = readCode(in, WEATHER_TYPES);
+                                r.weatherTemp = weather == WEATHER_TEMP_DOUBLE ? readDouble(in) : readDeci(in);
+                            }
+                            break;
+                        case TrackRecord.CONTEXT_APP:
+                            if (readByte(in) != 0) r.appName = readString(in);
+                            break;
+                        case TrackRecord.CONTEXT_LOCK:
+                            r.phoneUnlock = readByte(in) != 0;
+                            break;
+                        case TrackRecord.CONTEXT_DISTRACTION:
+                            int distraction = readByte(in);
+                            r.distraction = (distraction == 0) ? null : distraction == 2;
+                            break;
+                        default:
+                            throw new IOException("Unknown context kind " + r.contextKind);
+                    }
+                } else {
+                    throw new IOException("Unknown track record type " + r.type);
+                }
+                synced = true;
+                recordEnd = in.count;
+                lastAbsolute = absolute;
+                return r;
+            } catch (EOFException e) {
+                // last record was cut by a crash during the write
+                return null;
+            }
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in, long offset) {
+            super(in);
+            this.count = offset;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    // --- primitives ---
+
+    private static int toE7(double degrees) {
+        return (int) Math.round(degrees * 1e7);
+    }
+
+    /**
+     * temp * 10 as int16 (stores written before the float64 temperature)
+     */
+    private static double readDeci(InputStream in) throws IOException {
+        return ((short) ((readByte(in) << 8) | readByte(in))) / 10.0;
+    }
+
+    private static double readDouble(InputStream in) throws IOException {
+        long high = readInt(in) & 0xFFFFFFFFL;
+        long low = readInt(in) & 0xFFFFFFFFL;
+        return Double.longBitsToDouble((high << 32) | low);
+    }
+
+    private static void writeZigZag(ByteBuffer out, long value) {
+        long v = (value << 1) ^ (value >> 63);
+        while ((v & ~0x7FL) != 0) {
+            out.put((byte) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.put((byte) v);
+    }
+
+    private static long readZigZag(InputStream in) throws IOException {
+        long v = 0;
+        int shift = 0;
+        while (true) {
+            int b = readByte(in);
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            if (shift > 63) throw new IOException("Malformed varint");
+        }
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static void writeCode(ByteBuffer out, String[] table, String value) {
+        for (int i = 0; i < table.length; i++) {
+            if (table[i].equals(value)) {
+                out.put((byte) i);
+                return;
+            }
+        }
+        out.put((byte) CUSTOM);
+        writeString(out, value == null ? "" : value);
+    }
+
+    private static String readCode(InputStream in, String[] table) throws IOException {
+        int code = readByte(in);
+        if (code == CUSTOM) return readString(in);
+        if (code >= table.length) throw new IOException("Unknown code " + code);
+        return table[code];
+    }
+
+    private static void writeString(ByteBuffer out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeZigZag(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static String readString(InputStream in) throws IOException {
+        int length = (int) readZigZag(in);
+        if (length < 0 || length > 4096) throw new IOException("Malformed string length " + length);
+        byte[] bytes = new byte[length];
+        int read = 0;
+        while (read < length) {
+            int n = in.read(bytes, read, length - read);
+            if (n < 0) throw new EOFException();
+            read += n;
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int readInt(InputStream in) throws IOException {
+        return (readByte(in) << 24) | (readByte(in) << 16) | (readByte(in) << 8) | readByte(in);
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) throw new EOFException();
+        return b;
+    }
+}
@@ -0,0 +1,309 @@
+package fr.lelab.activity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sparse timestamp -> byte offset index of one segment (seg-<id>.idx next to seg-<id>.trk).
+ *
+ * The segment is cut in blocks of about `interval` records, each block starting on an
+ * absolute record so it can be decoded alone. An entry keeps the block offsets and its
+ * min/max timestamp, so a range query only decodes the blocks overlapping the range.
+ * The last block (still being appended) is kept in memory and rebuilt from the tail.
+ *
+ * Index file (big endian):
+ *   header : magic "SPIX", version, 3 reserved, segment uid (4), interval (4)
+ *   entry  : start offset (8), end offset (8), min timestamp (8), max timestamp (8), record count (4)
+ *
+ * The index is only a cache: it is rebuilt from the segment when missing, when the segment
+ * uid does not match (segment rewritten) or when its entries do not fit the segment anymore.
+ */
+public class TrackSegmentIndex {
+
+    public static final int DEFAULT_INTERVAL = 128;
+
+    private static final byte[] MAGIC = { 'S', 'P', 'I', 'X' };
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int ENTRY_SIZE = 36;
+
+    public static class Block {
+        public long start;
+        public long end;
+        public long minTimestamp = Long.MAX_VALUE;
+        public long maxTimestamp = Long.MIN_VALUE;
+        public int recordCount = 0;
+
+        public boolean overlaps(long from, long to) {
+            return recordCount > 0 && maxTimestamp >= from && minTimestamp <= to;
+        }
+
+        void include(long min, long max, int count) {
+            minTimestamp = Math.min(minTimestamp, min);
+            maxTimestamp = Math.max(maxTimestamp, max);
+            recordCount += count;
+        }
+    }
+
+    private final File file;
+    private final int uid;
+    private final int interval;
+    private final List<Block> blocks = new ArrayList<>();
+    private Block pending;
+
+    // live index of the active segment: closed blocks are appended to the file right away
+    private boolean live = false;
+
+    private TrackSegmentIndex(File file, int uid, int interval, long start) {
+        this.file = file;
+        this.uid = uid;
+        this.interval = interval;
+        this.pending = newBlock(start);
+    }
+
+    public static File fileFor(TrackSegmentStore.Segment segment) {
+        String name = segment.file.getName();
+        return new File(segment.file.getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".idx");
+    }
+
+    /**
+     * Index file valid for this segment, or a rebuilt one.
+     * The rebuilt index is only saved for sealed segments, the active one belongs to the writer.
+     */
+    public static TrackSegmentIndex open(TrackSegmentStore.Segment segment) throws IOException {
+        try (FileInputStream fis = new FileInputStream(segment.file)) {
+            TrackSegmentIndex index = load(segment, fis.getChannel(), fis.getChannel().size());
+            if (index != null) return index;
+
+            index = scan(segment, fis.getChannel(), fis.getChannel().size());
+            if (segment.sealed) index.save();
+            return index;
+        }
+    }
+
+    /**
+     * Same, for the version of the segment open on this channel (TrackSegmentStore.Snapshot):
+     * the file may have been rewritten or deleted since, only the first `length` bytes are used.
+     * A rebuilt index is only saved where none exists: another one belongs to a newer version,
+     * and none is left for a deleted segment.
+     */
+    static TrackSegmentIndex open(TrackSegmentStore.Segment segment, FileChannel channel, long length) throws IOException {
+        TrackSegmentIndex index = load(segment, channel, length);
+        if (index != null) return index;
+
+        index = scan(segment, channel, length);
+        if (segment.sealed && segment.file.exists() && !index.file.exists()) index.save();
+        return index;
+    }
+
+    /**
+     * Live index of the active segment (writer thread): loaded or rebuilt, then kept up to date by addGroup()
+     */
+    public static TrackSegmentIndex openLive(TrackSegmentStore.Segment segment) throws IOException {
+        TrackSegmentIndex index;
+        try (FileInputStream fis = new FileInputStream(segment.file)) {
+            long length = fis.getChannel().size();
+            index = load(segment, fis.getChannel(), length);
+            if (index == null) {
+                index = scan(segment, fis.getChannel(), length);
+                index.save();
+            }
+        }
+        index.live = true;
+        return index;
+    }
+
+    /**
+     * Index built in memory while a segment is bulk written, saved with save()
+     */
+    static TrackSegmentIndex builder(File file, int uid) {
+        return new TrackSegmentIndex(file, uid, DEFAULT_INTERVAL, TrackSegmentStore.HEADER_SIZE);
+    }
+
+    /**
+     * @return index read from disk, null if missing or stale
+     */
+    static TrackSegmentIndex load(TrackSegmentStore.Segment segment, FileChannel channel, long segmentLength) {
+        File file = fileFor(segment);
+        if (!file.exists()) return null;
+
+        TrackSegmentIndex index;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            long entries = (file.length() - HEADER_SIZE) / ENTRY_SIZE;
+            if (file.length() < HEADER_SIZE || (file.length() - HEADER_SIZE) % ENTRY_SIZE != 0) return null;
+
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (magic[i] != MAGIC[i]) return null;
+            }
+            if (in.readUnsignedByte() != VERSION) return null;
+            in.skipBytes(3);
+            int uid = in.readInt();
+            int interval = in.readInt();
+            if (uid != segment.uid || interval <= 0) return null;
+
+            index = new TrackSegmentIndex(file, uid, interval, TrackSegmentStore.HEADER_SIZE);
+            long expectedStart = TrackSegmentStore.HEADER_SIZE;
+            for (long i = 0; i < entries; i++) {
+                Block b = new Block();
+                b.start = in.readLong();
+                b.end = in.readLong();
+                b.minTimestamp = in.readLong();
+                b.maxTimestamp = in.readLong();
+                b.recordCount = in.readInt();
+                if (b.start != expectedStart || b.end <= b.start || b.end > segmentLength) return null;
+                index.blocks.add(b);
+                expectedStart = b.end;
+            }
+            index.pending = newBlock(expectedStart);
+        } catch (IOException e) {
+            return null;
+        }
+
+        // records appended after the last entry
+        try {
+            index.scanTail(channel, segmentLength);
+        } catch (IOException e) {
+            return null;
+        }
+        return index;
+    }
+
+    private static TrackSegmentIndex scan(TrackSegmentStore.Segment segment, FileChannel channel, long length) throws IOException {
+        TrackSegmentIndex index = new TrackSegmentIndex(fileFor(segment), segment.uid, DEFAULT_INTERVAL, TrackSegmentStore.HEADER_SIZE);
+        index.scanTail(channel, length);
+        return index;
+    }
+
+    private void scanTail(FileChannel channel, long length) throws IOException {
+        if (pending.start >= length) return;
+
+        channel.position(pending.start);
+        // not closed: the channel belongs to the caller
+        InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+        TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(in, pending.start);
+        while (decoder.position() < length) {
+            long start = decoder.position();
+            TrackRecord record;
+            try {
+                record = decoder.next();
+            } catch (IOException e) {
+                // corrupted tail: indexed up to the last good record, like the readers
+                break;
+            }
+            if (record == null) break;
+            if (decoder.wasAbsolute() && pending.recordCount >= interval) {
+                closePending(start);
+            }
+            pending.include(record.timestamp, record.timestamp, 1);
+            pending.end = decoder.position();
+        }
+    }
+
+    /**
+     * Register a group committed by the writer (groups always start on an absolute record).
+     * A new entry is appended to the file when the current block is full.
+     */
+    public void addGroup(long start, long end, long minTimestamp, long maxTimestamp, int count) throws IOException {
+        if (pending.recordCount >= interval) {
+            Block closed = closePending(start);
+            if (live) appendEntry(closed);
+        }
+        pending.include(minTimestamp, maxTimestamp, count);
+        pending.end = end;
+    }
+
+    /**
+     * Close the last block when the segment is sealed (no tail to scan anymore)
+     */
+    public void seal() throws IOException {
+        if (pending.recordCount == 0) return;
+        Block closed = closePending(pending.end);
+        if (live) appendEntry(closed);
+    }
+
+    /**
+     * Blocks (with the in-memory last one) holding records with from <= timestamp <= to
+     */
+    public List<Block> blocksBetween(long from, long to) {
+        List<Block> result = new ArrayList<>();
+        for (Block b : blocks) {
+            if (b.overlaps(from, to)) result.add(b);
+        }
+        if (pending.overlaps(from, to)) result.add(pending);
+        return result;
+    }
+
+    /**
+     * Every block in file order, with the in-memory last one
+     */
+    public List<Block> getAllBlocks() {
+        List<Block> result = new ArrayList<>(blocks);
+        if (pending.recordCount > 0) result.add(pending);
+        return result;
+    }
+
+    private Block closePending(long nextStart) {
+        Block closed = pending;
+        blocks.add(closed);
+        pending = newBlock(nextStart);
+        return closed;
+    }
+
+    private static Block newBlock(long start) {
+        Block b = new Block();
+        b.start = start;
+        b.end = start;
+        return b;
+    }
+
+    private void appendEntry(Block b) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true))) {
+            writeEntry(out, b);
+        }
+    }
+
+    /**
+     * Write the whole index file (temp + rename)
+     */
+    void save() throws IOException {
+        saveAs(file);
+    }
+
+    void saveAs(File target) throws IOException {
+        // unique temp name: a reader may save a sealed segment index at the same time
+        File temp = new File(target.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.write(new byte[3]);
+            out.writeInt(uid);
+            out.writeInt(interval);
+            for (Block b : blocks) writeEntry(out, b);
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Cannot rename " + temp.getName());
+        }
+    }
+
+    private static void writeEntry(DataOutputStream out, Block b) throws IOException {
+        out.writeLong(b.start);
+        out.writeLong(b.end);
+        out.writeLong(b.minTimestamp);
+        out.writeLong(b.maxTimestamp);
+        out.writeInt(b.recordCount);
+    }
+}
@@ -0,0 +1,959 @@
+package fr.lelab.activity;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Track store split in rolling segment files (track_segments/seg-<id>.trk).
+ *
+ * A segment holds the records of one time window or one trip (whichever closes first)
+ * and starts with a fixed header carrying its min/max timestamp and record count, so a
+ * purge deletes the segments fully inside the range and only rewrites the boundary ones.
+ *
+ * Header (32 bytes, big endian):
+ *   magic "SPTK", version, flags (bit 0 = sealed), 2 reserved,
+ *   min timestamp (8), max timestamp (8), record count (4), uid (4)
+ * The uid changes every time the segment file is (re)written, it ties the
+ * sparse index (TrackSegmentIndex, seg-<id>.idx) to one version of the segment.
+ *
+ * Not thread safe: used from the TrackAppendWriter thread (appends and maintenance tasks).
+ * Other threads read through a Snapshot taken on that thread (TrackAppendWriter.runExclusive).
+ */
+public class TrackSegmentStore {
+
+    public static final String DIR_NAME = "track_segments";
+
+    public static final byte[] MAGIC = { 'S', 'P', 'T', 'K' };
+    public static final int FORMAT_VERSION = 2;
+    public static final int HEADER_SIZE = 32;
+
+    // segment is rolled when its time span or its size goes over these
+    public static final long DEFAULT_MAX_SEGMENT_SPAN_MS = 60 * 60 * 1000;
+    public static final long DEFAULT_MAX_SEGMENT_BYTES = 1024 * 1024;
+
+    // absolute record every N records in bulk written segments (same as one writer group)
+    private static final int SYNC_INTERVAL = 32;
+
+    private static final int FLAG_SEALED = 1;
+    private static final String PREFIX = "seg-";
+    private static final String SUFFIX = ".trk";
+
+    private static final Random UIDS = new Random();
+
+    public interface ErrorListener {
+        void onError(String message, Exception e);
+    }
+
+    public interface RecordVisitor {
+        void visit(TrackRecord record) throws IOException;
+    }
+
+    public interface RecordFilter {
+        boolean accept(TrackRecord record);
+    }
+
+    /**
+     * Position of the next record of a paginated read: index block of a segment and
+     * number of records to skip in it. The segment uid detects a rewrite (purge) between
+     * two pages, the read then restarts the segment after the last timestamp returned.
+     */
+    public static class Cursor {
+        public final long segmentId;
+        public final int uid;
+        public final long blockStart;
+        public final int skip;
+        public final long lastTimestamp;
+
+        public Cursor(long segmentId, int uid, long blockStart, int skip, long lastTimestamp) {
+            this.segmentId = segmentId;
+            this.uid = uid;
+            this.blockStart = blockStart;
+            this.skip = skip;
+            this.lastTimestamp = lastTimestamp;
+        }
+
+        /**
+         * Opaque string given to the JS side
+         */
+        public String encode() {
+            return Long.toString(segmentId, 36) + "." + Integer.toString(uid, 36) + "." + Long.toString(blockStart, 36)
+                + "." + Integer.toString(skip, 36) + "." + Long.toString(lastTimestamp, 36);
+        }
+
+        /**
+         * @throws IllegalArgumentException if the string is not a cursor returned by encode()
+         */
+        public static Cursor decode(String value) {
+            String[] parts = value.split("\\.");
+            if (parts.length != 5) throw new IllegalArgumentException("Invalid cursor");
+            try {
+                return new Cursor(Long.parseLong(parts[0], 36), Integer.parseInt(parts[1], 36),
+                    Long.parseLong(parts[2], 36), Integer.parseInt(parts[3], 36), Long.parseLong(parts[4], 36));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor", e);
+            }
+        }
+    }
+
+    public static class Segment {
+        public final File file;
+        public final long id;
+        public long minTimestamp = Long.MAX_VALUE;
+        public long maxTimestamp = Long.MIN_VALUE;
+        public int recordCount = 0;
+        public boolean sealed = false;
+        public int uid;
+
+        Segment(File file, long id) {
+            this.file = file;
+            this.id = id;
+        }
+
+        public boolean isEmpty() {
+            return recordCount == 0;
+        }
+
+        public long getSpan() {
+            return isEmpty() ? 0 : maxTimestamp - minTimestamp;
+        }
+
+        void include(long timestamp) {
+            if (timestamp < minTimestamp) minTimestamp = timestamp;
+            if (timestamp > maxTimestamp) maxTimestamp = timestamp;
+        }
+
+        void reset() {
+            minTimestamp = Long.MAX_VALUE;
+            maxTimestamp = Long.MIN_VALUE;
+            recordCount = 0;
+        }
+    }
+
+    /**
+     * What a purge did (for logs / stats)
+     */
+    public static class PurgeResult {
+        public int segmentsDeleted = 0;
+        public int segmentsRewritten = 0;
+        public int recordsRemoved = 0;
+        public long bytesReclaimed = 0;
+
+        @Override
+        public String toString() {
+            return segmentsDeleted + " segments deleted, " + segmentsRewritten + " rewritten, "
+                + recordsRemoved + " records / " + bytesReclaimed + " bytes removed";
+        }
+    }
+
+    /**
+     * Timestamp ranges to remove in one pass (inclusive bounds), kept sorted and merged
+     * so each segment is checked and rewritten once whatever the number of ranges.
+     */
+    public static class RemovalSet {
+        private long[] from = new long[4];
+        private long[] to = new long[4];
+        private int size = 0;
+
+        public static RemovalSet of(long from, long to) {
+            RemovalSet set = new RemovalSet();
+            set.add(from, to);
+            return set;
+        }
+
+        public void add(long rangeFrom, long rangeTo) {
+            if (rangeFrom > rangeTo) return;
+
+            // first range overlapping the new one, then every range it absorbs
+            int i = 0;
+            while (i < size && to[i] < rangeFrom) i++;
+            int j = i;
+            while (j < size && from[j] <= rangeTo) {
+                rangeFrom = Math.min(rangeFrom, from[j]);
+                rangeTo = Math.max(rangeTo, to[j]);
+                j++;
+            }
+
+            int newSize = size - (j - i) + 1;
+            if (newSize > from.length) {
+                from = Arrays.copyOf(from, newSize * 2);
+                to = Arrays.copyOf(to, newSize * 2);
+            }
+            System.arraycopy(from, j, from, i + 1, size - j);
+            System.arraycopy(to, j, to, i + 1, size - j);
+            from[i] = rangeFrom;
+            to[i] = rangeTo;
+            size = newSize;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public boolean contains(long timestamp) {
+            int i = floor(timestamp);
+            return i >= 0 && timestamp <= to[i];
+        }
+
+        /** true if some record in [min, max] may be removed */
+        public boolean overlaps(long min, long max) {
+            int i = floor(max);
+            return i >= 0 && to[i] >= min;
+        }
+
+        /** true if every timestamp in [min, max] is removed */
+        public boolean covers(long min, long max) {
+            int i = floor(min);
+            return i >= 0 && to[i] >= max;
+        }
+
+        // last range starting at or before timestamp, -1 if none
+        private int floor(long timestamp) {
+            int lo = 0, hi = size - 1, found = -1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (from[mid] <= timestamp) {
+                    found = mid;
+                    lo = mid + 1;
+                } else {
+                    hi = mid - 1;
+                }
+            }
+            return found;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder("[");
+            for (int i = 0; i < size; i++) {
+                if (i > 0) sb.append(", ");
+                sb.append(from[i]).append(" - ").append(to[i]);
+            }
+            return sb.append(']').toString();
+        }
+    }
+
+    private final File dir;
+    private final long maxSegmentSpanMs;
+    private final long maxSegmentBytes;
+    private final ErrorListener errorListener;
+
+    public TrackSegmentStore(File dir, ErrorListener errorListener) {
+        this(dir, DEFAULT_MAX_SEGMENT_SPAN_MS, DEFAULT_MAX_SEGMENT_BYTES, errorListener);
+    }
+
+    public TrackSegmentStore(File dir, long maxSegmentSpanMs, long maxSegmentBytes, ErrorListener errorListener) {
+        this.dir = dir;
+        this.maxSegmentSpanMs = maxSegmentSpanMs;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.errorListener = errorListener;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * True if a segment holding these records should be sealed before appending a record at this timestamp
+     */
+    public boolean shouldRoll(Segment segment, long segmentBytes, long nextTimestamp) {
+        if (segment.isEmpty()) return false;
+        if (segmentBytes >= maxSegmentBytes) return true;
+        long span = Math.max(segment.maxTimestamp, nextTimestamp) - Math.min(segment.minTimestamp, nextTimestamp);
+        return span > maxSegmentSpanMs;
+    }
+
+    /**
+     * Valid segments, oldest first. Files with a bad header are reported and skipped.
+     */
+    public List<Segment> segments() {
+        List<Segment> result = new ArrayList<>();
+        File[] files = dir.listFiles();
+        if (files == null) return result;
+
+        for (File f : files) {
+            long id = parseId(f.getName());
+            if (id == Long.MIN_VALUE) continue;
+            try (FileChannel channel = new RandomAccessFile(f, "r").getChannel()) {
+                result.add(readSegment(channel, f, id));
+            } catch (IOException e) {
+                report("bad segment header, " + f.getName() + " ignored", e);
+            }
+        }
+        Collections.sort(result, (a, b) -> Long.compare(a.id, b.id));
+        return result;
+    }
+
+    /**
+     * Every valid segment with an open channel and its current length, oldest first.
+     * Taken on the writer thread (no group, purge or rename half done), it is then read from
+     * another thread while the writer appends, rewrites (temp + rename) or deletes the files:
+     * the open channels keep these versions readable.
+     */
+    public Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        File[] files = dir.listFiles();
+        if (files == null) return snapshot;
+
+        for (File f : files) {
+            long id = parseId(f.getName());
+            if (id == Long.MIN_VALUE) continue;
+            FileChannel channel = null;
+            try {
+                channel = new RandomAccessFile(f, "r").getChannel();
+                snapshot.segments.add(new OpenSegment(readSegment(channel, f, id), channel, channel.size()));
+            } catch (IOException e) {
+                closeQuietly(channel);
+                report("bad segment header, " + f.getName() + " ignored", e);
+            }
+        }
+        Collections.sort(snapshot.segments, (a, b) -> Long.compare(a.segment.id, b.segment.id));
+        return snapshot;
+    }
+
+    public boolean isEmpty() {
+        for (Segment s : segments()) {
+            if (s.file.length() > HEADER_SIZE) return false;
+        }
+        return true;
+    }
+
+    public long totalBytes() {
+        long total = 0;
+        for (Segment s : segments()) total += s.file.length();
+        return total;
+    }
+
+    /**
+     * New empty (unsealed) segment after all the existing ones
+     */
+    public Segment createSegment() throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+        long id = 1;
+        for (Segment s : segments()) id = Math.max(id, s.id + 1);
+
+        Segment segment = new Segment(new File(dir, PREFIX + id + SUFFIX), id);
+        segment.uid = newUid();
+        try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+            raf.setLength(0);
+            writeHeader(raf.getChannel(), segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Rescan an unsealed segment left by a previous process: header recomputed from the
+     * records and partial / corrupted tail cut, so appends can continue after it.
+     * @return file length after recovery
+     */
+    public long recover(Segment segment) throws IOException {
+        segment.reset();
+        long end;
+        try (InputStream in = new BufferedInputStream(new FileInputStream(segment.file))) {
+            skipHeader(in);
+            TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(in, HEADER_SIZE);
+            while (true) {
+                TrackRecord record;
+                try {
+                    record = decoder.next();
+                } catch (IOException e) {
+                    report("corrupted record in " + segment.file.getName() + ", tail cut", e);
+                    break;
+                }
+                if (record == null) break;
+                segment.include(record.timestamp);
+                segment.recordCount++;
+            }
+            end = decoder.position();
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(segment.file, "rw")) {
+            if (raf.length() > end) raf.setLength(end);
+            writeHeader(raf.getChannel(), segment);
+        }
+        return end;
+    }
+
+    /**
+     * Decode every record of every segment, oldest segment first
+     */
+    public void forEachRecord(RecordVisitor visitor) throws IOException {
+        try (Snapshot snapshot = snapshot()) {
+            snapshot.forEachRecord(visitor);
+        }
+    }
+
+    /**
+     * Decode the records with from <= timestamp <= to, using the segment headers
+     * and the sparse indexes to only read the blocks overlapping the range
+     */
+    public void forEachRecord(long from, long to, RecordVisitor visitor) throws IOException {
+        try (Snapshot snapshot = snapshot()) {
+            snapshot.forEachRecord(from, to, visitor);
+        }
+    }
+
+    /**
+     * Decode the records appended after a position (segment, offset right after a group).
+     * If that segment was rewritten since (uid changed), its records newer than
+     * lastTimestamp are visited instead.
+     */
+    public void forEachRecordAfter(long segmentId, int uid, long offset, long lastTimestamp,
+                                   RecordVisitor visitor) throws IOException {
+        for (Segment s : segments()) {
+            if (s.id < segmentId) continue;
+
+            if (s.id == segmentId && s.uid == uid) {
+                if (offset >= s.file.length()) continue;
+                TrackSegmentIndex.Block tail = new TrackSegmentIndex.Block();
+                tail.start = offset;
+                tail.end = s.file.length();
+                readBlock(s, tail, visitor);
+            } else if (s.id == segmentId) {
+                forEachRecord(s, record -> {
+                    if (record.timestamp > lastTimestamp) visitor.visit(record);
+                });
+            } else {
+                forEachRecord(s, visitor);
+            }
+        }
+    }
+
+    /**
+     * Read one page: at most `limit` records with from <= timestamp <= to accepted by the filter,
+     * starting at the cursor (null for the first page), in store order.
+     * @return cursor of the next page, null when the end of the store is reached
+     */
+    public Cursor readPage(long from, long to, RecordFilter filter, Cursor cursor, int limit,
+                           RecordVisitor visitor) throws IOException {
+        try (Snapshot snapshot = snapshot()) {
+            return snapshot.readPage(from, to, filter, cursor, limit, visitor);
+        }
+    }
+
+    /**
+     * Decode the records of one index block
+     */
+    public void readBlock(Segment segment, TrackSegmentIndex.Block block, RecordVisitor visitor) throws IOException {
+        try (FileInputStream fis = new FileInputStream(segment.file)) {
+            readBlock(fis.getChannel(), segment, block, visitor);
+        }
+    }
+
+    private void readBlock(FileChannel channel, Segment segment, TrackSegmentIndex.Block block,
+                           RecordVisitor visitor) throws IOException {
+        TrackRecordCodec.Decoder decoder = decoderAt(channel, block.start);
+        while (decoder.position() < block.end) {
+            TrackRecord record;
+            try {
+                record = decoder.next();
+            } catch (IOException e) {
+                report("corrupted track record, rest of block in " + segment.file.getName() + " ignored", e);
+                break;
+            }
+            if (record == null) break;
+            visitor.visit(record);
+        }
+    }
+
+    /**
+     * Decoder of the records from a block start (the channel is not closed with it, it belongs to the caller)
+     */
+    private static TrackRecordCodec.Decoder decoderAt(FileChannel channel, long start) throws IOException {
+        channel.position(start);
+        return new TrackRecordCodec.Decoder(new BufferedInputStream(Channels.newInputStream(channel)), start);
+    }
+
+    /**
+     * Decode every record of a segment. Decoding stops at the first corrupted record,
+     * everything before it is still visited.
+     */
+    public void forEachRecord(Segment segment, RecordVisitor visitor) throws IOException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(segment.file))) {
+            skipHeader(in);
+            TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(in, HEADER_SIZE);
+            while (true) {
+                TrackRecord record;
+                try {
+                    record = decoder.next();
+                } catch (IOException e) {
+                    report("corrupted track record, rest of " + segment.file.getName() + " ignored", e);
+                    break;
+                }
+                if (record == null) break;
+                visitor.visit(record);
+            }
+        }
+    }
+
+    /**
+     * Remove the records with from <= timestamp <= to.
+     * Segments fully inside the range are deleted, segments outside are not touched,
+     * only the boundary segments are rewritten.
+     */
+    public PurgeResult removeRecords(long from, long to) {
+        return removeRecords(RemovalSet.of(from, to));
+    }
+
+    /**
+     * Remove the records in any range of the set, in a single compaction pass:
+     * each segment is deleted, rewritten once (atomically) or left untouched.
+     */
+    public PurgeResult removeRecords(RemovalSet removals) {
+        PurgeResult result = new PurgeResult();
+        if (removals.isEmpty()) return result;
+
+        for (Segment s : segments()) {
+            if (!s.sealed) {
+                // header of the active segment may be behind its records after a crash
+                try {
+                    recover(s);
+                } catch (IOException e) {
+                    report("recovery of " + s.file.getName() + " failed", e);
+                    continue;
+                }
+            }
+            if (s.isEmpty() || !removals.overlaps(s.minTimestamp, s.maxTimestamp)) continue;
+
+            long length = s.file.length();
+            if (removals.covers(s.minTimestamp, s.maxTimestamp)) {
+                if (s.file.delete()) {
+                    TrackSegmentIndex.fileFor(s).delete();
+                    result.segmentsDeleted++;
+                    result.recordsRemoved += s.recordCount;
+                    result.bytesReclaimed += length;
+                }
+                continue;
+            }
+
+            int before = s.recordCount;
+            if (removeFromSegment(s, removals)) {
+                result.segmentsRewritten++;
+                result.recordsRemoved += before - s.recordCount;
+                result.bytesReclaimed += length - s.file.length();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Rewrite a boundary segment in place (temp file + rename) without the removed records.
+     * Index blocks outside the ranges are copied as raw bytes, only the overlapping ones are decoded.
+     * The segment keeps its id and sealed state; it is deleted if nothing remains.
+     * @return false if nothing had to be removed or the rewrite failed (segment unchanged)
+     */
+    private boolean removeFromSegment(Segment segment, RemovalSet removals) {
+        File temp = new File(dir, segment.file.getName() + ".tmp");
+        File tempIndex = new File(dir, TrackSegmentIndex.fileFor(segment).getName() + ".new");
+        Segment copy = new Segment(temp, segment.id);
+        copy.sealed = segment.sealed;
+
+        try {
+            TrackSegmentIndex index = TrackSegmentIndex.open(segment);
+            boolean found = false;
+            for (TrackSegmentIndex.Block block : index.getAllBlocks()) {
+                if (removals.overlaps(block.minTimestamp, block.maxTimestamp)) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+
+            try (SegmentWriter out = new SegmentWriter(copy, tempIndex);
+                 FileInputStream in = new FileInputStream(segment.file)) {
+                for (TrackSegmentIndex.Block block : index.getAllBlocks()) {
+                    if (removals.overlaps(block.minTimestamp, block.maxTimestamp)) {
+                        readBlock(segment, block, record -> {
+                            if (!removals.contains(record.timestamp)) out.write(record);
+                        });
+                    } else {
+                        out.copyBlock(in, block);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            report("rewrite of " + segment.file.getName() + " failed", e);
+            temp.delete();
+            tempIndex.delete();
+            return false;
+        }
+
+        File indexFile = TrackSegmentIndex.fileFor(segment);
+        if (copy.isEmpty()) {
+            temp.delete();
+            tempIndex.delete();
+            segment.file.delete();
+            indexFile.delete();
+        } else if (!temp.renameTo(segment.file)) {
+            report("rename of " + temp.getName() + " failed", null);
+            temp.delete();
+            tempIndex.delete();
+            return false;
+        } else if (!tempIndex.renameTo(indexFile)) {
+            // stale index is detected by its uid and rebuilt on next use
+            tempIndex.delete();
+        }
+        segment.minTimestamp = copy.minTimestamp;
+        segment.maxTimestamp = copy.maxTimestamp;
+        segment.recordCount = copy.recordCount;
+        segment.uid = copy.uid;
+        return true;
+    }
+
+    /**
+     * Delete every segment
+     * @return number of files deleted
+     */
+    public int clear() {
+        int deleted = 0;
+        File[] files = dir.listFiles();
+        if (files == null) return 0;
+        for (File f : files) {
+            if (f.getName().startsWith(PREFIX) && f.delete()) deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Writer for a new sealed segment (bulk import / rewrite), header finalized on close
+     */
+    public SegmentWriter newSealedSegment() throws IOException {
+        Segment segment = createSegment();
+        segment.sealed = true;
+        return new SegmentWriter(segment, TrackSegmentIndex.fileFor(segment));
+    }
+
+    /**
+     * Streams records into a segment file; the header and the index are written on close.
+     */
+    public static class SegmentWriter implements Closeable {
+        private final Segment segment;
+        private final FileOutputStream fos;
+        private final OutputStream out;
+        private final TrackRecordCodec.Encoder encoder = new TrackRecordCodec.Encoder();
+        private final TrackSegmentIndex index;
+        private final File indexFile;
+        private ByteBuffer buffer = ByteBuffer.allocate(512);
+        private long bytes = HEADER_SIZE;
+        private int sinceSync = 0;
+
+        // current group (records since the last absolute one)
+        private long groupStart;
+        private long groupMin;
+        private long groupMax;
+        private int groupCount = 0;
+
+        SegmentWriter(Segment segment, File indexFile) throws IOException {
+            this.segment = segment;
+            segment.reset();
+            segment.uid = newUid();
+            this.indexFile = indexFile;
+            this.index = TrackSegmentIndex.builder(indexFile, segment.uid);
+            this.fos = new FileOutputStream(segment.file);
+            this.out = new BufferedOutputStream(fos);
+            out.write(new byte[HEADER_SIZE]);
+        }
+
+        public Segment getSegment() {
+            return segment;
+        }
+
+        public long getBytes() {
+            return bytes;
+        }
+
+        public void write(TrackRecord record) throws IOException {
+            int maxSize = TrackRecordCodec.maxEncodedSize(record);
+            if (buffer.capacity() < maxSize) buffer = ByteBuffer.allocate(maxSize);
+            if (sinceSync == 0) {
+                endGroup();
+                encoder.reset();
+                groupStart = bytes;
+                groupMin = record.timestamp;
+                groupMax = record.timestamp;
+            }
+
+            buffer.clear();
+            encoder.encode(record, buffer);
+            out.write(buffer.array(), 0, buffer.position());
+            bytes += buffer.position();
+
+            groupMin = Math.min(groupMin, record.timestamp);
+            groupMax = Math.max(groupMax, record.timestamp);
+            groupCount++;
+            segment.include(record.timestamp);
+            segment.recordCount++;
+            sinceSync = (sinceSync + 1) % SYNC_INTERVAL;
+        }
+
+        /**
+         * Copy an index block of another segment as is (it starts on an absolute record)
+         */
+        void copyBlock(FileInputStream source, TrackSegmentIndex.Block block) throws IOException {
+            endGroup();
+            source.getChannel().position(block.start);
+            byte[] chunk = new byte[8192];
+            long remaining = block.end - block.start;
+            while (remaining > 0) {
+                int n = source.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (n < 0) throw new IOException("Segment shorter than its index");
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+
+            index.addGroup(bytes, bytes + block.end - block.start, block.minTimestamp, block.maxTimestamp, block.recordCount);
+            bytes += block.end - block.start;
+            segment.include(block.minTimestamp);
+            segment.include(block.maxTimestamp);
+            segment.recordCount += block.recordCount;
+            // next record written must be absolute
+            sinceSync = 0;
+        }
+
+        private void endGroup() throws IOException {
+            if (groupCount == 0) return;
+            index.addGroup(groupStart, bytes, groupMin, groupMax, groupCount);
+            groupCount = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.flush();
+                writeHeader(fos.getChannel(), segment);
+                fos.getFD().sync();
+            } finally {
+                out.close();
+            }
+            endGroup();
+            index.seal();
+            index.saveAs(indexFile);
+        }
+    }
+
+    private static class OpenSegment {
+        final Segment segment;
+        final FileChannel channel;
+        final long length;
+
+        OpenSegment(Segment segment, FileChannel channel, long length) {
+            this.segment = segment;
+            this.channel = channel;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Segments of the store as they were when snapshot() was called, read through their open
+     * channels. Used by one thread at a time, closed after the read.
+     */
+    public class Snapshot implements Closeable {
+        private final List<OpenSegment> segments = new ArrayList<>();
+
+        /**
+         * Decode every record of every segment, oldest segment first
+         */
+        public void forEachRecord(RecordVisitor visitor) throws IOException {
+            for (OpenSegment o : segments) {
+                TrackSegmentIndex.Block all = new TrackSegmentIndex.Block();
+                all.start = HEADER_SIZE;
+                all.end = o.length;
+                readBlock(o.channel, o.segment, all, visitor);
+            }
+        }
+
+        /**
+         * Decode the records with from <= timestamp <= to, using the segment headers
+         * and the sparse indexes to only read the blocks overlapping the range
+         */
+        public void forEachRecord(long from, long to, RecordVisitor visitor) throws IOException {
+            for (OpenSegment o : segments) {
+                Segment s = o.segment;
+                // header of the active segment may be behind (crash), its index scans the tail anyway
+                if (s.sealed && (s.isEmpty() || s.maxTimestamp < from || s.minTimestamp > to)) continue;
+
+                TrackSegmentIndex index = TrackSegmentIndex.open(s, o.channel, o.length);
+                for (TrackSegmentIndex.Block block : index.blocksBetween(from, to)) {
+                    readBlock(o.channel, s, block, record -> {
+                        if (record.timestamp >= from && record.timestamp <= to) visitor.visit(record);
+                    });
+                }
+            }
+        }
+
+        /**
+         * Read one page: at most `limit` records with from <= timestamp <= to accepted by the filter,
+         * starting at the cursor (null for the first page), in store order.
+         * @return cursor of the next page, null when the end of the store is reached
+         */
+        public Cursor readPage(long from, long to, RecordFilter filter, Cursor cursor, int limit,
+                               RecordVisitor visitor) throws IOException {
+            int emitted = 0;
+            long lastTimestamp = (cursor != null) ? cursor.lastTimestamp : Long.MIN_VALUE;
+
+            for (OpenSegment o : segments) {
+                Segment s = o.segment;
+                if (cursor != null && s.id < cursor.segmentId) continue;
+                if (s.sealed && (s.isEmpty() || s.maxTimestamp < from || s.minTimestamp > to)) continue;
+
+                boolean resumed = cursor != null && s.id == cursor.segmentId;
+                boolean sameVersion = resumed && s.uid == cursor.uid;
+                // segment rewritten since the previous page: skip what was already returned
+                long after = (resumed && !sameVersion) ? cursor.lastTimestamp : Long.MIN_VALUE;
+
+                TrackSegmentIndex index = TrackSegmentIndex.open(s, o.channel, o.length);
+                for (TrackSegmentIndex.Block block : index.blocksBetween(from, to)) {
+                    int skip = 0;
+                    if (sameVersion) {
+                        if (block.start < cursor.blockStart) continue;
+                        if (block.start == cursor.blockStart) skip = cursor.skip;
+                    }
+
+                    TrackRecordCodec.Decoder decoder = decoderAt(o.channel, block.start);
+                    for (int i = 0; decoder.position() < block.end; i++) {
+                        TrackRecord record;
+                        try {
+                            record = decoder.next();
+                        } catch (IOException e) {
+                            report("corrupted track record, rest of block in " + s.file.getName() + " ignored", e);
+                            break;
+                        }
+                        if (record == null) break;
+                        if (i < skip || record.timestamp <= after) continue;
+                        if (record.timestamp < from || record.timestamp > to) continue;
+                        if (filter != null && !filter.accept(record)) continue;
+
+                        if (emitted == limit) {
+                            return new Cursor(s.id, s.uid, block.start, i, lastTimestamp);
+                        }
+                        visitor.visit(record);
+                        emitted++;
+                        lastTimestamp = record.timestamp;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() {
+            for (OpenSegment o : segments) closeQuietly(o.channel);
+            segments.clear();
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing to do, read only
+        }
+    }
+
+    // --- header ---
+
+    /**
+     * Positional write of the header (channel position is not changed)
+     */
+    public static void writeHeader(FileChannel channel, Segment segment) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put(MAGIC);
+        header.put((byte) FORMAT_VERSION);
+        header.put((byte) (segment.sealed ? FLAG_SEALED : 0));
+        header.putShort((short) 0);
+        header.putLong(segment.isEmpty() ? 0 : segment.minTimestamp);
+        header.putLong(segment.isEmpty() ? 0 : segment.maxTimestamp);
+        header.putInt(segment.recordCount);
+        header.putInt(segment.uid);
+        header.flip();
+
+        long position = 0;
+        while (header.hasRemaining()) {
+            position += channel.write(header, position);
+        }
+    }
+
+    private static Segment readSegment(FileChannel channel, File file, long id) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()) {
+            // positional read: the channel position is left for the readers
+            if (channel.read(header, header.position()) < 0) throw new IOException("Truncated header");
+        }
+        header.flip();
+
+        byte[] magic = new byte[MAGIC.length];
+        header.get(magic);
+        if (!new String(magic, StandardCharsets.US_ASCII).equals(new String(MAGIC, StandardCharsets.US_ASCII))) {
+            throw new IOException("Not a track segment");
+        }
+        int version = header.get() & 0xFF;
+        if (version != FORMAT_VERSION) throw new IOException("Unsupported segment version " + version);
+
+        Segment segment = new Segment(file, id);
+        segment.sealed = (header.get() & FLAG_SEALED) != 0;
+        header.getShort();
+        long min = header.getLong();
+        long max = header.getLong();
+        segment.recordCount = header.getInt();
+        segment.uid = header.getInt();
+        if (segment.recordCount > 0) {
+            segment.minTimestamp = min;
+            segment.maxTimestamp = max;
+        }
+        return segment;
+    }
+
+    private static void skipHeader(InputStream in) throws IOException {
+        long skipped = 0;
+        while (skipped < HEADER_SIZE) {
+            long n = in.skip(HEADER_SIZE - skipped);
+            if (n <= 0) throw new IOException("Truncated header");
+            skipped += n;
+        }
+    }
+
+    private static int newUid() {
+        synchronized (UIDS) {
+            int uid;
+            do {
+                uid = UIDS.nextInt();
+            } while (uid == 0);
+            return uid;
+        }
+    }
+
+    private static long parseId(String name) {
+        if (!name.startsWith(PREFIX) || !name.endsWith(SUFFIX)) return Long.MIN_VALUE;
+        try {
+            return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    private void report(String message, Exception e) {
+        if (errorListener != null) errorListener.onError(message, e);
+    }
+}
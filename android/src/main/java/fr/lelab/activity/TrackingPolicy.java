@@ -0,0 +1,16 @@
+package fr.lelab.activity;
+
+/**
+ * Thresholds of the tracking path, in plain Java: applied by the receivers on the device and by
+ * the drive replay (ReplayStoreTarget, also built in benchmarks/), so both follow the same rules.
+ */
+public final class TrackingPolicy {
+
+    /** fixes less accurate than this are not saved (LocationIngestPipeline) */
+    public static final float MAX_ACCURACY_METERS = 20;
+
+    /** grace timer: GPS turned off and trip closed this long after an automotive EXIT or another activity */
+    public static final long STOP_DELAY_MS = 3 * 60 * 1000;
+
+    private TrackingPolicy() {}
+}
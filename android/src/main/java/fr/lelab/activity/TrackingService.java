@@ -4,7 +4,6 @@ import android.app.*;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
-import android.content.SharedPreferences;
 import android.os.Build;
 import android.os.IBinder;
 import android.util.Log; 
@@ -29,10 +28,21 @@ public class TrackingService extends Service {
     private Runnable watchdogRunnable;
     private static final long WATCHDOG_INTERVAL = 60000;
 
+    // keeps the notification in line with the driving state, whoever changes it
+    private final TrackingStateStore.Listener stateListener = (previous, current) -> {
+        if (previous.driving != current.driving) {
+            NotificationManager manager = (NotificationManager) getSystemService(Context.NOTIFICATION_SERVICE);
+            if (manager != null) {
+                manager.notify(NOTIFICATION_ID, createNotification(current.driving ? STATE_GPS_TRACKING : STATE_ACTIVITY_ONLY));
+            }
+        }
+    };
+
     @Override
     public void onCreate() {
         super.onCreate();
         fusedLocationClient = LocationServices.getFusedLocationProviderClient(this);
+        TrackingStateStore.get(getSafeContext()).addListener(stateListener);
 
         // start watch dog for notif verification
         startWatchdog();
@@ -46,11 +56,9 @@ public class TrackingService extends Service {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        SharedPreferences prefs = getSafeContext().getSharedPreferences("CapacitorStorage", MODE_PRIVATE);
-        
-        // 1. set state(either via l'Intent, or via Prefs au reboot)
+        // 1. set state(either via l'Intent, or via tracking state au reboot)
         String action = (intent != null) ? intent.getAction() : null;
-        boolean shouldBeDriving = prefs.getBoolean("driving_state", false);
+        boolean shouldBeDriving = TrackingStateStore.current(getSafeContext()).driving;
 
         Log.d("TrackingService", "🔍 Intent Received - Action: " + action);
 
@@ -217,6 +225,7 @@ public class TrackingService extends Service {
         }
 
         watchdogHandler.removeCallbacks(watchdogRunnable);
+        TrackingStateStore.get(getSafeContext()).removeListener(stateListener);
         
         super.onDestroy();
     }
@@ -265,9 +274,8 @@ public class TrackingService extends Service {
 
         if (!isNotifActive) {
             Log.d("TrackingService", "⚠️ Notif missing detected by Watchdog. Restore...");
-            // get current state from SharedPreferences
-            SharedPreferences prefs = getSafeContext().getSharedPreferences("CapacitorStorage", MODE_PRIVATE);
-            boolean shouldBeDriving = prefs.getBoolean("driving_state", false);
+            // get current state from memory (no disk read)
+            boolean shouldBeDriving = TrackingStateStore.current(getSafeContext()).driving;
             
             Notification notification = createNotification(shouldBeDriving ? STATE_GPS_TRACKING : STATE_ACTIVITY_ONLY);
             
@@ -0,0 +1,417 @@
+package fr.lelab.activity;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+
+/**
+ * Process wide tracking state (tracking / driving flags, server, upload and weather config).
+ *
+ * Reads are a volatile read of an immutable snapshot, so hot paths (every GPS fix) never touch
+ * the disk. Updates replace the snapshot, notify the listeners and are persisted write-behind
+ * on a background thread into device protected storage (readable in Direct Boot).
+ * Replaces the ActivityPluginPrefs, CapacitorStorage, TripPrefs and tracking_prefs files,
+ * migrated once on first use.
+ */
+public final class TrackingStateStore {
+
+    private static final String TAG = "TrackingStateStore";
+    public static final String PREF_NAME = "TrackingState";
+
+    private static final String KEY_TRACKING_ACTIVE = "tracking_active";
+    private static final String KEY_DRIVING = "driving_state";
+    private static final String KEY_RECORDING_TRIP = "recording_trip";
+    private static final String KEY_DURABILITY = "storage_durability";
+    private static final String KEY_SERVER_URL = "server_url";
+    private static final String KEY_SERVER_TOKEN = "jwt_token";
+    private static final String KEY_WEATHER_API_KEY = "weather_api_key";
+    private static final String KEY_WEATHER_BASE_URL = "weather_base_url";
+    private static final String KEY_LAST_WEATHER_LAT = "last_weather_lat";
+    private static final String KEY_LAST_WEATHER_LON = "last_weather_lon";
+    private static final String KEY_LAST_WEATHER_TIMESTAMP = "last_weather_timestamp";
+    private static final String KEY_UPLOAD_COMPRESSION = "upload_compression";
+    private static final String KEY_UPLOAD_COMPRESSION_LEVEL = "upload_compression_level";
+    private static final String KEY_GZIP_REFUSED_URL = "gzip_refused_url";
+    private static final String KEY_UPLOAD_CODEC = "upload_codec";
+    private static final String KEY_CODEC_REFUSED_URL = "codec_refused_url";
+    private static final String KEY_SIMPLIFY_TOLERANCE = "simplify_tolerance_m";
+
+    public static final int DEFAULT_COMPRESSION_LEVEL = 6;
+
+    // legacy files copied once (credential protected ones may be locked before first unlock)
+    private static final String KEY_MIGRATED_DEVICE = "migrated_device_prefs";
+    private static final String KEY_MIGRATED_CREDENTIAL = "migrated_credential_prefs";
+
+    /**
+     * Immutable snapshot of the state
+     */
+    public static final class State {
+        /** activity recognition started by the user (restarted at boot) */
+        public final boolean trackingActive;
+        /** tracking service in GPS mode (automotive ENTER until idle) */
+        public final boolean driving;
+        /** locations are kept (automotive ENTER until the grace timer ends the trip) */
+        public final boolean recordingTrip;
+        public final String storageDurability;
+        public final String serverUrl;
+        public final String serverToken;
+        public final String weatherApiKey;
+        public final String weatherBaseUrl;
+        public final float lastWeatherLat;
+        public final float lastWeatherLon;
+        public final long lastWeatherTimestamp;
+        /** 'identity' (default) or 'gzip' request body */
+        public final String uploadCompression;
+        /** deflate level of the gzip body, 1 (fast) to 9 (small) */
+        public final int uploadCompressionLevel;
+        /** server url that answered 415 to a gzip body: identity is sent to it */
+        public final String gzipRefusedUrl;
+        /** 'rows' (default), 'columnar' or 'cbor' request body */
+        public final String uploadCodec;
+        /** server url that answered 415 to a columnar / cbor body: rows are sent to it */
+        public final String codecRefusedUrl;
+        /** trajectory simplification tolerance before upload, meters (0: every point sent) */
+        public final float simplifyToleranceMeters;
+
+        private State(Builder b) {
+            trackingActive = b.trackingActive;
+            driving = b.driving;
+            recordingTrip = b.recordingTrip;
+            storageDurability = b.storageDurability;
+            serverUrl = b.serverUrl;
+            serverToken = b.serverToken;
+            weatherApiKey = b.weatherApiKey;
+            weatherBaseUrl = b.weatherBaseUrl;
+            lastWeatherLat = b.lastWeatherLat;
+            lastWeatherLon = b.lastWeatherLon;
+            lastWeatherTimestamp = b.lastWeatherTimestamp;
+            uploadCompression = b.uploadCompression;
+            uploadCompressionLevel = b.uploadCompressionLevel;
+            gzipRefusedUrl = b.gzipRefusedUrl;
+            uploadCodec = b.uploadCodec;
+            codecRefusedUrl = b.codecRefusedUrl;
+            simplifyToleranceMeters = b.simplifyToleranceMeters;
+        }
+
+        /**
+         * gzip body for the upload to this server (opted in and not refused by it)
+         */
+        public boolean gzipUpload() {
+            return "gzip".equals(uploadCompression) && (serverUrl == null || !serverUrl.equals(gzipRefusedUrl));
+        }
+
+        /**
+         * Body format for the upload to this server (rows if the chosen one was refused by it)
+         */
+        public String payloadCodecName() {
+            if (uploadCodec == null || (serverUrl != null && serverUrl.equals(codecRefusedUrl))) {
+                return TripPayloadCodec.ROWS;
+            }
+            return uploadCodec;
+        }
+
+        public Builder toBuilder() {
+            return new Builder(this);
+        }
+    }
+
+    public static final class Builder {
+        private boolean trackingActive;
+        private boolean driving;
+        private boolean recordingTrip;
+        private String storageDurability;
+        private String serverUrl;
+        private String serverToken;
+        private String weatherApiKey;
+        private String weatherBaseUrl;
+        private float lastWeatherLat;
+        private float lastWeatherLon;
+        private long lastWeatherTimestamp;
+        private String uploadCompression;
+        private int uploadCompressionLevel = DEFAULT_COMPRESSION_LEVEL;
+        private String gzipRefusedUrl;
+        private String uploadCodec;
+        private String codecRefusedUrl;
+        private float simplifyToleranceMeters;
+
+        private Builder() {
+        }
+
+        private Builder(State s) {
+            trackingActive = s.trackingActive;
+            driving = s.driving;
+            recordingTrip = s.recordingTrip;
+            storageDurability = s.storageDurability;
+            serverUrl = s.serverUrl;
+            serverToken = s.serverToken;
+            weatherApiKey = s.weatherApiKey;
+            weatherBaseUrl = s.weatherBaseUrl;
+            lastWeatherLat = s.lastWeatherLat;
+            lastWeatherLon = s.lastWeatherLon;
+            lastWeatherTimestamp = s.lastWeatherTimestamp;
+            uploadCompression = s.uploadCompression;
+            uploadCompressionLevel = s.uploadCompressionLevel;
+            gzipRefusedUrl = s.gzipRefusedUrl;
+            uploadCodec = s.uploadCodec;
+            codecRefusedUrl = s.codecRefusedUrl;
+            simplifyToleranceMeters = s.simplifyToleranceMeters;
+        }
+
+        public Builder trackingActive(boolean value) { trackingActive = value; return this; }
+        public Builder driving(boolean value) { driving = value; return this; }
+        public Builder recordingTrip(boolean value) { recordingTrip = value; return this; }
+        public Builder storageDurability(String value) { storageDurability = value; return this; }
+        public Builder serverUrl(String value) { serverUrl = value; return this; }
+        public Builder serverToken(String value) { serverToken = value; return this; }
+        public Builder weatherApiKey(String value) { weatherApiKey = value; return this; }
+        public Builder weatherBaseUrl(String value) { weatherBaseUrl = value; return this; }
+        public Builder lastWeatherLat(float value) { lastWeatherLat = value; return this; }
+        public Builder lastWeatherLon(float value) { lastWeatherLon = value; return this; }
+        public Builder lastWeatherTimestamp(long value) { lastWeatherTimestamp = value; return this; }
+        public Builder uploadCompression(String value) { uploadCompression = value; return this; }
+        public Builder uploadCompressionLevel(int value) { uploadCompressionLevel = value; return this; }
+        public Builder gzipRefusedUrl(String value) { gzipRefusedUrl = value; return this; }
+        public Builder uploadCodec(String value) { uploadCodec = value; return this; }
+        public Builder codecRefusedUrl(String value) { codecRefusedUrl = value; return this; }
+        public Builder simplifyToleranceMeters(float value) { simplifyToleranceMeters = value; return this; }
+
+        public State build() {
+            return new State(this);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on the thread that made the update, after the new snapshot is visible
+         */
+        void onStateChanged(State previous, State current);
+    }
+
+    private static volatile TrackingStateStore instance = null;
+
+    private final SharedPreferences prefs;
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final ExecutorService persister = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "tracking-state");
+        t.setDaemon(true);
+        return t;
+    });
+    private final AtomicBoolean persistPending = new AtomicBoolean(false);
+
+    private volatile State state;
+
+    public static TrackingStateStore get(Context context) {
+        TrackingStateStore store = instance;
+        if (store == null) {
+            synchronized (TrackingStateStore.class) {
+                store = instance;
+                if (store == null) {
+                    store = new TrackingStateStore(context.getApplicationContext() != null
+                        ? context.getApplicationContext() : context);
+                    instance = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Current snapshot, no disk access
+     */
+    public static State current(Context context) {
+        return get(context).state;
+    }
+
+    private TrackingStateStore(Context context) {
+        prefs = safeContext(context).getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE);
+        migrateLegacyPrefs(context);
+        state = load();
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Atomically replace the snapshot by update(current), then notify and persist if it changed
+     */
+    public State update(UnaryOperator<Builder> update) {
+        State previous;
+        State next;
+        synchronized (this) {
+            previous = state;
+            next = update.apply(previous.toBuilder()).build();
+            if (sameAs(previous, next)) return previous;
+            state = next;
+        }
+        schedulePersist();
+        for (Listener listener : listeners) {
+            try {
+                listener.onStateChanged(previous, next);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "❌ State listener failed", e);
+            }
+        }
+        return next;
+    }
+
+    public void setTrackingActive(boolean value) {
+        update(b -> b.trackingActive(value));
+    }
+
+    public void setDriving(boolean value) {
+        update(b -> b.driving(value));
+    }
+
+    public void setRecordingTrip(boolean value) {
+        update(b -> b.recordingTrip(value));
+    }
+
+    // --- persistence ---
+
+    private void schedulePersist() {
+        if (persistPending.compareAndSet(false, true)) {
+            persister.execute(this::persist);
+        }
+    }
+
+    private void persist() {
+        // updates made while writing schedule a new pass
+        persistPending.set(false);
+        State s = state;
+        // commit() on this thread: apply() work is waited for by the main thread on service / receiver stop
+        boolean ok = prefs.edit()
+            .putBoolean(KEY_TRACKING_ACTIVE, s.trackingActive)
+            .putBoolean(KEY_DRIVING, s.driving)
+            .putBoolean(KEY_RECORDING_TRIP, s.recordingTrip)
+            .putString(KEY_DURABILITY, s.storageDurability)
+            .putString(KEY_SERVER_URL, s.serverUrl)
+            .putString(KEY_SERVER_TOKEN, s.serverToken)
+            .putString(KEY_WEATHER_API_KEY, s.weatherApiKey)
+            .putString(KEY_WEATHER_BASE_URL, s.weatherBaseUrl)
+            .putFloat(KEY_LAST_WEATHER_LAT, s.lastWeatherLat)
+            .putFloat(KEY_LAST_WEATHER_LON, s.lastWeatherLon)
+            .putLong(KEY_LAST_WEATHER_TIMESTAMP, s.lastWeatherTimestamp)
+            .putString(KEY_UPLOAD_COMPRESSION, s.uploadCompression)
+            .putInt(KEY_UPLOAD_COMPRESSION_LEVEL, s.uploadCompressionLevel)
+            .putString(KEY_GZIP_REFUSED_URL, s.gzipRefusedUrl)
+            .putString(KEY_UPLOAD_CODEC, s.uploadCodec)
+            .putString(KEY_CODEC_REFUSED_URL, s.codecRefusedUrl)
+            .putFloat(KEY_SIMPLIFY_TOLERANCE, s.simplifyToleranceMeters)
+            .commit();
+        if (!ok) {
+            Log.e(TAG, "❌ Tracking state not persisted");
+        }
+    }
+
+    private State load() {
+        Builder b = new Builder();
+        b.trackingActive = prefs.getBoolean(KEY_TRACKING_ACTIVE, false);
+        b.driving = prefs.getBoolean(KEY_DRIVING, false);
+        b.recordingTrip = prefs.getBoolean(KEY_RECORDING_TRIP, false);
+        b.storageDurability = prefs.getString(KEY_DURABILITY, null);
+        b.serverUrl = prefs.getString(KEY_SERVER_URL, null);
+        b.serverToken = prefs.getString(KEY_SERVER_TOKEN, null);
+        b.weatherApiKey = prefs.getString(KEY_WEATHER_API_KEY, null);
+        b.weatherBaseUrl = prefs.getString(KEY_WEATHER_BASE_URL, null);
+        b.lastWeatherLat = prefs.getFloat(KEY_LAST_WEATHER_LAT, 0f);
+        b.lastWeatherLon = prefs.getFloat(KEY_LAST_WEATHER_LON, 0f);
+        b.lastWeatherTimestamp = prefs.getLong(KEY_LAST_WEATHER_TIMESTAMP, 0);
+        b.uploadCompression = prefs.getString(KEY_UPLOAD_COMPRESSION, null);
+        b.uploadCompressionLevel = prefs.getInt(KEY_UPLOAD_COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL);
+        b.gzipRefusedUrl = prefs.getString(KEY_GZIP_REFUSED_URL, null);
+        b.uploadCodec = prefs.getString(KEY_UPLOAD_CODEC, null);
+        b.codecRefusedUrl = prefs.getString(KEY_CODEC_REFUSED_URL, null);
+        b.simplifyToleranceMeters = prefs.getFloat(KEY_SIMPLIFY_TOLERANCE, 0f);
+        return b.build();
+    }
+
+    /**
+     * Copy the values of the old pref files, once per file group
+     */
+    private void migrateLegacyPrefs(Context context) {
+        SharedPreferences.Editor editor = prefs.edit();
+        boolean changed = false;
+
+        if (!prefs.getBoolean(KEY_MIGRATED_DEVICE, false)) {
+            Context safeContext = safeContext(context);
+            SharedPreferences capacitor = safeContext.getSharedPreferences("CapacitorStorage", Context.MODE_PRIVATE);
+            SharedPreferences plugin = safeContext.getSharedPreferences("ActivityPluginPrefs", Context.MODE_PRIVATE);
+            editor.putBoolean(KEY_TRACKING_ACTIVE, capacitor.getBoolean("tracking_active", false));
+            editor.putBoolean(KEY_DRIVING, capacitor.getBoolean("driving_state", false));
+            editor.putBoolean(KEY_RECORDING_TRIP, plugin.getBoolean("driving_state", false));
+            editor.putString(KEY_DURABILITY, plugin.getString("storage_durability", null));
+            editor.putBoolean(KEY_MIGRATED_DEVICE, true);
+            changed = true;
+        }
+
+        if (!prefs.getBoolean(KEY_MIGRATED_CREDENTIAL, false)) {
+            try {
+                SharedPreferences trip = context.getSharedPreferences("TripPrefs", Context.MODE_PRIVATE);
+                SharedPreferences tracking = context.getSharedPreferences("tracking_prefs", Context.MODE_PRIVATE);
+                editor.putString(KEY_SERVER_URL, trip.getString("server_url", null));
+                editor.putString(KEY_SERVER_TOKEN, trip.getString("jwt_token", null));
+                editor.putString(KEY_WEATHER_API_KEY, tracking.getString("weather_api_key", null));
+                editor.putString(KEY_WEATHER_BASE_URL, tracking.getString("weather_base_url", null));
+                editor.putFloat(KEY_LAST_WEATHER_LAT, tracking.getFloat("last_weather_lat", 0f));
+                editor.putFloat(KEY_LAST_WEATHER_LON, tracking.getFloat("last_weather_lon", 0f));
+                editor.putLong(KEY_LAST_WEATHER_TIMESTAMP, tracking.getLong("last_weather_timestamp", 0));
+                editor.putBoolean(KEY_MIGRATED_CREDENTIAL, true);
+                changed = true;
+            } catch (IllegalStateException e) {
+                // Direct Boot: credential storage still locked, retried on next process start
+                Log.w(TAG, "⚠️ Legacy prefs locked until first unlock, migration postponed");
+            }
+        }
+
+        if (changed) {
+            // once per install, before the first snapshot is built
+            editor.commit();
+            Log.d(TAG, "📦 Legacy prefs migrated to " + PREF_NAME);
+        }
+    }
+
+    private static boolean sameAs(State a, State b) {
+        return a.trackingActive == b.trackingActive
+            && a.driving == b.driving
+            && a.recordingTrip == b.recordingTrip
+            && equals(a.storageDurability, b.storageDurability)
+            && equals(a.serverUrl, b.serverUrl)
+            && equals(a.serverToken, b.serverToken)
+            && equals(a.weatherApiKey, b.weatherApiKey)
+            && equals(a.weatherBaseUrl, b.weatherBaseUrl)
+            && a.lastWeatherLat == b.lastWeatherLat
+            && a.lastWeatherLon == b.lastWeatherLon
+            && a.lastWeatherTimestamp == b.lastWeatherTimestamp
+            && equals(a.uploadCompression, b.uploadCompression)
+            && a.uploadCompressionLevel == b.uploadCompressionLevel
+            && equals(a.gzipRefusedUrl, b.gzipRefusedUrl)
+            && equals(a.uploadCodec, b.uploadCodec)
+            && equals(a.codecRefusedUrl, b.codecRefusedUrl)
+            && a.simplifyToleranceMeters == b.simplifyToleranceMeters;
+    }
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? b == null : a.equals(b);
+    }
+
+    private static Context safeContext(Context context) {
+        return (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+            ? context.createDeviceProtectedStorageContext() : context;
+    }
+}
@@ -0,0 +1,169 @@
+package fr.lelab.activity;
+
+import java.util.Arrays;
+
+/**
+ * Douglas-Peucker simplification of a trip, before encoding it for the upload.
+ *
+ * At 1 Hz a straight road gives hundreds of aligned points: a point is dropped when it lies
+ * within toleranceMeters of the segment joining the kept points around it.
+ *
+ * Always kept: first and last points, points where the context changes (weather, app, phone
+ * lock, distraction) and points flagged as distraction, so the context runs of the upload are
+ * unchanged. The trip is cut at these points and at most every window points, and each piece
+ * is simplified on its own: bounded work and memory whatever the trip length.
+ *
+ * Distances are measured between the 3D points on the sphere (Earth-centered, in meters): a flat
+ * projection bends long straight roads by meters over a window, the chords do not.
+ */
+public class TrajectorySimplifier {
+
+    public static final int DEFAULT_WINDOW = 512;
+
+    private final double toleranceMeters;
+    private final int window;
+
+    private boolean[] keep = new boolean[0];
+    // piece as Earth-centered points, in meters
+    private double[] x = new double[0];
+    private double[] y = new double[0];
+    private double[] z = new double[0];
+    private int[] stack = new int[64];
+
+    public static class Result {
+        public int pointsIn;
+        public int pointsOut;
+        /** largest distance of a dropped point to the simplified track, meters */
+        public double maxDeviation;
+
+        /** share of the points dropped, 0 to 1 */
+        public double reduction() {
+            return pointsIn == 0 ? 0 : 1 - (double) pointsOut / pointsIn;
+        }
+
+        @Override
+        public String toString() {
+            return pointsIn + " -> " + pointsOut + " points (-" + Math.round(reduction() * 100)
+                + "%), max deviation " + Math.round(maxDeviation * 10) / 10.0 + " m";
+        }
+    }
+
+    public TrajectorySimplifier(double toleranceMeters) {
+        this(toleranceMeters, DEFAULT_WINDOW);
+    }
+
+    public TrajectorySimplifier(double toleranceMeters, int window) {
+        this.toleranceMeters = toleranceMeters;
+        this.window = Math.max(window, 3);
+    }
+
+    /**
+     * Simplify the trip in place (joined TripBuffer, points by time)
+     */
+    public Result simplify(TripBuffer trip) {
+        int n = trip.size();
+        Result result = new Result();
+        result.pointsIn = n;
+        if (n <= 2 || !(toleranceMeters > 0)) {
+            result.pointsOut = n;
+            return result;
+        }
+
+        if (keep.length < n) keep = new boolean[n];
+        Arrays.fill(keep, 0, n, false);
+        keep[0] = true;
+        keep[n - 1] = true;
+        for (int i = 1; i < n - 1; i++) {
+            if (!trip.sameContext(i, i - 1) || (trip.hasDistraction(i) && trip.distraction(i))) keep[i] = true;
+        }
+
+        int anchor = 0;
+        while (anchor < n - 1) {
+            int limit = Math.min(n - 1, anchor + window - 1);
+            int end = anchor + 1;
+            while (end < limit && !keep[end]) end++;
+            keep[end] = true;
+            result.maxDeviation = Math.max(result.maxDeviation, simplifyPiece(trip, anchor, end));
+            anchor = end;
+        }
+
+        trip.retain(keep);
+        result.pointsOut = trip.size();
+        return result;
+    }
+
+    /**
+     * Douglas-Peucker on [from, to], both kept, no forced point inside
+     *
+     * @return largest distance of the dropped points
+     */
+    private double simplifyPiece(TripBuffer trip, int from, int to) {
+        int count = to - from + 1;
+        if (count <= 2) return 0;
+
+        if (x.length < count) {
+            x = new double[Math.max(count, window)];
+            y = new double[x.length];
+            z = new double[x.length];
+        }
+        for (int i = 0; i < count; i++) {
+            double lat = Math.toRadians(trip.lat(from + i));
+            double lng = Math.toRadians(trip.lng(from + i));
+            double r = GeoUtils.EARTH_RADIUS_M * Math.cos(lat);
+            x[i] = r * Math.cos(lng);
+            y[i] = r * Math.sin(lng);
+            z[i] = GeoUtils.EARTH_RADIUS_M * Math.sin(lat);
+        }
+
+        double maxDropped = 0;
+        int top = 0;
+        push(top++, 0, count - 1);
+        while (top > 0) {
+            top--;
+            int s = stack[2 * top];
+            int e = stack[2 * top + 1];
+            if (e - s < 2) continue;
+
+            double farthest = -1;
+            int index = -1;
+            for (int i = s + 1; i < e; i++) {
+                double d = segmentDistance(i, s, e);
+                if (d > farthest) {
+                    farthest = d;
+                    index = i;
+                }
+            }
+            if (farthest > toleranceMeters) {
+                keep[from + index] = true;
+                push(top++, s, index);
+                push(top++, index, e);
+            } else {
+                maxDropped = Math.max(maxDropped, farthest);
+            }
+        }
+        return maxDropped;
+    }
+
+    private void push(int slot, int s, int e) {
+        if (2 * slot + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[2 * slot] = s;
+        stack[2 * slot + 1] = e;
+    }
+
+    /**
+     * Distance from point p to the segment a - b of the piece
+     */
+    private double segmentDistance(int p, int a, int b) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double dz = z[b] - z[a];
+        double len2 = dx * dx + dy * dy + dz * dz;
+        double t = len2 > 0 ? ((x[p] - x[a]) * dx + (y[p] - y[a]) * dy + (z[p] - z[a]) * dz) / len2 : 0;
+        if (t < 0) t = 0;
+        else if (t > 1) t = 1;
+        double ex = x[a] + t * dx - x[p];
+        double ey = y[a] + t * dy - y[p];
+        double ez = z[a] + t * dz - z[p];
+        return Math.sqrt(ex * ex + ey * ey + ez * ez);
+    }
+}
@@ -0,0 +1,303 @@
+package fr.lelab.activity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Points of one trip in primitive parallel arrays (one row per record), used from the store
+ * read to the upload instead of a JSONObject per measure: about 35 bytes per point.
+ *
+ * Context values are kept as small ids in per-trip dictionaries (weather, app name) and as
+ * flag bits (phone unlock, distraction). Context records are added as rows too, then join()
+ * sorts the rows by time, copies the context onto the following points and drops the
+ * context rows, like TrackContext.apply() / applyTo() on the record list.
+ *
+ * Speeds are kept at the cm/s precision of the store.
+ */
+public class TripBuffer {
+
+    private static final int FLAG_UNLOCK = 1;
+    private static final int FLAG_DISTRACTION_SET = 1 << 1;
+    private static final int FLAG_DISTRACTION = 1 << 2;
+    private static final int FLAG_CONTEXT = 1 << 3;
+    // context kind of a context row, in the high bits of the flags
+    private static final int KIND_SHIFT = 4;
+
+    private static final short NONE = -1;
+
+    private int size = 0;
+    private double[] lat;
+    private double[] lng;
+    private float[] speed;
+    private long[] timestamp;
+    private byte[] flags;
+    private short[] weather;
+    private short[] app;
+
+    // dictionaries of the trip (a few entries: the context rarely changes)
+    private final List<String> weatherTypes = new ArrayList<>();
+    private double[] weatherTemps = new double[4];
+    private final List<String> appNames = new ArrayList<>();
+
+    public TripBuffer() {
+        this(256);
+    }
+
+    public TripBuffer(int capacity) {
+        capacity = Math.max(capacity, 16);
+        lat = new double[capacity];
+        lng = new double[capacity];
+        speed = new float[capacity];
+        timestamp = new long[capacity];
+        flags = new byte[capacity];
+        weather = new short[capacity];
+        app = new short[capacity];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        size = 0;
+        weatherTypes.clear();
+        appNames.clear();
+    }
+
+    /**
+     * Add a location or context record (activity records are ignored)
+     */
+    public void add(TrackRecord r) {
+        if (!r.isLocation() && !r.isContext()) return;
+        ensureCapacity(size + 1);
+
+        int i = size++;
+        lat[i] = r.lat;
+        lng[i] = r.lng;
+        speed[i] = (float) r.speed;
+        timestamp[i] = r.timestamp;
+        weather[i] = (r.weatherType != null) ? weatherId(r.weatherType, r.weatherTemp) : NONE;
+        app[i] = (r.appName != null) ? appId(r.appName) : NONE;
+
+        int f = 0;
+        if (r.phoneUnlock) f |= FLAG_UNLOCK;
+        if (r.distraction != null) {
+            f |= FLAG_DISTRACTION_SET;
+            if (r.distraction) f |= FLAG_DISTRACTION;
+        }
+        if (r.isContext()) f |= FLAG_CONTEXT | (r.contextKind << KIND_SHIFT);
+        flags[i] = (byte) f;
+    }
+
+    /**
+     * Sort the rows by timestamp (stable), give each point the last context before it
+     * and keep only the points
+     */
+    public void join() {
+        sortByTimestamp();
+
+        short joinedWeather = NONE;
+        short joinedApp = NONE;
+        int joinedFlags = 0;
+        // context kinds seen, bit (1 << kind)
+        int known = 0;
+
+        int out = 0;
+        for (int i = 0; i < size; i++) {
+            int f = flags[i];
+            if ((f & FLAG_CONTEXT) != 0) {
+                int kind = (f >> KIND_SHIFT) & 0x0F;
+                switch (kind) {
+                    case TrackRecord.CONTEXT_WEATHER:
+                        joinedWeather = weather[i];
+                        break;
+                    case TrackRecord.CONTEXT_APP:
+                        joinedApp = app[i];
+                        break;
+                    case TrackRecord.CONTEXT_LOCK:
+                        joinedFlags = (joinedFlags & ~FLAG_UNLOCK) | (f & FLAG_UNLOCK);
+                        break;
+                    case TrackRecord.CONTEXT_DISTRACTION:
+                        joinedFlags = (joinedFlags & ~(FLAG_DISTRACTION_SET | FLAG_DISTRACTION))
+                            | (f & (FLAG_DISTRACTION_SET | FLAG_DISTRACTION));
+                        break;
+                    default:
+                        continue;
+                }
+                known |= 1 << kind;
+                continue;
+            }
+
+            // unknown kinds keep the values stored in the point (records written before context records)
+            if ((known & (1 << TrackRecord.CONTEXT_WEATHER)) != 0) weather[i] = joinedWeather;
+            if ((known & (1 << TrackRecord.CONTEXT_APP)) != 0) app[i] = joinedApp;
+            if ((known & (1 << TrackRecord.CONTEXT_LOCK)) != 0) {
+                f = (f & ~FLAG_UNLOCK) | (joinedFlags & FLAG_UNLOCK);
+            }
+            if ((known & (1 << TrackRecord.CONTEXT_DISTRACTION)) != 0) {
+                f = (f & ~(FLAG_DISTRACTION_SET | FLAG_DISTRACTION))
+                    | (joinedFlags & (FLAG_DISTRACTION_SET | FLAG_DISTRACTION));
+            }
+            flags[i] = (byte) f;
+            if (out != i) move(i, out);
+            out++;
+        }
+        size = out;
+    }
+
+    // --- points ---
+
+    public double lat(int i) {
+        return lat[i];
+    }
+
+    public double lng(int i) {
+        return lng[i];
+    }
+
+    /**
+     * Speed in m/s as stored (cm/s precision), same double as the decoded record
+     */
+    public double speed(int i) {
+        float s = speed[i];
+        if (Float.isNaN(s) || Float.isInfinite(s)) return s;
+        return Math.round(s * 100.0) / 100.0;
+    }
+
+    public long timestamp(int i) {
+        return timestamp[i];
+    }
+
+    public long firstTimestamp() {
+        return timestamp[0];
+    }
+
+    public long lastTimestamp() {
+        return timestamp[size - 1];
+    }
+
+    public String weatherType(int i) {
+        return weather[i] == NONE ? null : weatherTypes.get(weather[i]);
+    }
+
+    public double weatherTemp(int i) {
+        return weather[i] == NONE ? 0 : weatherTemps[weather[i]];
+    }
+
+    public String appName(int i) {
+        return app[i] == NONE ? null : appNames.get(app[i]);
+    }
+
+    public boolean phoneUnlock(int i) {
+        return (flags[i] & FLAG_UNLOCK) != 0;
+    }
+
+    public boolean hasDistraction(int i) {
+        return (flags[i] & FLAG_DISTRACTION_SET) != 0;
+    }
+
+    public boolean distraction(int i) {
+        return (flags[i] & FLAG_DISTRACTION) != 0;
+    }
+
+    /**
+     * Same weather, app, phone lock and distraction values
+     */
+    public boolean sameContext(int i, int j) {
+        int mask = FLAG_UNLOCK | FLAG_DISTRACTION_SET | FLAG_DISTRACTION;
+        return weather[i] == weather[j] && app[i] == app[j] && (flags[i] & mask) == (flags[j] & mask);
+    }
+
+    // --- filters ---
+
+    /**
+     * Keep the points i with keep[i] (order unchanged)
+     */
+    public void retain(boolean[] keep) {
+        int out = 0;
+        for (int i = 0; i < size; i++) {
+            if (!keep[i]) continue;
+            if (out != i) move(i, out);
+            out++;
+        }
+        size = out;
+    }
+
+    // --- internals ---
+
+    private short weatherId(String type, double temp) {
+        for (int id = weatherTypes.size() - 1; id >= 0; id--) {
+            if (weatherTemps[id] == temp && type.equals(weatherTypes.get(id))) return (short) id;
+        }
+        int id = weatherTypes.size();
+        if (id == weatherTemps.length) weatherTemps = Arrays.copyOf(weatherTemps, id * 2);
+        weatherTypes.add(type);
+        weatherTemps[id] = temp;
+        return (short) id;
+    }
+
+    private short appId(String name) {
+        for (int id = appNames.size() - 1; id >= 0; id--) {
+            if (name.equals(appNames.get(id))) return (short) id;
+        }
+        appNames.add(name);
+        return (short) (appNames.size() - 1);
+    }
+
+    /**
+     * Rows come in append order, almost always by time: insertion sort, stable
+     * and linear when already sorted
+     */
+    private void sortByTimestamp() {
+        for (int i = 1; i < size; i++) {
+            if (timestamp[i] >= timestamp[i - 1]) continue;
+
+            double la = lat[i], ln = lng[i];
+            float sp = speed[i];
+            long ts = timestamp[i];
+            byte fl = flags[i];
+            short we = weather[i], ap = app[i];
+
+            int j = i - 1;
+            while (j >= 0 && timestamp[j] > ts) {
+                move(j, j + 1);
+                j--;
+            }
+            j++;
+            lat[j] = la;
+            lng[j] = ln;
+            speed[j] = sp;
+            timestamp[j] = ts;
+            flags[j] = fl;
+            weather[j] = we;
+            app[j] = ap;
+        }
+    }
+
+    private void move(int from, int to) {
+        lat[to] = lat[from];
+        lng[to] = lng[from];
+        speed[to] = speed[from];
+        timestamp[to] = timestamp[from];
+        flags[to] = flags[from];
+        weather[to] = weather[from];
+        app[to] = app[from];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= lat.length) return;
+        int n = Math.max(capacity, lat.length * 2);
+        lat = Arrays.copyOf(lat, n);
+        lng = Arrays.copyOf(lng, n);
+        speed = Arrays.copyOf(speed, n);
+        timestamp = Arrays.copyOf(timestamp, n);
+        flags = Arrays.copyOf(flags, n);
+        weather = Arrays.copyOf(weather, n);
+        app = Arrays.copyOf(app, n);
+    }
+}
@@ -0,0 +1,135 @@
+package fr.lelab.activity;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * HTTP POST of an outbox body (no Android dependency, used by the upload pool).
+ *
+ * Keep-alive: the response body, success or error, is always read to the end and closed and the
+ * connection is never disconnect()ed, so HttpURLConnection gives the socket (and its TLS session)
+ * back to its pool for the next trip to the same server. Only a failed exchange is disconnected.
+ */
+public class TripHttpSender {
+
+    private static final int CONNECT_TIMEOUT_MS = 15000;
+    private static final int READ_TIMEOUT_MS = 15000;
+    // error messages are logged, not stored
+    private static final int MAX_ERROR_BODY = 4096;
+
+    public static class Response {
+        /** HTTP status, -1 if the request failed */
+        public int code = -1;
+        public long payloadBytes;
+        public long wireBytes;
+        /** error body (4xx / 5xx), truncated */
+        public String errorBody;
+        public Exception failure;
+        /** 415 to the gzip body: sent again in identity (this response), identity from now on */
+        public boolean gzipRefused;
+    }
+
+    public interface RequestListener {
+        /**
+         * After each request, the identity retry included (logs, metrics)
+         */
+        void onRequest(UploadOutbox.Entry entry, boolean gzip, Response response);
+    }
+
+    /**
+     * post(), and once more in identity when the server answers 415 to the gzip body
+     */
+    public static Response postWithIdentityFallback(String urlStr, String token, UploadOutbox.Entry entry,
+                                                    boolean gzip, int level, RequestListener listener) {
+        Response response = post(urlStr, token, entry, gzip, level);
+        if (listener != null) listener.onRequest(entry, gzip, response);
+        if (gzip && response.code == HttpURLConnection.HTTP_UNSUPPORTED_TYPE) {
+            response = post(urlStr, token, entry, false, 0);
+            response.gzipRefused = true;
+            if (listener != null) listener.onRequest(entry, false, response);
+        }
+        return response;
+    }
+
+    /**
+     * Thread safe: one connection per call
+     */
+    public static Response post(String urlStr, String token, UploadOutbox.Entry entry, boolean gzip, int level) {
+        Response response = new Response();
+        HttpURLConnection conn = null;
+        CountingOutputStream wire = null;
+        try {
+            URL url = new URL(urlStr);
+            conn = (HttpURLConnection) url.openConnection();
+            conn.setRequestMethod("POST");
+            // Ajout explicite du charset dans le header
+            conn.setRequestProperty("Content-Type", entry.contentType);
+            conn.setRequestProperty("Authorization", "Bearer " + token);
+            // same key for every attempt of this trip: the server drops the duplicates
+            conn.setRequestProperty("Idempotency-Key", entry.tripId);
+            conn.setRequestProperty("Accept", "application/json");
+            conn.setDoOutput(true);
+            conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+            conn.setReadTimeout(READ_TIMEOUT_MS);
+            // body not buffered by HttpURLConnection
+            if (gzip) {
+                conn.setRequestProperty("Content-Encoding", "gzip");
+                conn.setChunkedStreamingMode(0);
+            } else {
+                conn.setFixedLengthStreamingMode(entry.body.length());
+            }
+
+            wire = new CountingOutputStream(conn.getOutputStream());
+            OutputStream body = gzip ? new LevelGzipOutputStream(wire, level) : wire;
+            try (InputStream in = new FileInputStream(entry.body); OutputStream os = new BufferedOutputStream(body, 8192)) {
+                byte[] chunk = new byte[8192];
+                int n;
+                while ((n = in.read(chunk)) > 0) {
+                    os.write(chunk, 0, n);
+                    response.payloadBytes += n;
+                }
+                os.flush(); // On force l'envoi
+            }
+
+            response.code = conn.getResponseCode();
+            if (response.code >= 400) {
+                response.errorBody = drain(conn.getErrorStream(), MAX_ERROR_BODY);
+            } else {
+                drain(conn.getInputStream(), 0);
+            }
+        } catch (Exception e) {
+            response.code = -1;
+            response.failure = e;
+            // half done exchange: the socket must not be reused
+            if (conn != null) conn.disconnect();
+        }
+        response.wireBytes = (wire != null) ? wire.getCount() : 0;
+        return response;
+    }
+
+    /**
+     * Read the stream to the end and close it (socket back to the keep-alive pool)
+     *
+     * @return the first keep bytes as text
+     */
+    static String drain(InputStream in, int keep) throws IOException {
+        if (in == null) return "";
+        ByteArrayOutputStream kept = new ByteArrayOutputStream(Math.min(keep, 512));
+        try (InputStream s = in) {
+            byte[] chunk = new byte[1024];
+            int n;
+            while ((n = s.read(chunk)) > 0) {
+                int room = keep - kept.size();
+                if (room > 0) kept.write(chunk, 0, Math.min(n, room));
+            }
+        }
+        return new String(kept.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,37 @@
+package fr.lelab.activity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Body format of a trip upload, chosen with the startTracking option uploadCodec:
+ *   rows     : { "measures": [ {lat, lng, speed, timestamp, ...}, ... ] } (default, historical format)
+ *   columnar : JSON parallel arrays, delta timestamps, context as runs (ColumnarJsonPayloadCodec)
+ *   cbor     : the columnar layout in CBOR with integer deltas (CborPayloadCodec)
+ *
+ * Codecs write the body straight to the connection from the TripBuffer. Not thread safe.
+ */
+public interface TripPayloadCodec {
+
+    String ROWS = "rows";
+    String COLUMNAR = "columnar";
+    String CBOR = "cbor";
+
+    String name();
+
+    String contentType();
+
+    /**
+     * @return bytes written
+     */
+    long writeTo(TripBuffer trip, OutputStream out) throws IOException;
+
+    /**
+     * Codec for an uploadCodec option value, rows when unknown or null
+     */
+    static TripPayloadCodec forName(String name) {
+        if (COLUMNAR.equals(name)) return new ColumnarJsonPayloadCodec();
+        if (CBOR.equals(name)) return new CborPayloadCodec();
+        return new RowJsonPayloadCodec();
+    }
+}
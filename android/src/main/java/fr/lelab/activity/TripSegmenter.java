@@ -0,0 +1,162 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.UUID;
+
+/**
+ * Cuts the track into automotive trips in one forward pass (records in timestamp order).
+ *
+ * automotive ENTER starts a trip, locations are added while a trip is open.
+ * automotive EXIT does not end the trip right away: it arms a deadline, and the trip
+ * only ends if no automotive ENTER comes within REENTER_WINDOW_MS (stop-and-go traffic).
+ * Locations received during that window are kept aside and added back on a re-ENTER.
+ * Trips shorter than MIN_DURATION_MS (first to last location) are dropped.
+ *
+ * Only summaries are kept (the points stay in the track store), so the state is small
+ * and can be checkpointed with saveState() / restoreState().
+ */
+public class TripSegmenter {
+
+    public static final long DEFAULT_REENTER_WINDOW_MS = 5 * 60 * 1000;
+    public static final long DEFAULT_MIN_DURATION_MS = 30 * 1000;
+
+    public interface TripListener {
+        /**
+         * @param trip summary of the trip, points are the locations between its start and end
+         */
+        void onTrip(TripSummary trip);
+    }
+
+    private final long reenterWindowMs;
+    private final long minDurationMs;
+    private final TripListener listener;
+
+    private boolean tracking = false;
+    private boolean exitPending = false;
+    private long exitTimestamp;
+    private TripSummary trip = new TripSummary();
+    private TripSummary afterExit = null;
+
+    public TripSegmenter(TripListener listener) {
+        this(DEFAULT_REENTER_WINDOW_MS, DEFAULT_MIN_DURATION_MS, listener);
+    }
+
+    public TripSegmenter(long reenterWindowMs, long minDurationMs, TripListener listener) {
+        this.reenterWindowMs = reenterWindowMs;
+        this.minDurationMs = minDurationMs;
+        this.listener = listener;
+    }
+
+    /**
+     * @return true if the record changed the trip state (start, exit, re-enter, end)
+     */
+    public boolean accept(TrackRecord record) {
+        boolean changed = false;
+
+        // no re-ENTER before the deadline: the trip ended at the EXIT
+        if (exitPending && record.timestamp - exitTimestamp > reenterWindowMs) {
+            endTrip();
+            changed = true;
+        }
+
+        if (record.isActivity() && "automotive".equals(record.activity)) {
+            if ("ENTER".equals(record.transition)) {
+                if (exitPending) {
+                    // bad stop: the trip goes on with the points of the pause
+                    exitPending = false;
+                    trip.append(afterExit);
+                    afterExit = null;
+                    changed = true;
+                } else if (!tracking) {
+                    tracking = true;
+                    trip = new TripSummary();
+                    trip.tripId = UUID.randomUUID().toString();
+                    changed = true;
+                }
+            } else if ("EXIT".equals(record.transition) && tracking && !exitPending) {
+                exitPending = true;
+                exitTimestamp = record.timestamp;
+                afterExit = trip.continuation();
+                changed = true;
+            }
+        }
+
+        if (record.isLocation() && tracking && isValid(record)) {
+            (exitPending ? afterExit : trip).add(record);
+        } else if (record.isContext() && record.contextKind == TrackRecord.CONTEXT_DISTRACTION && tracking) {
+            (exitPending ? afterExit : trip).setDistraction(Boolean.TRUE.equals(record.distraction));
+        }
+        return changed;
+    }
+
+    /**
+     * End of the records (or driving really stopped): a pending EXIT ends its trip
+     * @return true if a trip was ended
+     */
+    public boolean finish() {
+        if (!exitPending) return false;
+        endTrip();
+        return true;
+    }
+
+    public boolean isTracking() {
+        return tracking;
+    }
+
+    /**
+     * Copy of the open trip, with the points received since a pending EXIT
+     * (exitTimestamp set while it is pending), null if no trip is open
+     */
+    public TripSummary currentTrip() {
+        if (!tracking) return null;
+        TripSummary current = trip.copy();
+        if (exitPending) {
+            current.append(afterExit);
+            current.exitTimestamp = exitTimestamp;
+        }
+        return current;
+    }
+
+    public void reset() {
+        tracking = false;
+        exitPending = false;
+        trip = new TripSummary();
+        afterExit = null;
+    }
+
+    private void endTrip() {
+        if (trip.pointCount > 0 && trip.getDuration() >= minDurationMs) {
+            trip.exitTimestamp = exitTimestamp;
+            listener.onTrip(trip);
+        }
+        reset();
+    }
+
+    private static boolean isValid(TrackRecord record) {
+        return !Double.isNaN(record.lat) && !Double.isNaN(record.lng) && record.timestamp > 0;
+    }
+
+    // --- checkpoint ---
+
+    public JSONObject saveState() throws JSONException {
+        JSONObject state = new JSONObject();
+        state.put("tracking", tracking);
+        state.put("exitPending", exitPending);
+        state.put("exitTimestamp", exitTimestamp);
+        state.put("trip", trip.toJSON());
+        if (afterExit != null) state.put("afterExit", afterExit.toJSON());
+        return state;
+    }
+
+    public void restoreState(JSONObject state) {
+        tracking = state.optBoolean("tracking", false);
+        exitPending = state.optBoolean("exitPending", false);
+        exitTimestamp = state.optLong("exitTimestamp", 0);
+        JSONObject t = state.optJSONObject("trip");
+        trip = (t != null) ? TripSummary.fromJSON(t) : new TripSummary();
+        JSONObject a = state.optJSONObject("afterExit");
+        afterExit = (a != null) ? TripSummary.fromJSON(a) : (exitPending ? trip.continuation() : null);
+    }
+}
@@ -0,0 +1,213 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Running summary of a trip (or of the points of a pause), updated point by point in O(1).
+ * A sealed trip is saved as this object (see SealedTripStore), the open one is shown
+ * live to JS (getCurrentTripStats, tripStats event).
+ *
+ * The time between two points is counted as moving when the second point is at least
+ * STOP_SPEED_MS, and as distracted while the last distraction value is true. A stop is
+ * counted once the car stays under STOP_SPEED_MS for MIN_STOP_MS after it has moved.
+ */
+public class TripSummary {
+
+    static final double STOP_SPEED_MS = 1.0;
+    static final long MIN_STOP_MS = 5 * 1000;
+
+    public String tripId;
+    public long startTimestamp;
+    public long endTimestamp;
+    public int pointCount = 0;
+    public double distance = 0;      // meters
+    public double maxSpeed = 0;      // m/s
+    public long exitTimestamp = 0;   // automotive EXIT that ended the trip
+    public long sealedAt = 0;
+    public long movingTime = 0;      // ms
+    public int stopCount = 0;
+    public long distractionTime = 0; // ms
+
+    // last point, to chain the distance and the times
+    private boolean hasLast = false;
+    private double lastLat;
+    private double lastLng;
+    private long lastTime;
+    // stop state: start of the slow run (0 if moving), already counted
+    private boolean moved = false;
+    private long stoppedSince = 0;
+    private boolean stopCounted = false;
+    private boolean distracting = false;
+
+    public void add(TrackRecord point) {
+        // records written before context records embed their distraction value
+        if (point.distraction != null) distracting = point.distraction;
+
+        boolean moving = point.speed >= STOP_SPEED_MS;
+        if (hasLast) {
+            distance += GeoUtils.distance(lastLat, lastLng, point.lat, point.lng);
+        }
+        if (lastTime > 0) {
+            long dt = Math.max(0, point.timestamp - lastTime);
+            if (moving) movingTime += dt;
+            if (distracting) distractionTime += dt;
+        }
+        if (pointCount == 0) startTimestamp = point.timestamp;
+        endTimestamp = point.timestamp;
+        pointCount++;
+        if (point.speed > maxSpeed) maxSpeed = point.speed;
+
+        if (moving) {
+            moved = true;
+            stoppedSince = 0;
+            stopCounted = false;
+        } else if (moved) {
+            if (stoppedSince == 0) stoppedSince = point.timestamp;
+            if (!stopCounted && point.timestamp - stoppedSince >= MIN_STOP_MS) {
+                stopCount++;
+                stopCounted = true;
+            }
+        }
+
+        hasLast = true;
+        lastLat = point.lat;
+        lastLng = point.lng;
+        lastTime = point.timestamp;
+    }
+
+    /**
+     * Distraction context record: counts for the time until the next value
+     */
+    public void setDistraction(boolean distraction) {
+        distracting = distraction;
+    }
+
+    /**
+     * Summary of the points following this one (distance chained from its last point)
+     */
+    public TripSummary continuation() {
+        TripSummary next = new TripSummary();
+        next.copyRunningState(this);
+        return next;
+    }
+
+    /**
+     * Copy of this summary (live stats read outside of the writer thread)
+     */
+    public TripSummary copy() {
+        TripSummary c = new TripSummary();
+        c.tripId = tripId;
+        c.startTimestamp = startTimestamp;
+        c.endTimestamp = endTimestamp;
+        c.pointCount = pointCount;
+        c.distance = distance;
+        c.maxSpeed = maxSpeed;
+        c.exitTimestamp = exitTimestamp;
+        c.sealedAt = sealedAt;
+        c.movingTime = movingTime;
+        c.stopCount = stopCount;
+        c.distractionTime = distractionTime;
+        c.copyRunningState(this);
+        return c;
+    }
+
+    /**
+     * Append a continuation() summary
+     */
+    public void append(TripSummary next) {
+        if (next.pointCount > 0) {
+            if (pointCount == 0) startTimestamp = next.startTimestamp;
+            endTimestamp = next.endTimestamp;
+            pointCount += next.pointCount;
+            distance += next.distance;
+            maxSpeed = Math.max(maxSpeed, next.maxSpeed);
+            movingTime += next.movingTime;
+            stopCount += next.stopCount;
+            distractionTime += next.distractionTime;
+        }
+        copyRunningState(next);
+    }
+
+    private void copyRunningState(TripSummary from) {
+        hasLast = from.hasLast;
+        lastLat = from.lastLat;
+        lastLng = from.lastLng;
+        lastTime = from.lastTime;
+        moved = from.moved;
+        stoppedSince = from.stoppedSince;
+        stopCounted = from.stopCounted;
+        distracting = from.distracting;
+    }
+
+    public long getDuration() {
+        return pointCount > 0 ? endTimestamp - startTimestamp : 0;
+    }
+
+    public double getAverageSpeed() {
+        long seconds = getDuration() / 1000;
+        return seconds > 0 ? distance / seconds : 0;
+    }
+
+    /**
+     * Average speed over the moving time only (m/s)
+     */
+    public double getAverageMovingSpeed() {
+        long seconds = movingTime / 1000;
+        return seconds > 0 ? distance / seconds : 0;
+    }
+
+    public JSONObject toJSON() throws JSONException {
+        JSONObject obj = new JSONObject();
+        if (tripId != null) obj.put("tripId", tripId);
+        obj.put("start", startTimestamp);
+        obj.put("end", endTimestamp);
+        obj.put("pointCount", pointCount);
+        obj.put("distance", distance);
+        obj.put("duration", getDuration());
+        obj.put("averageSpeed", getAverageSpeed());
+        obj.put("maxSpeed", maxSpeed);
+        obj.put("movingTime", movingTime);
+        obj.put("stopCount", stopCount);
+        obj.put("distractionTime", distractionTime);
+        if (exitTimestamp > 0) obj.put("exitAt", exitTimestamp);
+        if (sealedAt > 0) obj.put("sealedAt", sealedAt);
+        if (hasLast) {
+            obj.put("lastLat", lastLat);
+            obj.put("lastLng", lastLng);
+            obj.put("lastAt", lastTime);
+        }
+        if (moved) obj.put("moved", true);
+        if (stoppedSince > 0) obj.put("stoppedSince", stoppedSince);
+        if (stopCounted) obj.put("stopCounted", true);
+        if (distracting) obj.put("distracting", true);
+        return obj;
+    }
+
+    public static TripSummary fromJSON(JSONObject obj) {
+        TripSummary s = new TripSummary();
+        s.tripId = obj.optString("tripId", null);
+        s.startTimestamp = obj.optLong("start", 0);
+        s.endTimestamp = obj.optLong("end", 0);
+        s.pointCount = obj.optInt("pointCount", 0);
+        s.distance = obj.optDouble("distance", 0);
+        s.maxSpeed = obj.optDouble("maxSpeed", 0);
+        s.exitTimestamp = obj.optLong("exitAt", 0);
+        s.sealedAt = obj.optLong("sealedAt", 0);
+        s.movingTime = obj.optLong("movingTime", 0);
+        s.stopCount = obj.optInt("stopCount", 0);
+        s.distractionTime = obj.optLong("distractionTime", 0);
+        if (obj.has("lastLat") && obj.has("lastLng")) {
+            s.hasLast = true;
+            s.lastLat = obj.optDouble("lastLat");
+            s.lastLng = obj.optDouble("lastLng");
+            // saved before the times were kept: last point of the summary, none for a continuation
+            s.lastTime = obj.optLong("lastAt", s.pointCount > 0 ? s.endTimestamp : 0);
+        }
+        s.moved = obj.optBoolean("moved", false);
+        s.stoppedSince = obj.optLong("stoppedSince", 0);
+        s.stopCounted = obj.optBoolean("stopCounted", false);
+        s.distracting = obj.optBoolean("distracting", false);
+        return s;
+    }
+}
@@ -1,16 +1,61 @@
 package fr.lelab.activity;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.util.Log;
 import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 import androidx.work.ListenableWorker.Result;
 
+import java.util.concurrent.TimeUnit;
+
 public class TripUploadWorker extends Worker {
 
     private static final String TAG = "TripUploadWorker";
+    // single unique work for every trigger (trip sealed, trip ended, manual): one sync queued at a time
+    private static final String UPLOAD_WORK = "TRIP_UPLOAD";
+    // 30 s, 1 min, 2 min... (WorkManager caps the delay at 5 h)
+    private static final long BACKOFF_SECONDS = 30;
+    // then the outbox waits for the next trigger
+    private static final int MAX_RUN_ATTEMPTS = 10;
+
+    /**
+     * Sync as soon as a trip is sealed. KEEP: a sync already queued or running also
+     * takes the trips sealed while it runs.
+     */
+    public static void enqueueSealedTripUpload(Context context) {
+        enqueueUpload(context, ExistingWorkPolicy.KEEP);
+    }
+
+    /**
+     * KEEP coalesces with the queued sync (waiting for its backoff delay included),
+     * REPLACE starts one now
+     */
+    public static void enqueueUpload(Context context, ExistingWorkPolicy policy) {
+        try {
+            Constraints constraints = new Constraints.Builder()
+                    .setRequiredNetworkType(NetworkType.CONNECTED)
+                    .build();
+
+            OneTimeWorkRequest uploadRequest = new OneTimeWorkRequest.Builder(TripUploadWorker.class)
+                    .setConstraints(constraints)
+                    .setBackoffCriteria(BackoffPolicy.EXPONENTIAL, BACKOFF_SECONDS, TimeUnit.SECONDS)
+                    .addTag("TRIP_UPLOAD_TASK")
+                    .build();
+
+            WorkManager.getInstance(context).enqueueUniqueWork(UPLOAD_WORK, policy, uploadRequest);
+            Log.d(TAG, "📡 WorkManager : trip sending scheduled (" + policy + ").");
+        } catch (Exception e) {
+            // e.g. before the first unlock (WorkManager database not readable yet)
+            Log.e(TAG, "❌ Error during sealed trip sending schedule : " + e.getMessage());
+        }
+    }
 
     public TripUploadWorker(@NonNull Context context, @NonNull WorkerParameters params) {
         super(context, params);
@@ -22,10 +67,10 @@ public class TripUploadWorker extends Worker {
         Context context = getApplicationContext();
         Log.d(TAG, "🚀 WorkManager START");
 
-        // Get SharedPreferences 
-        SharedPreferences prefs = context.getSharedPreferences("TripPrefs", Context.MODE_PRIVATE);
-        String url = prefs.getString("server_url", null);
-        String token = prefs.getString("jwt_token", null);
+        // Get server config from tracking state
+        TrackingStateStore.State state = TrackingStateStore.current(context);
+        String url = state.serverUrl;
+        String token = state.serverToken;
 
         Log.d(TAG, "🔍 Debug Config - URL: " + (url != null ? url : "MISSING") + " | Token: " + (token != null ? "FOUND" : "MISSING"));
 
@@ -34,8 +79,16 @@ public class TripUploadWorker extends Worker {
         }
 
         try {
-            JsonStorageHelper.processAndUploadAutomotiveTrips(context, url, token);
-            return Result.success();
+            if (JsonStorageHelper.processAndUploadAutomotiveTrips(context, url, token)) {
+                return Result.success();
+            }
+            // trips left in the outbox: exponential backoff
+            if (getRunAttemptCount() + 1 >= MAX_RUN_ATTEMPTS) {
+                Log.w(TAG, "⚠️ Upload still failing after " + MAX_RUN_ATTEMPTS + " runs, waiting for the next trip");
+                return Result.failure();
+            }
+            Log.d(TAG, "🔁 Upload incomplete, retry (run " + (getRunAttemptCount() + 1) + ")");
+            return Result.retry();
         } catch (Exception e) {
             Log.e(TAG, "❌ Exception during process: " + e.getMessage());
             e.printStackTrace();
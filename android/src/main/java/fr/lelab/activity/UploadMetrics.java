@@ -0,0 +1,111 @@
+package fr.lelab.activity;
+
+import com.getcapacitor.JSObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload counters, exposed in getStorageStats() under "upload".
+ * payloadBytes is the body in its format (uploadCodec), wireBytes what was written to the connection (smaller with gzip).
+ */
+public class UploadMetrics {
+
+    private static final UploadMetrics instance = new UploadMetrics();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong succeeded = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong payloadBytes = new AtomicLong();
+    private final AtomicLong wireBytes = new AtomicLong();
+    private final AtomicLong gzipRequests = new AtomicLong();
+    private final AtomicLong gzipRefused = new AtomicLong();
+    private final AtomicLong codecRefused = new AtomicLong();
+    private final AtomicLong rejectedTrips = new AtomicLong();
+    private final AtomicLong simplifiedPointsIn = new AtomicLong();
+    private final AtomicLong simplifiedPointsOut = new AtomicLong();
+    private volatile double lastReduction = 0;
+    private volatile double lastMaxDeviation = 0;
+    private volatile long lastPayloadBytes = 0;
+    private volatile long lastWireBytes = 0;
+    private volatile String lastCodec = null;
+    private volatile String lastEncoding = null;
+    private volatile int lastStatus = 0;
+
+    public static UploadMetrics get() {
+        return instance;
+    }
+
+    /**
+     * One request sent, status -1 when no response (network error)
+     */
+    public void onRequest(String codec, String encoding, long payload, long wire, int status) {
+        requests.incrementAndGet();
+        if (status >= 200 && status <= 299) {
+            succeeded.incrementAndGet();
+        } else {
+            failed.incrementAndGet();
+        }
+        if ("gzip".equals(encoding)) gzipRequests.incrementAndGet();
+        payloadBytes.addAndGet(payload);
+        wireBytes.addAndGet(wire);
+        lastPayloadBytes = payload;
+        lastWireBytes = wire;
+        lastCodec = codec;
+        lastEncoding = encoding;
+        lastStatus = status;
+    }
+
+    /**
+     * Server answered 415 to a gzip body
+     */
+    public void onGzipRefused() {
+        gzipRefused.incrementAndGet();
+    }
+
+    /**
+     * Server answered 415 to a columnar / cbor body
+     */
+    public void onCodecRefused() {
+        codecRefused.incrementAndGet();
+    }
+
+    /**
+     * Trip refused UploadOutbox.MAX_ATTEMPTS times, moved out of the outbox
+     */
+    public void onRejected() {
+        rejectedTrips.incrementAndGet();
+    }
+
+    /**
+     * Trip simplified before encoding (TrajectorySimplifier)
+     */
+    public void onSimplified(TrajectorySimplifier.Result result) {
+        simplifiedPointsIn.addAndGet(result.pointsIn);
+        simplifiedPointsOut.addAndGet(result.pointsOut);
+        lastReduction = result.reduction();
+        lastMaxDeviation = result.maxDeviation;
+    }
+
+    public JSObject getStats() {
+        JSObject stats = new JSObject();
+        stats.put("requests", requests.get());
+        stats.put("succeeded", succeeded.get());
+        stats.put("failed", failed.get());
+        stats.put("payloadBytes", payloadBytes.get());
+        stats.put("wireBytes", wireBytes.get());
+        stats.put("gzipRequests", gzipRequests.get());
+        stats.put("gzipRefused", gzipRefused.get());
+        stats.put("codecRefused", codecRefused.get());
+        stats.put("rejectedTrips", rejectedTrips.get());
+        stats.put("lastPayloadBytes", lastPayloadBytes);
+        stats.put("lastWireBytes", lastWireBytes);
+        stats.put("lastCodec", lastCodec);
+        stats.put("lastEncoding", lastEncoding);
+        stats.put("lastStatus", lastStatus);
+        stats.put("simplifiedPointsIn", simplifiedPointsIn.get());
+        stats.put("simplifiedPointsOut", simplifiedPointsOut.get());
+        stats.put("lastSimplifyReduction", lastReduction);
+        stats.put("lastSimplifyMaxDeviation", lastMaxDeviation);
+        return stats;
+    }
+}
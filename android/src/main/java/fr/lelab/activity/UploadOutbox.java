@@ -0,0 +1,298 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Trips ready to send (upload_outbox/): the encoded body (trip-<start>.body) and its entry
+ * (trip-<start>.json: trip id, format, purge range, attempts).
+ *
+ * The body is written once when the sealed trip is taken by a sync, then sent as is until the
+ * server acknowledges it: retries do not read or encode the trip again. The trip id is sent as
+ * Idempotency-Key, so a body sent again after a lost answer or a crash is not counted twice.
+ *
+ * The entry file is written after its body: a body without entry is a crash during the write
+ * and is ignored (written again from the sealed trip, which is removed after the entry exists).
+ *
+ * An entry the server keeps refusing (4xx other than timeout, rate limit or auth) is moved
+ * after MAX_ATTEMPTS attempts to rejected-<start>.json / .body: out of the sync, kept for
+ * inspection, the MAX_REJECTED last ones only.
+ */
+public class UploadOutbox {
+
+    public static final String DIR_NAME = "upload_outbox";
+
+    /** attempts before an entry refused by the server is moved out of the outbox */
+    public static final int MAX_ATTEMPTS = 5;
+    public static final int MAX_REJECTED = 20;
+
+    private static final String PREFIX = "trip-";
+    private static final String REJECTED_PREFIX = "rejected-";
+    private static final String ENTRY_SUFFIX = ".json";
+    private static final String BODY_SUFFIX = ".body";
+
+    private final File dir;
+
+    public UploadOutbox(File dir) {
+        this.dir = dir;
+    }
+
+    public static class Entry {
+        public String tripId;
+        public TripSummary trip;
+        public String codec;
+        public String contentType;
+        public int measures;
+        // range removed from the track store once acknowledged
+        public long removeFrom;
+        public long removeTo;
+        public long createdAt;
+        public int attempts = 0;
+        public int lastStatus = 0;
+        public long lastAttemptAt = 0;
+        public File body;
+
+        JSONObject toJSON() throws JSONException {
+            JSONObject obj = new JSONObject();
+            obj.put("tripId", tripId);
+            obj.put("trip", trip.toJSON());
+            obj.put("codec", codec);
+            obj.put("contentType", contentType);
+            obj.put("measures", measures);
+            obj.put("removeFrom", removeFrom);
+            obj.put("removeTo", removeTo);
+            obj.put("createdAt", createdAt);
+            obj.put("attempts", attempts);
+            obj.put("lastStatus", lastStatus);
+            obj.put("lastAttemptAt", lastAttemptAt);
+            return obj;
+        }
+
+        static Entry fromJSON(JSONObject obj) throws JSONException {
+            Entry e = new Entry();
+            e.tripId = obj.getString("tripId");
+            e.trip = TripSummary.fromJSON(obj.getJSONObject("trip"));
+            e.codec = obj.optString("codec", TripPayloadCodec.ROWS);
+            e.contentType = obj.optString("contentType", "application/json; charset=utf-8");
+            e.measures = obj.optInt("measures", 0);
+            e.removeFrom = obj.getLong("removeFrom");
+            e.removeTo = obj.getLong("removeTo");
+            e.createdAt = obj.optLong("createdAt", 0);
+            e.attempts = obj.optInt("attempts", 0);
+            e.lastStatus = obj.optInt("lastStatus", 0);
+            e.lastAttemptAt = obj.optLong("lastAttemptAt", 0);
+            return e;
+        }
+    }
+
+    /**
+     * Encode the points of a sealed trip into the outbox.
+     * The trip id of the summary is kept (a stable one is derived from the start if it has none).
+     */
+    public Entry add(TripSummary trip, TripBuffer points, TripPayloadCodec codec, long removeFrom, long removeTo)
+            throws IOException {
+        Entry e = new Entry();
+        e.tripId = (trip.tripId != null) ? trip.tripId
+            : UUID.nameUUIDFromBytes((PREFIX + trip.startTimestamp).getBytes(StandardCharsets.UTF_8)).toString();
+        e.trip = trip;
+        e.removeFrom = removeFrom;
+        e.removeTo = removeTo;
+        e.createdAt = System.currentTimeMillis();
+        encode(e, points, codec);
+        return e;
+    }
+
+    /**
+     * Write the body of the entry again in another format (same trip id), then the entry
+     */
+    public void encode(Entry e, TripBuffer points, TripPayloadCodec codec) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) throw new IOException("Cannot create " + dir);
+
+        File body = bodyFile(e.trip.startTimestamp);
+        File temp = new File(body.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(temp)) {
+            OutputStream out = new BufferedOutputStream(fos, 8192);
+            codec.writeTo(points, out);
+            out.flush();
+            fos.getFD().sync();
+        }
+        if (!temp.renameTo(body)) {
+            temp.delete();
+            throw new IOException("Cannot rename " + temp.getName());
+        }
+
+        e.codec = codec.name();
+        e.contentType = codec.contentType();
+        e.measures = points.size();
+        e.body = body;
+        update(e);
+    }
+
+    /**
+     * Persist the entry (attempts, status)
+     */
+    public void update(Entry e) throws IOException {
+        try {
+            SealedTripStore.writeAtomically(entryFile(e.trip.startTimestamp), e.toJSON().toString());
+        } catch (JSONException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    public boolean contains(long startTimestamp) {
+        return entryFile(startTimestamp).exists();
+    }
+
+    /**
+     * Start timestamps of the entries, oldest first, from the file names
+     */
+    public long[] startTimes() {
+        return startTimes(PREFIX);
+    }
+
+    private long[] startTimes(String prefix) {
+        File[] files = dir.listFiles();
+        if (files == null) return new long[0];
+
+        long[] starts = new long[files.length];
+        int count = 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(prefix) || !name.endsWith(ENTRY_SUFFIX)) continue;
+            try {
+                long start = Long.parseLong(name.substring(prefix.length(), name.length() - ENTRY_SUFFIX.length()));
+                starts[count++] = start;
+            } catch (NumberFormatException ex) {
+                // not an entry
+            }
+        }
+        starts = Arrays.copyOf(starts, count);
+        Arrays.sort(starts);
+        return starts;
+    }
+
+    /**
+     * Entries started after this time, oldest first, loaded one at a time
+     */
+    public Iterator<Entry> entriesAfter(long startTimestamp) {
+        long[] starts = startTimes();
+        return new Iterator<Entry>() {
+            int next = 0;
+            Entry loaded = null;
+
+            @Override
+            public boolean hasNext() {
+                while (loaded == null && next < starts.length) {
+                    long start = starts[next++];
+                    if (start > startTimestamp) loaded = load(start);
+                }
+                return loaded != null;
+            }
+
+            @Override
+            public Entry next() {
+                if (!hasNext()) throw new NoSuchElementException();
+                Entry e = loaded;
+                loaded = null;
+                return e;
+            }
+        };
+    }
+
+    public boolean isEmpty() {
+        return startTimes().length == 0;
+    }
+
+    /**
+     * Entry of this start, null if removed meanwhile, unreadable or without body
+     */
+    public Entry load(long startTimestamp) {
+        File f = entryFile(startTimestamp);
+        File body = bodyFile(startTimestamp);
+        if (!f.exists() || !body.exists()) return null;
+        try {
+            Entry e = Entry.fromJSON(new JSONObject(SealedTripStore.readFile(f)));
+            e.body = body;
+            return e;
+        } catch (IOException | JSONException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Move the entry and its body out of the outbox (rejected-<start>), oldest rejected ones
+     * dropped over MAX_REJECTED
+     */
+    public boolean reject(Entry e) {
+        long start = e.trip.startTimestamp;
+        File rejectedBody = new File(dir, REJECTED_PREFIX + start + BODY_SUFFIX);
+        // body first: an entry without body is not loaded
+        boolean moved = bodyFile(start).renameTo(rejectedBody)
+            && entryFile(start).renameTo(new File(dir, REJECTED_PREFIX + start + ENTRY_SUFFIX));
+        if (!moved) return false;
+        e.body = rejectedBody;
+
+        long[] rejected = startTimes(REJECTED_PREFIX);
+        for (int i = 0; i < rejected.length - MAX_REJECTED; i++) {
+            new File(dir, REJECTED_PREFIX + rejected[i] + ENTRY_SUFFIX).delete();
+            new File(dir, REJECTED_PREFIX + rejected[i] + BODY_SUFFIX).delete();
+        }
+        return true;
+    }
+
+    public int rejectedCount() {
+        return startTimes(REJECTED_PREFIX).length;
+    }
+
+    public boolean remove(Entry e) {
+        boolean removed = entryFile(e.trip.startTimestamp).delete();
+        bodyFile(e.trip.startTimestamp).delete();
+        return removed;
+    }
+
+    public int clear() {
+        int deleted = 0;
+        File[] files = dir.listFiles();
+        if (files == null) return 0;
+        for (File f : files) {
+            String name = f.getName();
+            if (f.delete() && name.startsWith(PREFIX) && name.endsWith(ENTRY_SUFFIX)) deleted++;
+        }
+        return deleted;
+    }
+
+    /**
+     * Number of entries and bytes of their bodies (rejected ones not counted)
+     */
+    public long[] usage() {
+        long[] usage = { 0, 0 };
+        File[] files = dir.listFiles();
+        if (files == null) return usage;
+        for (File f : files) {
+            String name = f.getName();
+            if (!name.startsWith(PREFIX)) continue;
+            if (name.endsWith(ENTRY_SUFFIX)) usage[0]++;
+            else if (name.endsWith(BODY_SUFFIX)) usage[1] += f.length();
+        }
+        return usage;
+    }
+
+    private File entryFile(long start) {
+        return new File(dir, PREFIX + start + ENTRY_SUFFIX);
+    }
+
+    private File bodyFile(long start) {
+        return new File(dir, PREFIX + start + BODY_SUFFIX);
+    }
+}
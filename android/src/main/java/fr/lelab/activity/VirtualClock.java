@@ -0,0 +1,105 @@
+package fr.lelab.activity;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Time of a drive replay (DriveReplay), moved forward by the replay as events are played.
+ * The replay target keeps its timers here (grace timer) and they fire when the replayed time
+ * reaches them. Only given to the replay target: the receivers of the plugin keep the wall clock
+ * and AlarmManager, so a replay never changes what real transitions do.
+ *
+ * Timers are keyed like PendingIntents: scheduling a key again replaces its timer.
+ */
+public final class VirtualClock {
+
+    private volatile long time;
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>();
+    private final Map<String, Timer> timersByKey = new HashMap<>();
+    private long sequence = 0;
+
+    private static final class Timer implements Comparable<Timer> {
+        final String key;
+        final long at;
+        final long order;
+        final Runnable task;
+        boolean cancelled = false;
+
+        Timer(String key, long at, long order, Runnable task) {
+            this.key = key;
+            this.at = at;
+            this.order = order;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (at != other.at) return Long.compare(at, other.at);
+            return Long.compare(order, other.order);
+        }
+    }
+
+    public VirtualClock(long start) {
+        this.time = start;
+    }
+
+    public long time() {
+        return time;
+    }
+
+    /**
+     * Run task when the replayed time reaches at (replaces the timer of the same key)
+     */
+    public synchronized void schedule(String key, long at, Runnable task) {
+        cancel(key);
+        Timer timer = new Timer(key, at, sequence++, task);
+        timers.add(timer);
+        timersByKey.put(key, timer);
+    }
+
+    public synchronized void cancel(String key) {
+        Timer timer = timersByKey.remove(key);
+        if (timer != null) timer.cancelled = true;
+    }
+
+    public synchronized boolean hasTimers() {
+        return !timersByKey.isEmpty();
+    }
+
+    /**
+     * Time of the next timer, Long.MAX_VALUE if none
+     */
+    public synchronized long nextTimerAt() {
+        dropCancelled();
+        return timers.isEmpty() ? Long.MAX_VALUE : timers.peek().at;
+    }
+
+    /**
+     * Move the time forward to t, firing the timers due before (each one at its own time)
+     * @return number of timers fired
+     */
+    public int advanceTo(long t) {
+        int fired = 0;
+        while (true) {
+            Runnable task;
+            synchronized (this) {
+                dropCancelled();
+                if (timers.isEmpty() || timers.peek().at > t) break;
+                Timer timer = timers.poll();
+                timersByKey.remove(timer.key);
+                if (timer.at > time) time = timer.at;
+                task = timer.task;
+            }
+            // outside the lock: the task may schedule other timers
+            task.run();
+            fired++;
+        }
+        if (t > time) time = t;
+        return fired;
+    }
+
+    private void dropCancelled() {
+        while (!timers.isEmpty() && timers.peek().cancelled) timers.poll();
+    }
+}
@@ -3,7 +3,6 @@ package fr.lelab.activity;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.util.Log;
 import android.location.Location;
 
@@ -46,20 +45,16 @@ public class WeatherReceiver extends BroadcastReceiver {
                     public void onSuccess(Location location) {
                         if (location != null) {
                             // --- LOGIQUE DE DISTANCE ---
-                            SharedPreferences prefs = context.getSharedPreferences("tracking_prefs", Context.MODE_PRIVATE);
+                            TrackingStateStore.State state = TrackingStateStore.current(context);
                             
                             // Récupération de la dernière position connue du fetch météo
-                            float lastLat = prefs.getFloat("last_weather_lat", 0f);
-                            float lastLon = prefs.getFloat("last_weather_lon", 0f);
+                            float lastLat = state.lastWeatherLat;
+                            float lastLon = state.lastWeatherLon;
                             
-                            Location lastLocation = new Location("");
-                            lastLocation.setLatitude(lastLat);
-                            lastLocation.setLongitude(lastLon);
-
                             // Calcul de la distance en mètres
-                            float distance = location.distanceTo(lastLocation);
+                            double distance = GeoUtils.distance(lastLat, lastLon, location.getLatitude(), location.getLongitude());
 
-                            long lastUpdate = prefs.getLong("last_weather_timestamp", 0);
+                            long lastUpdate = state.lastWeatherTimestamp;
                             long currentTime = System.currentTimeMillis();
                             long tenMinutesInMillis = 10 * 60 * 1000;
                             boolean isExpired = (currentTime - lastUpdate) > tenMinutesInMillis;
@@ -90,12 +85,12 @@ public class WeatherReceiver extends BroadcastReceiver {
 
     public static void makeWeatherApiCall(Context context, double lat, double lon){
 
-        SharedPreferences prefs = context.getSharedPreferences("tracking_prefs", Context.MODE_PRIVATE);
-        String apiKey = prefs.getString("weather_api_key", null);
-        String baseUrl = prefs.getString("weather_base_url", null);
+        TrackingStateStore.State state = TrackingStateStore.current(context);
+        String apiKey = state.weatherApiKey;
+        String baseUrl = state.weatherBaseUrl;
 
         if (apiKey == null || baseUrl == null) {
-            Log.e(TAG, "❌ Weather config missing in SharedPreferences");
+            Log.e(TAG, "❌ Weather config missing in tracking state");
             return;
         }
         // setup URL mode GET (standard for this API)
@@ -125,10 +120,9 @@ public class WeatherReceiver extends BroadcastReceiver {
                     JsonStorageHelper.setLastWeather(weatherJson);
                     Log.d(TAG, "✅ success update weather condition");
 
-                    SharedPreferences.Editor editor = context.getSharedPreferences("tracking_prefs", Context.MODE_PRIVATE).edit();
-                    editor.putFloat("last_weather_lat", (float) lat);
-                    editor.putFloat("last_weather_lon", (float) lon);
-                    editor.apply();
+                    TrackingStateStore.get(context).update(b -> b
+                        .lastWeatherLat((float) lat)
+                        .lastWeatherLon((float) lon));
 
                     Log.d(TAG, "✅ save weather and position");             
                 }
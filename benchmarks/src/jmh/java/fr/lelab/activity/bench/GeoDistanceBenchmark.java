@@ -0,0 +1,125 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.GeoUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Length of a 1 h drive at 1 Hz (town, then highway, GPS noise), time per point pair:
+ * the haversine with Math.toRadians used before GeoUtils (legacy), GeoUtils.haversine,
+ * GeoUtils.distance (equirectangular for short hops) and the GeoUtils.pathLength kernel.
+ * Setup checks every variant is within 1e-6 of legacy on the trip.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GeoDistanceBenchmark {
+
+    static final int POINTS = 3600;
+
+    @Param({ "48.85", "64.0" })
+    public double latitude;
+
+    double[] lat;
+    double[] lng;
+
+    @Setup
+    public void setup() {
+        lat = new double[POINTS];
+        lng = new double[POINTS];
+        drive(latitude, 42, lat, lng);
+
+        double reference = legacy();
+        double[] variants = { haversine(), distance(), pathLength() };
+        for (double length : variants) {
+            if (Math.abs(length - reference) > reference * 1e-6) {
+                throw new IllegalStateException("Trip length " + length + " m, haversine " + reference + " m");
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS - 1)
+    public double legacy() {
+        double total = 0;
+        for (int i = 1; i < POINTS; i++) {
+            total += legacyHaversine(lat[i - 1], lng[i - 1], lat[i], lng[i]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS - 1)
+    public double haversine() {
+        double total = 0;
+        for (int i = 1; i < POINTS; i++) {
+            total += GeoUtils.haversine(lat[i - 1], lng[i - 1], lat[i], lng[i]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS - 1)
+    public double distance() {
+        double total = 0;
+        for (int i = 1; i < POINTS; i++) {
+            total += GeoUtils.distance(lat[i - 1], lng[i - 1], lat[i], lng[i]);
+        }
+        return total;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS - 1)
+    public double pathLength() {
+        return GeoUtils.pathLength(lat, lng, 0, POINTS);
+    }
+
+    /**
+     * 20 min in town (8-14 m/s, turns, stops), then highway (30-36 m/s), heading drifting,
+     * 3 m of GPS noise on each fix
+     */
+    static void drive(double startLat, long seed, double[] lat, double[] lng) {
+        Random rnd = new Random(seed);
+        double y = 0, x = 0;
+        double heading = rnd.nextDouble() * 2 * Math.PI;
+        for (int i = 0; i < lat.length; i++) {
+            boolean town = i < 1200;
+            double speed = town ? (i % 120 < 10 ? 0 : 8 + rnd.nextDouble() * 6) : 30 + rnd.nextDouble() * 6;
+            heading += town ? (rnd.nextInt(40) == 0 ? Math.PI / 2 * (rnd.nextBoolean() ? 1 : -1) : 0) : rnd.nextGaussian() * 0.01;
+            y += speed * Math.cos(heading);
+            x += speed * Math.sin(heading);
+
+            double noiseY = rnd.nextGaussian() * 3, noiseX = rnd.nextGaussian() * 3;
+            lat[i] = startLat + Math.toDegrees((y + noiseY) / GeoUtils.EARTH_RADIUS_M);
+            lng[i] = 2.35 + Math.toDegrees((x + noiseX) / (GeoUtils.EARTH_RADIUS_M * Math.cos(Math.toRadians(lat[i]))));
+        }
+    }
+
+    /**
+     * TripSummary.distanceMeters / JsonStorageHelper.calculateDistance before GeoUtils
+     */
+    static double legacyHaversine(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dPhi = Math.toRadians(lat2 - lat1);
+        double dLambda = Math.toRadians(lon2 - lon1);
+
+        double a = Math.sin(dPhi / 2) * Math.sin(dPhi / 2) +
+                   Math.cos(phi1) * Math.cos(phi2) *
+                   Math.sin(dLambda / 2) * Math.sin(dLambda / 2);
+        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+
+        return 6371e3 * c;
+    }
+}
@@ -0,0 +1,303 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.TrackJsonEncoder;
+import fr.lelab.activity.TrackRecord;
+import fr.lelab.activity.TrackRecordCodec;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON line of a track record: JSObject + toString() + getBytes() (export path before
+ * TrackJsonEncoder) against TrackJsonEncoder. Setup checks both give the same bytes.
+ *
+ * The Maven build of Android org.json keeps the keys in a HashMap where Android uses a
+ * LinkedHashMap, so the reference line is written with its JSONStringer in insertion order
+ * (same number and string formatting as JSONObject.toString()).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JsonLineBenchmark {
+
+    static final int RECORDS = 10_000;
+    static final TimeZone ZONE = TimeZone.getTimeZone("Europe/Paris");
+
+    TrackRecord[] records;
+    TrackJsonEncoder encoder;
+    SimpleDateFormat sdf;
+    CountingSink sink;
+
+    @Setup
+    public void setup() throws IOException {
+        records = decodedRecords(RECORDS, 42);
+        encoder = new TrackJsonEncoder(ZONE);
+        sdf = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss", Locale.FRANCE);
+        sdf.setTimeZone(ZONE);
+        sink = new CountingSink();
+
+        for (TrackRecord r : records) {
+            byte[] expected = (referenceLine(r, sdf) + "\n").getBytes(StandardCharsets.UTF_8);
+            ByteBuffer line = encoder.encodeLine(r);
+            byte[] actual = Arrays.copyOf(line.array(), line.limit());
+            if (!Arrays.equals(expected, actual)) {
+                throw new IllegalStateException("Encoder differs from org.json:\n" + new String(expected, StandardCharsets.UTF_8)
+                    + new String(actual, StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long jsonObjectLine() throws IOException {
+        for (TrackRecord r : records) {
+            String line = recordToJSONObject(r, sdf).toString() + "\n";
+            sink.write(line.getBytes(StandardCharsets.UTF_8));
+        }
+        return sink.count;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long encoderLine() throws IOException {
+        for (TrackRecord r : records) {
+            encoder.writeLine(r, sink);
+        }
+        return sink.count;
+    }
+
+    /**
+     * Records as read back from the store (fixed point values), with the mix of a drive:
+     * locations, context changes and a few activity transitions
+     */
+    static TrackRecord[] decodedRecords(int count, long seed) throws IOException {
+        Random rnd = new Random(seed);
+        String[] weathers = { "sunny", "cloudy", "rainy", "Clouds/Rain" };
+        String[] apps = { "Waze", "Google Maps", "Spotify", "Messages \"perso\"", "Café" };
+        ByteBuffer buffer = ByteBuffer.allocate(count * 64);
+        TrackRecordCodec.Encoder codec = new TrackRecordCodec.Encoder();
+
+        long t = 1_767_225_600_000L;
+        double lat = 48.8566, lng = 2.3522;
+        for (int i = 0; i < count; i++) {
+            t += 1000;
+            TrackRecord r;
+            int kind = rnd.nextInt(100);
+            if (kind == 0) {
+                r = TrackRecord.activity("automotive", rnd.nextBoolean() ? "ENTER" : "EXIT", t);
+            } else if (kind < 3) {
+                r = TrackRecord.context((byte) (1 + rnd.nextInt(4)), t);
+                r.weatherType = weathers[rnd.nextInt(weathers.length)];
+                r.weatherTemp = rnd.nextInt(400) / 10.0 - 5;
+                r.appName = rnd.nextBoolean() ? apps[rnd.nextInt(apps.length)] : null;
+                r.phoneUnlock = rnd.nextBoolean();
+                r.distraction = rnd.nextBoolean();
+            } else {
+                lat += (rnd.nextDouble() - 0.5) * 1e-3;
+                lng += (rnd.nextDouble() - 0.5) * 1e-3;
+                r = TrackRecord.location(lat, lng, rnd.nextInt(4000) / 100.0, t);
+                if (kind < 10) {
+                    // records written before context records embed their context
+                    r.weatherType = weathers[rnd.nextInt(weathers.length)];
+                    r.weatherTemp = rnd.nextInt(400) / 10.0 - 5;
+                    r.appName = apps[rnd.nextInt(apps.length)];
+                    r.phoneUnlock = true;
+                    r.distraction = rnd.nextBoolean();
+                }
+            }
+            if (i % 128 == 0) codec.reset();
+            codec.encode(r, buffer);
+        }
+
+        TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(
+            new ByteArrayInputStream(buffer.array(), 0, buffer.position()), 0);
+        TrackRecord[] result = new TrackRecord[count];
+        for (int i = 0; i < count; i++) result[i] = decoder.next();
+        return result;
+    }
+
+    /**
+     * JsonStorageHelper.recordToJSObject with the Android org.json JSONObject
+     * (JSObject.put ignores the values JSONObject rejects)
+     */
+    static JSONObject recordToJSONObject(TrackRecord record, SimpleDateFormat sdf) {
+        JSONObject obj = new JSONObject();
+        if (record.isLocation()) {
+            put(obj, "type", "location");
+            put(obj, "lat", record.lat);
+            put(obj, "lng", record.lng);
+            put(obj, "speed", record.speed);
+            put(obj, "timestamp", record.timestamp);
+            if (record.weatherType != null) {
+                JSONObject weather = new JSONObject();
+                put(weather, "type", record.weatherType);
+                put(weather, "temp", record.weatherTemp);
+                put(obj, "weather", weather);
+            }
+            if (record.appName != null) {
+                JSONObject navData = new JSONObject();
+                put(navData, "name", record.appName);
+                put(navData, "accuracy", 1);
+                JSONObject appUsed = new JSONObject();
+                put(appUsed, "usedApp", navData);
+                put(obj, "appUsed", appUsed);
+            }
+            if (record.phoneUnlock) put(obj, "phoneUnlock", true);
+            if (record.distraction != null) put(obj, "distractionDetect", record.distraction.booleanValue());
+        } else if (record.isContext()) {
+            put(obj, "type", "context");
+            put(obj, "timestamp", record.timestamp);
+            switch (record.contextKind) {
+                case TrackRecord.CONTEXT_WEATHER:
+                    put(obj, "context", "weather");
+                    if (record.weatherType != null) {
+                        JSONObject weather = new JSONObject();
+                        put(weather, "type", record.weatherType);
+                        put(weather, "temp", record.weatherTemp);
+                        put(obj, "weather", weather);
+                    }
+                    break;
+                case TrackRecord.CONTEXT_APP:
+                    put(obj, "context", "appUsed");
+                    if (record.appName != null) put(obj, "appName", record.appName);
+                    break;
+                case TrackRecord.CONTEXT_LOCK:
+                    put(obj, "context", "phoneUnlock");
+                    put(obj, "phoneUnlock", record.phoneUnlock);
+                    break;
+                default:
+                    put(obj, "context", "distractionDetect");
+                    if (record.distraction != null) put(obj, "distractionDetect", record.distraction.booleanValue());
+                    break;
+            }
+        } else {
+            put(obj, "type", "activity");
+            put(obj, "activity", record.activity);
+            put(obj, "transition", record.transition);
+            put(obj, "date", sdf.format(new Date(record.timestamp)));
+            put(obj, "timestamp", record.timestamp);
+        }
+        return obj;
+    }
+
+    /**
+     * recordToJSObject(record).toString() as written on Android (keys in insertion order)
+     */
+    static String referenceLine(TrackRecord record, SimpleDateFormat sdf) {
+        try {
+            JSONStringer out = new JSONStringer().object();
+            if (record.isLocation()) {
+                out.key("type").value("location");
+                value(out, "lat", record.lat);
+                value(out, "lng", record.lng);
+                value(out, "speed", record.speed);
+                out.key("timestamp").value(record.timestamp);
+                if (record.weatherType != null) {
+                    out.key("weather").object().key("type").value(record.weatherType);
+                    value(out, "temp", record.weatherTemp);
+                    out.endObject();
+                }
+                if (record.appName != null) {
+                    out.key("appUsed").object().key("usedApp").object()
+                        .key("name").value(record.appName).key("accuracy").value(1)
+                        .endObject().endObject();
+                }
+                if (record.phoneUnlock) out.key("phoneUnlock").value(true);
+                if (record.distraction != null) out.key("distractionDetect").value(record.distraction.booleanValue());
+            } else if (record.isContext()) {
+                out.key("type").value("context");
+                out.key("timestamp").value(record.timestamp);
+                switch (record.contextKind) {
+                    case TrackRecord.CONTEXT_WEATHER:
+                        out.key("context").value("weather");
+                        if (record.weatherType != null) {
+                            out.key("weather").object().key("type").value(record.weatherType);
+                            value(out, "temp", record.weatherTemp);
+                            out.endObject();
+                        }
+                        break;
+                    case TrackRecord.CONTEXT_APP:
+                        out.key("context").value("appUsed");
+                        if (record.appName != null) out.key("appName").value(record.appName);
+                        break;
+                    case TrackRecord.CONTEXT_LOCK:
+                        out.key("context").value("phoneUnlock");
+                        out.key("phoneUnlock").value(record.phoneUnlock);
+                        break;
+                    default:
+                        out.key("context").value("distractionDetect");
+                        if (record.distraction != null) out.key("distractionDetect").value(record.distraction.booleanValue());
+                        break;
+                }
+            } else {
+                out.key("type").value("activity");
+                // JSObject.put(key, null) leaves the key out
+                if (record.activity != null) out.key("activity").value(record.activity);
+                if (record.transition != null) out.key("transition").value(record.transition);
+                out.key("date").value(sdf.format(new Date(record.timestamp)));
+                out.key("timestamp").value(record.timestamp);
+            }
+            return out.endObject().toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void value(JSONStringer out, String key, double value) throws JSONException {
+        // NaN / infinite values are dropped by JSObject.put
+        if (Double.isNaN(value) || Double.isInfinite(value)) return;
+        out.key(key).value(value);
+    }
+
+    private static void put(JSONObject obj, String key, Object value) {
+        try {
+            obj.put(key, value);
+        } catch (JSONException e) {
+            // dropped, like JSObject.put
+        }
+    }
+
+    private static void put(JSONObject obj, String key, double value) {
+        try {
+            obj.put(key, value);
+        } catch (JSONException e) {
+            // dropped, like JSObject.put
+        }
+    }
+
+    static final class CountingSink extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
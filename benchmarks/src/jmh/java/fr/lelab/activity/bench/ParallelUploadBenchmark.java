@@ -0,0 +1,192 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.ParallelUploader;
+import fr.lelab.activity.RowJsonPayloadCodec;
+import fr.lelab.activity.TrackRecord;
+import fr.lelab.activity.TripBuffer;
+import fr.lelab.activity.TripHttpSender;
+import fr.lelab.activity.TripSummary;
+import fr.lelab.activity.UploadOutbox;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sync of a backlog of outbox trips against a local server that adds latency: handshakeMs on
+ * each new connection (TCP + TLS round trips) and latencyMs on each request.
+ *
+ * uploader = legacy is the sender before the pool (one trip at a time, success body never read,
+ * so no connection is reused); 1..4 are ParallelUploader + TripHttpSender with that many trips
+ * in flight. The connections / requests counters show the reuse.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ParallelUploadBenchmark {
+
+    static final int TRIPS = 12;
+    static final int POINTS = 1200;
+
+    @Param({ "legacy", "1", "2", "3", "4" })
+    public String uploader;
+
+    @Param({ "40" })
+    public int latencyMs;
+
+    @Param({ "80" })
+    public int handshakeMs;
+
+    HttpServer server;
+    ExecutorService serverThreads;
+    String url;
+    List<UploadOutbox.Entry> entries;
+    ParallelUploader pool;
+    File dir;
+    final AtomicLong connections = new AtomicLong();
+    final AtomicLong requests = new AtomicLong();
+    final Set<Integer> seenPorts = ConcurrentHashMap.newKeySet();
+
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    @State(Scope.Thread)
+    public static class Counters {
+        public long connections;
+        public long requests;
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        // no Nagle delay on the small answers (a real server sets TCP_NODELAY too)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        serverThreads = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 64);
+        server.createContext("/trips", this::handle);
+        server.setExecutor(serverThreads);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/trips";
+
+        dir = Files.createTempDirectory("outbox-bench").toFile();
+        UploadOutbox outbox = new UploadOutbox(dir);
+        entries = new ArrayList<>();
+        long t = 1_767_225_600_000L;
+        for (int trip = 0; trip < TRIPS; trip++) {
+            TripBuffer points = new TripBuffer(POINTS);
+            double lat = 48.8566, lng = 2.3522;
+            for (int i = 0; i < POINTS; i++) {
+                lat += 1e-4;
+                lng += 1e-4;
+                points.add(TrackRecord.location(lat, lng, 20 + (i % 700) / 100.0, t += 1000));
+            }
+            points.join();
+            TripSummary summary = new TripSummary();
+            summary.tripId = "bench-" + trip;
+            summary.startTimestamp = points.firstTimestamp();
+            summary.endTimestamp = points.lastTimestamp();
+            summary.pointCount = POINTS;
+            entries.add(outbox.add(summary, points, new RowJsonPayloadCodec(), summary.startTimestamp - 1, summary.endTimestamp + 1));
+            t += 3_600_000;
+        }
+        if (!"legacy".equals(uploader)) pool = new ParallelUploader(Integer.parseInt(uploader));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop(0);
+        serverThreads.shutdownNow();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    @Benchmark
+    public int sync(Counters counters) throws Exception {
+        long c0 = connections.get(), r0 = requests.get();
+        int[] acked = { 0 };
+        if (pool == null) {
+            for (UploadOutbox.Entry entry : entries) {
+                if (legacyPost(url, entry) == 201) acked[0]++;
+            }
+        } else {
+            pool.run(entries.iterator(),
+                entry -> TripHttpSender.post(url, "token", entry, false, 0).code,
+                (entry, code) -> {
+                    if (code == 201) acked[0]++;
+                    return true;
+                });
+        }
+        if (acked[0] != TRIPS) throw new IllegalStateException(acked[0] + " trips acknowledged");
+        counters.connections += connections.get() - c0;
+        counters.requests += requests.get() - r0;
+        return acked[0];
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        try (InputStream in = ex.getRequestBody()) {
+            in.readAllBytes();
+        }
+        try {
+            if (seenPorts.add(ex.getRemoteAddress().getPort())) {
+                connections.incrementAndGet();
+                Thread.sleep(handshakeMs);
+            }
+            Thread.sleep(latencyMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        requests.incrementAndGet();
+        byte[] answer = ("{\"tripId\":\"" + ex.getRequestHeaders().getFirst("Idempotency-Key") + "\"}")
+            .getBytes(StandardCharsets.UTF_8);
+        ex.getResponseHeaders().set("Content-Type", "application/json");
+        ex.sendResponseHeaders(201, answer.length);
+        try (OutputStream out = ex.getResponseBody()) {
+            out.write(answer);
+        }
+    }
+
+    /**
+     * postTrip before the pool: status read, success body left unread (connection not reusable)
+     */
+    static int legacyPost(String urlStr, UploadOutbox.Entry entry) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(urlStr).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setRequestProperty("Content-Type", entry.contentType);
+        conn.setRequestProperty("Authorization", "Bearer token");
+        conn.setDoOutput(true);
+        conn.setFixedLengthStreamingMode(entry.body.length());
+        try (InputStream in = new FileInputStream(entry.body);
+             OutputStream os = new BufferedOutputStream(conn.getOutputStream(), 8192)) {
+            in.transferTo(os);
+        }
+        return conn.getResponseCode();
+    }
+}
@@ -0,0 +1,41 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.DriveGenerator;
+import fr.lelab.activity.DriveReplay;
+import fr.lelab.activity.ReplayStoreTarget;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Drive replay on the JVM (gradle replay): DriveGenerator days played by DriveReplay into a
+ * ReplayStoreTarget on a temp directory (storage path of the plugin, like replayDrives on a
+ * device), and the stats printed as JSON.
+ *
+ * Usage: gradle replay -Preplay.days=30 -Preplay.speed=1000 -Preplay.seed=1 (speed 0: unthrottled)
+ */
+public class ReplayMain {
+
+    public static void main(String[] args) throws Exception {
+        int days = args.length > 0 ? Integer.parseInt(args[0]) : 7;
+        double speed = args.length > 1 ? Double.parseDouble(args[1]) : 1000;
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 1;
+
+        File dir = Files.createTempDirectory("drive-replay").toFile();
+        ReplayStoreTarget target = new ReplayStoreTarget(dir, (message, e) -> System.err.println(message + " " + e));
+        try {
+            DriveReplay.Stats stats = new DriveReplay(new DriveGenerator(seed, days), target, speed).run();
+
+            JSONObject result = stats.toJSON();
+            result.put("days", days);
+            result.put("speed", speed);
+            result.put("seed", seed);
+            result.put("store", target.getStats());
+            System.out.println(result.toString(2));
+        } finally {
+            target.close();
+        }
+    }
+}
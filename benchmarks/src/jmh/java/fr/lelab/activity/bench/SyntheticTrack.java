@@ -0,0 +1,123 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.TrackContext;
+import fr.lelab.activity.TrackRecord;
+import fr.lelab.activity.TrackSegmentStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Track store content as the plugin writes it, from a seed: two to four drives a day
+ * (automotive ENTER, 1 Hz locations in town then on the road, stops, EXIT), weather refreshed
+ * every 10 min, phone unlocks and apps, context written as context records when it changes
+ * (TrackContext, like saveLocation).
+ */
+final class SyntheticTrack {
+
+    static final long START = 1_767_225_600_000L;
+
+    interface Sink {
+        void accept(TrackRecord record) throws IOException;
+    }
+
+    private static final String[] WEATHERS = { "Clear", "Clouds", "Rain", "Drizzle" };
+    private static final String[] APPS = { "Waze", "Google Maps", "Spotify", "Messages" };
+
+    private SyntheticTrack() {}
+
+    /**
+     * Write count records (the last drive is cut) into the sink
+     */
+    static void generate(long seed, long count, Sink sink) throws IOException {
+        Random rnd = new Random(seed);
+        TrackContext context = new TrackContext();
+        long written = 0;
+        long t = START + 7 * 3600_000L;
+        double lat = 48.8566, lng = 2.3522;
+
+        while (written < count) {
+            // one drive: 10 to 60 min
+            context.reset();
+            sink.accept(TrackRecord.activity("automotive", "ENTER", t));
+            written++;
+
+            int seconds = 600 + rnd.nextInt(3000);
+            double heading = rnd.nextDouble() * 2 * Math.PI;
+            String weather = WEATHERS[rnd.nextInt(WEATHERS.length)];
+            double temp = rnd.nextInt(300) / 10.0;
+            String app = null;
+            boolean unlocked = false;
+            for (int s = 0; s < seconds && written < count; s++) {
+                t += 1000;
+                boolean town = s < 300 || seconds - s < 300;
+                double speed = town ? (s % 90 < 15 ? 0 : 8 + rnd.nextDouble() * 6) : 25 + rnd.nextDouble() * 10;
+                heading += town ? (rnd.nextInt(30) == 0 ? Math.PI / 2 : 0) : rnd.nextGaussian() * 0.02;
+                lat += speed * Math.cos(heading) / 111_195;
+                lng += speed * Math.sin(heading) / (111_195 * Math.cos(Math.toRadians(lat)));
+
+                if (s % 600 == 599) temp += rnd.nextInt(5) - 2;
+                if (rnd.nextInt(400) == 0) {
+                    unlocked = !unlocked;
+                    app = unlocked ? APPS[rnd.nextInt(APPS.length)] : null;
+                }
+
+                TrackRecord point = TrackRecord.location(lat, lng, speed, t);
+                point.weatherType = weather;
+                point.weatherTemp = temp;
+                point.appName = app;
+                point.phoneUnlock = unlocked;
+                point.distraction = unlocked && speed > 0;
+                for (TrackRecord change : context.changesTo(point)) {
+                    sink.accept(change);
+                    written++;
+                }
+                point.weatherType = null;
+                point.appName = null;
+                point.phoneUnlock = false;
+                point.distraction = null;
+                sink.accept(point);
+                written++;
+            }
+
+            if (written < count) {
+                sink.accept(TrackRecord.activity("automotive", "EXIT", t + 1000));
+                written++;
+            }
+            // parked: 1 to 8 h
+            t += 3600_000L + rnd.nextInt(7 * 3600) * 1000L;
+        }
+    }
+
+    /**
+     * Store of count records in sealed segments, rolled like the live ones
+     * @return timestamp of the last record
+     */
+    static long writeStore(TrackSegmentStore store, long seed, long count) throws IOException {
+        TrackSegmentStore.SegmentWriter[] out = { null };
+        long[] last = { 0 };
+        try {
+            generate(seed, count, record -> {
+                if (out[0] != null && store.shouldRoll(out[0].getSegment(), out[0].getBytes(), record.timestamp)) {
+                    out[0].close();
+                    out[0] = null;
+                }
+                if (out[0] == null) out[0] = store.newSealedSegment();
+                out[0].write(record);
+                last[0] = record.timestamp;
+            });
+        } finally {
+            if (out[0] != null) out[0].close();
+        }
+        return last[0];
+    }
+
+    static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File c : children) deleteRecursively(c);
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,86 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.TrackAppendWriter;
+import fr.lelab.activity.TrackContext;
+import fr.lelab.activity.TrackRecord;
+import fr.lelab.activity.TrackSegmentStore;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * saveLocation path without Android: context changes (TrackContext) and the point queued to the
+ * TrackAppendWriter, then a flush, so the time per point includes the group commit on the
+ * writer thread. durability = the storageDurability option.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TrackAppendBenchmark {
+
+    static final int POINTS = 1000;
+
+    @Param({ "flush", "fdatasync" })
+    public String durability;
+
+    File dir;
+    TrackAppendWriter writer;
+    TrackContext context;
+    long t;
+    double lat;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("track-append-bench").toFile();
+        TrackSegmentStore store = new TrackSegmentStore(new File(dir, TrackSegmentStore.DIR_NAME), null);
+        store.getDir().mkdirs();
+        writer = new TrackAppendWriter(store,
+            TrackAppendWriter.Durability.fromOption(durability, TrackAppendWriter.Durability.FLUSH), null);
+        writer.start();
+        context = new TrackContext();
+        t = SyntheticTrack.START;
+        lat = 48.8566;
+    }
+
+    @TearDown
+    public void tearDown() {
+        writer.closeTrip();
+        writer.stop();
+        SyntheticTrack.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public long saveLocation() {
+        long dropped = 0;
+        for (int i = 0; i < POINTS; i++) {
+            t += 1000;
+            lat += 1e-4;
+            TrackRecord location = TrackRecord.location(lat, 2.3522, 13.9, t);
+            location.weatherType = "Clouds";
+            location.weatherTemp = 12.5;
+            location.phoneUnlock = (i / 100) % 2 == 0;
+            for (TrackRecord change : context.changesTo(location)) {
+                if (!writer.append(change)) dropped++;
+            }
+            location.weatherType = null;
+            location.phoneUnlock = false;
+            if (!writer.append(location)) dropped++;
+        }
+        writer.flush();
+        return dropped;
+    }
+}
@@ -0,0 +1,96 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.TrackSegmentStore;
+import fr.lelab.activity.TripSegmenter;
+import fr.lelab.activity.TripSummary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * purgeLocationsBefore / purgeLocationsBetween on a synthetic history of 10k to 5M records.
+ * A purge changes the store, so each one runs once (single shot) on a fresh copy of it.
+ * - purgeBefore: the oldest quarter of the history
+ * - purgeBetween: one trip in the middle (what a sync removes once the trip is acknowledged)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TrackPurgeBenchmark {
+
+    @Param({ "10000", "100000", "1000000", "5000000" })
+    public long records;
+
+    File template;
+    File work;
+    TrackSegmentStore store;
+    long quarter;
+    TripSummary trip;
+
+    @Setup(Level.Trial)
+    public void setupTrial() throws IOException {
+        template = Files.createTempDirectory("track-purge-bench").toFile();
+        TrackSegmentStore source = new TrackSegmentStore(new File(template, TrackSegmentStore.DIR_NAME), null);
+        source.getDir().mkdirs();
+        long last = SyntheticTrack.writeStore(source, 42, records);
+        quarter = SyntheticTrack.START + (last - SyntheticTrack.START) / 4;
+
+        List<TripSummary> trips = new ArrayList<>();
+        TripSegmenter segmenter = new TripSegmenter(trips::add);
+        source.forEachRecord(segmenter::accept);
+        segmenter.finish();
+        if (trips.isEmpty()) throw new IllegalStateException("No trip in " + records + " records");
+        trip = trips.get(trips.size() / 2);
+    }
+
+    @Setup(Level.Invocation)
+    public void copyStore() throws IOException {
+        work = Files.createTempDirectory("track-purge-run").toFile();
+        File from = new File(template, TrackSegmentStore.DIR_NAME);
+        File to = new File(work, TrackSegmentStore.DIR_NAME);
+        to.mkdirs();
+        File[] files = from.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                Files.copy(f.toPath(), new File(to, f.getName()).toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+            }
+        }
+        store = new TrackSegmentStore(to, null);
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteCopy() {
+        SyntheticTrack.deleteRecursively(work);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        SyntheticTrack.deleteRecursively(template);
+    }
+
+    @Benchmark
+    public int purgeBefore() {
+        return store.removeRecords(Long.MIN_VALUE, quarter - 1).recordsRemoved;
+    }
+
+    @Benchmark
+    public int purgeBetween() {
+        return store.removeRecords(trip.startTimestamp - 1, trip.endTimestamp + 1).recordsRemoved;
+    }
+}
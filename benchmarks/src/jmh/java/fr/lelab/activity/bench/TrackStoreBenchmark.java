@@ -0,0 +1,106 @@
+package fr.lelab.activity.bench;
+
+import fr.lelab.activity.CountingOutputStream;
+import fr.lelab.activity.RowJsonPayloadCodec;
+import fr.lelab.activity.TrackJsonEncoder;
+import fr.lelab.activity.TrackSegmentStore;
+import fr.lelab.activity.TripBuffer;
+import fr.lelab.activity.TripSegmenter;
+import fr.lelab.activity.TripSummary;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Read paths of the track store on a synthetic history (SyntheticTrack) of 10k to 5M records:
+ * - loadAll: decode every record (getSavedLocations / share of the whole store)
+ * - exportAll: decode and write every record as a JSON line (TrackJsonEncoder)
+ * - segmentAll: TripSegmenter over the whole store (replay without checkpoint)
+ * - buildPayload: points of one sealed trip read by time range, joined and encoded in rows
+ *   (sync, JsonStorageHelper.loadTripPoints + RowJsonPayloadCodec)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class TrackStoreBenchmark {
+
+    @Param({ "10000", "100000", "1000000", "5000000" })
+    public long records;
+
+    File dir;
+    TrackSegmentStore store;
+    TripSummary trip;
+    TrackJsonEncoder encoder;
+
+    @Setup
+    public void setup() throws IOException {
+        dir = Files.createTempDirectory("track-store-bench").toFile();
+        store = new TrackSegmentStore(new File(dir, TrackSegmentStore.DIR_NAME), null);
+        store.getDir().mkdirs();
+        SyntheticTrack.writeStore(store, 42, records);
+        encoder = new TrackJsonEncoder(TimeZone.getTimeZone("Europe/Paris"));
+
+        // trip in the middle of the history for the payload
+        List<TripSummary> trips = new ArrayList<>();
+        TripSegmenter segmenter = new TripSegmenter(trips::add);
+        store.forEachRecord(segmenter::accept);
+        segmenter.finish();
+        if (trips.isEmpty()) throw new IllegalStateException("No trip in " + records + " records");
+        trip = trips.get(trips.size() / 2);
+    }
+
+    @TearDown
+    public void tearDown() {
+        SyntheticTrack.deleteRecursively(dir);
+    }
+
+    @Benchmark
+    public long loadAll() throws IOException {
+        long[] count = { 0 };
+        store.forEachRecord(record -> count[0]++);
+        return count[0];
+    }
+
+    @Benchmark
+    public long exportAll() throws IOException {
+        CountingOutputStream out = new CountingOutputStream();
+        store.forEachRecord(record -> encoder.writeLine(record, out));
+        return out.getCount();
+    }
+
+    @Benchmark
+    public int segmentAll() throws IOException {
+        int[] count = { 0 };
+        TripSegmenter segmenter = new TripSegmenter(t -> count[0]++);
+        store.forEachRecord(segmenter::accept);
+        segmenter.finish();
+        return count[0];
+    }
+
+    @Benchmark
+    public long buildPayload() throws IOException {
+        TripBuffer points = new TripBuffer(trip.pointCount + 16);
+        store.forEachRecord(trip.startTimestamp, trip.endTimestamp, record -> {
+            if (record.isContext() || record.isLocation()) points.add(record);
+        });
+        points.join();
+        CountingOutputStream out = new CountingOutputStream();
+        new RowJsonPayloadCodec().writeTo(points, out);
+        return out.getCount();
+    }
+}
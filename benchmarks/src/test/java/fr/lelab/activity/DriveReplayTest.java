@@ -0,0 +1,126 @@
+package fr.lelab.activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Generated drives are the same for the same seed, and replayed through ReplayStoreTarget
+ * (ingest filters, grace timer, live segmenter on the writer thread) they seal the trips that
+ * TripSegmenter finds in one pass over the records of the store.
+ */
+public class DriveReplayTest {
+
+    private File dir;
+    private ReplayStoreTarget target;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("replay-test").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        // deletes dir
+        if (target != null) target.close();
+        dir.delete();
+    }
+
+    /** every field of the event, in a line */
+    private static String describe(DriveGenerator.Event e) {
+        return e.kind + " " + e.timestamp + " " + e.activity + " " + e.transition + " " + e.lat + " " + e.lng
+            + " " + e.speed + " " + e.accuracy + " " + e.weatherType + " " + e.weatherTemp + " " + e.unlocked
+            + " " + e.appName + " " + e.distraction;
+    }
+
+    private static List<String> events(long seed, int days) {
+        List<String> events = new ArrayList<>();
+        DriveGenerator generator = new DriveGenerator(seed, days);
+        while (generator.hasNext()) events.add(describe(generator.next()));
+        return events;
+    }
+
+    /** fixes of the trip whose speed rounds to STOP_SPEED_MS in cm/s */
+    private static int borderline(List<TrackRecord> records, TripSummary trip) {
+        int count = 0;
+        for (TrackRecord r : records) {
+            if (r.isLocation() && r.timestamp >= trip.startTimestamp && r.timestamp <= trip.endTimestamp
+                    && Math.abs(r.speed - TripSummary.STOP_SPEED_MS) < 0.005) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void sameSeedGivesTheSameDrives() {
+        List<String> first = events(42, 7);
+        assertTrue(first.size() > 10_000);
+        assertEquals(first, events(42, 7));
+        // the first days do not depend on the number of days
+        assertEquals(events(42, 3), first.subList(0, events(42, 3).size()));
+        assertNotEquals(first, events(43, 7));
+    }
+
+    @Test
+    public void eventsAreInTimeOrder() {
+        DriveGenerator generator = new DriveGenerator(5, 7);
+        long previous = Long.MIN_VALUE;
+        int transitions = 0;
+        while (generator.hasNext()) {
+            DriveGenerator.Event e = generator.next();
+            assertTrue(e.timestamp >= previous);
+            previous = e.timestamp;
+            if (e.kind == DriveGenerator.Kind.TRANSITION && "automotive".equals(e.activity)) transitions++;
+        }
+        assertTrue(transitions > 0);
+    }
+
+    @Test
+    public void replaySealsTheTripsOfTheSegmenter() throws IOException {
+        target = new ReplayStoreTarget(dir, (message, e) -> {
+            throw new AssertionError(message, e);
+        });
+        DriveReplay.Stats stats = new DriveReplay(new DriveGenerator(1, 7), target, 0).run();
+        assertTrue(stats.timersFired > 0);
+
+        // the records the live segmenter saw, in time order (it holds them back to sort them)
+        List<TrackRecord> records = new ArrayList<>();
+        new TrackSegmentStore(new File(dir, TrackSegmentStore.DIR_NAME), null).forEachRecord(records::add);
+        records.sort(Comparator.comparingLong(r -> r.timestamp));
+        List<TripSummary> expected = new ArrayList<>();
+        TripSegmenter segmenter = new TripSegmenter(expected::add);
+        for (TrackRecord r : records) segmenter.accept(r);
+        segmenter.finish();
+
+        SealedTripStore sealed = target.getSealedTrips();
+        long[] starts = sealed.startTimes();
+        assertTrue(expected.size() > 5);
+        assertEquals(expected.size(), starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            TripSummary trip = sealed.load(starts[i]);
+            TripSummary reference = expected.get(i);
+            assertEquals(reference.startTimestamp, trip.startTimestamp);
+            assertEquals(reference.endTimestamp, trip.endTimestamp);
+            assertEquals(reference.pointCount, trip.pointCount);
+            // the live summary adds the fixes before they are stored at 1e-7° (1.1 cm per hop at most)
+            assertEquals(reference.distance, trip.distance, reference.pointCount * 0.011);
+            // and their speed before it is stored in cm/s: a fix at STOP_SPEED_MS +- 0.5 cm/s may count
+            // as moving on one side only (1 s at 1 Hz)
+            assertEquals(reference.movingTime, trip.movingTime, 1000 * borderline(records, reference));
+            assertEquals(reference.stopCount, trip.stopCount);
+            assertEquals(reference.distractionTime, trip.distractionTime);
+        }
+    }
+}
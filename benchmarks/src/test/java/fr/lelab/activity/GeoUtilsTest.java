@@ -0,0 +1,135 @@
+package fr.lelab.activity;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The error bounds documented in GeoUtils, on random hops of all bearings: distance() against
+ * haversine() by hop length and latitude, across the antimeridian and around SHORT_HOP_DEG,
+ * and pathLength() against the sum of distance().
+ */
+public class GeoUtilsTest {
+
+    private static final double METERS_PER_DEG = GeoUtils.EARTH_RADIUS_M * Math.PI / 180;
+
+    /** hop of `meters` at most from (lat, lng), random bearing; {lat2, lng2} */
+    private static double[] hop(Random random, double lat, double lng, double maxMeters) {
+        double meters = maxMeters * (0.01 + 0.99 * random.nextDouble());
+        double bearing = random.nextDouble() * 2 * Math.PI;
+        double lat2 = lat + meters * Math.cos(bearing) / METERS_PER_DEG;
+        double lng2 = lng + meters * Math.sin(bearing) / (METERS_PER_DEG * Math.cos(Math.toRadians(lat)));
+        if (lng2 > 180) lng2 -= 360;
+        if (lng2 < -180) lng2 += 360;
+        return new double[] { lat2, lng2 };
+    }
+
+    /** largest relative error of distance() on hops up to maxMeters, latitudes up to maxLat (both hemispheres) */
+    private static double maxError(long seed, double maxLat, double maxMeters) {
+        Random random = new Random(seed);
+        double max = 0;
+        for (int i = 0; i < 20_000; i++) {
+            double lat = (random.nextDouble() * 2 - 1) * maxLat;
+            double lng = random.nextDouble() * 360 - 180;
+            double[] to = hop(random, lat, lng, maxMeters);
+            double reference = GeoUtils.haversine(lat, lng, to[0], to[1]);
+            double error = Math.abs(GeoUtils.distance(lat, lng, to[0], to[1]) - reference) / reference;
+            max = Math.max(max, error);
+        }
+        return max;
+    }
+
+    @Test
+    public void hopsUpTo100m() {
+        assertTrue(maxError(1, 60, 100) < 4e-11);
+        assertTrue(maxError(2, 85, 100) < 2e-9);
+    }
+
+    @Test
+    public void hopsUpTo1km() {
+        assertTrue(maxError(3, 60, 1000) < 4e-9);
+        assertTrue(maxError(4, 85, 1000) < 2e-7);
+    }
+
+    @Test
+    public void hopsUpToTheShortHopLimit() {
+        Random random = new Random(5);
+        double max = 0;
+        for (int i = 0; i < 20_000; i++) {
+            double lat = (random.nextDouble() * 2 - 1) * 85;
+            double lng = random.nextDouble() * 360 - 180;
+            // any span up to SHORT_HOP_DEG on both axes
+            double lat2 = lat + (random.nextDouble() * 2 - 1) * GeoUtils.SHORT_HOP_DEG;
+            double lng2 = lng + (random.nextDouble() * 2 - 1) * GeoUtils.SHORT_HOP_DEG;
+            double reference = GeoUtils.haversine(lat, lng, lat2, lng2);
+            max = Math.max(max, Math.abs(GeoUtils.distance(lat, lng, lat2, lng2) - reference) / reference);
+        }
+        assertTrue(String.valueOf(max), max < 4e-7);
+    }
+
+    @Test
+    public void hopAcrossTheAntimeridian() {
+        for (double lat : new double[] { 0, 60, -85 }) {
+            double reference = GeoUtils.haversine(lat, 179.9995, lat, -179.9995);
+            double d = GeoUtils.distance(lat, 179.9995, lat, -179.9995);
+            // 0.001° of longitude, not 359.999°
+            assertEquals(0.001 * METERS_PER_DEG * Math.cos(Math.toRadians(lat)), reference, 1e-6);
+            assertEquals(reference, d, reference * 4e-11);
+            assertEquals(d, GeoUtils.distance(lat, -179.9995, lat, 179.9995), 0);
+            assertEquals(d, GeoUtils.pathLength(new double[] { lat, lat }, new double[] { 179.9995, -179.9995 }, 0, 2),
+                d * 1e-9);
+        }
+    }
+
+    @Test
+    public void longerHopsFallBackToHaversine() {
+        double limit = GeoUtils.SHORT_HOP_DEG;
+        for (double lat : new double[] { 0, 45, 60, 85 }) {
+            // just over the limit on either axis: haversine itself
+            double over = limit + 1e-9;
+            assertEquals(GeoUtils.haversine(lat, 5, lat + over, 5), GeoUtils.distance(lat, 5, lat + over, 5), 0);
+            assertEquals(GeoUtils.haversine(lat, 5, lat, 5 + over), GeoUtils.distance(lat, 5, lat, 5 + over), 0);
+            assertEquals(GeoUtils.haversine(lat, 179.95, lat, -179.95 + 1e-9),
+                GeoUtils.distance(lat, 179.95, lat, -179.95 + 1e-9), 0);
+
+            // just under the limit (lat + limit - lat may round over it): the flat one, no step at the switch
+            double under = limit - 1e-9;
+            double reference = GeoUtils.haversine(lat, 5, lat + under, 5 + under);
+            double flat = GeoUtils.distance(lat, 5, lat + under, 5 + under);
+            assertEquals(GeoUtils.equirectangular(lat, 5, lat + under, 5 + under), flat, 0);
+            assertEquals(reference, flat, reference * 4e-7);
+        }
+    }
+
+    @Test
+    public void pathLengthIsTheSumOfTheHops() {
+        Random random = new Random(6);
+        for (double startLat : new double[] { 0, 45, 60, 85, -60 }) {
+            int n = 5000;
+            double[] lat = new double[n];
+            double[] lng = new double[n];
+            lat[0] = startLat;
+            lng[0] = 179.9995;
+            for (int i = 1; i < n; i++) {
+                // 1 Hz hops around the antimeridian, a gap now and then (haversine)
+                double meters = (i % 500 == 0) ? 20_000 : 30;
+                double[] to = hop(random, lat[i - 1], lng[i - 1], meters);
+                lat[i] = Math.max(-89, Math.min(89, to[0]));
+                lng[i] = to[1];
+            }
+
+            double sum = 0;
+            for (int i = 1; i < n; i++) sum += GeoUtils.distance(lat[i - 1], lng[i - 1], lat[i], lng[i]);
+            assertEquals(sum, GeoUtils.pathLength(lat, lng, 0, n), sum * 1e-9);
+
+            // sub range
+            double part = 0;
+            for (int i = 101; i < 2000; i++) part += GeoUtils.distance(lat[i - 1], lng[i - 1], lat[i], lng[i]);
+            assertEquals(part, GeoUtils.pathLength(lat, lng, 100, 2000), part * 1e-9);
+        }
+        assertEquals(0, GeoUtils.pathLength(new double[] { 45 }, new double[] { 5 }, 0, 1), 0);
+    }
+}
@@ -0,0 +1,156 @@
+package fr.lelab.activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records committed out of time order (a GPS batch written after the transition that followed
+ * it): the segmenter sees them by timestamp, so the sealed trip keeps its last points and a
+ * re-ENTER received late still continues the trip. Held records survive a restart.
+ */
+public class LiveTripSegmenterTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+    private static final long MINUTE = 60 * 1000;
+
+    private File dir;
+    private TrackAppendWriter writer;
+    private LiveTripSegmenter segmenter;
+    private final List<String> errors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("live-segmenter-test").toFile();
+        open();
+    }
+
+    private void open() {
+        TrackSegmentStore store = new TrackSegmentStore(new File(dir, TrackSegmentStore.DIR_NAME),
+            (message, e) -> errors.add(message));
+        writer = new TrackAppendWriter(store, TrackAppendWriter.Durability.FSYNC_ON_TRIP_CLOSE,
+            (message, e) -> errors.add(message));
+        segmenter = new LiveTripSegmenter(store, new SealedTripStore(new File(dir, SealedTripStore.DIR_NAME)),
+            new File(dir, LiveTripSegmenter.CHECKPOINT_FILE), (message, e) -> errors.add(message));
+        writer.setCommitListener(segmenter);
+        writer.start();
+        writer.submit(segmenter::recover);
+    }
+
+    @After
+    public void tearDown() {
+        writer.stop();
+        delete(dir);
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) delete(child);
+        }
+        file.delete();
+    }
+
+    private void append(TrackRecord record) {
+        assertTrue(writer.append(record));
+    }
+
+    private void drive(long from, long to) {
+        for (long t = from; t <= to; t += 1000) {
+            append(TrackRecord.location(45.0 + (t - T0) / 1000 * 1e-4, 5.0, 11, t));
+        }
+    }
+
+    private List<TripSummary> sealed() {
+        SealedTripStore trips = segmenter.getSealedTrips();
+        List<TripSummary> result = new ArrayList<>();
+        for (long start : trips.startTimes()) result.add(trips.load(start));
+        return result;
+    }
+
+    @Test
+    public void batchCommittedAfterTheExitStaysInTheTrip() {
+        append(TrackRecord.activity("automotive", "ENTER", T0));
+        drive(T0 + 1000, T0 + 10 * MINUTE - 20_000);
+        // EXIT stamped at receipt, then the last 20 s of fixes delivered in one batch
+        append(TrackRecord.activity("automotive", "EXIT", T0 + 10 * MINUTE));
+        drive(T0 + 10 * MINUTE - 19_000, T0 + 10 * MINUTE - 1000);
+        writer.closeTrip();
+        writer.flush();
+
+        List<TripSummary> trips = sealed();
+        assertEquals(1, trips.size());
+        assertEquals(T0 + 1000, trips.get(0).startTimestamp);
+        assertEquals(T0 + 10 * MINUTE - 1000, trips.get(0).endTimestamp);
+        assertEquals(599, trips.get(0).pointCount);
+        assertEquals(T0 + 10 * MINUTE, trips.get(0).exitTimestamp);
+        assertEquals(0, segmenter.getLateRecords());
+    }
+
+    @Test
+    public void reenterCommittedAfterLaterFixesContinuesTheTrip() {
+        append(TrackRecord.activity("automotive", "ENTER", T0));
+        drive(T0 + 1000, T0 + 10 * MINUTE);
+        append(TrackRecord.activity("automotive", "EXIT", T0 + 10 * MINUTE));
+        // ENTER 4 min 50 s after the EXIT, written after fixes up to 5 min 10 s after it
+        drive(T0 + 14 * MINUTE + 50_000, T0 + 15 * MINUTE + 10_000);
+        append(TrackRecord.activity("automotive", "ENTER", T0 + 14 * MINUTE + 50_000));
+        drive(T0 + 15 * MINUTE + 11_000, T0 + 20 * MINUTE);
+        append(TrackRecord.activity("automotive", "EXIT", T0 + 20 * MINUTE));
+        writer.closeTrip();
+        writer.flush();
+
+        List<TripSummary> trips = sealed();
+        assertEquals(1, trips.size());
+        assertEquals(T0 + 1000, trips.get(0).startTimestamp);
+        assertEquals(T0 + 20 * MINUTE, trips.get(0).endTimestamp);
+        assertEquals(600 + 311, trips.get(0).pointCount);
+    }
+
+    @Test
+    public void fixOlderThanTheWindowIsLeftOut() {
+        append(TrackRecord.activity("automotive", "ENTER", T0));
+        drive(T0 + 1000, T0 + 5 * MINUTE);
+        // a fix of the first minute, committed 4 minutes later
+        append(TrackRecord.location(45.0, 5.0005, 11, T0 + 30_000));
+        append(TrackRecord.activity("automotive", "EXIT", T0 + 5 * MINUTE));
+        writer.closeTrip();
+        writer.flush();
+
+        List<TripSummary> trips = sealed();
+        assertEquals(1, trips.size());
+        assertEquals(300, trips.get(0).pointCount);
+        assertEquals(T0 + 5 * MINUTE, trips.get(0).endTimestamp);
+        assertEquals(1, segmenter.getLateRecords());
+    }
+
+    @Test
+    public void restartWithHeldRecordsGivesTheSameTrip() {
+        append(TrackRecord.activity("automotive", "ENTER", T0));
+        drive(T0 + 1000, T0 + 2 * MINUTE);
+        append(TrackRecord.activity("automotive", "EXIT", T0 + 2 * MINUTE));
+        drive(T0 + 2 * MINUTE - 10_000 + 500, T0 + 2 * MINUTE - 500);
+        // killed before the trip close: the last 30 s are only in the store and the checkpoint
+        writer.stop();
+
+        open();
+        writer.closeTrip();
+        writer.flush();
+
+        List<TripSummary> trips = sealed();
+        assertEquals(1, trips.size());
+        assertEquals(T0 + 1000, trips.get(0).startTimestamp);
+        assertEquals(T0 + 2 * MINUTE, trips.get(0).endTimestamp);
+        assertEquals(120 + 10, trips.get(0).pointCount);
+    }
+}
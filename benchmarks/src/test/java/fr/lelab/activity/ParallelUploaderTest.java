@@ -0,0 +1,109 @@
+package fr.lelab.activity;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Results handed back in trip order whatever the completion order (the purge ranges of the sync
+ * are recorded from them), at most `parallelism` requests in flight, and nothing acknowledged
+ * after a stop even if the requests in flight succeed.
+ */
+public class ParallelUploaderTest {
+
+    private static List<Integer> items(int n) {
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < n; i++) items.add(i);
+        return items;
+    }
+
+    @Test(timeout = 10000)
+    public void resultsInOrderWhenLaterRequestsFinishFirst() throws Exception {
+        ParallelUploader uploader = new ParallelUploader(3);
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> acked = new ArrayList<>();
+        // the first request only answers once the two after it are done
+        CountDownLatch laterDone = new CountDownLatch(2);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        uploader.run(items(8).iterator(), item -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            if (item == 0) assertTrue(laterDone.await(5, TimeUnit.SECONDS));
+            completed.add(item);
+            inFlight.decrementAndGet();
+            if (item == 1 || item == 2) laterDone.countDown();
+            return 200 + item;
+        }, (item, status) -> {
+            assertEquals(200 + item, status);
+            acked.add(item);
+            return true;
+        });
+
+        assertEquals(items(8), acked);
+        assertTrue(completed.indexOf(1) < completed.indexOf(0));
+        assertTrue(completed.indexOf(2) < completed.indexOf(0));
+        assertTrue(maxInFlight.get() <= 3);
+    }
+
+    @Test(timeout = 10000)
+    public void failedRequestIsResultMinusOne() throws Exception {
+        ParallelUploader uploader = new ParallelUploader(2);
+        List<Integer> statuses = new ArrayList<>();
+
+        uploader.run(items(3).iterator(), item -> {
+            if (item == 1) throw new IOException("connection reset");
+            return 200;
+        }, (item, status) -> statuses.add(status));
+
+        assertEquals(List.of(200, -1, 200), statuses);
+    }
+
+    @Test(timeout = 10000)
+    public void nothingIsAckedAfterATransientFailure() throws Exception {
+        ParallelUploader uploader = new ParallelUploader(3);
+        List<Integer> sent = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> completed = Collections.synchronizedList(new ArrayList<>());
+        List<Integer> acked = new ArrayList<>();
+        CountDownLatch othersStarted = new CountDownLatch(2);
+        CountDownLatch failureAcked = new CountDownLatch(1);
+
+        uploader.run(items(10).iterator(), item -> {
+            sent.add(item);
+            if (item == 0) {
+                // 1 and 2 are in flight when the first one fails
+                assertTrue(othersStarted.await(5, TimeUnit.SECONDS));
+                return 503;
+            }
+            othersStarted.countDown();
+            // they succeed after the failure was handled
+            assertTrue(failureAcked.await(5, TimeUnit.SECONDS));
+            completed.add(item);
+            return 200;
+        }, (item, status) -> {
+            acked.add(item);
+            if (status == 503) {
+                failureAcked.countDown();
+                return false;
+            }
+            return true;
+        });
+
+        // no new request after the failure, the ones in flight completed before run returned
+        Collections.sort(sent);
+        assertEquals(items(3), sent);
+        Collections.sort(completed);
+        assertEquals(List.of(1, 2), completed);
+        // and their success is not acknowledged: sent again (same Idempotency-Key) by the next sync
+        assertEquals(List.of(0), acked);
+    }
+}
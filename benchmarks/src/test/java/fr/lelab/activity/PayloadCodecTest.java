@@ -0,0 +1,313 @@
+package fr.lelab.activity;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Columnar bodies read back: the CBOR one with a small decoder (10 keys, integer deltas that
+ * sum back to the E7 coordinates, cm/s speeds and timestamps), the JSON one with org.json.
+ * Context runs expanded to one value per point must give the values of the buffer.
+ */
+public class PayloadCodecTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+
+    /** points around 0° of longitude (negative deltas and values), context changing now and then */
+    private static TripBuffer trip(int n, long seed) {
+        Random random = new Random(seed);
+        String[] weathers = { null, "Clouds", "Rain", "sunny" };
+        String[] apps = { null, "com.waze", "Spotify" };
+        TripBuffer trip = new TripBuffer();
+        TrackRecord previous = null;
+        double lat = 44.8378;
+        double lng = 0.0012;
+        long t = T0;
+        for (int i = 0; i < n; i++) {
+            lat += (random.nextInt(2000) - 1000) / 1e7;
+            lng -= random.nextInt(3000) / 1e7;
+            t += 1000 + random.nextInt(50);
+            TrackRecord p = TrackRecord.location(lat, lng, random.nextInt(4000) / 100.0, t);
+            if (previous == null || random.nextInt(15) == 0) {
+                p.weatherType = weathers[random.nextInt(weathers.length)];
+                p.weatherTemp = (p.weatherType == null) ? 0 : random.nextInt(400) / 10.0 - 5;
+                p.appName = apps[random.nextInt(apps.length)];
+                p.phoneUnlock = random.nextBoolean();
+                int d = random.nextInt(3);
+                p.distraction = d == 0 ? null : d == 2;
+            } else {
+                p.weatherType = previous.weatherType;
+                p.weatherTemp = previous.weatherTemp;
+                p.appName = previous.appName;
+                p.phoneUnlock = previous.phoneUnlock;
+                p.distraction = previous.distraction;
+            }
+            trip.add(p);
+            previous = p;
+        }
+        trip.join();
+        return trip;
+    }
+
+    private static byte[] encode(TripPayloadCodec codec, TripBuffer trip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = codec.writeTo(trip, out);
+        assertEquals(out.size(), written);
+        return out.toByteArray();
+    }
+
+    // --- expected context values, as in the rows format ---
+
+    private static Boolean unlock(TripBuffer trip, int i) {
+        return trip.phoneUnlock(i);
+    }
+
+    private static Boolean appUsed(TripBuffer trip, int i) {
+        return trip.phoneUnlock(i) && trip.appName(i) != null;
+    }
+
+    private static Boolean distraction(TripBuffer trip, int i) {
+        if (!trip.phoneUnlock(i) || !trip.hasDistraction(i)) return null;
+        return trip.distraction(i);
+    }
+
+    private interface Column {
+        Boolean value(TripBuffer trip, int i);
+    }
+
+    /** runs [start, value]: first one at 0, each one a change, expanded they give the column */
+    private static void assertRuns(TripBuffer trip, List<?> runs, Column column) {
+        assertEquals(0L, ((Number) ((List<?>) runs.get(0)).get(0)).longValue());
+        int point = 0;
+        Object previous = null;
+        for (int r = 0; r < runs.size(); r++) {
+            List<?> run = (List<?>) runs.get(r);
+            int start = ((Number) run.get(0)).intValue();
+            int end = (r + 1 < runs.size()) ? ((Number) ((List<?>) runs.get(r + 1)).get(0)).intValue() : trip.size();
+            Object value = run.get(1);
+            if (r > 0) assertNotEquals("run " + r + " repeats the value", previous, value);
+            assertEquals(point, start);
+            for (; point < end; point++) assertEquals("point " + point, column.value(trip, point), value);
+            previous = value;
+        }
+        assertEquals(trip.size(), point);
+    }
+
+    private static void assertWeatherRuns(TripBuffer trip, List<?> runs) {
+        int point = 0;
+        for (int r = 0; r < runs.size(); r++) {
+            List<?> run = (List<?>) runs.get(r);
+            int end = (r + 1 < runs.size()) ? ((Number) ((List<?>) runs.get(r + 1)).get(0)).intValue() : trip.size();
+            assertEquals(point, ((Number) run.get(0)).intValue());
+            for (; point < end; point++) {
+                if (run.get(1) == null) {
+                    assertEquals(2, run.size());
+                    assertNull(trip.weatherType(point));
+                } else {
+                    assertEquals(trip.weatherType(point), run.get(1));
+                    assertEquals(trip.weatherTemp(point), ((Number) run.get(2)).doubleValue(), 0);
+                }
+            }
+        }
+        assertEquals(trip.size(), point);
+    }
+
+    private static void assertContext(TripBuffer trip, Map<String, ?> body) {
+        assertWeatherRuns(trip, (List<?>) body.get("weather"));
+        assertRuns(trip, (List<?>) body.get("phoneUnlock"), PayloadCodecTest::unlock);
+        assertRuns(trip, (List<?>) body.get("appUsed"), PayloadCodecTest::appUsed);
+        assertRuns(trip, (List<?>) body.get("distractionDetect"), PayloadCodecTest::distraction);
+    }
+
+    /** first value then deltas, summed back */
+    private static long[] sums(List<?> deltas) {
+        long[] values = new long[deltas.size()];
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            sum += (Long) deltas.get(i);
+            values[i] = sum;
+        }
+        return values;
+    }
+
+    @Test
+    public void cborDecodesToTheBuffer() throws IOException {
+        TripBuffer trip = trip(600, 11);
+        byte[] body = encode(new CborPayloadCodec(), trip);
+
+        Cbor cbor = new Cbor(body);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> map = (Map<String, Object>) cbor.next();
+        assertEquals(body.length, cbor.position);
+
+        assertEquals(List.of("format", "count", "latE7", "lngE7", "speedCm", "ts", "weather", "phoneUnlock",
+            "appUsed", "distractionDetect"), new ArrayList<>(map.keySet()));
+        assertEquals("columnar-e7", map.get("format"));
+        assertEquals((long) trip.size(), map.get("count"));
+
+        long[] lat = sums((List<?>) map.get("latE7"));
+        long[] lng = sums((List<?>) map.get("lngE7"));
+        long[] speed = sums((List<?>) map.get("speedCm"));
+        long[] ts = sums((List<?>) map.get("ts"));
+        assertEquals(trip.size(), lat.length);
+        for (int i = 0; i < trip.size(); i++) {
+            assertEquals(Math.round(trip.lat(i) * 1e7), lat[i]);
+            assertEquals(trip.lat(i), lat[i] / 1e7, 1e-7);
+            assertEquals(Math.round(trip.lng(i) * 1e7), lng[i]);
+            assertEquals(Math.round(trip.speed(i) * 100), speed[i]);
+            assertEquals(trip.timestamp(i), ts[i]);
+        }
+        // crossed 0°: negative values and deltas
+        assertTrue(lng[0] > 0 && lng[trip.size() - 1] < 0);
+        assertContext(trip, map);
+    }
+
+    @Test
+    public void columnarJsonParsesToTheBuffer() throws IOException, JSONException {
+        TripBuffer trip = trip(600, 12);
+        byte[] body = encode(new ColumnarJsonPayloadCodec(), trip);
+
+        JSONObject json = new JSONObject(new String(body, StandardCharsets.UTF_8));
+        assertEquals("columnar", json.getString("format"));
+        assertEquals(trip.size(), json.getInt("count"));
+
+        JSONArray lat = json.getJSONArray("lat");
+        JSONArray lng = json.getJSONArray("lng");
+        JSONArray speed = json.getJSONArray("speed");
+        JSONArray ts = json.getJSONArray("ts");
+        assertEquals(trip.size(), lat.length());
+        long t = 0;
+        for (int i = 0; i < trip.size(); i++) {
+            assertEquals(trip.lat(i), lat.getDouble(i), 1e-12);
+            assertEquals(trip.lng(i), lng.getDouble(i), 1e-12);
+            assertEquals(trip.speed(i), speed.getDouble(i), 1e-9);
+            t += ts.getLong(i);
+            assertEquals(trip.timestamp(i), t);
+        }
+
+        Map<String, Object> columns = new LinkedHashMap<>();
+        for (String key : new String[] { "weather", "phoneUnlock", "appUsed", "distractionDetect" }) {
+            columns.put(key, toList(json.getJSONArray(key)));
+        }
+        assertContext(trip, columns);
+    }
+
+    @Test
+    public void emptyTripIsAValidBody() throws IOException, JSONException {
+        TripBuffer trip = new TripBuffer();
+
+        JSONObject json = new JSONObject(new String(encode(new ColumnarJsonPayloadCodec(), trip), StandardCharsets.UTF_8));
+        assertEquals(0, json.getInt("count"));
+        assertEquals(0, json.getJSONArray("phoneUnlock").length());
+
+        byte[] body = encode(new CborPayloadCodec(), trip);
+        Cbor cbor = new Cbor(body);
+        Map<?, ?> map = (Map<?, ?>) cbor.next();
+        assertEquals(body.length, cbor.position);
+        assertEquals(10, map.size());
+        assertEquals(0L, map.get("count"));
+    }
+
+    /** JSON arrays as lists, JSON null as null */
+    private static List<Object> toList(JSONArray array) throws JSONException {
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < array.length(); i++) {
+            Object value = array.get(i);
+            if (value instanceof JSONArray) value = toList((JSONArray) value);
+            if (value == JSONObject.NULL) value = null;
+            list.add(value);
+        }
+        return list;
+    }
+
+    /**
+     * Decoder of the items written by CborPayloadCodec: integers, text, arrays (definite or not),
+     * maps, false / true / null and float64
+     */
+    private static class Cbor {
+        private static final Object BREAK = new Object();
+
+        private final ByteBuffer in;
+        int position;
+
+        Cbor(byte[] bytes) {
+            in = ByteBuffer.wrap(bytes);
+        }
+
+        Object next() {
+            int initial = in.get() & 0xFF;
+            Object item = item(initial);
+            position = in.position();
+            return item;
+        }
+
+        private Object item(int initial) {
+            int major = initial >> 5;
+            int info = initial & 0x1F;
+            switch (initial) {
+                case 0xF4: return Boolean.FALSE;
+                case 0xF5: return Boolean.TRUE;
+                case 0xF6: return null;
+                case 0xFB: return in.getDouble();
+                case 0xFF: return BREAK;
+                default: break;
+            }
+            if (major == 4 && info == 31) {
+                List<Object> list = new ArrayList<>();
+                for (Object o = next(); o != BREAK; o = next()) list.add(o);
+                return list;
+            }
+            long argument = argument(info);
+            switch (major) {
+                case 0:
+                    return argument;
+                case 1:
+                    return -1 - argument;
+                case 3: {
+                    byte[] utf8 = new byte[(int) argument];
+                    in.get(utf8);
+                    return new String(utf8, StandardCharsets.UTF_8);
+                }
+                case 4: {
+                    List<Object> list = new ArrayList<>();
+                    for (long i = 0; i < argument; i++) list.add(next());
+                    return list;
+                }
+                case 5: {
+                    Map<Object, Object> map = new LinkedHashMap<>();
+                    for (long i = 0; i < argument; i++) map.put(next(), next());
+                    return map;
+                }
+                default:
+                    throw new AssertionError("unexpected CBOR item " + Integer.toHexString(initial));
+            }
+        }
+
+        private long argument(int info) {
+            if (info < 24) return info;
+            switch (info) {
+                case 24: return in.get() & 0xFFL;
+                case 25: return in.getShort() & 0xFFFFL;
+                case 26: return in.getInt() & 0xFFFFFFFFL;
+                case 27: return in.getLong();
+                default: throw new AssertionError("unexpected CBOR argument " + info);
+            }
+        }
+    }
+}
@@ -0,0 +1,297 @@
+package fr.lelab.activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Group commit (by record count, by bytes, by age), tasks ordered after the queued records,
+ * trip close and segment roll, queue full rejection, and a writer that survives a failure.
+ */
+public class TrackAppendWriterTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private File dir;
+    private TrackSegmentStore store;
+    private TrackAppendWriter writer;
+    private final List<String> errors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("append-writer-test").toFile();
+        store = new TrackSegmentStore(dir, (message, e) -> errors.add(message));
+    }
+
+    @After
+    public void tearDown() {
+        if (writer != null) writer.stop();
+        store.clear();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private TrackAppendWriter open(TrackAppendWriter.Durability durability, int queueCapacity, int groupRecords,
+                                   int groupBytes, long groupAgeMs) {
+        writer = new TrackAppendWriter(store, durability, (message, e) -> errors.add(message),
+            queueCapacity, groupRecords, groupBytes, groupAgeMs);
+        writer.start();
+        return writer;
+    }
+
+    private static TrackRecord point(int i) {
+        return TrackRecord.location(45.0 + i * 1e-4, 5.0, 11, T0 + i * 1000L);
+    }
+
+    private List<Long> stored() throws IOException {
+        List<Long> result = new ArrayList<>();
+        store.forEachRecord(r -> result.add(r.timestamp));
+        return result;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) fail("condition not reached in 5 s");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void groupIsCommittedWhenFull() throws Exception {
+        open(TrackAppendWriter.Durability.FLUSH, 1024, 10, 64 * 1024, HOUR);
+        for (int i = 0; i < 25; i++) assertTrue(writer.append(point(i)));
+
+        waitFor(() -> writer.getCommittedRecords() == 20);
+        // the last 5 wait for a full group, the age limit or a flush
+        Thread.sleep(100);
+        assertEquals(20, writer.getCommittedRecords());
+        assertEquals(2, writer.getCommittedGroups());
+
+        writer.flush();
+        assertEquals(25, writer.getCommittedRecords());
+        assertEquals(3, writer.getCommittedGroups());
+        assertEquals(25, stored().size());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void groupIsCommittedOverItsByteSize() throws Exception {
+        open(TrackAppendWriter.Durability.FLUSH, 1024, 1000, 200, HOUR);
+        for (int i = 0; i < 100; i++) assertTrue(writer.append(point(i)));
+
+        waitFor(() -> writer.getCommittedGroups() >= 2);
+        long groups = writer.getCommittedGroups();
+        assertTrue(writer.getCommittedBytes() / groups >= 200);
+
+        writer.flush();
+        assertEquals(100, writer.getCommittedRecords());
+        assertEquals(100, stored().size());
+    }
+
+    @Test(timeout = 10000)
+    public void groupIsCommittedAtItsMaxAge() throws Exception {
+        open(TrackAppendWriter.Durability.FLUSH, 1024, 1000, 64 * 1024, 100);
+        for (int i = 0; i < 3; i++) assertTrue(writer.append(point(i)));
+
+        // no flush: committed by the age limit alone
+        waitFor(() -> writer.getCommittedRecords() == 3);
+        assertEquals(1, writer.getCommittedGroups());
+    }
+
+    @Test(timeout = 10000)
+    public void taskRunsAfterTheQueuedRecords() throws Exception {
+        open(TrackAppendWriter.Durability.FLUSH, 1024, 1000, 64 * 1024, HOUR);
+        for (int i = 0; i < 5; i++) writer.append(point(i));
+
+        List<Long> seen = new ArrayList<>();
+        writer.runExclusive(() -> {
+            try {
+                store.forEachRecord(r -> seen.add(r.timestamp));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+
+        assertEquals(5, seen.size());
+        assertEquals(T0 + 4000, (long) seen.get(4));
+    }
+
+    @Test(timeout = 10000)
+    public void commitListenerGetsEachGroupInOrder() throws Exception {
+        open(TrackAppendWriter.Durability.FDATASYNC_PER_GROUP, 1024, 4, 64 * 1024, HOUR);
+        List<Long> committed = new ArrayList<>();
+        long[] end = { 0 };
+        writer.setCommitListener(new TrackAppendWriter.CommitListener() {
+            @Override
+            public void onCommitted(List<TrackRecord> records, TrackSegmentStore.Segment segment, long endOffset) {
+                for (TrackRecord r : records) committed.add(r.timestamp);
+                end[0] = endOffset;
+                // the group is in the file when the listener runs
+                assertEquals(endOffset, segment.file.length());
+            }
+
+            @Override
+            public void onTripClosed() {
+            }
+        });
+        for (int i = 0; i < 10; i++) writer.append(point(i));
+        writer.flush();
+
+        assertEquals(10, committed.size());
+        for (int i = 0; i < 10; i++) assertEquals(T0 + i * 1000L, (long) committed.get(i));
+        assertEquals(store.segments().get(0).file.length(), end[0]);
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void closeTripSealsTheSegmentWithoutWaiting() throws Exception {
+        open(TrackAppendWriter.Durability.FSYNC_ON_TRIP_CLOSE, 1024, 1000, 64 * 1024, HOUR);
+        boolean[] closed = { false };
+        writer.setCommitListener(new TrackAppendWriter.CommitListener() {
+            @Override
+            public void onCommitted(List<TrackRecord> records, TrackSegmentStore.Segment segment, long endOffset) {
+            }
+
+            @Override
+            public void onTripClosed() {
+                closed[0] = true;
+            }
+        });
+        CountDownLatch blocked = new CountDownLatch(1);
+        writer.submit(() -> {
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        for (int i = 0; i < 5; i++) writer.append(point(i));
+
+        // queued behind the blocked task, the caller goes on
+        Future<Void> close = writer.closeTrip();
+        assertFalse(close.isDone());
+        blocked.countDown();
+        close.get(5, TimeUnit.SECONDS);
+
+        assertTrue(closed[0]);
+        List<TrackSegmentStore.Segment> segments = store.segments();
+        assertEquals(1, segments.size());
+        assertTrue(segments.get(0).sealed);
+        assertEquals(5, segments.get(0).recordCount);
+
+        // next trip in a new segment
+        writer.append(point(10));
+        writer.flush();
+        assertEquals(2, store.segments().size());
+        assertFalse(store.segments().get(1).sealed);
+    }
+
+    @Test(timeout = 10000)
+    public void rolledSegmentsAreSealed() throws Exception {
+        store = new TrackSegmentStore(dir, 10_000, TrackSegmentStore.DEFAULT_MAX_SEGMENT_BYTES,
+            (message, e) -> errors.add(message));
+        for (TrackAppendWriter.Durability durability : TrackAppendWriter.Durability.values()) {
+            store.clear();
+            open(durability, 1024, 5, 64 * 1024, HOUR);
+            for (int i = 0; i < 30; i++) writer.append(point(i));
+            writer.flush();
+
+            // 5 s groups in segments of 10 s at most
+            List<TrackSegmentStore.Segment> segments = store.segments();
+            assertEquals(durability.toOption(), 3, segments.size());
+            for (int s = 0; s < segments.size() - 1; s++) assertTrue(segments.get(s).sealed);
+            assertFalse(segments.get(2).sealed);
+
+            writer.closeTrip();
+            writer.flush();
+            for (TrackSegmentStore.Segment s : store.segments()) assertTrue(s.sealed);
+            assertEquals(30, stored().size());
+            assertEquals(durability, TrackAppendWriter.Durability.fromOption(durability.toOption(), null));
+            writer.stop();
+        }
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test(timeout = 10000)
+    public void fullQueueDropsTheRecord() throws Exception {
+        open(TrackAppendWriter.Durability.FLUSH, 4, 1000, 64 * 1024, HOUR);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch blocked = new CountDownLatch(1);
+        writer.submit(() -> {
+            started.countDown();
+            try {
+                blocked.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        started.await();
+
+        for (int i = 0; i < 4; i++) assertTrue(writer.append(point(i)));
+        long before = System.nanoTime();
+        assertFalse(writer.append(point(4)));
+        // the producer waited a little, not until a slot was free
+        assertTrue(System.nanoTime() - before < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(1, writer.getDroppedRecords());
+
+        blocked.countDown();
+        writer.flush();
+        assertEquals(4, writer.getCommittedRecords());
+        assertEquals(4, stored().size());
+    }
+
+    @Test(timeout = 10000)
+    public void writerSurvivesAFailure() throws Exception {
+        int[] calls = { 0 };
+        store = new TrackSegmentStore(dir, (message, e) -> errors.add(message)) {
+            @Override
+            public boolean shouldRoll(Segment segment, long segmentBytes, long nextTimestamp) {
+                if (calls[0]++ == 0) throw new IllegalStateException("bug");
+                return super.shouldRoll(segment, segmentBytes, nextTimestamp);
+            }
+        };
+        open(TrackAppendWriter.Durability.FLUSH, 1024, 5, 64 * 1024, HOUR);
+        for (int i = 0; i < 5; i++) writer.append(point(i));
+        writer.flush();
+
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0), errors.get(0).startsWith("writer failure"));
+        assertEquals(5, writer.getFailedRecords());
+
+        // still running: the next records are committed and the tasks run
+        for (int i = 5; i < 10; i++) writer.append(point(i));
+        writer.flush();
+        assertEquals(5, writer.getCommittedRecords());
+        List<Long> stored = stored();
+        assertEquals(T0 + 9000, (long) stored.get(stored.size() - 1));
+    }
+
+    @Test(timeout = 10000)
+    public void interruptedCallerIsNotToldTheTaskRan() {
+        open(TrackAppendWriter.Durability.FLUSH, 1024, 1000, 64 * 1024, HOUR);
+        Thread.currentThread().interrupt();
+        try {
+            writer.runExclusive(() -> { });
+            fail("runExclusive returned while interrupted");
+        } catch (IllegalStateException e) {
+            assertTrue(Thread.interrupted());
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONStringer;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * TrackJsonEncoder lines against JsonStorageHelper.recordToJSObject(record).toString() built
+ * with org.json: same bytes as the JSONStringer in insertion order (Android JSONObject keeps
+ * the keys in a LinkedHashMap), and same JSONObject.toString() once parsed back.
+ */
+public class TrackJsonEncoderTest {
+
+    private static final TimeZone ZONE = TimeZone.getTimeZone("Europe/Paris");
+    private static final long T0 = 1_767_225_600_000L;
+
+    private final TrackJsonEncoder encoder = new TrackJsonEncoder(ZONE);
+    private final SimpleDateFormat sdf = new SimpleDateFormat("dd-MM-yyyy HH:mm:ss", Locale.FRANCE);
+
+    {
+        sdf.setTimeZone(ZONE);
+    }
+
+    private String line(TrackRecord r) {
+        ByteBuffer line = encoder.encodeLine(r);
+        return new String(line.array(), 0, line.limit(), StandardCharsets.UTF_8);
+    }
+
+    /** reference line as written in the UTF-8 file */
+    private String expectedLine(TrackRecord r) throws JSONException {
+        return new String(referenceLine(r).getBytes(StandardCharsets.UTF_8), StandardCharsets.UTF_8);
+    }
+
+    private void assertSameLine(TrackRecord r) throws JSONException {
+        String expected = expectedLine(r);
+        String actual = line(r);
+        assertEquals(expected + "\n", actual);
+        assertEquals(new JSONObject(expected).toString(), new JSONObject(actual).toString());
+    }
+
+    @Test
+    public void randomRecordsGiveTheJsonObjectLine() throws JSONException {
+        Random random = new Random(7);
+        String[] weathers = { "sunny", "Clouds", "Rain/Snow", "\"quoted\"" };
+        String[] apps = { "Waze", "Google Maps", "Café", "Messages\tperso", "emoji 🚗" };
+        for (int i = 0; i < 5000; i++) {
+            long t = T0 + i * 997L * 1000;
+            TrackRecord r;
+            int kind = random.nextInt(10);
+            if (kind == 0) {
+                r = TrackRecord.activity("automotive", random.nextBoolean() ? "ENTER" : "EXIT", t);
+            } else if (kind < 3) {
+                r = TrackRecord.context((byte) (1 + random.nextInt(4)), t);
+                r.weatherType = random.nextBoolean() ? weathers[random.nextInt(weathers.length)] : null;
+                r.weatherTemp = random.nextInt(4000) / 100.0 - 5;
+                r.appName = random.nextBoolean() ? apps[random.nextInt(apps.length)] : null;
+                r.phoneUnlock = random.nextBoolean();
+                r.distraction = random.nextBoolean() ? null : random.nextBoolean();
+            } else {
+                r = TrackRecord.location(48.8566 + (random.nextInt(2_000_000) - 1_000_000) / 1e7,
+                    2.3522 + (random.nextInt(2_000_000) - 1_000_000) / 1e7, random.nextInt(4000) / 100.0, t);
+                if (kind < 6) {
+                    r.weatherType = weathers[random.nextInt(weathers.length)];
+                    r.weatherTemp = random.nextDouble() * 40 - 5;
+                    r.appName = apps[random.nextInt(apps.length)];
+                    r.phoneUnlock = random.nextBoolean();
+                    r.distraction = random.nextBoolean() ? null : random.nextBoolean();
+                }
+            }
+            assertSameLine(r);
+        }
+    }
+
+    @Test
+    public void edgeValues() throws JSONException {
+        double[] values = { 0.0, -0.0, 1.0, -1.0, 12.37, 0.1 + 0.2, 1e-4, 1.5e-3, 9_999_999.5, 1e7, 1.25e7, 1e21,
+            -3.14159, Double.MIN_VALUE, Double.MAX_VALUE, Double.NaN, Double.POSITIVE_INFINITY };
+        List<TrackRecord> records = new ArrayList<>();
+        for (double v : values) {
+            TrackRecord p = TrackRecord.location(v, -v, v, T0);
+            p.weatherType = "unknown";
+            p.weatherTemp = v;
+            records.add(p);
+        }
+        for (String s : new String[] { "", "a/b\\c", "\u0001\b\f\n\r", "é中", "\uD800 unpaired" }) {
+            TrackRecord app = TrackRecord.context(TrackRecord.CONTEXT_APP, T0);
+            app.appName = s;
+            records.add(app);
+        }
+        records.add(TrackRecord.activity(null, null, T0));
+        records.add(TrackRecord.activity("walking", "ENTER", -1));
+
+        for (TrackRecord r : records) assertSameLine(r);
+    }
+
+    @Test
+    public void datesAcrossDaysAndDaylightSaving() throws JSONException {
+        // 29 March 2026: 02:00 -> 03:00 in Paris
+        long start = 1_774_735_200_000L - 6 * 3600 * 1000L;
+        for (long t = start; t < start + 3 * 24 * 3600 * 1000L; t += 17 * 60 * 1000L + 13_000) {
+            assertSameLine(TrackRecord.activity("automotive", "ENTER", t));
+        }
+    }
+
+    // --- reference: JsonStorageHelper.recordToJSObject with org.json ---
+
+    /**
+     * recordToJSObject(record).toString() as written on Android (keys in insertion order)
+     */
+    private String referenceLine(TrackRecord record) throws JSONException {
+        JSONStringer out = new JSONStringer().object();
+        if (record.isLocation()) {
+            out.key("type").value("location");
+            value(out, "lat", record.lat);
+            value(out, "lng", record.lng);
+            value(out, "speed", record.speed);
+            out.key("timestamp").value(record.timestamp);
+            if (record.weatherType != null) {
+                out.key("weather").object().key("type").value(record.weatherType);
+                value(out, "temp", record.weatherTemp);
+                out.endObject();
+            }
+            if (record.appName != null) {
+                out.key("appUsed").object().key("usedApp").object()
+                    .key("name").value(record.appName).key("accuracy").value(1)
+                    .endObject().endObject();
+            }
+            if (record.phoneUnlock) out.key("phoneUnlock").value(true);
+            if (record.distraction != null) out.key("distractionDetect").value(record.distraction.booleanValue());
+        } else if (record.isContext()) {
+            out.key("type").value("context");
+            out.key("timestamp").value(record.timestamp);
+            switch (record.contextKind) {
+                case TrackRecord.CONTEXT_WEATHER:
+                    out.key("context").value("weather");
+                    if (record.weatherType != null) {
+                        out.key("weather").object().key("type").value(record.weatherType);
+                        value(out, "temp", record.weatherTemp);
+                        out.endObject();
+                    }
+                    break;
+                case TrackRecord.CONTEXT_APP:
+                    out.key("context").value("appUsed");
+                    if (record.appName != null) out.key("appName").value(record.appName);
+                    break;
+                case TrackRecord.CONTEXT_LOCK:
+                    out.key("context").value("phoneUnlock");
+                    out.key("phoneUnlock").value(record.phoneUnlock);
+                    break;
+                default:
+                    out.key("context").value("distractionDetect");
+                    if (record.distraction != null) out.key("distractionDetect").value(record.distraction.booleanValue());
+                    break;
+            }
+        } else {
+            out.key("type").value("activity");
+            // JSObject.put(key, null) leaves the key out
+            if (record.activity != null) out.key("activity").value(record.activity);
+            if (record.transition != null) out.key("transition").value(record.transition);
+            out.key("date").value(sdf.format(new Date(record.timestamp)));
+            out.key("timestamp").value(record.timestamp);
+        }
+        return out.endObject().toString();
+    }
+
+    private static void value(JSONStringer out, String key, double value) throws JSONException {
+        // NaN / infinite values are dropped by JSObject.put
+        if (Double.isNaN(value) || Double.isInfinite(value)) return;
+        out.key(key).value(value);
+    }
+}
@@ -0,0 +1,206 @@
+package fr.lelab.activity;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records encoded then decoded: same fields (lat/lng at 1e-7, speed at 1 cm/s), delta records
+ * after an absolute one, and a record cut at the end of the file ignored.
+ */
+public class TrackRecordCodecTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+
+    private static byte[] encode(List<TrackRecord> records, int resetEvery) {
+        TrackRecordCodec.Encoder encoder = new TrackRecordCodec.Encoder();
+        ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+        for (int i = 0; i < records.size(); i++) {
+            if (resetEvery > 0 && i % resetEvery == 0) encoder.reset();
+            encoder.encode(records.get(i), out);
+        }
+        byte[] bytes = new byte[out.position()];
+        out.flip();
+        out.get(bytes);
+        return bytes;
+    }
+
+    private static List<TrackRecord> decode(byte[] bytes) throws IOException {
+        TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(new ByteArrayInputStream(bytes), 0);
+        List<TrackRecord> records = new ArrayList<>();
+        for (TrackRecord r = decoder.next(); r != null; r = decoder.next()) records.add(r);
+        return records;
+    }
+
+    private static List<TrackRecord> sample() {
+        List<TrackRecord> records = new ArrayList<>();
+        records.add(TrackRecord.activity("automotive", "ENTER", T0));
+
+        TrackRecord weather = TrackRecord.context(TrackRecord.CONTEXT_WEATHER, T0 + 10);
+        weather.weatherType = "Clouds";
+        weather.weatherTemp = 12.37;
+        records.add(weather);
+
+        TrackRecord app = TrackRecord.context(TrackRecord.CONTEXT_APP, T0 + 20);
+        app.appName = "com.waze";
+        records.add(app);
+
+        TrackRecord lock = TrackRecord.context(TrackRecord.CONTEXT_LOCK, T0 + 30);
+        lock.phoneUnlock = true;
+        records.add(lock);
+
+        TrackRecord distraction = TrackRecord.context(TrackRecord.CONTEXT_DISTRACTION, T0 + 40);
+        distraction.distraction = Boolean.TRUE;
+        records.add(distraction);
+
+        for (int i = 0; i < 20; i++) {
+            TrackRecord p = TrackRecord.location(48.8566123 + i * 1e-4, 2.3522219 - i * 1e-4, 13.87 + i * 0.5, T0 + 1000 + i * 1000L);
+            if (i % 3 == 0) {
+                p.weatherType = "sunny";
+                p.weatherTemp = -3.14159;
+            }
+            if (i % 4 == 0) p.appName = "Spotify é";
+            p.phoneUnlock = i % 2 == 0;
+            if (i % 5 == 0) p.distraction = i % 10 == 0;
+            records.add(p);
+        }
+
+        records.add(TrackRecord.activity("walking", "EXIT", T0 + 30_000));
+        records.add(TrackRecord.activity("in_vehicle_custom", "SOMETHING", T0 + 31_000));
+        return records;
+    }
+
+    private static void assertSameRecord(TrackRecord expected, TrackRecord actual) {
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.timestamp, actual.timestamp);
+        assertEquals(expected.lat, actual.lat, 1e-7);
+        assertEquals(expected.lng, actual.lng, 1e-7);
+        assertEquals(expected.speed, actual.speed, 0.005);
+        assertEquals(expected.weatherType, actual.weatherType);
+        if (expected.weatherType != null) assertEquals(expected.weatherTemp, actual.weatherTemp, 0);
+        assertEquals(expected.appName, actual.appName);
+        assertEquals(expected.phoneUnlock, actual.phoneUnlock);
+        assertEquals(expected.distraction, actual.distraction);
+        assertEquals(expected.activity, actual.activity);
+        assertEquals(expected.transition, actual.transition);
+        assertEquals(expected.contextKind, actual.contextKind);
+    }
+
+    @Test
+    public void roundTrip() throws IOException {
+        List<TrackRecord> records = sample();
+        List<TrackRecord> decoded = decode(encode(records, 0));
+
+        assertEquals(records.size(), decoded.size());
+        for (int i = 0; i < records.size(); i++) assertSameRecord(records.get(i), decoded.get(i));
+    }
+
+    @Test
+    public void roundTripWithAbsoluteRecords() throws IOException {
+        List<TrackRecord> records = sample();
+        byte[] bytes = encode(records, 4);
+
+        TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(new ByteArrayInputStream(bytes), 0);
+        for (int i = 0; i < records.size(); i++) {
+            TrackRecord r = decoder.next();
+            assertSameRecord(records.get(i), r);
+            assertEquals(i % 4 == 0, decoder.wasAbsolute());
+        }
+        assertNull(decoder.next());
+        assertEquals(bytes.length, decoder.position());
+    }
+
+    @Test
+    public void temperatureIsNotRounded() throws IOException {
+        TrackRecord p = TrackRecord.location(45.0, 5.0, 10, T0);
+        p.weatherType = "Rain";
+        p.weatherTemp = 12.37;
+        TrackRecord context = TrackRecord.context(TrackRecord.CONTEXT_WEATHER, T0 + 1);
+        context.weatherType = "cloudy";
+        context.weatherTemp = 0.1 + 0.2;
+
+        List<TrackRecord> decoded = decode(encode(List.of(p, context), 0));
+
+        assertEquals(12.37, decoded.get(0).weatherTemp, 0);
+        assertEquals(0.1 + 0.2, decoded.get(1).weatherTemp, 0);
+    }
+
+    @Test
+    public void previousTemperatureFormatIsDecoded() throws IOException {
+        // context weather written before the float64 temperature: present byte 1, code, temp * 10 int16
+        ByteBuffer out = ByteBuffer.allocate(32);
+        out.put((byte) (0x80 | TrackRecord.TYPE_CONTEXT));
+        out.put((byte) 2); // zigzag(1)
+        out.put(TrackRecord.CONTEXT_WEATHER);
+        out.put((byte) 1);
+        out.put((byte) 2); // cloudy
+        out.putShort((short) -125);
+        // location with LOC_WEATHER only: code, temp * 10 int16
+        out.put((byte) TrackRecord.TYPE_LOCATION);
+        out.put((byte) 2);
+        out.putInt(450000000);
+        out.putInt(50000000);
+        out.put((byte) 0);
+        out.put((byte) 1);
+        out.put((byte) 1); // sunny
+        out.putShort((short) 231);
+
+        List<TrackRecord> decoded = decode(Arrays.copyOf(out.array(), out.position()));
+
+        assertEquals(2, decoded.size());
+        assertEquals("cloudy", decoded.get(0).weatherType);
+        assertEquals(-12.5, decoded.get(0).weatherTemp, 0);
+        assertEquals(2, decoded.get(1).timestamp);
+        assertEquals("sunny", decoded.get(1).weatherType);
+        assertEquals(23.1, decoded.get(1).weatherTemp, 0);
+    }
+
+    @Test
+    public void truncatedLastRecordIsIgnored() throws IOException {
+        List<TrackRecord> records = sample();
+        byte[] bytes = encode(records, 0);
+        byte[] complete = encode(records.subList(0, records.size() - 1), 0);
+
+        for (int cut = complete.length + 1; cut < bytes.length; cut++) {
+            TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(
+                new ByteArrayInputStream(Arrays.copyOf(bytes, cut)), 100);
+            int n = 0;
+            while (decoder.next() != null) n++;
+            assertEquals(records.size() - 1, n);
+            assertEquals(100 + complete.length, decoder.position());
+        }
+    }
+
+    @Test
+    public void deltaWithoutAbsoluteIsRejected() {
+        byte[] bytes = encode(sample(), 0);
+        // second record is a delta: decoding from it has no base
+        int first = encode(sample().subList(0, 1), 0).length;
+        TrackRecordCodec.Decoder decoder = new TrackRecordCodec.Decoder(
+            new ByteArrayInputStream(Arrays.copyOfRange(bytes, first, bytes.length)), first);
+        try {
+            decoder.next();
+            fail("delta record decoded without an absolute record");
+        } catch (IOException expected) {
+            assertTrue(expected.getMessage().contains("absolute"));
+        }
+    }
+
+    @Test
+    public void maxEncodedSizeIsAnUpperBound() {
+        for (TrackRecord r : sample()) {
+            int size = encode(List.of(r), 0).length;
+            assertTrue(size <= TrackRecordCodec.maxEncodedSize(r));
+        }
+    }
+}
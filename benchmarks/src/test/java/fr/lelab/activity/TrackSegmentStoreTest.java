@@ -0,0 +1,279 @@
+package fr.lelab.activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Paginated reads (cursor, range, filter, purge between two pages) and record removal
+ * (deleted, rewritten and untouched segments, several ranges in one pass).
+ */
+public class TrackSegmentStoreTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+    private static final int SEGMENTS = 3;
+    private static final int RECORDS_PER_SEGMENT = 100;
+
+    private File dir;
+    private TrackSegmentStore store;
+    private final List<String> errors = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("store-test").toFile();
+        store = new TrackSegmentStore(dir, (message, e) -> errors.add(message));
+    }
+
+    @After
+    public void tearDown() {
+        store.clear();
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    private static long time(int i) {
+        return T0 + i * 1000L;
+    }
+
+    /** SEGMENTS sealed segments of locations, one per second */
+    private void fill() throws IOException {
+        int i = 0;
+        for (int s = 0; s < SEGMENTS; s++) {
+            try (TrackSegmentStore.SegmentWriter writer = store.newSealedSegment()) {
+                for (int n = 0; n < RECORDS_PER_SEGMENT; n++, i++) {
+                    writer.write(TrackRecord.location(48.85 + i * 1e-5, 2.35, i % 30, time(i)));
+                }
+            }
+        }
+    }
+
+    private List<Long> timestamps() throws IOException {
+        List<Long> result = new ArrayList<>();
+        store.forEachRecord(r -> result.add(r.timestamp));
+        return result;
+    }
+
+    private List<Long> readAllPages(long from, long to, TrackSegmentStore.RecordFilter filter, int limit) throws IOException {
+        List<Long> result = new ArrayList<>();
+        TrackSegmentStore.Cursor cursor = null;
+        do {
+            int before = result.size();
+            cursor = store.readPage(from, to, filter, cursor, limit, r -> result.add(r.timestamp));
+            assertTrue(result.size() - before <= limit);
+            // the cursor survives its text form (passed through the JS side)
+            if (cursor != null) cursor = TrackSegmentStore.Cursor.decode(cursor.encode());
+        } while (cursor != null);
+        return result;
+    }
+
+    @Test
+    public void pagesCoverTheRangeOnce() throws IOException {
+        fill();
+
+        List<Long> expected = new ArrayList<>();
+        for (int i = 40; i <= 250; i++) expected.add(time(i));
+
+        assertEquals(expected, readAllPages(time(40), time(250), null, 37));
+        assertEquals(expected, readAllPages(time(40), time(250), null, 1000));
+    }
+
+    @Test
+    public void pagesApplyTheFilter() throws IOException {
+        fill();
+
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < SEGMENTS * RECORDS_PER_SEGMENT; i++) {
+            if (i % 30 >= 20) expected.add(time(i));
+        }
+
+        assertEquals(expected, readAllPages(Long.MIN_VALUE, Long.MAX_VALUE, r -> r.speed >= 20, 7));
+    }
+
+    @Test
+    public void lastPageHasNoCursor() throws IOException {
+        fill();
+        List<Long> page = new ArrayList<>();
+
+        TrackSegmentStore.Cursor cursor = store.readPage(time(0), time(9), null, null, 10, r -> page.add(r.timestamp));
+
+        assertNull(cursor);
+        assertEquals(10, page.size());
+    }
+
+    @Test
+    public void purgeBetweenPagesDoesNotRepeatRecords() throws IOException {
+        fill();
+        List<Long> read = new ArrayList<>();
+
+        TrackSegmentStore.Cursor cursor = store.readPage(Long.MIN_VALUE, Long.MAX_VALUE, null, null, 150,
+            r -> read.add(r.timestamp));
+        assertNotNull(cursor);
+        // rewrites the segment the cursor is in, before and after its position
+        store.removeRecords(time(110), time(120));
+        store.removeRecords(time(170), time(180));
+        do {
+            cursor = store.readPage(Long.MIN_VALUE, Long.MAX_VALUE, null, cursor, 150, r -> read.add(r.timestamp));
+        } while (cursor != null);
+
+        // 110-120 were already returned, 170-180 are gone
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < SEGMENTS * RECORDS_PER_SEGMENT; i++) {
+            if (i < 170 || i > 180) expected.add(time(i));
+        }
+        assertEquals(expected, read);
+    }
+
+    @Test
+    public void removeDeletesRewritesOrKeepsSegments() throws IOException {
+        fill();
+
+        // end of the first segment, all of the second, nothing of the third
+        TrackSegmentStore.PurgeResult result = store.removeRecords(time(50), time(199));
+
+        assertEquals(1, result.segmentsDeleted);
+        assertEquals(1, result.segmentsRewritten);
+        assertEquals(150, result.recordsRemoved);
+        assertTrue(result.bytesReclaimed > 0);
+        assertEquals(2, store.segments().size());
+
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 50; i++) expected.add(time(i));
+        for (int i = 200; i < 300; i++) expected.add(time(i));
+        assertEquals(expected, timestamps());
+        assertEquals(expected, readAllPages(Long.MIN_VALUE, Long.MAX_VALUE, null, 64));
+    }
+
+    @Test
+    public void removeBetweenKeepsBothSides() throws IOException {
+        fill();
+
+        TrackSegmentStore.PurgeResult result = store.removeRecords(time(10), time(20));
+
+        assertEquals(0, result.segmentsDeleted);
+        assertEquals(1, result.segmentsRewritten);
+        assertEquals(11, result.recordsRemoved);
+        TrackSegmentStore.Segment first = store.segments().get(0);
+        assertEquals(89, first.recordCount);
+        assertEquals(time(0), first.minTimestamp);
+        assertEquals(time(99), first.maxTimestamp);
+        assertEquals(SEGMENTS * RECORDS_PER_SEGMENT - 11, timestamps().size());
+    }
+
+    @Test
+    public void removeSeveralRangesInOnePass() throws IOException {
+        fill();
+        TrackSegmentStore.RemovalSet removals = new TrackSegmentStore.RemovalSet();
+        removals.add(time(5), time(9));
+        removals.add(time(250), time(400));
+        removals.add(time(8), time(12));
+
+        TrackSegmentStore.PurgeResult result = store.removeRecords(removals);
+
+        assertEquals(2, removals.size());
+        assertEquals(2, result.segmentsRewritten);
+        assertEquals(8 + 50, result.recordsRemoved);
+        List<Long> expected = new ArrayList<>();
+        for (int i = 0; i < 250; i++) {
+            if (i < 5 || i > 12) expected.add(time(i));
+        }
+        assertEquals(expected, timestamps());
+    }
+
+    @Test
+    public void removeOutsideTheStoreChangesNothing() throws IOException {
+        fill();
+
+        TrackSegmentStore.PurgeResult result = store.removeRecords(time(-100), time(-1));
+
+        assertEquals(0, result.recordsRemoved);
+        assertEquals(0, result.segmentsRewritten);
+        assertEquals(SEGMENTS * RECORDS_PER_SEGMENT, timestamps().size());
+    }
+
+    @Test
+    public void snapshotReadsTheSegmentsAsListed() throws IOException {
+        fill();
+
+        try (TrackSegmentStore.Snapshot snapshot = store.snapshot()) {
+            // the second segment deleted, the first rewritten (and its index), after the listing
+            store.removeRecords(time(50), time(199));
+
+            List<Long> all = new ArrayList<>();
+            snapshot.forEachRecord(r -> all.add(r.timestamp));
+            assertEquals(SEGMENTS * RECORDS_PER_SEGMENT, all.size());
+
+            List<Long> range = new ArrayList<>();
+            snapshot.forEachRecord(time(40), time(160), r -> range.add(r.timestamp));
+            assertEquals(121, range.size());
+
+            List<Long> page = new ArrayList<>();
+            TrackSegmentStore.Cursor cursor = snapshot.readPage(time(90), time(300), TrackRecord::isLocation, null, 30,
+                r -> page.add(r.timestamp));
+            assertNotNull(cursor);
+            assertEquals(time(90), (long) page.get(0));
+            assertEquals(time(119), (long) page.get(29));
+        }
+
+        assertEquals(150, timestamps().size());
+    }
+
+    @Test
+    public void snapshotOfTheWriterIgnoresLaterAppends() throws IOException {
+        TrackAppendWriter writer = new TrackAppendWriter(store, TrackAppendWriter.Durability.FLUSH, null);
+        writer.start();
+        try {
+            for (int i = 0; i < 100; i++) writer.append(TrackRecord.location(45.0, 5.0, 10, time(i)));
+            TrackSegmentStore.Snapshot[] snapshot = { null };
+            writer.runExclusive(() -> snapshot[0] = store.snapshot());
+
+            // groups committed (segment header rewritten, index entries appended) while reading
+            for (int i = 100; i < 400; i++) writer.append(TrackRecord.location(45.0, 5.0, 10, time(i)));
+            writer.flush();
+
+            try (TrackSegmentStore.Snapshot s = snapshot[0]) {
+                List<Long> read = new ArrayList<>();
+                s.forEachRecord(Long.MIN_VALUE, Long.MAX_VALUE, r -> read.add(r.timestamp));
+                assertEquals(100, read.size());
+                assertEquals(time(99), (long) read.get(99));
+            }
+            assertEquals(400, timestamps().size());
+        } finally {
+            writer.stop();
+        }
+    }
+
+    @Test
+    public void appendedRecordsAreReadAndRemoved() throws IOException {
+        TrackAppendWriter writer = new TrackAppendWriter(store, TrackAppendWriter.Durability.FSYNC_ON_TRIP_CLOSE, null);
+        writer.start();
+        try {
+            writer.append(TrackRecord.activity("automotive", "ENTER", time(0)));
+            for (int i = 1; i <= 200; i++) writer.append(TrackRecord.location(45.0, 5.0, 10, time(i)));
+            writer.flush();
+
+            // active (unsealed) segment
+            assertEquals(201, readAllPages(Long.MIN_VALUE, Long.MAX_VALUE, null, 50).size());
+            assertEquals(List.of(time(0)),
+                readAllPages(Long.MIN_VALUE, Long.MAX_VALUE, TrackRecord::isActivity, 50));
+
+            TrackSegmentStore.PurgeResult[] result = new TrackSegmentStore.PurgeResult[1];
+            writer.runExclusive(() -> result[0] = store.removeRecords(time(101), time(200)));
+            assertEquals(100, result[0].recordsRemoved);
+            assertEquals(101, timestamps().size());
+        } finally {
+            writer.stop();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package fr.lelab.activity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Douglas-Peucker on a trip: aligned points are dropped, turns and the points where the
+ * context changes or a distraction is flagged are kept, and no dropped point is further than
+ * the tolerance from the simplified track.
+ */
+public class TrajectorySimplifierTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+    // about 11 m between two fixes
+    private static final double STEP = 1e-4;
+
+    /** straight road north for n fixes (joined, no context) */
+    private static List<TrackRecord> straight(int n) {
+        List<TrackRecord> points = new ArrayList<>();
+        for (int i = 0; i < n; i++) points.add(TrackRecord.location(45.0 + i * STEP, 5.0, 11, T0 + i * 1000L));
+        return points;
+    }
+
+    private static TripBuffer buffer(List<TrackRecord> points) {
+        TripBuffer trip = new TripBuffer();
+        for (TrackRecord p : points) trip.add(p);
+        trip.join();
+        return trip;
+    }
+
+    private static List<Long> timestamps(TripBuffer trip) {
+        List<Long> result = new ArrayList<>();
+        for (int i = 0; i < trip.size(); i++) result.add(trip.timestamp(i));
+        return result;
+    }
+
+    @Test
+    public void straightRoadKeepsItsEnds() {
+        TripBuffer trip = buffer(straight(300));
+
+        TrajectorySimplifier.Result result = new TrajectorySimplifier(2.0, 10_000).simplify(trip);
+
+        assertEquals(300, result.pointsIn);
+        assertEquals(2, result.pointsOut);
+        assertEquals(List.of(T0, T0 + 299_000L), timestamps(trip));
+        // a meridian bends away from its 3.3 km chord by about 0.2 m
+        assertTrue(result.maxDeviation < 0.5);
+    }
+
+    @Test
+    public void turnIsKept() {
+        List<TrackRecord> points = straight(100);
+        // then east from the last point
+        for (int i = 1; i < 100; i++) {
+            points.add(TrackRecord.location(45.0 + 99 * STEP, 5.0 + i * STEP, 11, T0 + (99 + i) * 1000L));
+        }
+        TripBuffer trip = buffer(points);
+
+        new TrajectorySimplifier(2.0, 10_000).simplify(trip);
+
+        assertEquals(List.of(T0, T0 + 99_000L, T0 + 198_000L), timestamps(trip));
+    }
+
+    @Test
+    public void contextChangesAndDistractionsAreKept() {
+        List<TrackRecord> points = straight(200);
+        for (int i = 0; i < points.size(); i++) {
+            TrackRecord p = points.get(i);
+            p.weatherType = "Clouds";
+            p.weatherTemp = i < 50 ? 12.0 : 12.5;
+            p.appName = i >= 120 && i < 130 ? "Messages" : null;
+            p.phoneUnlock = i >= 120 && i < 130;
+            p.distraction = i == 160 || i == 161 ? Boolean.TRUE : (i > 161 ? Boolean.FALSE : null);
+        }
+        TripBuffer trip = buffer(points);
+
+        TrajectorySimplifier.Result result = new TrajectorySimplifier(2.0, 10_000).simplify(trip);
+
+        // weather change, unlock with the app, lock again, distraction on, off, and the ends
+        List<Long> expected = new ArrayList<>();
+        for (int i : new int[] { 0, 50, 120, 130, 160, 161, 162, 199 }) expected.add(T0 + i * 1000L);
+        assertEquals(expected, timestamps(trip));
+        assertEquals(expected.size(), result.pointsOut);
+
+        // the context runs are unchanged
+        assertEquals(12.0, trip.weatherTemp(0), 0);
+        assertEquals(12.5, trip.weatherTemp(1), 0);
+        assertEquals("Messages", trip.appName(2));
+        assertTrue(trip.phoneUnlock(2));
+        assertEquals(null, trip.appName(3));
+        assertTrue(trip.distraction(4) && trip.distraction(5));
+        assertTrue(trip.hasDistraction(6) && !trip.distraction(6));
+    }
+
+    @Test
+    public void windowBoundsThePieces() {
+        TripBuffer trip = buffer(straight(1000));
+
+        TrajectorySimplifier.Result result = new TrajectorySimplifier(2.0, 100).simplify(trip);
+
+        // a point kept at least every 99 points
+        List<Long> kept = timestamps(trip);
+        for (int i = 1; i < kept.size(); i++) assertTrue(kept.get(i) - kept.get(i - 1) <= 99_000L);
+        assertEquals(T0 + 999_000L, (long) kept.get(kept.size() - 1));
+        assertEquals(kept.size(), result.pointsOut);
+    }
+
+    @Test
+    public void droppedPointsStayWithinTolerance() {
+        // winding road: a sine across the direction of travel
+        List<TrackRecord> points = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            points.add(TrackRecord.location(45.0 + i * STEP, 5.0 + 3e-4 * Math.sin(i / 40.0), 11, T0 + i * 1000L));
+        }
+        TripBuffer trip = buffer(points);
+
+        TrajectorySimplifier.Result result = new TrajectorySimplifier(3.0).simplify(trip);
+
+        assertTrue(result.pointsOut < 2000 / 4);
+        assertTrue(result.pointsOut > 2);
+        assertTrue(result.maxDeviation <= 3.0);
+        assertTrue(result.reduction() > 0.75);
+    }
+
+    @Test
+    public void zeroToleranceKeepsEverything() {
+        TripBuffer trip = buffer(straight(50));
+
+        TrajectorySimplifier.Result result = new TrajectorySimplifier(0).simplify(trip);
+
+        assertEquals(50, result.pointsOut);
+        assertEquals(50, trip.size());
+    }
+}
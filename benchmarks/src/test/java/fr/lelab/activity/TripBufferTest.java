@@ -0,0 +1,175 @@
+package fr.lelab.activity;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * join(): the context records written by TrackContext end up on the points that follow them,
+ * as they were before the split, rows out of order are sorted, and points of stores written
+ * before the context records keep their own values.
+ */
+public class TripBufferTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+
+    /** points with a context that changes now and then */
+    private static List<TrackRecord> points(int n, long seed) {
+        Random random = new Random(seed);
+        String[] weathers = { "Clouds", "Rain", "sunny" };
+        String[] apps = { null, "com.waze", "Spotify" };
+        List<TrackRecord> points = new ArrayList<>();
+        TrackRecord previous = null;
+        for (int i = 0; i < n; i++) {
+            TrackRecord p = TrackRecord.location(48.85 + i * 1e-4, 2.35, random.nextInt(3000) / 100.0, T0 + i * 1000L);
+            if (previous == null || random.nextInt(20) == 0) {
+                p.weatherType = weathers[random.nextInt(weathers.length)];
+                p.weatherTemp = random.nextInt(400) / 10.0 - 5;
+                p.appName = apps[random.nextInt(apps.length)];
+                p.phoneUnlock = random.nextBoolean();
+                int d = random.nextInt(3);
+                p.distraction = d == 0 ? null : d == 2;
+            } else {
+                p.weatherType = previous.weatherType;
+                p.weatherTemp = previous.weatherTemp;
+                p.appName = previous.appName;
+                p.phoneUnlock = previous.phoneUnlock;
+                p.distraction = previous.distraction;
+            }
+            points.add(p);
+            previous = p;
+        }
+        return points;
+    }
+
+    private static TrackRecord copy(TrackRecord p) {
+        TrackRecord c = TrackRecord.location(p.lat, p.lng, p.speed, p.timestamp);
+        c.weatherType = p.weatherType;
+        c.weatherTemp = p.weatherTemp;
+        c.appName = p.appName;
+        c.phoneUnlock = p.phoneUnlock;
+        c.distraction = p.distraction;
+        return c;
+    }
+
+    /** what the store holds: context records on change, then the point without its context */
+    private static List<TrackRecord> stored(List<TrackRecord> points) {
+        TrackContext context = new TrackContext();
+        List<TrackRecord> records = new ArrayList<>();
+        for (TrackRecord p : points) {
+            TrackRecord point = copy(p);
+            records.addAll(context.changesTo(point));
+            point.weatherType = null;
+            point.appName = null;
+            point.phoneUnlock = false;
+            point.distraction = null;
+            records.add(point);
+        }
+        return records;
+    }
+
+    private static void assertPoint(TrackRecord expected, TripBuffer buffer, int i) {
+        assertEquals(expected.timestamp, buffer.timestamp(i));
+        assertEquals(expected.lat, buffer.lat(i), 0);
+        assertEquals(expected.lng, buffer.lng(i), 0);
+        assertEquals(expected.speed, buffer.speed(i), 0);
+        assertEquals(expected.weatherType, buffer.weatherType(i));
+        if (expected.weatherType != null) assertEquals(expected.weatherTemp, buffer.weatherTemp(i), 0);
+        assertEquals(expected.appName, buffer.appName(i));
+        assertEquals(expected.phoneUnlock, buffer.phoneUnlock(i));
+        assertEquals(expected.distraction != null, buffer.hasDistraction(i));
+        assertEquals(Boolean.TRUE.equals(expected.distraction), buffer.distraction(i));
+    }
+
+    @Test
+    public void joinPutsTheContextBackOnThePoints() {
+        List<TrackRecord> points = points(2000, 1);
+        List<TrackRecord> records = stored(points);
+        assertTrue(records.size() > points.size());
+
+        TripBuffer buffer = new TripBuffer(16);
+        for (TrackRecord r : records) buffer.add(r);
+        buffer.join();
+
+        assertEquals(points.size(), buffer.size());
+        for (int i = 0; i < points.size(); i++) assertPoint(points.get(i), buffer, i);
+    }
+
+    @Test
+    public void joinSortsRowsByTime() {
+        List<TrackRecord> points = points(300, 2);
+        List<TrackRecord> records = stored(points);
+        // a batch committed late: the rows of points 100..149 come after the rest
+        List<TrackRecord> shuffled = new ArrayList<>();
+        List<TrackRecord> late = new ArrayList<>();
+        for (TrackRecord r : records) {
+            long i = (r.timestamp - T0) / 1000;
+            (i >= 100 && i < 150 ? late : shuffled).add(r);
+        }
+        shuffled.addAll(late);
+
+        TripBuffer buffer = new TripBuffer();
+        for (TrackRecord r : shuffled) buffer.add(r);
+        buffer.join();
+
+        assertEquals(points.size(), buffer.size());
+        for (int i = 0; i < points.size(); i++) assertPoint(points.get(i), buffer, i);
+    }
+
+    @Test
+    public void contextAtThePointTimestampApplies() {
+        TripBuffer buffer = new TripBuffer();
+        TrackRecord weather = TrackRecord.context(TrackRecord.CONTEXT_WEATHER, T0);
+        weather.weatherType = "Rain";
+        weather.weatherTemp = 7.25;
+        buffer.add(weather);
+        buffer.add(TrackRecord.location(45.0, 5.0, 10, T0));
+        TrackRecord noWeather = TrackRecord.context(TrackRecord.CONTEXT_WEATHER, T0 + 1000);
+        buffer.add(noWeather);
+        buffer.add(TrackRecord.location(45.001, 5.0, 10, T0 + 1000));
+        buffer.join();
+
+        assertEquals(2, buffer.size());
+        assertEquals("Rain", buffer.weatherType(0));
+        assertEquals(7.25, buffer.weatherTemp(0), 0);
+        assertNull(buffer.weatherType(1));
+    }
+
+    @Test
+    public void pointsWithoutContextRecordsKeepTheirValues() {
+        // store written before the context records: the context is in the point
+        List<TrackRecord> points = points(100, 3);
+        TripBuffer buffer = new TripBuffer();
+        for (TrackRecord p : points) buffer.add(copy(p));
+        // only the app is written as a context record
+        TrackRecord app = TrackRecord.context(TrackRecord.CONTEXT_APP, T0 + 49_500);
+        app.appName = "Maps";
+        buffer.add(app);
+        buffer.join();
+
+        assertEquals(points.size(), buffer.size());
+        for (int i = 0; i < points.size(); i++) {
+            TrackRecord expected = copy(points.get(i));
+            if (i >= 50) expected.appName = "Maps";
+            assertPoint(expected, buffer, i);
+        }
+    }
+
+    @Test
+    public void activityRecordsAreIgnored() {
+        TripBuffer buffer = new TripBuffer();
+        buffer.add(TrackRecord.activity("automotive", "ENTER", T0));
+        assertTrue(buffer.isEmpty());
+        buffer.add(TrackRecord.location(45.0, 5.0, 10, T0));
+        buffer.join();
+        assertEquals(1, buffer.size());
+        assertFalse(buffer.phoneUnlock(0));
+    }
+}
@@ -0,0 +1,162 @@
+package fr.lelab.activity;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Outbox entry posted to a local server: the gzip body must be the identity body once
+ * decompressed, and a 415 to gzip must be followed by an identity request.
+ */
+public class TripHttpSenderTest {
+
+    static class Received {
+        final String encoding;
+        final String idempotencyKey;
+        final byte[] body;
+
+        Received(String encoding, String idempotencyKey, byte[] body) {
+            this.encoding = encoding;
+            this.idempotencyKey = idempotencyKey;
+            this.body = body;
+        }
+    }
+
+    private HttpServer server;
+    private String url;
+    private File dir;
+    private UploadOutbox.Entry entry;
+    private final List<Received> received = Collections.synchronizedList(new ArrayList<>());
+    private volatile boolean refuseGzip = false;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 8);
+        server.createContext("/trips", this::handle);
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/trips";
+
+        dir = Files.createTempDirectory("sender-test").toFile();
+        TripBuffer points = new TripBuffer();
+        long t = 1_767_225_600_000L;
+        for (int i = 0; i < 500; i++) {
+            TrackRecord p = TrackRecord.location(48.8566 + i * 1e-4, 2.3522, 13.9f, t + i * 1000);
+            p.weatherType = "Clouds";
+            p.weatherTemp = 12.5;
+            points.add(p);
+        }
+        points.join();
+        TripSummary trip = new TripSummary();
+        trip.tripId = "trip-1";
+        trip.startTimestamp = points.firstTimestamp();
+        trip.endTimestamp = points.lastTimestamp();
+        trip.pointCount = points.size();
+        entry = new UploadOutbox(dir).add(trip, points, new RowJsonPayloadCodec(), trip.startTimestamp, trip.endTimestamp);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String encoding = exchange.getRequestHeaders().getFirst("Content-Encoding");
+        byte[] body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = readAll(in);
+        }
+        received.add(new Received(encoding, exchange.getRequestHeaders().getFirst("Idempotency-Key"), body));
+
+        int status = (refuseGzip && "gzip".equals(encoding)) ? 415 : 201;
+        exchange.sendResponseHeaders(status, -1);
+        exchange.close();
+    }
+
+    @Test
+    public void gzipBodyIsTheIdentityBody() throws IOException {
+        byte[] identity = Files.readAllBytes(entry.body.toPath());
+
+        TripHttpSender.Response response = TripHttpSender.post(url, "token", entry, true, 6);
+
+        assertEquals(201, response.code);
+        assertEquals(1, received.size());
+        Received r = received.get(0);
+        assertEquals("gzip", r.encoding);
+        assertEquals("trip-1", r.idempotencyKey);
+        assertArrayEquals(identity, readAll(new GZIPInputStream(new ByteArrayInputStream(r.body))));
+        assertEquals(identity.length, response.payloadBytes);
+        assertTrue(response.wireBytes < identity.length);
+    }
+
+    @Test
+    public void identityBodyIsTheFile() throws IOException {
+        TripHttpSender.Response response = TripHttpSender.post(url, "token", entry, false, 0);
+
+        assertEquals(201, response.code);
+        assertEquals(null, received.get(0).encoding);
+        assertArrayEquals(Files.readAllBytes(entry.body.toPath()), received.get(0).body);
+    }
+
+    @Test
+    public void gzipRefusedIsSentAgainInIdentity() throws IOException {
+        refuseGzip = true;
+        List<Integer> statuses = new ArrayList<>();
+        List<Boolean> encodings = new ArrayList<>();
+
+        TripHttpSender.Response response = TripHttpSender.postWithIdentityFallback(url, "token", entry, true, 6,
+            (e, gzip, r) -> {
+                statuses.add(r.code);
+                encodings.add(gzip);
+            });
+
+        assertEquals(201, response.code);
+        assertTrue(response.gzipRefused);
+        assertEquals(2, received.size());
+        assertEquals("gzip", received.get(0).encoding);
+        assertEquals(null, received.get(1).encoding);
+        assertArrayEquals(Files.readAllBytes(entry.body.toPath()), received.get(1).body);
+        // same trip id on both attempts: the server can drop a duplicate
+        assertEquals(received.get(0).idempotencyKey, received.get(1).idempotencyKey);
+        assertEquals(List.of(415, 201), statuses);
+        assertEquals(List.of(true, false), encodings);
+    }
+
+    @Test
+    public void gzipAcceptedIsNotSentTwice() {
+        TripHttpSender.Response response = TripHttpSender.postWithIdentityFallback(url, "token", entry, true, 6, null);
+
+        assertEquals(201, response.code);
+        assertFalse(response.gzipRefused);
+        assertEquals(1, received.size());
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) > 0) out.write(chunk, 0, n);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,160 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Trip cutting on automotive ENTER / EXIT: a re-ENTER within the 5 min window continues the
+ * trip, after it a new trip starts; a checkpoint taken mid-trip gives the same trips.
+ */
+public class TripSegmenterTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+    private static final long MINUTE = 60 * 1000;
+
+    private final List<TripSummary> trips = new ArrayList<>();
+
+    private static TrackRecord enter(long t) {
+        return TrackRecord.activity("automotive", "ENTER", t);
+    }
+
+    private static TrackRecord exit(long t) {
+        return TrackRecord.activity("automotive", "EXIT", t);
+    }
+
+    /** one fix per second from `from` to `to` (inclusive), heading north */
+    private static List<TrackRecord> drive(long from, long to) {
+        List<TrackRecord> points = new ArrayList<>();
+        for (long t = from; t <= to; t += 1000) {
+            points.add(TrackRecord.location(45.0 + (t - T0) / 1000 * 1e-4, 5.0, 11, t));
+        }
+        return points;
+    }
+
+    /** drive, EXIT at 10 min, stop, ENTER after `pause`, drive 10 more min, EXIT, then a late record */
+    private static List<TrackRecord> stopAndGo(long pause) {
+        List<TrackRecord> records = new ArrayList<>();
+        records.add(enter(T0));
+        records.addAll(drive(T0 + 1000, T0 + 10 * MINUTE));
+        records.add(exit(T0 + 10 * MINUTE));
+        long restart = T0 + 10 * MINUTE + pause;
+        records.add(enter(restart));
+        records.addAll(drive(restart + 1000, restart + 10 * MINUTE));
+        records.add(exit(restart + 10 * MINUTE));
+        records.add(TrackRecord.activity("walking", "ENTER", restart + 30 * MINUTE));
+        return records;
+    }
+
+    private void run(TripSegmenter segmenter, List<TrackRecord> records) {
+        for (TrackRecord r : records) segmenter.accept(r);
+        segmenter.finish();
+    }
+
+    @Test
+    public void reenterWithinWindowContinuesTheTrip() {
+        run(new TripSegmenter(trips::add), stopAndGo(4 * MINUTE));
+
+        assertEquals(1, trips.size());
+        TripSummary trip = trips.get(0);
+        assertEquals(T0 + 1000, trip.startTimestamp);
+        assertEquals(T0 + 24 * MINUTE, trip.endTimestamp);
+        assertEquals(2 * 600, trip.pointCount);
+        assertEquals(T0 + 24 * MINUTE, trip.exitTimestamp);
+        assertNotNull(trip.tripId);
+    }
+
+    @Test
+    public void reenterAfterWindowStartsANewTrip() {
+        run(new TripSegmenter(trips::add), stopAndGo(6 * MINUTE));
+
+        assertEquals(2, trips.size());
+        assertEquals(T0 + 10 * MINUTE, trips.get(0).endTimestamp);
+        assertEquals(T0 + 10 * MINUTE, trips.get(0).exitTimestamp);
+        assertEquals(600, trips.get(0).pointCount);
+        assertEquals(T0 + 16 * MINUTE + 1000, trips.get(1).startTimestamp);
+        assertEquals(600, trips.get(1).pointCount);
+        assertFalse(trips.get(0).tripId.equals(trips.get(1).tripId));
+    }
+
+    @Test
+    public void pointsDuringThePauseAreKeptOnReenter() {
+        TripSegmenter segmenter = new TripSegmenter(trips::add);
+        segmenter.accept(enter(T0));
+        for (TrackRecord p : drive(T0 + 1000, T0 + 2 * MINUTE)) segmenter.accept(p);
+        segmenter.accept(exit(T0 + 2 * MINUTE));
+        // creeping in a traffic jam after the EXIT
+        for (TrackRecord p : drive(T0 + 2 * MINUTE + 1000, T0 + 3 * MINUTE)) segmenter.accept(p);
+
+        TripSummary pending = segmenter.currentTrip();
+        assertEquals(180, pending.pointCount);
+        assertEquals(T0 + 2 * MINUTE, pending.exitTimestamp);
+
+        segmenter.accept(enter(T0 + 4 * MINUTE));
+        assertEquals(0, segmenter.currentTrip().exitTimestamp);
+        segmenter.accept(exit(T0 + 5 * MINUTE));
+        segmenter.finish();
+
+        assertEquals(1, trips.size());
+        assertEquals(180, trips.get(0).pointCount);
+        assertEquals(T0 + 3 * MINUTE, trips.get(0).endTimestamp);
+    }
+
+    @Test
+    public void shortTripIsDropped() {
+        TripSegmenter segmenter = new TripSegmenter(trips::add);
+        segmenter.accept(enter(T0));
+        for (TrackRecord p : drive(T0 + 1000, T0 + 20_000)) segmenter.accept(p);
+        segmenter.accept(exit(T0 + 20_000));
+
+        assertTrue(segmenter.finish());
+        assertTrue(trips.isEmpty());
+        assertNull(segmenter.currentTrip());
+    }
+
+    @Test
+    public void restoredStateGivesTheSameTrips() throws JSONException {
+        for (long pause : new long[] { 4 * MINUTE, 6 * MINUTE }) {
+            List<TrackRecord> records = stopAndGo(pause);
+            List<TripSummary> expected = new ArrayList<>();
+            run(new TripSegmenter(expected::add), records);
+
+            // checkpoint in the middle of the first drive, and during the pause after the EXIT
+            for (long at : new long[] { T0 + 5 * MINUTE, T0 + 10 * MINUTE + 30_000 }) {
+                List<TripSummary> actual = new ArrayList<>();
+                TripSegmenter before = new TripSegmenter(actual::add);
+                int i = 0;
+                while (records.get(i).timestamp <= at) before.accept(records.get(i++));
+
+                TripSegmenter after = new TripSegmenter(actual::add);
+                after.restoreState(new JSONObject(before.saveState().toString()));
+                assertEquals(before.isTracking(), after.isTracking());
+                for (; i < records.size(); i++) after.accept(records.get(i));
+                after.finish();
+
+                assertEquals(expected.size(), actual.size());
+                for (int t = 0; t < expected.size(); t++) {
+                    TripSummary e = expected.get(t);
+                    TripSummary a = actual.get(t);
+                    assertEquals(e.startTimestamp, a.startTimestamp);
+                    assertEquals(e.endTimestamp, a.endTimestamp);
+                    assertEquals(e.exitTimestamp, a.exitTimestamp);
+                    assertEquals(e.pointCount, a.pointCount);
+                    assertEquals(e.distance, a.distance, 1e-6);
+                    assertEquals(e.movingTime, a.movingTime);
+                }
+                // the id given at the ENTER survives the checkpoint
+                assertEquals(before.currentTrip().tripId, actual.get(0).tripId);
+            }
+        }
+    }
+}
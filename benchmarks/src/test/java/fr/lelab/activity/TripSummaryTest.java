@@ -0,0 +1,203 @@
+package fr.lelab.activity;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Moving time, stops (MIN_STOP_MS) and distraction time point by point, a summary split by a
+ * pending EXIT and appended back on re-ENTER, and the checkpoint JSON carrying the running state.
+ */
+public class TripSummaryTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+
+    /** one point per second along a meridian, speeds in m/s */
+    private static List<TrackRecord> points(double... speeds) {
+        List<TrackRecord> points = new ArrayList<>();
+        double lat = 45.0;
+        for (int i = 0; i < speeds.length; i++) {
+            lat += speeds[i] / 111_195.0;
+            points.add(TrackRecord.location(lat, 5.0, speeds[i], T0 + i * 1000L));
+        }
+        return points;
+    }
+
+    private static double[] repeat(double speed, int count) {
+        double[] speeds = new double[count];
+        Arrays.fill(speeds, speed);
+        return speeds;
+    }
+
+    private static double[] concat(double[]... parts) {
+        int n = 0;
+        for (double[] p : parts) n += p.length;
+        double[] all = new double[n];
+        int i = 0;
+        for (double[] p : parts) {
+            System.arraycopy(p, 0, all, i, p.length);
+            i += p.length;
+        }
+        return all;
+    }
+
+    private static TripSummary summary(List<TrackRecord> points) {
+        TripSummary s = new TripSummary();
+        for (TrackRecord p : points) s.add(p);
+        return s;
+    }
+
+    private static void assertSameSummary(TripSummary expected, TripSummary actual) {
+        assertEquals(expected.startTimestamp, actual.startTimestamp);
+        assertEquals(expected.endTimestamp, actual.endTimestamp);
+        assertEquals(expected.pointCount, actual.pointCount);
+        assertEquals(expected.distance, actual.distance, 1e-6);
+        assertEquals(expected.maxSpeed, actual.maxSpeed, 0);
+        assertEquals(expected.movingTime, actual.movingTime);
+        assertEquals(expected.stopCount, actual.stopCount);
+        assertEquals(expected.distractionTime, actual.distractionTime);
+    }
+
+    @Test
+    public void movingTimeCountsTheIntervalsEndingMoving() {
+        // 10 s moving, 3 s stopped, 5 s moving
+        TripSummary s = summary(points(concat(repeat(10, 11), repeat(0.5, 3), repeat(8, 5))));
+
+        assertEquals(19, s.pointCount);
+        assertEquals(18_000, s.getDuration());
+        assertEquals(15_000, s.movingTime);
+        assertEquals(10, s.maxSpeed, 0);
+        assertEquals(10 * 10 + 3 * 0.5 + 5 * 8, s.distance, 0.01);
+    }
+
+    @Test
+    public void stopIsCountedAfterMinStopOnce() {
+        long slowPoints = TripSummary.MIN_STOP_MS / 1000;
+        TripSummary s = summary(points(concat(
+            // slow before moving: not a stop
+            repeat(0, 20),
+            repeat(12, 10),
+            // slow for MIN_STOP_MS - 1 s: not a stop
+            repeat(0.2, (int) slowPoints),
+            repeat(12, 10),
+            // slow for MIN_STOP_MS and more: one stop
+            repeat(0, (int) slowPoints + 1 + 30),
+            repeat(12, 10),
+            // a second one, at the end of the trip
+            repeat(0, (int) slowPoints + 1))));
+
+        assertEquals(2, s.stopCount);
+    }
+
+    @Test
+    public void distractionCountsUntilTheNextValue() {
+        List<TrackRecord> points = points(repeat(10, 21));
+        TripSummary s = new TripSummary();
+        for (int i = 0; i < points.size(); i++) {
+            // context record between point 4 and 5, then point 12 embeds its value (older store)
+            if (i == 5) s.setDistraction(true);
+            if (i == 12) points.get(i).distraction = false;
+            if (i == 15) points.get(i).distraction = true;
+            s.add(points.get(i));
+        }
+
+        // 4 -> 11 distracted (7 s, the value of point 12 applies from 11), 14 -> 20 (6 s)
+        assertEquals(7_000 + 6_000, s.distractionTime);
+        assertEquals(20_000, s.movingTime);
+    }
+
+    @Test
+    public void continuationAppendedOnReEnterGivesTheWholeTrip() {
+        List<TrackRecord> points = points(concat(repeat(10, 30), repeat(0, 3), repeat(0, 20), repeat(9, 30)));
+        TripSummary whole = new TripSummary();
+        for (int i = 0; i < points.size(); i++) {
+            if (i == 20) whole.setDistraction(true);
+            whole.add(points.get(i));
+        }
+
+        // EXIT while stopped (at 31 s): the stop and the distraction run across the split
+        TripSummary trip = new TripSummary();
+        TripSummary afterExit = null;
+        for (int i = 0; i < points.size(); i++) {
+            if (i == 31) afterExit = trip.continuation();
+            TripSummary target = (afterExit != null) ? afterExit : trip;
+            if (i == 20) target.setDistraction(true);
+            target.add(points.get(i));
+        }
+
+        // pending EXIT: the trip as of the exit, the continuation from its last point
+        assertEquals(31, trip.pointCount);
+        assertEquals(0, trip.stopCount);
+        assertEquals(points.get(30).timestamp, trip.endTimestamp);
+        assertEquals(points.get(31).timestamp, afterExit.startTimestamp);
+        assertEquals(1, afterExit.stopCount);
+        assertEquals(whole.distance - trip.distance, afterExit.distance, 1e-6);
+
+        // re-ENTER
+        trip.append(afterExit);
+        assertEquals(1, whole.stopCount);
+        assertSameSummary(whole, trip);
+    }
+
+    @Test
+    public void emptyContinuationKeepsTheTrip() {
+        List<TrackRecord> points = points(repeat(10, 10));
+        TripSummary trip = summary(points);
+        TripSummary before = trip.copy();
+
+        // EXIT then re-ENTER with no point between
+        trip.append(trip.continuation());
+
+        assertSameSummary(before, trip);
+        trip.add(TrackRecord.location(points.get(9).lat + 1e-4, 5.0, 10, T0 + 10_000));
+        assertEquals(1000 * 10, trip.movingTime);
+    }
+
+    @Test
+    public void checkpointKeepsTheRunningState() throws JSONException {
+        List<TrackRecord> points = points(concat(repeat(10, 20), repeat(0, 8), repeat(10, 10)));
+        TripSummary whole = new TripSummary();
+        TripSummary saved = new TripSummary();
+        for (int i = 0; i < points.size(); i++) {
+            if (i == 5) {
+                whole.setDistraction(true);
+                saved.setDistraction(true);
+            }
+            whole.add(points.get(i));
+            // process killed while stopped, not yet for MIN_STOP_MS
+            if (i == 22) saved = TripSummary.fromJSON(new JSONObject(saved.toJSON().toString()));
+            saved.add(points.get(i));
+        }
+
+        assertEquals(1, whole.stopCount);
+        assertSameSummary(whole, saved);
+
+        // a continuation saved before any point
+        TripSummary continuation = summary(points.subList(0, 10)).continuation();
+        TripSummary restored = TripSummary.fromJSON(new JSONObject(continuation.toJSON().toString()));
+        restored.add(points.get(10));
+        continuation.add(points.get(10));
+        assertSameSummary(continuation, restored);
+        assertEquals(1000, restored.movingTime);
+    }
+
+    @Test
+    public void checkpointWithoutLastTimeUsesTheEnd() throws JSONException {
+        List<TrackRecord> points = points(repeat(10, 10));
+        TripSummary s = summary(points.subList(0, 9));
+        JSONObject json = new JSONObject(s.toJSON().toString());
+        // written before lastAt was kept
+        json.remove("lastAt");
+
+        TripSummary restored = TripSummary.fromJSON(json);
+        restored.add(points.get(9));
+        s.add(points.get(9));
+        assertSameSummary(s, restored);
+    }
+}
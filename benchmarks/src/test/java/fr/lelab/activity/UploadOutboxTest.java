@@ -0,0 +1,173 @@
+package fr.lelab.activity;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Entries and bodies across a crash (body without entry), trip id kept, entries listed oldest
+ * first after a start, attempts persisted, and refused entries moved out of the outbox.
+ */
+public class UploadOutboxTest {
+
+    private static final long T0 = 1_767_225_600_000L;
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private File dir;
+    private UploadOutbox outbox;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("outbox-test").toFile();
+        outbox = new UploadOutbox(dir);
+    }
+
+    @After
+    public void tearDown() {
+        outbox.clear();
+        dir.delete();
+    }
+
+    private static TripBuffer points(long start, int count) {
+        TripBuffer points = new TripBuffer();
+        for (int i = 0; i < count; i++) points.add(TrackRecord.location(45.0 + i * 1e-4, 5.0, 12, start + i * 1000L));
+        points.join();
+        return points;
+    }
+
+    private static TripSummary trip(String tripId, long start) {
+        TripSummary trip = new TripSummary();
+        trip.tripId = tripId;
+        trip.startTimestamp = start;
+        trip.endTimestamp = start + 99_000;
+        trip.pointCount = 100;
+        return trip;
+    }
+
+    private UploadOutbox.Entry add(String tripId, long start) throws IOException {
+        return outbox.add(trip(tripId, start), points(start, 100), new RowJsonPayloadCodec(), start - 1, start + 100_000);
+    }
+
+    private static List<Long> starts(Iterator<UploadOutbox.Entry> entries) {
+        List<Long> result = new ArrayList<>();
+        while (entries.hasNext()) result.add(entries.next().trip.startTimestamp);
+        return result;
+    }
+
+    @Test
+    public void bodyWithoutEntryIsIgnoredAndEncodedAgain() throws IOException {
+        UploadOutbox.Entry entry = add("trip-a", T0);
+        byte[] body = Files.readAllBytes(entry.body.toPath());
+        // crash between the body and its entry
+        assertTrue(new File(dir, "trip-" + T0 + ".json").delete());
+
+        assertFalse(outbox.contains(T0));
+        assertNull(outbox.load(T0));
+        assertTrue(outbox.isEmpty());
+        assertFalse(outbox.entriesAfter(Long.MIN_VALUE).hasNext());
+
+        // the sealed trip is still there: taken again by the next sync
+        UploadOutbox.Entry again = add("trip-a", T0);
+        assertTrue(outbox.contains(T0));
+        assertArrayEquals(body, Files.readAllBytes(outbox.load(T0).body.toPath()));
+        assertEquals(again.tripId, outbox.load(T0).tripId);
+        assertEquals(1, outbox.usage()[0]);
+    }
+
+    @Test
+    public void entryKeepsItsTripId() throws IOException {
+        add("trip-a", T0);
+        // written by the sync before a crash: found by contains(), loaded as it was
+        assertTrue(outbox.contains(T0));
+        UploadOutbox.Entry loaded = outbox.load(T0);
+        assertEquals("trip-a", loaded.tripId);
+        assertEquals(T0 - 1, loaded.removeFrom);
+        assertEquals(T0 + 100_000, loaded.removeTo);
+        assertEquals(100, loaded.measures);
+
+        // encoded again in another format: same id, the server drops a duplicate
+        outbox.encode(loaded, points(T0, 100), new ColumnarJsonPayloadCodec());
+        UploadOutbox.Entry reloaded = outbox.load(T0);
+        assertEquals("trip-a", reloaded.tripId);
+        assertEquals(TripPayloadCodec.COLUMNAR, reloaded.codec);
+
+        // no id in the summary: one derived from the start, the same each time
+        UploadOutbox.Entry derived = add(null, T0 + HOUR);
+        assertEquals(derived.tripId, add(null, T0 + HOUR).tripId);
+        assertNotEquals(derived.tripId, add(null, T0 + 2 * HOUR).tripId);
+    }
+
+    @Test
+    public void entriesAfterAreOldestFirst() throws IOException {
+        // added out of order
+        add("c", T0 + 3 * HOUR);
+        add("a", T0 + 999);
+        add("d", T0 + 30 * HOUR);
+        add("b", T0 + HOUR);
+
+        assertEquals(List.of(T0 + 999, T0 + HOUR, T0 + 3 * HOUR, T0 + 30 * HOUR), starts(outbox.entriesAfter(Long.MIN_VALUE)));
+        assertEquals(List.of(T0 + 3 * HOUR, T0 + 30 * HOUR), starts(outbox.entriesAfter(T0 + HOUR)));
+
+        // removed while iterating: skipped
+        Iterator<UploadOutbox.Entry> entries = outbox.entriesAfter(Long.MIN_VALUE);
+        assertEquals(T0 + 999, entries.next().trip.startTimestamp);
+        outbox.remove(outbox.load(T0 + HOUR));
+        assertEquals(List.of(T0 + 3 * HOUR, T0 + 30 * HOUR), starts(entries));
+    }
+
+    @Test
+    public void attemptsArePersisted() throws IOException {
+        UploadOutbox.Entry entry = add("trip-a", T0);
+        entry.attempts = 2;
+        entry.lastStatus = 400;
+        entry.lastAttemptAt = T0 + HOUR;
+        outbox.update(entry);
+
+        UploadOutbox.Entry loaded = outbox.load(T0);
+        assertEquals(2, loaded.attempts);
+        assertEquals(400, loaded.lastStatus);
+        assertEquals(T0 + HOUR, loaded.lastAttemptAt);
+    }
+
+    @Test
+    public void rejectedEntryLeavesTheOutbox() throws IOException {
+        UploadOutbox.Entry entry = add("trip-a", T0);
+        add("trip-b", T0 + HOUR);
+        byte[] body = Files.readAllBytes(entry.body.toPath());
+
+        assertTrue(outbox.reject(entry));
+
+        assertFalse(outbox.contains(T0));
+        assertEquals(List.of(T0 + HOUR), starts(outbox.entriesAfter(Long.MIN_VALUE)));
+        assertEquals(1, outbox.usage()[0]);
+        assertEquals(1, outbox.rejectedCount());
+        // kept for inspection
+        assertArrayEquals(body, Files.readAllBytes(entry.body.toPath()));
+    }
+
+    @Test
+    public void onlyTheLastRejectedAreKept() throws IOException {
+        for (int i = 0; i < UploadOutbox.MAX_REJECTED + 5; i++) {
+            assertTrue(outbox.reject(add("trip-" + i, T0 + i * HOUR)));
+        }
+
+        assertEquals(UploadOutbox.MAX_REJECTED, outbox.rejectedCount());
+        assertFalse(new File(dir, "rejected-" + (T0 + 4 * HOUR) + ".body").exists());
+        assertTrue(new File(dir, "rejected-" + (T0 + 5 * HOUR) + ".body").exists());
+        assertTrue(outbox.isEmpty());
+    }
+}
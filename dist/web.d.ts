@@ -1,5 +1,5 @@
 import { WebPlugin } from '@capacitor/core';
-import type { ActivityRecognitionPlugin, PermissionStatus, GpsLocation } from './definitions';
+import type { ActivityRecognitionPlugin, PermissionStatus, SavedLocationsOptions, ReplayOptions, ReplayStats, SavedLocationsPage, StorageStats, TripStats } from './definitions';
 export declare class ActivityRecognitionWeb extends WebPlugin implements ActivityRecognitionPlugin {
     checkPermissions(): Promise<PermissionStatus>;
     requestPermissions(): Promise<PermissionStatus>;
@@ -13,6 +13,11 @@ export declare class ActivityRecognitionWeb extends WebPlugin implements Activit
         groupId?: string;
         weatherUrl?: string;
         weatherAPIkey?: string;
+        storageDurability?: 'flush' | 'fdatasync' | 'fsyncOnTripClose';
+        uploadCompression?: 'identity' | 'gzip';
+        uploadCompressionLevel?: number;
+        uploadCodec?: 'rows' | 'columnar' | 'cbor';
+        simplifyToleranceMeters?: number;
     }): Promise<void>;
     stopTracking(): Promise<void>;
     forceUpload(): Promise<{
@@ -27,11 +32,12 @@ export declare class ActivityRecognitionWeb extends WebPlugin implements Activit
     isSyncing(): Promise<{
         inProgress: boolean;
     }>;
-    getSavedLocations(): Promise<{
-        locations: GpsLocation[];
-    }>;
+    getSavedLocations(_options?: SavedLocationsOptions): Promise<SavedLocationsPage>;
     clearSavedLocations(): Promise<void>;
     shareSavedLocations(): Promise<void>;
+    getStorageStats(): Promise<StorageStats>;
+    getCurrentTripStats(): Promise<TripStats>;
+    replayDrives(_options?: ReplayOptions): Promise<ReplayStats>;
     purgeLocationsBefore(options: {
         timestamp: number;
     }): Promise<void>;
@@ -47,7 +47,7 @@ export class ActivityRecognitionWeb extends WebPlugin {
         // web version considering no syncing in progress
         return { inProgress: false };
     }
-    async getSavedLocations() {
+    async getSavedLocations(_options) {
         return { locations: [] };
     }
     async clearSavedLocations() {
@@ -56,6 +56,31 @@ export class ActivityRecognitionWeb extends WebPlugin {
     async shareSavedLocations() {
         console.warn('File sharing not implemented on Web');
     }
+    async getStorageStats() {
+        console.warn('Storage stats not available on web');
+        return {
+            durability: 'flush',
+            queueDepth: 0,
+            queueCapacity: 0,
+            committedGroups: 0,
+            committedRecords: 0,
+            committedBytes: 0,
+            droppedRecords: 0,
+            failedRecords: 0,
+            lastCommitLatencyMs: 0,
+            avgCommitLatencyMs: 0,
+            maxCommitLatencyMs: 0,
+            segmentCount: 0,
+            storeBytes: 0
+        };
+    }
+    async getCurrentTripStats() {
+        console.warn('Trip stats not available on web');
+        return { active: false };
+    }
+    async replayDrives(_options) {
+        throw this.unimplemented('Drive replay not available on web');
+    }
     async purgeLocationsBefore(options) {
         console.log('🌐 Web implementation: purgeLocationsBefore called with timestamp:', options.timestamp);
     }
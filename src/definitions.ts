@@ -18,13 +18,192 @@ export interface GpsLocation {
   timestamp: number;
 }
 
+/**
+ * Android: weather, foreground app, lock and distraction are saved as context changes
+ * (written when the value changes) instead of on every location
+ */
+export interface ContextChange {
+  type: 'context';
+  context: 'weather' | 'appUsed' | 'phoneUnlock' | 'distractionDetect';
+  timestamp: number;
+  weather?: { type: string; temp: number };
+  appName?: string;
+  phoneUnlock?: boolean;
+  distractionDetect?: boolean;
+}
+
+export interface SavedLocationsOptions {
+  /** min timestamp (ms, included) */
+  from?: number;
+  /** max timestamp (ms, included) */
+  to?: number;
+  /** only locations, activity changes or context changes (all by default) */
+  type?: 'location' | 'activity' | 'context';
+  /** page size, 1000 by default, 5000 max */
+  limit?: number;
+  /** nextCursor returned by the previous page */
+  cursor?: string;
+}
+
+export interface SavedLocationsPage {
+  locations: GpsLocation[];
+  /** absent on the last page */
+  nextCursor?: string;
+}
+
+/** GPS ingest pipeline (receiver -> ingest thread), Android only */
+export interface IngestStats {
+  queueDepth: number;
+  queueCapacity: number;
+  maxQueueDepth: number;
+  receivedBatches: number;
+  receivedFixes: number;
+  /** appended to the track (fixes outside a drive or dropped by a full writer queue are not counted) */
+  savedFixes: number;
+  /** accuracy worse than 20 m */
+  inaccurateFixes: number;
+  /** queue full: batch dropped without blocking the receiver */
+  droppedBatches: number;
+  droppedFixes: number;
+  lastLatencyMs: number;
+  maxLatencyMs: number;
+}
+
+/** trip uploads since process start, Android only */
+export interface UploadStats {
+  requests: number;
+  succeeded: number;
+  failed: number;
+  /** JSON body bytes */
+  payloadBytes: number;
+  /** bytes written to the connection (after gzip) */
+  wireBytes: number;
+  gzipRequests: number;
+  /** 415 answers to a gzip body (identity used since) */
+  gzipRefused: number;
+  /** 415 answers to a columnar / cbor body (rows used since) */
+  codecRefused: number;
+  /** trips refused (4xx) on each of their 5 attempts, moved out of the outbox */
+  rejectedTrips: number;
+  lastPayloadBytes: number;
+  lastWireBytes: number;
+  lastCodec?: 'rows' | 'columnar' | 'cbor';
+  lastEncoding?: 'identity' | 'gzip';
+  /** HTTP status, -1 on network error */
+  lastStatus: number;
+  /** trips encoded and waiting for the server (kept across restarts) */
+  outboxTrips: number;
+  outboxBytes: number;
+  /** refused trips kept on the device (the 20 last ones) */
+  outboxRejected: number;
+  /** points before / after simplification (simplifyToleranceMeters) */
+  simplifiedPointsIn: number;
+  simplifiedPointsOut: number;
+  /** last simplified trip: share of the points dropped (0..1), largest distance of a dropped point (m) */
+  lastSimplifyReduction: number;
+  lastSimplifyMaxDeviation: number;
+}
+
+/** replayDrives options: synthetic days of driving, the same for the same seed */
+export interface ReplayOptions {
+  /** 1 by default */
+  seed?: number;
+  /** 7 by default, starting on a Monday */
+  days?: number;
+  /** replayed time / wall time, 1000 by default, 0 as fast as possible */
+  speed?: number;
+}
+
+/** replayDrives result (Android, debug mode) */
+export interface ReplayStats {
+  events: number;
+  transitions: number;
+  fixes: number;
+  weathers: number;
+  phones: number;
+  /** grace timers fired on the replay clock */
+  timersFired: number;
+  virtualMs: number;
+  wallMs: number;
+  eventsPerSecond: number;
+  speedup: number;
+  /** time to apply one event to the replay store path */
+  latencyP50Us: number;
+  latencyP99Us: number;
+  latencyMaxUs: number;
+  /** largest delay behind the paced schedule */
+  maxLagMs: number;
+  maxHeapUsedBytes: number;
+  interrupted: boolean;
+  /** replay store (deleted after the replay) */
+  store: {
+    committedRecords: number;
+    committedBytes: number;
+    committedGroups: number;
+    droppedRecords: number;
+    maxCommitLatencyMs: number;
+    inaccurateFixes: number;
+    fixesWithGpsOff: number;
+    /** locations committed too late to be counted in their trip summary */
+    lateRecords: number;
+    sealedTrips: number;
+    distanceKm: number;
+  };
+}
+
+/** Open trip stats, accumulated on the device as points arrive (Android) */
+export interface TripStats {
+  /** false when no trip is open (other fields absent) */
+  active: boolean;
+  tripId?: string;
+  startTimestamp?: number;
+  lastTimestamp?: number;
+  pointCount?: number;
+  /** meters */
+  distance?: number;
+  /** ms, first to last point */
+  duration?: number;
+  /** ms spent at 1 m/s or more */
+  movingTime?: number;
+  /** m/s over the duration */
+  averageSpeed?: number;
+  /** m/s over the moving time */
+  averageMovingSpeed?: number;
+  maxSpeed?: number;
+  /** stops of 5 s or more under 1 m/s, after the car moved */
+  stopCount?: number;
+  /** ms while distraction was detected */
+  distractionTime?: number;
+  /** automotive EXIT received, trip ends if no ENTER follows */
+  exitPending?: boolean;
+}
+
+export interface StorageStats {
+  durability: 'flush' | 'fdatasync' | 'fsyncOnTripClose';
+  queueDepth: number;
+  queueCapacity: number;
+  committedGroups: number;
+  committedRecords: number;
+  committedBytes: number;
+  droppedRecords: number;
+  failedRecords: number;
+  lastCommitLatencyMs: number;
+  avgCommitLatencyMs: number;
+  maxCommitLatencyMs: number;
+  segmentCount: number;
+  storeBytes: number;
+  ingest?: IngestStats;
+  upload?: UploadStats;
+}
+
 export interface ActivityRecognitionPlugin {
   checkPermissions(): Promise<PermissionStatus>;
   requestPermissions(options?: { permissions: string[] }): Promise<PermissionStatus>;
 
-  startTracking(options?: { debug?: boolean, url?: string, groupId?: string, weatherUrl?: string, weatherAPIkey?: string }): Promise<void>;
+  startTracking(options?: { debug?: boolean, url?: string, groupId?: string, weatherUrl?: string, weatherAPIkey?: string, storageDurability?: 'flush' | 'fdatasync' | 'fsyncOnTripClose', uploadCompression?: 'identity' | 'gzip', uploadCompressionLevel?: number, uploadCodec?: 'rows' | 'columnar' | 'cbor', simplifyToleranceMeters?: number }): Promise<void>;
   stopTracking(): Promise<void>;
 
+  /** "success": every sealed trip sent, "pending": some left for the background worker (failure, or a sync already running) */
   forceUpload(): Promise<{ status: string }>;
 
   checkBatteryOptimization(): Promise<{ isIgnoring: boolean }>;
@@ -43,9 +222,10 @@ export interface ActivityRecognitionPlugin {
   // --- DEBUG Method ---
   
   /**
-   * get  GPS position
+   * get  GPS position, one page at a time (Android: call again with nextCursor until it is absent,
+   * iOS returns everything in one page)
    */
-  getSavedLocations(): Promise<{ locations: GpsLocation[] }>;
+  getSavedLocations(options?: SavedLocationsOptions): Promise<SavedLocationsPage>;
   
   /**
    * clear JSON File 
@@ -57,6 +237,22 @@ export interface ActivityRecognitionPlugin {
    */
   shareSavedLocations(): Promise<void>;
 
+  /**
+   * track writer queue depth and commit latency (Android only)
+   */
+  getStorageStats(): Promise<StorageStats>;
+
+  /**
+   * stats of the trip in progress (Android only)
+   */
+  getCurrentTripStats(): Promise<TripStats>;
+
+  /**
+   * replay seeded synthetic drives through the storage path (Android, debug mode only), on a
+   * separate store deleted afterwards: recorded trips, uploads and tracking state are not touched.
+   */
+  replayDrives(options?: ReplayOptions): Promise<ReplayStats>;
+
   /**
    * Suppress point older than timestamp
    * @param options { timestamp: number } - Timestamp in millisecondes
@@ -85,6 +281,14 @@ export interface ActivityRecognitionPlugin {
     listenerFunc: (event: GpsLocation) => void
   ): Promise<PluginListenerHandle>;
 
+  /**
+   * stats of the trip in progress, every 10 s at most and on trip start / end (Android)
+   */
+  addListener(
+    eventName: 'tripStats',
+    listenerFunc: (event: TripStats) => void
+  ): Promise<PluginListenerHandle>;
+
   removeAllListeners(): Promise<void>;
   
 }
\ No newline at end of file
@@ -1,5 +1,5 @@
 import { WebPlugin } from '@capacitor/core';
-import type { ActivityRecognitionPlugin, PermissionStatus, GpsLocation } from './definitions';
+import type { ActivityRecognitionPlugin, PermissionStatus, SavedLocationsOptions, ReplayOptions, ReplayStats, SavedLocationsPage, StorageStats, TripStats } from './definitions';
 
 export class ActivityRecognitionWeb extends WebPlugin implements ActivityRecognitionPlugin {
   
@@ -31,7 +31,7 @@ export class ActivityRecognitionWeb extends WebPlugin implements ActivityRecogni
     return;
   }
 
-  async startTracking(_options?: { debug?: boolean, url?: string, groupId?: string, weatherUrl?: string, weatherAPIkey?: string}): Promise<void> {
+  async startTracking(_options?: { debug?: boolean, url?: string, groupId?: string, weatherUrl?: string, weatherAPIkey?: string, storageDurability?: 'flush' | 'fdatasync' | 'fsyncOnTripClose', uploadCompression?: 'identity' | 'gzip', uploadCompressionLevel?: number, uploadCodec?: 'rows' | 'columnar' | 'cbor', simplifyToleranceMeters?: number }): Promise<void> {
     console.log('Tracking started on web');
   }
 
@@ -60,7 +60,7 @@ export class ActivityRecognitionWeb extends WebPlugin implements ActivityRecogni
   }
   
 
-  async getSavedLocations(): Promise<{ locations: GpsLocation[] }> {
+  async getSavedLocations(_options?: SavedLocationsOptions): Promise<SavedLocationsPage> {
     return { locations: [] };
   }
 
@@ -72,6 +72,34 @@ export class ActivityRecognitionWeb extends WebPlugin implements ActivityRecogni
     console.warn('File sharing not implemented on Web');
   }
 
+  async getStorageStats(): Promise<StorageStats> {
+    console.warn('Storage stats not available on web');
+    return {
+      durability: 'flush',
+      queueDepth: 0,
+      queueCapacity: 0,
+      committedGroups: 0,
+      committedRecords: 0,
+      committedBytes: 0,
+      droppedRecords: 0,
+      failedRecords: 0,
+      lastCommitLatencyMs: 0,
+      avgCommitLatencyMs: 0,
+      maxCommitLatencyMs: 0,
+      segmentCount: 0,
+      storeBytes: 0
+    };
+  }
+
+  async getCurrentTripStats(): Promise<TripStats> {
+    console.warn('Trip stats not available on web');
+    return { active: false };
+  }
+
+  async replayDrives(_options?: ReplayOptions): Promise<ReplayStats> {
+    throw this.unimplemented('Drive replay not available on web');
+  }
+
   async purgeLocationsBefore(options: { timestamp: number }): Promise<void> {
     console.log('🌐 Web implementation: purgeLocationsBefore called with timestamp:', options.timestamp);
   }